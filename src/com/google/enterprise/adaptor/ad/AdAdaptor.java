@@ -28,6 +28,7 @@ import com.google.enterprise.adaptor.Response;
 import com.google.enterprise.adaptor.StartupException;
 import com.google.enterprise.adaptor.UserPrincipal;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -35,11 +36,16 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -73,6 +79,32 @@ public class AdAdaptor extends AbstractAdaptor
   private String globalGroupSearchBaseDN;
   private String globalUserSearchFilter;
   private String globalGroupSearchFilter;
+  private int crawlConcurrency;
+  private int connectionPoolSize;
+  private long connectionIdleTimeoutMillis;
+  private int rangeRetrievalConcurrency;
+  private String globalLdapPageSize;
+  private int prefetchPages;
+  private boolean nioTransport;
+  private boolean dirSyncIncremental;
+  private String membershipStorage;
+  private boolean pushUnchangedGroups;
+  private boolean pushEveryoneIncrementally;
+  private int pushChunkGroups;
+  private int pushChunkMembers;
+  private int pushConcurrency = 1;
+  private int pushRetries = 1;
+  // what was last pushed of each group, to push only the groups that changed
+  private final GroupFingerprints pushedGroups = new GroupFingerprints();
+  /** Journal size below which it is never compacted into the snapshot. */
+  private static final long MIN_COMPACTION_BYTES = 1 << 20;
+  private CatalogSnapshot catalogSnapshot;  // null when not configured
+  private CatalogJournal catalogJournal;  // likewise
+  private ExecutorService compactionExecutor;
+  private boolean compactionPending;
+  // true while lastCompleteGroupCatalog is the one loaded from the snapshot
+  // (and not yet pushed in full)
+  private boolean catalogRestored;
 
   @Override
   public void initConfig(Config config) {
@@ -91,6 +123,22 @@ public class AdAdaptor extends AbstractAdaptor
     config.addKey("ad.groupSearchBaseDN", "");
     config.addKey("ad.userSearchFilter", "");
     config.addKey("ad.groupSearchFilter", "");
+    config.addKey("ad.crawlConcurrency", "1");
+    config.addKey("ad.connectionPoolSize", "1");
+    config.addKey("ad.connectionIdleTimeoutSecs", "300");
+    config.addKey("ad.rangeRetrievalConcurrency", "1");
+    config.addKey("ad.ldapPageSize", "1000");
+    config.addKey("ad.prefetchPages", "0");
+    config.addKey("ad.transport", "jndi");
+    config.addKey("ad.incrementalMode", "usn");
+    config.addKey("ad.catalogSnapshotFile", "");
+    config.addKey("ad.membershipStorage", "heap");
+    config.addKey("ad.pushUnchangedGroups", "false");
+    config.addKey("ad.pushEveryoneIncrementally", "false");
+    config.addKey("ad.pushChunkGroups", "0");
+    config.addKey("ad.pushChunkMembers", "0");
+    config.addKey("ad.pushConcurrency", "1");
+    config.addKey("ad.pushRetries", "1");
   }
 
   @Override
@@ -112,6 +160,53 @@ public class AdAdaptor extends AbstractAdaptor
     globalGroupSearchBaseDN = config.getValue("ad.groupSearchBaseDN");
     globalUserSearchFilter = config.getValue("ad.userSearchFilter");
     globalGroupSearchFilter = config.getValue("ad.groupSearchFilter");
+    crawlConcurrency = parseIntSetting(config, "ad.crawlConcurrency", 1);
+    connectionPoolSize = parseIntSetting(config, "ad.connectionPoolSize", 1);
+    connectionIdleTimeoutMillis = 1000L
+        * parseIntSetting(config, "ad.connectionIdleTimeoutSecs", 0);
+    rangeRetrievalConcurrency =
+        parseIntSetting(config, "ad.rangeRetrievalConcurrency", 1);
+    globalLdapPageSize = config.getValue("ad.ldapPageSize");
+    prefetchPages = parseIntSetting(config, "ad.prefetchPages", 0);
+    String transport = config.getValue("ad.transport").trim().toLowerCase();
+    if ("nio".equals(transport)) {
+      nioTransport = true;
+    } else if ("jndi".equals(transport)) {
+      nioTransport = false;
+    } else {
+      throw new InvalidConfigurationException("invalid value for "
+          + "ad.transport: " + transport);
+    }
+    String incrementalMode =
+        config.getValue("ad.incrementalMode").trim().toLowerCase();
+    if ("dirsync".equals(incrementalMode)) {
+      dirSyncIncremental = true;
+    } else if ("usn".equals(incrementalMode)) {
+      dirSyncIncremental = false;
+    } else {
+      throw new InvalidConfigurationException("invalid value for "
+          + "ad.incrementalMode: " + incrementalMode);
+    }
+    membershipStorage =
+        config.getValue("ad.membershipStorage").trim().toLowerCase();
+    if (!Arrays.asList("heap", "trie", "direct", "mapped").contains(
+        membershipStorage)) {
+      throw new InvalidConfigurationException("invalid value for "
+          + "ad.membershipStorage: " + membershipStorage);
+    }
+    pushUnchangedGroups = Boolean.parseBoolean(
+        config.getValue("ad.pushUnchangedGroups"));
+    pushedGroups.clear();  // in case init gets called again
+    pushEveryoneIncrementally = Boolean.parseBoolean(
+        config.getValue("ad.pushEveryoneIncrementally"));
+    pushChunkGroups = parseIntSetting(config, "ad.pushChunkGroups", 0);
+    pushChunkMembers = parseIntSetting(config, "ad.pushChunkMembers", 0);
+    pushConcurrency = parseIntSetting(config, "ad.pushConcurrency", 1);
+    pushRetries = parseIntSetting(config, "ad.pushRetries", 0);
+    if (rangeRetrievalConcurrency > connectionPoolSize) {
+      log.log(Level.CONFIG, "ad.rangeRetrievalConcurrency is limited by "
+          + "ad.connectionPoolSize ({0})", connectionPoolSize);
+    }
     // register for incremental pushes if adaptor.incrementalPollPeriodSecs > 0
     // this is a workaround, not a fix, for b/18028678
     String incrementalPeriod =
@@ -140,6 +235,10 @@ public class AdAdaptor extends AbstractAdaptor
               + methodStr);
         }
       }
+      if (nioTransport && method != Method.STANDARD) {
+        throw new InvalidConfigurationException("ad.transport=nio supports "
+            + "only method=standard, not " + method + ", for host " + host);
+      }
       String principal = singleServerConfig.get("user");
       if (null == principal) {
         principal = defaultUser;
@@ -176,9 +275,18 @@ public class AdAdaptor extends AbstractAdaptor
       if (singleServerConfig.containsKey("groupSearchFilter")) {
         groupSearchFilter = singleServerConfig.get("groupSearchFilter");
       }
+      String ldapPageSize = globalLdapPageSize;
+      if (singleServerConfig.containsKey("ldapPageSize")) {
+        ldapPageSize = singleServerConfig.get("ldapPageSize");
+      }
       AdServer adServer = newAdServer(method, host, port, principal, passwd,
           userSearchBaseDN, groupSearchBaseDN, userSearchFilter,
           groupSearchFilter, ldapTimeoutInMillis);
+      adServer.setConnectionPoolSize(connectionPoolSize);
+      adServer.setConnectionIdleTimeoutMillis(connectionIdleTimeoutMillis);
+      adServer.setRangeRetrievalConcurrency(rangeRetrievalConcurrency);
+      configurePageSize(adServer, ldapPageSize);
+      adServer.setPrefetchPages(prefetchPages);
       adServer.initialize();
       servers.add(adServer);
       Map<String, String> dup = new TreeMap<String, String>(singleServerConfig);
@@ -186,6 +294,128 @@ public class AdAdaptor extends AbstractAdaptor
       log.log(Level.CONFIG, "AD server spec: {0}", dup);
     }
     localizedStrings = config.getValuesWithPrefix("ad.localized.");
+    String snapshotFile = config.getValue("ad.catalogSnapshotFile").trim();
+    catalogSnapshot = snapshotFile.isEmpty()
+        ? null : new CatalogSnapshot(new File(snapshotFile));
+    catalogJournal = snapshotFile.isEmpty()
+        ? null : new CatalogJournal(new File(snapshotFile + ".journal"));
+    lastCompleteGroupCatalog = null;
+    catalogRestored = false;
+    if (catalogSnapshot != null) {
+      loadCatalogSnapshot();
+    }
+  }
+
+  /**
+   * Makes the catalog saved in the snapshot file, with the changes in the
+   * journal replayed on top of it (if any, and if it is still usable with
+   * the configured servers), the last complete catalog, so the adaptor can
+   * start with incremental crawls.
+   */
+  private void loadCatalogSnapshot() {
+    GroupCatalog catalog = newGroupCatalog(newDnTable());
+    try {
+      if (catalogSnapshot.load(catalog, servers)
+          && catalogJournal.replay(catalog, catalogSnapshot.getGeneration(),
+              servers)) {
+        catalog.journalChanges = new CatalogJournal.Changes();
+        lastCompleteGroupCatalog = catalog;
+        catalogRestored = true;
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not load catalog snapshot from "
+          + catalogSnapshot.getFile() + " -- performing full crawl.", e);
+    }
+  }
+
+  /**
+   * Saves <code>lastCompleteGroupCatalog</code> to the snapshot file (if
+   * configured).  Called once the updates read into it have been pushed, so
+   * that none are skipped after a restart.  A failure is only logged: the
+   * previous snapshot remains usable, just older.
+   */
+  private void saveCatalogSnapshot() {
+    if (catalogSnapshot == null || lastCompleteGroupCatalog == null) {
+      return;
+    }
+    lastCompleteGroupCatalog.journalChanges = new CatalogJournal.Changes();
+    try {
+      catalogSnapshot.save(lastCompleteGroupCatalog, servers);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not save catalog snapshot to "
+          + catalogSnapshot.getFile(), e);
+      return;
+    }
+    try {
+      catalogJournal.reset(catalogSnapshot.getGeneration());
+    } catch (IOException e) {
+      // the next update saves a whole snapshot again
+      log.log(Level.WARNING, "Could not reset catalog journal "
+          + catalogJournal.getFile(), e);
+    }
+  }
+
+  /**
+   * Appends the changes the last incremental crawls made to
+   * <code>lastCompleteGroupCatalog</code> (which have just been pushed) to
+   * the journal, rather than saving a whole snapshot.  Saves a snapshot
+   * instead when a server had to be fully re-crawled, or the journal cannot
+   * be appended to.  Once the journal has grown larger than the snapshot,
+   * compacts it into a new snapshot in the background.
+   */
+  private void journalCatalogChanges() {
+    if (catalogSnapshot == null || lastCompleteGroupCatalog == null) {
+      return;
+    }
+    CatalogJournal.Changes changes = lastCompleteGroupCatalog.journalChanges;
+    if (changes == null || changes.fullCrawl || !catalogJournal.isOpen()) {
+      saveCatalogSnapshot();
+      return;
+    }
+    lastCompleteGroupCatalog.journalChanges = new CatalogJournal.Changes();
+    if (changes.isEmpty()) {
+      return;
+    }
+    try {
+      catalogJournal.append(lastCompleteGroupCatalog, changes, servers);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not append to catalog journal "
+          + catalogJournal.getFile() + " -- saving snapshot instead.", e);
+      saveCatalogSnapshot();
+      return;
+    }
+    if (catalogJournal.length() > Math.max(MIN_COMPACTION_BYTES,
+        catalogSnapshot.getFile().length())) {
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Saves a new snapshot (emptying the journal) on a background thread, once
+   * the crawl in progress (if any) is done.  Crawls wait while the snapshot
+   * is being saved.
+   */
+  private void scheduleCompaction() {
+    if (compactionPending) {
+      return;
+    }
+    if (compactionExecutor == null) {
+      compactionExecutor = Executors.newSingleThreadExecutor();
+    }
+    compactionPending = true;
+    compactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        mutex.lock();
+        try {
+          compactionPending = false;
+          log.log(Level.FINE, "Compacting catalog journal into snapshot.");
+          saveCatalogSnapshot();
+        } finally {
+          mutex.unlock();
+        }
+      }
+    });
   }
 
   /**
@@ -198,6 +428,11 @@ public class AdAdaptor extends AbstractAdaptor
       String groupSearchBaseDN, String userSearchFilter,
       String groupSearchFilter, String ldapTimeoutInMillis)
       throws StartupException {
+    if (nioTransport) {
+      return new AdServer(host, port, userSearchBaseDN, groupSearchBaseDN,
+          userSearchFilter, groupSearchFilter, new NioLdapTransport(host, port,
+              principal, passwd, Long.parseLong(ldapTimeoutInMillis)));
+    }
     return new AdServer(method, host, port, principal, passwd, userSearchBaseDN,
         groupSearchBaseDN, userSearchFilter, groupSearchFilter,
         ldapTimeoutInMillis);
@@ -217,6 +452,61 @@ public class AdAdaptor extends AbstractAdaptor
     }
   }
 
+  /**
+   * Applies an <code>ldapPageSize</code> setting: either a number of entries
+   * per page, or "adaptive" to tune the page size (starting at the default)
+   * within the DC's MaxPageSize policy.
+   */
+  private static void configurePageSize(AdServer adServer, String value)
+      throws InvalidConfigurationException {
+    value = value.trim();
+    if ("adaptive".equalsIgnoreCase(value)) {
+      adServer.setAdaptivePageSize(true);
+      return;
+    }
+    try {
+      int pageSize = Integer.parseInt(value);
+      if (pageSize > 0) {
+        adServer.setPageSize(pageSize);
+        return;
+      }
+    } catch (NumberFormatException e) {
+      // fall through to the exception below
+    }
+    throw new InvalidConfigurationException("invalid value for "
+        + "ad.ldapPageSize: " + value);
+  }
+
+  /**
+   * Returns the integer value of config setting <code>name</code>, which must
+   * be at least <code>minimum</code>.
+   */
+  private static int parseIntSetting(Config config, String name, int minimum)
+      throws InvalidConfigurationException {
+    String value = config.getValue(name);
+    try {
+      int result = Integer.parseInt(value.trim());
+      if (result >= minimum) {
+        return result;
+      }
+    } catch (NumberFormatException e) {
+      // fall through to the exception below
+    }
+    throw new InvalidConfigurationException("invalid value for " + name + ": "
+        + value);
+  }
+
+  /** Closes the LDAP connections to all AdServers. */
+  @Override
+  public void destroy() {
+    for (AdServer server : servers) {
+      server.close();
+    }
+    if (compactionExecutor != null) {
+      compactionExecutor.shutdown();
+    }
+  }
+
   /** This adaptor does not serve documents. */
   @Override
   public void getDocContent(Request req, Response resp) throws IOException {
@@ -236,33 +526,113 @@ public class AdAdaptor extends AbstractAdaptor
     log.log(Level.FINER, "getDocIds invoked - waiting for lock.");
     mutex.lock();
     try {
-      clearLastCompleteGroupCatalog();
-      GroupCatalog cumulativeCatalog = makeFullCatalog();
+      GroupCatalog cumulativeCatalog = null;
+      if (catalogRestored) {
+        catalogRestored = false;
+        cumulativeCatalog = updateRestoredCatalog();
+      }
+      if (cumulativeCatalog == null) {
+        // the deleted groups the last catalog has yet to push
+        Map<AdEntity, GroupPrincipal> deletedGroups =
+            (lastCompleteGroupCatalog == null) ? null
+            : lastCompleteGroupCatalog.deletedGroups;
+        clearLastCompleteGroupCatalog();
+        cumulativeCatalog = makeFullCatalog();
+        if (deletedGroups != null) {
+          deletedGroups.keySet().removeAll(cumulativeCatalog.entities);
+          cumulativeCatalog.deletedGroups.putAll(deletedGroups);
+        }
+      }
       // all servers were able to successfully populate the catalog: do a push
       // TODO(myk): Rework the structure so that a member variable of
       // cumulativeCatalog isn't passed in as a parameter to its own method.
       cumulativeCatalog.resolveForeignSecurityPrincipals(
           cumulativeCatalog.entities);
-      Map<GroupPrincipal, List<Principal>> groups =
-          cumulativeCatalog.makeDefs(cumulativeCatalog.entities);
-      pusher.pushGroupDefinitions(groups, CASE_SENSITIVITY);
+      pushGroupDefinitions(pusher, cumulativeCatalog,
+          cumulativeCatalog.entities);
       // no longer clear cumulativeCatalog.members as part of fix for b/18028678
       lastCompleteGroupCatalog = cumulativeCatalog;
+      saveCatalogSnapshot();
     } finally {
       mutex.unlock();
       log.log(Level.FINE, "getDocIds ending - lock released.");
     }
   }
 
+  /**
+   * Pushes the definitions of the groups among <code>entities</code> whose
+   * members changed since they were last pushed (or of all of them, with
+   * <code>ad.pushUnchangedGroups</code>).  The definitions are made and
+   * pushed a chunk at a time, as <code>ad.pushChunkGroups</code> and
+   * <code>ad.pushChunkMembers</code> say, rather than all at once -- and
+   * with <code>ad.pushConcurrency</code> above 1, split into that many
+   * shards pushed concurrently.
+   */
+  private void pushGroupDefinitions(DocIdPusher pusher, GroupCatalog catalog,
+      Set<AdEntity> entities) throws InterruptedException {
+    ExecutorService executor = (pushConcurrency > 1)
+        ? Executors.newFixedThreadPool(pushConcurrency) : null;
+    try {
+      ChunkedGroupPusher chunks = new ChunkedGroupPusher(pusher,
+          CASE_SENSITIVITY, pushUnchangedGroups ? null : pushedGroups,
+          pushChunkGroups, pushChunkMembers, executor, pushConcurrency,
+          pushRetries);
+      catalog.makeDefs(entities, chunks);
+      chunks.flush();
+      catalog.groupsPushed(entities, chunks.getFailedGroups());
+      log.log(Level.FINE, "Pushed {0} groups in {1} chunks; {2} were "
+          + "unchanged, and {3} chunks failed", new Object[] {
+          chunks.getGroupCount() - chunks.getUnchangedCount(),
+          chunks.getChunkCount(), chunks.getUnchangedCount(),
+          chunks.getFailedChunkCount()});
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Brings the catalog loaded from the snapshot up to date with an
+   * incremental crawl of each server (or a full crawl of the servers that
+   * cannot do one), instead of re-crawling every domain.
+   * @return the updated catalog, or null if a server could not be crawled
+   */
+  private GroupCatalog updateRestoredCatalog() {
+    GroupCatalog catalog = lastCompleteGroupCatalog;
+    log.log(Level.FINE, "Updating the catalog loaded from the snapshot.");
+    for (AdServer server : servers) {
+      String previousServiceName = server.getDsServiceName();
+      String previousInvocationId = server.getInvocationID();
+      long previousHighestUSN = server.getHighestCommittedUSN();
+      try {
+        server.ensureConnectionIsCurrent();
+        catalog.readUpdatesFrom(server, previousServiceName,
+            previousInvocationId, previousHighestUSN);
+      } catch (NamingException ne) {
+        log.log(Level.WARNING, "Could not update the catalog loaded from the "
+            + "snapshot from " + server.getHostName()
+            + " -- performing full crawl.", ne);
+        return null;
+      }
+    }
+    return catalog;
+  }
+
   @VisibleForTesting
   GroupCatalog makeFullCatalog() throws InterruptedException, IOException {
-    GroupCatalog cumulativeCatalog = new GroupCatalog(localizedStrings,
-        namespace, feedBuiltinGroups);
+    // the catalogs of all servers share one table of DNs, so they agree on
+    // the IDs of entities
+    StringTable dnTable = newDnTable();
+    GroupCatalog cumulativeCatalog = newGroupCatalog(dnTable);
+    if (isParallelCrawl()) {
+      makeFullCatalogInParallel(cumulativeCatalog);
+      return cumulativeCatalog;
+    }
     for (AdServer server : servers) {
       try {
         server.ensureConnectionIsCurrent();
-        GroupCatalog catalog = new GroupCatalog(localizedStrings, namespace,
-              feedBuiltinGroups);
+        GroupCatalog catalog = newGroupCatalog(dnTable);
         catalog.readEverythingFrom(server, /*includeMembers=*/ true);
         cumulativeCatalog.add(catalog);
       } catch (NamingException ne) {
@@ -273,6 +643,95 @@ public class AdAdaptor extends AbstractAdaptor
     return cumulativeCatalog;
   }
 
+  private GroupCatalog newGroupCatalog(StringTable dnTable) {
+    GroupCatalog catalog = new GroupCatalog(localizedStrings, namespace,
+        feedBuiltinGroups, dnTable);
+    catalog.dirSyncMemberChanges = dirSyncIncremental;
+    return catalog;
+  }
+
+  /**
+   * Returns a new table to store DNs in: on the heap (whole, or as a tree of
+   * their components), or outside it, as <code>ad.membershipStorage</code>
+   * says.
+   */
+  private StringTable newDnTable() {
+    if ("heap".equals(membershipStorage)) {
+      return new HeapStringTable();
+    } else if ("trie".equals(membershipStorage)) {
+      return new DnTrieStringTable();
+    }
+    return new OffHeapStringTable("mapped".equals(membershipStorage));
+  }
+
+  private boolean isParallelCrawl() {
+    return crawlConcurrency > 1 && servers.size() > 1;
+  }
+
+  /**
+   * Crawls every AdServer into its own catalog on a pool of (at most)
+   * <code>ad.crawlConcurrency</code> threads.  The per-server catalogs are
+   * merged in the order the servers are configured, so the result is the same
+   * as that of the sequential crawl no matter which server finishes first.
+   */
+  private void makeFullCatalogInParallel(
+      final GroupCatalog cumulativeCatalog)
+      throws InterruptedException, IOException {
+    log.log(Level.FINE, "Crawling {0} servers with {1} threads.",
+        new Object[]{servers.size(), crawlConcurrency});
+    ExecutorService executor = newCrawlExecutor();
+    try {
+      List<Future<GroupCatalog>> futures =
+          new ArrayList<Future<GroupCatalog>>();
+      for (final AdServer server : servers) {
+        futures.add(executor.submit(new Callable<GroupCatalog>() {
+          @Override
+          public GroupCatalog call() throws NamingException {
+            server.ensureConnectionIsCurrent();
+            GroupCatalog catalog =
+                newGroupCatalog(cumulativeCatalog.dnTable);
+            catalog.readEverythingFrom(server, /*includeMembers=*/ true);
+            return catalog;
+          }
+        }));
+      }
+      for (int i = 0; i < servers.size(); i++) {
+        cumulativeCatalog.add(getCrawlResult(futures.get(i), servers.get(i)));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ExecutorService newCrawlExecutor() {
+    return Executors.newFixedThreadPool(
+        Math.min(crawlConcurrency, servers.size()));
+  }
+
+  /**
+   * Waits for the crawl of one server to finish.  A failed crawl is reported
+   * exactly as the sequential crawl reports it: <code>NamingException</code>s
+   * are wrapped in an <code>IOException</code> naming the server, and
+   * unchecked exceptions are rethrown as they are.
+   */
+  private static <T> T getCrawlResult(Future<T> future, AdServer server)
+      throws InterruptedException, IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof NamingException) {
+        String host = server.getHostName();
+        throw new IOException("could not get entities from " + host, cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
   /**
    * Attempts an incremental push of updated groups from all AdServers.
    * <p>
@@ -303,35 +762,119 @@ public class AdAdaptor extends AbstractAdaptor
     if (lastCompleteGroupCatalog == null) {
       log.log(Level.FINE, "getModifiedDocIds doing a fetch with no push.");
       lastCompleteGroupCatalog = makeFullCatalog();
+      saveCatalogSnapshot();
       return;
     }
 
     Set<AdEntity> allNewOrUpdatedEntities = new HashSet<AdEntity>();
-    for (AdServer server : servers) {
-      String previousServiceName = server.getDsServiceName();
-      String previousInvocationId = server.getInvocationID();
-      long previousHighestUSN = server.getHighestCommittedUSN();
-      try {
-        server.ensureConnectionIsCurrent();
-        allNewOrUpdatedEntities.addAll(
-            lastCompleteGroupCatalog.readUpdatesFrom(server,
-                previousServiceName, previousInvocationId,
-                previousHighestUSN));
-      } catch (NamingException ne) {
-        // invalidate the saved group catalog
-        clearLastCompleteGroupCatalog();
-        String host = server.getHostName();
-        throw new IOException("could not get entities from " + host, ne);
+    if (isParallelCrawl()) {
+      readUpdatesInParallel(allNewOrUpdatedEntities);
+    } else {
+      for (AdServer server : servers) {
+        String previousServiceName = server.getDsServiceName();
+        String previousInvocationId = server.getInvocationID();
+        long previousHighestUSN = server.getHighestCommittedUSN();
+        try {
+          server.ensureConnectionIsCurrent();
+          allNewOrUpdatedEntities.addAll(
+              lastCompleteGroupCatalog.readUpdatesFrom(server,
+                  previousServiceName, previousInvocationId,
+                  previousHighestUSN));
+        } catch (NamingException ne) {
+          // invalidate the saved group catalog
+          clearLastCompleteGroupCatalog();
+          String host = server.getHostName();
+          throw new IOException("could not get entities from " + host, ne);
+        }
       }
     }
 
     // all servers were able to successfully update the catalog: do a push
     lastCompleteGroupCatalog.resolveForeignSecurityPrincipals(
         allNewOrUpdatedEntities);
-    Map<GroupPrincipal, List<Principal>> groups =
-        lastCompleteGroupCatalog.makeDefs(allNewOrUpdatedEntities);
-    pusher.pushGroupDefinitions(groups, CASE_SENSITIVITY);
+    // the groups the last push failed to push, though unchanged since (an
+    // entity changed since is already in the set, and is kept)
+    allNewOrUpdatedEntities.addAll(lastCompleteGroupCatalog.failedGroups);
+    // Everyone has each user as a member, so any user added, removed or
+    // modified would have it re-sent in full: leave it to the full pushes
+    if (!pushEveryoneIncrementally && allNewOrUpdatedEntities.remove(
+        lastCompleteGroupCatalog.everyone)) {
+      log.log(Level.FINE, "Leaving {0} to the next full push",
+          lastCompleteGroupCatalog.everyone);
+    }
+    pushGroupDefinitions(pusher, lastCompleteGroupCatalog,
+        allNewOrUpdatedEntities);
     // no longer clear cumulativeCatalog.members as part of fix for b/18028678
+    journalCatalogChanges();
+  }
+
+  /**
+   * Parallel version of the loop in <code>getModifiedDocIdsHelper</code>: the
+   * searches for updated entities run on one thread per server, while the
+   * results are applied to <code>lastCompleteGroupCatalog</code> one server at
+   * a time, in the order the servers are configured.
+   */
+  private void readUpdatesInParallel(Set<AdEntity> allNewOrUpdatedEntities)
+      throws InterruptedException, IOException {
+    ExecutorService executor = newCrawlExecutor();
+    try {
+      final GroupCatalog catalog = lastCompleteGroupCatalog;
+      List<Future<ServerUpdate>> futures =
+          new ArrayList<Future<ServerUpdate>>();
+      for (final AdServer server : servers) {
+        final ServerUpdate update = new ServerUpdate(server);
+        futures.add(executor.submit(new Callable<ServerUpdate>() {
+          @Override
+          public ServerUpdate call() throws NamingException {
+            server.ensureConnectionIsCurrent();
+            if (catalog.isIncrementalCrawlPossible(server,
+                update.previousServiceName, update.previousInvocationId,
+                update.previousHighestUSN)) {
+              update.prefetched = catalog.fetchIncrementalUpdates(server,
+                  update.previousHighestUSN);
+            }
+            return update;
+          }
+        }));
+      }
+      for (int i = 0; i < servers.size(); i++) {
+        AdServer server = servers.get(i);
+        try {
+          ServerUpdate update = getCrawlResult(futures.get(i), server);
+          allNewOrUpdatedEntities.addAll(catalog.readUpdatesFrom(server,
+              update.previousServiceName, update.previousInvocationId,
+              update.previousHighestUSN, update.prefetched));
+        } catch (IOException ioe) {
+          // invalidate the saved group catalog
+          clearLastCompleteGroupCatalog();
+          throw ioe;
+        } catch (NamingException ne) {
+          clearLastCompleteGroupCatalog();
+          String host = server.getHostName();
+          throw new IOException("could not get entities from " + host, ne);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The watermarks of one AdServer from before its connection is refreshed,
+   * plus the entities prefetched from it by a parallel incremental crawl
+   * (<code>null</code> when none were prefetched).
+   */
+  private static class ServerUpdate {
+    final String previousServiceName;
+    final String previousInvocationId;
+    final long previousHighestUSN;
+    GroupCatalog.IncrementalUpdates prefetched;
+
+    ServerUpdate(AdServer server) {
+      previousServiceName = server.getDsServiceName();
+      previousInvocationId = server.getInvocationID();
+      previousHighestUSN = server.getHighestCommittedUSN();
+    }
   }
 
   // don't expose the <code>lastCompleteGroupCatalog</code> field, but do allow
@@ -355,9 +898,26 @@ public class AdAdaptor extends AbstractAdaptor
     Map<AdEntity, Set<String>> primaryMembers =
         new HashMap<AdEntity, Set<String>>();
 
-    Map<String, AdEntity> bySid = new HashMap<String, AdEntity>();
-    Map<String, AdEntity> byDn = new HashMap<String, AdEntity>();
+    final SidIndex bySid = new SidIndex();
+    // the ID of the entity's DN in dnTable is the entity's ID in the catalog
+    final DnIndex byDn;
     Map<AdEntity, String> domain = new HashMap<AdEntity, String>();
+    // when true, incremental crawls read only the members added to and
+    // removed from groups (with DirSync), rather than all members of each
+    // changed group
+    boolean dirSyncMemberChanges;
+    // groups deleted by an incremental crawl, with their principals, until
+    // a push of their (empty) definitions succeeds
+    Map<AdEntity, GroupPrincipal> deletedGroups =
+        new HashMap<AdEntity, GroupPrincipal>();
+    // groups the last push failed to push, which incremental pushes send
+    // again until they succeed (full pushes send every group anyway)
+    Set<AdEntity> failedGroups = new HashSet<AdEntity>();
+    // when set, collects the changes incremental crawls make, to be journaled
+    CatalogJournal.Changes journalChanges;
+    // the DNs of all entities and members; member sets and byDn hold the IDs
+    // of DNs in this table instead of the DNs themselves
+    final StringTable dnTable;
 
     final AdEntity everyone;
     final AdEntity interactive;
@@ -366,9 +926,21 @@ public class AdAdaptor extends AbstractAdaptor
 
     public GroupCatalog(Map<String, String> localizedStrings, String namespace,
         boolean feedBuiltinGroups) {
+      this(localizedStrings, namespace, feedBuiltinGroups,
+          new HeapStringTable());
+    }
+
+    /**
+     * @param dnTable table to store DNs in (which may be shared with other
+     *     catalogs, to be merged with this one)
+     */
+    GroupCatalog(Map<String, String> localizedStrings, String namespace,
+        boolean feedBuiltinGroups, StringTable dnTable) {
       this.localizedStrings = localizedStrings;
       this.namespace = namespace;
       this.feedBuiltinGroups = feedBuiltinGroups;
+      this.dnTable = dnTable;
+      byDn = new DnIndex(dnTable);
       everyone = new AdEntity("S-1-1-0",
           MessageFormat.format("CN={0}",
           localizedStrings.get("Everyone")));
@@ -381,9 +953,9 @@ public class AdAdaptor extends AbstractAdaptor
           localizedStrings.get("AuthenticatedUsers"),
           localizedStrings.get("NTAuthority")));
       wellKnownMembership = new HashMap<AdEntity, Set<String>>();
-      wellKnownMembership.put(everyone, new TreeSet<String>());
-      wellKnownMembership.put(interactive, new TreeSet<String>());
-      wellKnownMembership.put(authenticatedUsers, new TreeSet<String>());
+      wellKnownMembership.put(everyone, newMemberSet());
+      wellKnownMembership.put(interactive, newMemberSet());
+      wellKnownMembership.put(authenticatedUsers, newMemberSet());
 
       // To save space on GSA onboard groups database, we add "everyone" as a
       // member to "Interactive" and "authenticated users" groups.
@@ -397,14 +969,14 @@ public class AdAdaptor extends AbstractAdaptor
       entities.add(interactive);
       entities.add(authenticatedUsers);
 
-      bySid.put(everyone.getSid(), everyone);
+      bySid.add(everyone.getObjectSid(), everyone);
       byDn.put(everyone.getDn(), everyone);
 
-      bySid.put(interactive.getSid(), interactive);
+      bySid.add(interactive.getObjectSid(), interactive);
       byDn.put(interactive.getDn(), interactive);
       domain.put(interactive, localizedStrings.get("NTAuthority"));
 
-      bySid.put(authenticatedUsers.getSid(), authenticatedUsers);
+      bySid.add(authenticatedUsers.getObjectSid(), authenticatedUsers);
       byDn.put(authenticatedUsers.getDn(), authenticatedUsers);
       domain.put(authenticatedUsers, localizedStrings.get("NTAuthority"));
     }
@@ -433,6 +1005,11 @@ public class AdAdaptor extends AbstractAdaptor
       this.domain.putAll(domain);
     }
 
+    /** Returns a new, empty set to hold the member DNs of a group. */
+    Set<String> newMemberSet() {
+      return new MemberSet(dnTable);
+    }
+
     @VisibleForTesting
     void readEverythingFrom(AdServer server, boolean includeMembers)
         throws InterruptedNamingException {
@@ -443,23 +1020,54 @@ public class AdAdaptor extends AbstractAdaptor
           nonMemberAttributes.length + 1);
       allAttributes[nonMemberAttributes.length] = "member";
       log.log(Level.FINE, "Starting full crawl.");
+      if (journalChanges != null) {
+        journalChanges.fullCrawl = true;
+      }
+      if (dirSyncMemberChanges) {
+        // before the crawl, so no member change made during it is missed
+        resetDirSyncCookie(server);
+      }
+      warnIfSearchesCustomized(server.getUserSearchBaseDN(),
+          server.getGroupSearchBaseDN(), server.getUserSearchFilter(),
+          server.getGroupSearchFilter());
+      // index each entity as soon as it arrives, rather than collecting all
+      // of the search results first
+      entities = new HashSet<AdEntity>();
+      final String nETBIOSName = server.getnETBIOSName();
+      AdServer.EntityHandler indexer = new AdServer.EntityHandler() {
+        @Override
+        public void handle(AdEntity e) {
+          entities.add(e);
+          indexEntity(e, nETBIOSName);
+        }
+      };
       if (server.getGroupSearchBaseDN().equals(server.getUserSearchBaseDN())) {
-        entities = server.search(server.getUserSearchBaseDN(),
+        server.search(server.getUserSearchBaseDN(),
             generateLdapQuery(server), /*deleted=*/ false,
-            includeMembers ? allAttributes : nonMemberAttributes);
+            includeMembers ? allAttributes : nonMemberAttributes, indexer);
       } else {
-        entities = server.search(server.getGroupSearchBaseDN(),
+        server.search(server.getGroupSearchBaseDN(),
             generateGroupLdapQuery(server), /*deleted=*/ false,
-            includeMembers ? allAttributes : nonMemberAttributes);
-        entities.addAll(server.search(server.getUserSearchBaseDN(),
+            includeMembers ? allAttributes : nonMemberAttributes, indexer);
+        server.search(server.getUserSearchBaseDN(),
             generateUserLdapQuery(server), /*deleted=*/ false,
-            nonMemberAttributes));
+            nonMemberAttributes, indexer);
       }
       // disabled groups handled later, in makeDefs()
       log.log(Level.FINE, "Ending full crawl - now starting processing.");
-      processEntities(entities, server.getnETBIOSName(),
-          server.getUserSearchBaseDN(), server.getGroupSearchBaseDN(),
-          server.getUserSearchFilter(), server.getGroupSearchFilter());
+      log.log(Level.FINE, "received {0} entities from server", entities.size());
+      resolvePrimaryGroups(entities);
+      log.log(Level.FINE, "Ending processing of {0} entities", entities.size());
+      if (dnTable instanceof OffHeapStringTable) {
+        log.log(Level.FINE, "{0} DNs stored outside the heap in {1} bytes",
+            new Object[] {dnTable.size(),
+            ((OffHeapStringTable) dnTable).getBytesUsed()});
+      } else if (dnTable instanceof DnTrieStringTable) {
+        DnTrieStringTable trie = (DnTrieStringTable) dnTable;
+        log.log(Level.FINE, "{0} DNs stored as {1} components of {2} chars",
+            new Object[] {dnTable.size(), trie.getNodeCount(),
+            trie.getCharCount()});
+      }
     }
 
     /**
@@ -545,6 +1153,18 @@ public class AdAdaptor extends AbstractAdaptor
     Set<AdEntity> readUpdatesFrom(AdServer server, String previousServiceName,
         String previousInvocationId, long previousHighestUSN)
         throws InterruptedNamingException {
+      return readUpdatesFrom(server, previousServiceName, previousInvocationId,
+          previousHighestUSN, null);
+    }
+
+    /**
+     * Same as above, but applies <code>prefetched</code> (the result of an
+     * earlier call to <code>fetchIncrementalUpdates</code>) instead of
+     * searching the server again, when an incremental crawl is done.
+     */
+    Set<AdEntity> readUpdatesFrom(AdServer server, String previousServiceName,
+        String previousInvocationId, long previousHighestUSN,
+        IncrementalUpdates prefetched) throws InterruptedNamingException {
       // TODO(myk): Determine whether adaptors should include code to get/set
       // last full sync time, and if exceeding some threshhold should force a
       // full crawl.
@@ -576,12 +1196,40 @@ public class AdAdaptor extends AbstractAdaptor
         return Collections.emptySet();
       }
       log.log(Level.INFO, "Attempting incremental crawl.");
+      if (prefetched != null) {
+        return applyIncrementalUpdates(server, prefetched);
+      }
       return incrementalCrawl(server, previousHighestUSN, currentHighestUSN);
     }
 
+    /**
+     * Returns true when <code>readUpdatesFrom</code> (called with the same
+     * parameters) would do an incremental crawl of <code>server</code>.
+     */
+    boolean isIncrementalCrawlPossible(AdServer server,
+        String previousServiceName, String previousInvocationId,
+        long previousHighestUSN) {
+      return server.getDsServiceName().equals(previousServiceName)
+          && server.getInvocationID().equals(previousInvocationId)
+          && server.getHighestCommittedUSN() != previousHighestUSN;
+    }
+
     private void processEntities(Set<AdEntity> entities, String nETBIOSName,
         String userSearchBaseDN, String groupSearchBaseDN,
         String userSearchFilter, String groupSearchFilter) {
+      warnIfSearchesCustomized(userSearchBaseDN, groupSearchBaseDN,
+          userSearchFilter, groupSearchFilter);
+      log.log(Level.FINE, "received {0} entities from server", entities.size());
+      for (AdEntity e : entities) {
+        indexEntity(e, nETBIOSName);
+      }
+      resolvePrimaryGroups(entities);
+      log.log(Level.FINE, "Ending processing of {0} entities", entities.size());
+    }
+
+    private static void warnIfSearchesCustomized(String userSearchBaseDN,
+        String groupSearchBaseDN, String userSearchFilter,
+        String groupSearchFilter) {
       if (!(("".equals(userSearchBaseDN)) && ("".equals(groupSearchBaseDN))
           && ("".equals(userSearchFilter)) && ("".equals(groupSearchFilter)))) {
         log.log(Level.CONFIG, "CAUTION: Customized LDAP search base(s) and/or "
@@ -589,26 +1237,63 @@ public class AdAdaptor extends AbstractAdaptor
             + " with finding content, investigate if relevant users/groups are "
             + "being excluded from indexing.");
       }
-      log.log(Level.FINE, "received {0} entities from server", entities.size());
-      for (AdEntity e : entities) {
-        bySid.put(e.getSid(), e);
-        byDn.put(e.getDn(), e);
-        // TODO(pjo): Have AdServer put domain into AdEntity during search
-        domain.put(e, e.getSid().startsWith("S-1-5-32-") ?
-            localizedStrings.get("Builtin") : nETBIOSName);
+    }
+
+    /**
+     * Adds one entity to the bySid, byDn and domain indexes, and (for a group)
+     * records its members in the "members" data store - not including
+     * "primary" members, which are resolved once all entities are indexed.
+     * Indexing by DN gives the entity its ID: that of its DN in
+     * <code>dnTable</code>.  A group's own member set is then released, so
+     * its members are held only once.
+     */
+    private void indexEntity(AdEntity e, String nETBIOSName) {
+      bySid.add(e.getObjectSid(), e);
+      byDn.put(e.getDn(), e);
+      // TODO(pjo): Have AdServer put domain into AdEntity during search
+      domain.put(e, e.getObjectSid().isBuiltin() ?
+          localizedStrings.get("Builtin") : nETBIOSName);
+      if (e.isGroup()) {
+        Set<String> groupMembers = newMemberSet();
+        groupMembers.addAll(e.getMembers());
+        members.put(e, groupMembers);
+        e.releaseMembers();
       }
-      initializeMembers(entities);
-      resolvePrimaryGroups(entities);
-      log.log(Level.FINE, "Ending processing of {0} entities", entities.size());
     }
 
     @VisibleForTesting
     Set<AdEntity> incrementalCrawl(AdServer server, long previousHighestUSN,
         long currentHighestUSN) throws InterruptedNamingException {
+      return applyIncrementalUpdates(server,
+          fetchIncrementalUpdates(server, previousHighestUSN));
+    }
+
+    /**
+     * Searches <code>server</code> for the groups/users changed since
+     * <code>previousHighestUSN</code> (and, with
+     * <code>dirSyncMemberChanges</code>, for the member changes since the
+     * last crawl).  Does not modify this catalog, so it is safe to call for
+     * several servers at once.
+     */
+    IncrementalUpdates fetchIncrementalUpdates(AdServer server,
+        long previousHighestUSN) throws InterruptedNamingException {
       log.log(Level.FINE, "Starting incremental crawl.");
-      final String[] attributes = new String[] { "uSNChanged", "member",
-          "sAMAccountName", "objectGUID;binary", "objectSid;binary",
-          "userPrincipalName", "primaryGroupId", "userAccountControl" };
+      Map<String, AdServer.MemberChanges> memberChanges = null;
+      if (dirSyncMemberChanges && server.hasDirSyncCookie()) {
+        // read before the changed groups, so the members of a group created
+        // in between are not lost: they come with the next member changes
+        memberChanges = readMemberChanges(server);
+      }
+      final String[] attributes;
+      if (memberChanges == null) {
+        attributes = new String[] { "uSNChanged", "member",
+            "sAMAccountName", "objectGUID;binary", "objectSid;binary",
+            "userPrincipalName", "primaryGroupId", "userAccountControl" };
+      } else {
+        attributes = new String[] { "uSNChanged", "sAMAccountName",
+            "objectGUID;binary", "objectSid;binary", "userPrincipalName",
+            "primaryGroupId", "userAccountControl" };
+      }
       Set<AdEntity> newOrModifiedEntities;
 
       String newEntryQuery = "(uSNChanged>=" + (previousHighestUSN + 1) + ")";
@@ -626,18 +1311,97 @@ public class AdAdaptor extends AbstractAdaptor
       }
 
       // disabled groups handled later, in makeDefs()
+      Set<AdEntity> tombstones = fetchDeletedEntities(server,
+          previousHighestUSN);
+
       log.log(Level.FINE, "Ending incremental crawl - now starting "
           + "processing.");
+      return new IncrementalUpdates(newOrModifiedEntities, tombstones,
+          memberChanges);
+    }
+
+    /**
+     * Searches <code>server</code> (with the <code>DeletedControl</code>) for
+     * the tombstones of the groups/users deleted since
+     * <code>previousHighestUSN</code>.  A tombstone keeps the
+     * <code>objectSid</code> of the deleted object, but not its DN.
+     */
+    private Set<AdEntity> fetchDeletedEntities(AdServer server,
+        long previousHighestUSN) throws InterruptedNamingException {
+      final String[] attributes = new String[] { "uSNChanged",
+          "sAMAccountName", "objectGUID;binary", "objectSid;binary" };
+      String query = "(&(isDeleted=TRUE)(uSNChanged>="
+          + (previousHighestUSN + 1) + ")"
+          + "(|(objectClass=group)(objectClass=user)))";
+      Set<AdEntity> tombstones = server.search("", query, /*deleted=*/ true,
+          attributes);
+      log.log(Level.FINE, "received {0} tombstones from server",
+          tombstones.size());
+      return tombstones;
+    }
+
+    /**
+     * Reads the member changes from <code>server</code> with DirSync.
+     * @return the changes, or null if they could not be read (in which case
+     *     the members of the changed groups have to be re-read)
+     */
+    private Map<String, AdServer.MemberChanges> readMemberChanges(
+        AdServer server) throws InterruptedNamingException {
+      try {
+        return server.readMemberChanges();
+      } catch (InterruptedNamingException e) {
+        throw e;
+      } catch (NamingException e) {
+        log.log(Level.WARNING, "Could not read member changes from " + server
+            + " with DirSync -- re-reading all members of changed groups.", e);
+        // before the members are re-read, so no later change is missed
+        resetDirSyncCookie(server);
+        return null;
+      }
+    }
+
+    /**
+     * Points the DirSync cookie of <code>server</code> at the current state
+     * of the directory.  On failure, the cookie is left unset, and incremental
+     * crawls of <code>server</code> re-read all members of changed groups.
+     */
+    private void resetDirSyncCookie(AdServer server)
+        throws InterruptedNamingException {
+      try {
+        server.resetDirSyncCookie();
+      } catch (InterruptedNamingException e) {
+        throw e;
+      } catch (NamingException e) {
+        log.log(Level.WARNING, "Could not get a DirSync cookie from " + server
+            + " -- incremental crawls will re-read all members of changed "
+            + "groups.", e);
+      }
+    }
+
+    /**
+     * Replaces the previous versions of the updated entities in this catalog
+     * with the new ones, and applies the member changes (if any).
+     */
+    Set<AdEntity> applyIncrementalUpdates(AdServer server,
+        IncrementalUpdates updates) {
+      Set<AdEntity> newOrModifiedEntities = updates.entities;
+      Set<AdEntity> deletedOrShrunk = applyDeletions(updates.deleted);
+      // members of changed groups, kept to apply member changes to
+      Map<AdEntity, Set<String>> keptMembers =
+          new HashMap<AdEntity, Set<String>>();
       // remove previous value of newly-seen entity, if found
       for (AdEntity e : newOrModifiedEntities) {
-        AdEntity oldEntity = bySid.get(e.getSid());
+        AdEntity oldEntity = bySid.find(e.getObjectSid());
+        if (journalChanges != null) {
+          journalChanges.entityChanging(e.getSid(), oldEntity);
+        }
         if (oldEntity != null) {
           // b/18028678: remove user from old primary group (if needed)
-          String oldPrimaryGroupSid = oldEntity.getPrimaryGroupSid();
-          String newPrimaryGroupSid = e.getPrimaryGroupSid();
+          Sid oldPrimaryGroupSid = oldEntity.getPrimaryGroupObjectSid();
+          Sid newPrimaryGroupSid = e.getPrimaryGroupObjectSid();
           if (oldPrimaryGroupSid != null &&
               !oldPrimaryGroupSid.equals(newPrimaryGroupSid)) {
-            AdEntity oldPrimaryGroup = bySid.get(oldPrimaryGroupSid);
+            AdEntity oldPrimaryGroup = bySid.find(oldPrimaryGroupSid);
             if (oldPrimaryGroup == null) {
               log.log(Level.WARNING,
                   "Primary group [{0}] for user [{1}] detected in previous "
@@ -657,14 +1421,19 @@ public class AdAdaptor extends AbstractAdaptor
             }
           }
           entities.remove(oldEntity);
+          domain.remove(oldEntity);
           if (oldEntity.isGroup()) {
-            members.remove(oldEntity);
-            // before removing the oldEntity from the primaryMembers HashMap,
-            // copy its elements (if not null) to the new entry for that group.
-            if (null != primaryMembers.get(oldEntity)) {
-              primaryMembers.put(e, primaryMembers.get(oldEntity));
+            Set<String> oldMembers = members.remove(oldEntity);
+            if (updates.memberChanges != null && oldMembers != null
+                && e.isGroup()) {
+              keptMembers.put(e, oldMembers);
+            }
+            // move the primary members (if not null) of oldEntity to the new
+            // entry for that group -- removing first, as e equals oldEntity.
+            Set<String> oldPrimaryMembers = primaryMembers.remove(oldEntity);
+            if (null != oldPrimaryMembers) {
+              primaryMembers.put(e, oldPrimaryMembers);
             }
-            primaryMembers.remove(oldEntity);
           }
           byDn.remove(oldEntity.getDn());
           wellKnownMembership.get(everyone).remove(oldEntity.getDn());
@@ -672,22 +1441,127 @@ public class AdAdaptor extends AbstractAdaptor
       }
       // add the new-or-modified entries to our catalog
       entities.addAll(newOrModifiedEntities);
+      // a deleted group restored since is no longer to be pushed empty
+      deletedGroups.keySet().removeAll(newOrModifiedEntities);
       processEntities(newOrModifiedEntities, server.getnETBIOSName(),
           server.getUserSearchBaseDN(), server.getGroupSearchBaseDN(),
           server.getUserSearchFilter(), server.getGroupSearchFilter());
+      if (updates.memberChanges != null) {
+        members.putAll(keptMembers);
+        applyMemberChanges(updates.memberChanges, newOrModifiedEntities);
+      }
+      newOrModifiedEntities.addAll(deletedOrShrunk);
+      if (journalChanges != null) {
+        journalChanges.entitiesChanged(newOrModifiedEntities);
+      }
       log.log(Level.FINE, "Ending incremental crawl.");
       return newOrModifiedEntities;
     }
 
     /**
-     * Correctly specify each group's members in the "members" data store - not
-     * including "primary" members.
+     * Removes the entities whose <code>tombstones</code> were found from this
+     * catalog.
+     * @return the deleted groups (whose definitions become empty), and the
+     *     groups whose primary or well-known members were deleted
      */
-    private void initializeMembers(Set<AdEntity> entities) {
-      for (AdEntity entity : entities) {
-        if (entity.isGroup()) {
-          members.put(entity, new TreeSet<String>(entity.getMembers()));
+    private Set<AdEntity> applyDeletions(Set<AdEntity> tombstones) {
+      Set<AdEntity> changed = new HashSet<AdEntity>();
+      int nDeleted = 0;
+      for (AdEntity tombstone : tombstones) {
+        AdEntity e = (tombstone.getObjectSid() == null)
+            ? null : bySid.find(tombstone.getObjectSid());
+        if (e == null || e.isWellKnown()) {
+          continue;
+        }
+        if (journalChanges != null) {
+          journalChanges.entityChanging(e.getSid(), e);
+        }
+        log.log(Level.FINER, "Removing deleted entity [{0}].", e);
+        if (e.isGroup()) {
+          try {
+            deletedGroups.put(e,
+                new GroupPrincipal(getPrincipalName(e), namespace));
+          } catch (IllegalArgumentException iae) {
+            log.log(Level.WARNING, "Skipping over badly-named group", iae);
+          }
+          members.remove(e);
+          primaryMembers.remove(e);
+          changed.add(e);
+        } else {
+          AdEntity primaryGroup = bySid.find(e.getPrimaryGroupObjectSid());
+          if (primaryGroup != null && primaryMembers.containsKey(primaryGroup)
+              && primaryMembers.get(primaryGroup).remove(e.getDn())) {
+            changed.add(primaryGroup);
+          }
         }
+        for (Map.Entry<AdEntity, Set<String>> wellKnown
+            : wellKnownMembership.entrySet()) {
+          if (wellKnown.getValue().remove(e.getDn())) {
+            changed.add(wellKnown.getKey());
+          }
+        }
+        entities.remove(e);
+        bySid.remove(e.getObjectSid());
+        byDn.remove(e.getDn());
+        domain.remove(e);
+        nDeleted++;
+      }
+      log.log(Level.FINE, "Removed {0} deleted entities", nDeleted);
+      return changed;
+    }
+
+    /**
+     * Adds and removes the members of the groups in this catalog, as read
+     * with DirSync, and adds the groups changed to <code>changed</code>.
+     * Changes to groups not in this catalog (e.g. outside the configured
+     * search bases) are ignored.
+     */
+    private void applyMemberChanges(
+        Map<String, AdServer.MemberChanges> memberChanges,
+        Set<AdEntity> changed) {
+      int nGroups = 0;
+      for (Map.Entry<String, AdServer.MemberChanges> change
+          : memberChanges.entrySet()) {
+        AdEntity group = byDn.get(change.getKey());
+        Set<String> groupMembers = (group == null) ? null : members.get(group);
+        if (groupMembers == null) {
+          continue;
+        }
+        for (String removed : change.getValue().getRemoved()) {
+          groupMembers.remove(removed);
+          // resolveForeignSecurityPrincipals stored the resolved DN instead
+          String sid = AdEntity.parseForeignSecurityPrincipal(removed);
+          AdEntity resolved =
+              (sid == null) ? null : bySid.find(Sid.parse(sid));
+          if (resolved != null) {
+            groupMembers.remove(resolved.getDn());
+          }
+        }
+        groupMembers.addAll(change.getValue().getAdded());
+        changed.add(group);
+        nGroups++;
+      }
+      log.log(Level.FINE, "Applied member changes to {0} groups", nGroups);
+    }
+
+    /**
+     * The changes read from one server by <code>fetchIncrementalUpdates</code>:
+     * the new versions of the changed users/groups, the tombstones of the
+     * deleted ones, and (when read with DirSync) the members added to and
+     * removed from groups, by group DN.  Without DirSync,
+     * <code>memberChanges</code> is null, and the changed groups come with all
+     * their members.
+     */
+    static class IncrementalUpdates {
+      final Set<AdEntity> entities;
+      final Set<AdEntity> deleted;
+      final Map<String, AdServer.MemberChanges> memberChanges;
+
+      IncrementalUpdates(Set<AdEntity> entities, Set<AdEntity> deleted,
+          Map<String, AdServer.MemberChanges> memberChanges) {
+        this.entities = entities;
+        this.deleted = deleted;
+        this.memberChanges = memberChanges;
       }
     }
 
@@ -705,7 +1579,7 @@ public class AdAdaptor extends AbstractAdaptor
           continue;
         }
         AdEntity user = e;
-        AdEntity primaryGroup = bySid.get(user.getPrimaryGroupSid());
+        AdEntity primaryGroup = bySid.find(user.getPrimaryGroupObjectSid());
         if (primaryGroup == null) {
           missingGroups++;
           log.log(Level.WARNING,
@@ -715,7 +1589,7 @@ public class AdAdaptor extends AbstractAdaptor
         }
         if (!primaryMembers.containsKey(primaryGroup) ||
             (null == primaryMembers.get(primaryGroup))) {
-          primaryMembers.put(primaryGroup, new TreeSet<String>());
+          primaryMembers.put(primaryGroup, newMemberSet());
         }
         primaryMembers.get(primaryGroup).add(user.getDn());
         wellKnownMembership.get(everyone).add(user.getDn());
@@ -746,9 +1620,12 @@ public class AdAdaptor extends AbstractAdaptor
         if (!entity.isGroup() || entity.isWellKnown()) {
           continue;
         }
-        nGroups++;
-        Set<String> resolvedMembers = new HashSet<String>();
         Set<String> allMembersForGroup = members.get(entity);
+        if (allMembersForGroup == null) {
+          continue;  // deleted by an incremental crawl
+        }
+        nGroups++;
+        Set<String> resolvedMembers = newMemberSet();
         if (null != primaryMembers.get(entity)) {
           allMembersForGroup.addAll(primaryMembers.get(entity));
         }
@@ -758,7 +1635,7 @@ public class AdAdaptor extends AbstractAdaptor
             resolvedMembers.add(member);
             nNullSid++;
           } else {
-            AdEntity resolved = bySid.get(sid);
+            AdEntity resolved = bySid.find(Sid.parse(sid));
             if (null == resolved) {
               log.info("unable to resolve foreign principal ["
                   + member + "]; member of [" + entity.getDn());
@@ -777,7 +1654,41 @@ public class AdAdaptor extends AbstractAdaptor
       log.log(Level.FINE, "#resolved: {0}", nResolved);
     }
 
+    /** Receives the group definitions made by <code>makeDefs</code>. */
+    interface DefinitionHandler {
+      void handle(GroupPrincipal group, List<Principal> def)
+          throws InterruptedException;
+    }
+
+    /** Returns the definitions of the groups among <code>entities</code>. */
     Map<GroupPrincipal, List<Principal>> makeDefs(Set<AdEntity> entities) {
+      final Map<GroupPrincipal, List<Principal>> groups
+          = new HashMap<GroupPrincipal, List<Principal>>();
+      try {
+        makeDefs(entities, new DefinitionHandler() {
+          @Override
+          public void handle(GroupPrincipal group, List<Principal> def) {
+            groups.put(group, def);
+          }
+        });
+      } catch (InterruptedException ie) {
+        throw new AssertionError(ie);  // not thrown by the handler above
+      }
+      return groups;
+    }
+
+    /**
+     * Makes the definitions of the groups among <code>entities</code>, and
+     * the empty ones of the deleted groups not pushed yet, one group at a
+     * time, passing each to <code>handler</code> as it is made.
+     */
+    void makeDefs(Set<AdEntity> entities, DefinitionHandler handler)
+        throws InterruptedException {
+      // the principal of each entity, made once rather than for each group
+      // the entity is a member of; null for entities with invalid names.
+      // Keyed by identity, as entities equal by SID may differ in name.
+      Map<AdEntity, Principal> principals =
+          new IdentityHashMap<AdEntity, Principal>();
       // Merge members with well known group members and primary members
       Map<AdEntity, Set<String>> allMembers
           = new HashMap<AdEntity, Set<String>>(members);
@@ -792,10 +1703,13 @@ public class AdAdaptor extends AbstractAdaptor
           allMembers.get(group).addAll(primaryMembers.get(group));
         }
       }
-      Map<GroupPrincipal, List<Principal>> groups
-          = new HashMap<GroupPrincipal, List<Principal>>();
+      // the deleted groups not pushed yet, whether or not among entities
+      for (GroupPrincipal deleted : deletedGroups.values()) {
+        log.log(Level.FINE, "Sending empty deleted group {0}", deleted);
+        handler.handle(deleted, new ArrayList<Principal>());
+      }
       for (AdEntity entity : entities) {
-        if (!entity.isGroup()) {
+        if (!entity.isGroup() || deletedGroups.containsKey(entity)) {
           continue;
         }
 
@@ -803,66 +1717,123 @@ public class AdAdaptor extends AbstractAdaptor
           continue;
         }
 
-        String groupName = getPrincipalName(entity);
-        GroupPrincipal group;
-        try {
-          group = new GroupPrincipal(groupName, namespace);
-        } catch (IllegalArgumentException iae) {
-          log.log(Level.WARNING, "Skipping over badly-named group", iae);
+        GroupPrincipal group = (GroupPrincipal) getPrincipal(entity,
+            principals);
+        if (group == null) {
           continue;
         }
         List<Principal> def = new ArrayList<Principal>();
 
         if (!feedBuiltinGroups
-            && entity.getSid().startsWith("S-1-5-32-")) {
+            && entity.getObjectSid().isBuiltin()) {
           log.log(Level.FINER, "Sending empty BUILTIN Group {0}", entity);
-          groups.put(group, def);
+          handler.handle(group, def);
           continue;
         }
 
         if (entity.isDisabled()) {
           log.log(Level.FINE, "Skipping {0} members from disabled group {1}",
-              new Object[]{entity.getMembers().size(), group});
-          groups.put(group, def);
+              new Object[]{allMembers.get(entity).size(), group});
+          handler.handle(group, def);
           continue;
         }
-        for (String memberDn : allMembers.get(entity)) {
-          AdEntity member = byDn.get(memberDn);
-          if (member == null) {
-            log.info("Unknown member [" + memberDn + "] of group ["
-                + entity.getDn());
-            continue;
-          }
-          Principal p;
-          String memberName = getPrincipalName(member);
-          if (member.isGroup()) {
-            try {
-              p = new GroupPrincipal(memberName, namespace);
-            } catch (IllegalArgumentException iae) {
-              String warning = "Skipping badly-named group \"" + memberName
-                  + "\" from group \"" + groupName + "\".";
-              log.log(Level.WARNING, warning, iae);
-              continue;
-            }
-          } else {
-            try {
-              p = new UserPrincipal(memberName, namespace);
-            } catch (IllegalArgumentException iae) {
-              String warning = "Skipping badly-named user \"" + memberName
-                  + "\" from group \"" + groupName + "\".";
-              log.log(Level.WARNING, warning, iae);
-              continue;
-            }
+        for (AdEntity member : getMemberEntities(entity,
+            allMembers.get(entity))) {
+          Principal p = getPrincipal(member, principals);
+          if (p != null) {
+            def.add(p);
           }
-          def.add(p);
         }
         if (entity.isWellKnown()) {
           log.log(Level.FINE, "Well known group {0} with # members {1}",
               new Object[]{group, def.size()});
         }
-        groups.put(group, def);
+        handler.handle(group, def);
       }
-      return groups;
+    }
+
+    /**
+     * Records the push of the groups among <code>entities</code>, and of the
+     * deleted groups: those in <code>failed</code> are kept to be sent again
+     * by the next push, and the others forgotten.
+     */
+    void groupsPushed(Set<AdEntity> entities, Set<GroupPrincipal> failed) {
+      if (deletedGroups.values().retainAll(failed) && journalChanges != null) {
+        journalChanges.deletedGroupsPushed = true;
+      }
+      failedGroups.clear();
+      if (failed.isEmpty()) {
+        return;
+      }
+      Set<String> failedNames = new HashSet<String>();
+      for (GroupPrincipal group : failed) {
+        failedNames.add(group.getName());
+      }
+      for (AdEntity entity : entities) {
+        if (entity.isGroup() && !deletedGroups.containsKey(entity)
+            && failedNames.contains(getPrincipalName(entity))) {
+          failedGroups.add(entity);
+        }
+      }
+      log.log(Level.FINE, "{0} groups failed to push, and will be pushed "
+          + "again next time", failedGroups.size());
+    }
+
+    /**
+     * Returns the principal of <code>e</code>, making it if it is not in
+     * <code>principals</code> yet.
+     * @return the principal, or null if the principal name of <code>e</code>
+     *     is not valid (which is logged the first time only)
+     */
+    private Principal getPrincipal(AdEntity e,
+        Map<AdEntity, Principal> principals) {
+      Principal p = principals.get(e);
+      if (p != null || principals.containsKey(e)) {
+        return p;
+      }
+      String name = getPrincipalName(e);
+      try {
+        p = e.isGroup() ? new GroupPrincipal(name, namespace)
+            : new UserPrincipal(name, namespace);
+      } catch (IllegalArgumentException iae) {
+        log.log(Level.WARNING, "Skipping badly-named "
+            + (e.isGroup() ? "group" : "user") + " \"" + name + "\".", iae);
+      }
+      principals.put(e, p);
+      return p;
+    }
+
+    /**
+     * Returns the entities that the member DNs of <code>group</code> refer
+     * to, logging the unknown ones.  Members held as IDs in
+     * <code>dnTable</code> are found by ID, without their DNs being read.
+     */
+    private List<AdEntity> getMemberEntities(AdEntity group,
+        Set<String> memberDns) {
+      List<AdEntity> result = new ArrayList<AdEntity>(memberDns.size());
+      if (memberDns instanceof MemberSet
+          && ((MemberSet) memberDns).getTable() == dnTable) {
+        for (int id : ((MemberSet) memberDns).toIds()) {
+          AdEntity member = byDn.getById(id);
+          if (member == null) {
+            log.info("Unknown member [" + dnTable.get(id) + "] of group ["
+                + group.getDn());
+          } else {
+            result.add(member);
+          }
+        }
+        return result;
+      }
+      for (String memberDn : memberDns) {
+        AdEntity member = byDn.get(memberDn);
+        if (member == null) {
+          log.info("Unknown member [" + memberDn + "] of group ["
+              + group.getDn());
+        } else {
+          result.add(member);
+        }
+      }
+      return result;
     }
 
     /*
@@ -911,13 +1882,14 @@ public class AdAdaptor extends AbstractAdaptor
         return false;
       }
       GroupCatalog gc = (GroupCatalog) o;
-      return entities.equals(gc.entities)
+      return AdEntity.sameContents(entities, gc.entities)
           && members.equals(gc.members)
           && primaryMembers.equals(gc.primaryMembers)
           && bySid.equals(gc.bySid)
           && byDn.equals(gc.byDn)
           && domain.equals(gc.domain)
-          && wellKnownMembership.equals(gc.wellKnownMembership);
+          && wellKnownMembership.equals(gc.wellKnownMembership)
+          && deletedGroups.equals(gc.deletedGroups);
     }
   }
 }
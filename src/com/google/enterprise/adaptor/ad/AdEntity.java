@@ -2,9 +2,16 @@ package com.google.enterprise.adaptor.ad;
 
 import com.google.common.annotations.VisibleForTesting;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -14,7 +21,16 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
 
-/** Representation of a single user or group from Active Directory. */
+/**
+ * Representation of a single user or group from Active Directory.
+ *
+ * <p>A catalog holds one entity for every user, so entities are kept small:
+ * only groups allocate a member set (users share an empty one), and only
+ * until the catalog has indexed it into its own compact sets, the
+ * objectGUID is kept as its binary value and formatted only when needed, and
+ * users with the same primaryGroupId share its string.  The SID is parsed
+ * once into a <code>Sid</code>, which renders its text only when asked for.
+ */
 public class AdEntity {
   private static final Logger log =
       Logger.getLogger(AdEntity.class.getName());
@@ -23,15 +39,23 @@ public class AdEntity {
   private String sAMAccountName;
   private String userPrincipalName;
   private String primaryGroupId;
-  private String sid;
-  private String objectGUID;
+  private Sid sid;
+  private byte[] objectGUID;  // null for well known entities: the SID is used
+  // null for users, and for groups once the catalog has indexed them
   private Set<String> members;
   private long uSNChanged;
   private boolean wellKnown;
   private boolean allMembershipsRetrieved;
-  private long userAccountControl;  // determines whether user/group is disabled
-  private final Pattern attrMemberPattern =
+  private int userAccountControl;  // determines whether user/group is disabled
+  private int hash;  // cached hashCode, of sid (or dn) -- 0 if not computed
+  private static final Pattern ATTR_MEMBER_PATTERN =
       Pattern.compile("member;range=[0-9]+-.*", Pattern.CASE_INSENSITIVE);
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final Pattern FOREIGN_SID_PATTERN =
+      Pattern.compile("^S-1-[15](-[0-9]+)+$");
+  /** Canonical copies of the few distinct primaryGroupId values. */
+  private static final ConcurrentMap<String, String> PRIMARY_GROUP_IDS =
+      new ConcurrentHashMap<String, String>();
 
   private Object getAttribute(Attributes attributes, String name)
       throws NamingException {
@@ -44,7 +68,19 @@ public class AdEntity {
   }
 
   private Attribute getMemberAttr(Attributes attrs) throws NamingException {
-    allMembershipsRetrieved = true;
+    Attribute member = findMemberAttr(attrs);
+    allMembershipsRetrieved = isLastMemberRange(member);
+    return member;
+  }
+
+  /**
+   * Returns the attribute holding (some of) the members in a search result:
+   * either <code>member</code> or a ranged <code>member;range=x-y</code>.
+   * @param attrs attributes of the search result
+   * @return the member attribute, or null if there is none
+   * @throws NamingException
+   */
+  static Attribute findMemberAttr(Attributes attrs) throws NamingException {
     Attribute member = attrs.get("member");
     if (member != null && member.size() != 0) {
       return member;
@@ -53,8 +89,7 @@ public class AdEntity {
     NamingEnumeration<String> ids = attrs.getIDs();
     while (ids.hasMore()) {
       String id = ids.next();
-      if (attrMemberPattern.matcher(id).matches()) {
-        allMembershipsRetrieved = id.endsWith("*");
+      if (ATTR_MEMBER_PATTERN.matcher(id).matches()) {
         return attrs.get(id);
       }
     }
@@ -62,6 +97,18 @@ public class AdEntity {
     return null;
   }
 
+  /**
+   * @param member attribute returned by <code>findMemberAttr</code>
+   * @return false if more members need to be retrieved after this attribute
+   */
+  static boolean isLastMemberRange(Attribute member) {
+    if (member == null
+        || !ATTR_MEMBER_PATTERN.matcher(member.getID()).matches()) {
+      return true;
+    }
+    return member.getID().endsWith("*");
+  }
+
   /**
    * Standard constructor for AdEntity. The instance is created from LDAP
    * search result.
@@ -73,23 +120,27 @@ public class AdEntity {
     wellKnown = false;
     Attributes attrs = searchResult.getAttributes();
     sAMAccountName = (String) getAttribute(attrs, "sAMAccountName");
-    objectGUID = getTextGuid((byte[]) getAttribute(attrs, "objectGUID;binary"));
-    sid = getTextSid((byte[]) getAttribute(attrs, "objectSid;binary"));
+    objectGUID = (byte[]) getAttribute(attrs, "objectGUID;binary");
+    if (objectGUID == null) {
+      throw new NamingException("no objectGUID for " + dn);
+    }
+    sid = Sid.fromBinary((byte[]) getAttribute(attrs, "objectSid;binary"));
     String s = (String) getAttribute(attrs, "uSNChanged");
     if (s != null) {
       uSNChanged = Long.parseLong(s);
     }
-    primaryGroupId = (String) getAttribute(attrs, "primaryGroupId");
+    primaryGroupId = sharePrimaryGroupId(
+        (String) getAttribute(attrs, "primaryGroupId"));
     userPrincipalName = (String) getAttribute(attrs, "userPrincipalName");
     s = (String) getAttribute(attrs, "userAccountControl");
     if (s == null) {
       userAccountControl = 0; // not disabled - any value where value & 2 == 0
     } else {
-      userAccountControl = Long.parseLong(s);
+      userAccountControl = (int) Long.parseLong(s);
     }
 
-    members = new HashSet<String>();
     if (isGroup()) {
+      members = new HashSet<String>();
       Attribute member = getMemberAttr(attrs);
       if (member != null) {
         for (int i = 0; i < member.size(); ++i) {
@@ -106,10 +157,9 @@ public class AdEntity {
    * @param dn distinguished name of the object
    */
   public AdEntity(String sid, String dn) {
-    this.sid = sid;
+    this.sid = Sid.parse(sid);
     this.dn = dn;
     members = new HashSet<String>();
-    objectGUID = sid;
     sAMAccountName = getCommonName();
     wellKnown = true;
   }
@@ -123,15 +173,73 @@ public class AdEntity {
    */
   public AdEntity(String sid, String dn, String primaryGroupId,
       String sAMAccountName) {
-    this.sid = sid;
+    this.sid = Sid.parse(sid);
     this.dn = dn;
-    this.primaryGroupId = primaryGroupId;
+    this.primaryGroupId = sharePrimaryGroupId(primaryGroupId);
     this.sAMAccountName = sAMAccountName;
-    members = new HashSet<String>();
-    objectGUID = sid;
+    if (isGroup()) {
+      members = new HashSet<String>();
+    }
     wellKnown = true;
   }
 
+  /** Used by <code>readFrom</code>, which sets all the fields. */
+  private AdEntity() {
+  }
+
+  /** Returns the shared copy of <code>primaryGroupId</code>. */
+  private static String sharePrimaryGroupId(String primaryGroupId) {
+    if (primaryGroupId == null) {
+      return null;
+    }
+    String shared = PRIMARY_GROUP_IDS.putIfAbsent(primaryGroupId,
+        primaryGroupId);
+    return (shared == null) ? primaryGroupId : shared;
+  }
+
+  /**
+   * Writes all fields of this entity but its members (which the catalog
+   * writes, from its own member sets) to a catalog snapshot.
+   * @param out the snapshot being written
+   * @throws IOException
+   */
+  void writeTo(CatalogSnapshot.Output out) throws IOException {
+    out.writeString(dn);
+    out.writeString(sAMAccountName);
+    out.writeString(userPrincipalName);
+    out.writeString(primaryGroupId);
+    out.writeString(getSid());
+    out.writeBytes(objectGUID);
+    out.writeVarLong(uSNChanged);
+    out.writeBoolean(wellKnown);
+    out.writeBoolean(allMembershipsRetrieved);
+    out.writeVarLong(userAccountControl);
+  }
+
+  /**
+   * Reads an entity written by <code>writeTo</code>.
+   * @param in the snapshot being read
+   * @return an entity equal to the one written, without members
+   * @throws IOException
+   */
+  static AdEntity readFrom(CatalogSnapshot.Input in) throws IOException {
+    AdEntity e = new AdEntity();
+    e.dn = in.readString();
+    e.sAMAccountName = in.readString();
+    e.userPrincipalName = in.readString();
+    e.primaryGroupId = sharePrimaryGroupId(in.readString());
+    e.sid = Sid.parse(in.readString());
+    e.objectGUID = in.readBytes();
+    e.uSNChanged = in.readVarLong();
+    e.wellKnown = in.readBoolean();
+    e.allMembershipsRetrieved = in.readBoolean();
+    e.userAccountControl = (int) in.readVarLong();
+    if (e.dn == null) {
+      throw new IOException("entity without a DN");
+    }
+    return e;
+  }
+
   /**
    * Appends additional memberships from search result
    * @param searchResult which contains additional groups
@@ -178,33 +286,8 @@ public class AdEntity {
    * @return textual representation of SID or null
    */
   public static String getTextSid(byte[] objectSid) {
-    if (objectSid == null) {
-      return null;
-    }
-    StringBuilder strSID = new StringBuilder("S-");
-    long version = objectSid[0];
-    strSID.append(Long.toString(version));
-    long authority = objectSid[4];
-
-    for (int i = 0; i < 4; i++) {
-      authority <<= 8;
-      authority += objectSid[4 + i] & 0xFF;
-    }
-    strSID.append('-').append(Long.toString(authority));
-    long count = objectSid[2];
-    count <<= 8;
-    count += objectSid[1] & 0xFF;
-
-    long rid;
-    for (int j = 0; j < count; j++) {
-      rid = objectSid[11 + (j * 4)] & 0xFF;
-      for (int k = 1; k < 4; k++) {
-        rid <<= 8;
-        rid += objectSid[11 - k + (j * 4)] & 0xFF;
-      }
-      strSID.append('-').append(Long.toString(rid));
-    }
-    return strSID.toString();
+    Sid sid = Sid.fromBinary(objectSid);
+    return (sid == null) ? null : sid.toString();
   }
 
   /**
@@ -215,30 +298,54 @@ public class AdEntity {
    * @return string containing the GUID
    */
   public static String getTextGuid(byte[] binaryGuid) {
-    StringBuilder sb = new StringBuilder("0x");
+    // each byte in hex, without leading zeros: up to 2 digits per byte
+    char[] text = new char[2 + 2 * binaryGuid.length];
+    text[0] = '0';
+    text[1] = 'x';
+    int n = 2;
     for (byte b : binaryGuid) {
-      sb.append(Integer.toHexString(b & 0xFF));
+      if ((b & 0xF0) != 0) {
+        text[n++] = HEX_DIGITS[(b >> 4) & 0xF];
+      }
+      text[n++] = HEX_DIGITS[b & 0xF];
     }
-    return sb.toString();
+    return new String(text, 0, n);
   }
 
   /**
-   * @return the members
+   * @return the members; an empty, unmodifiable set for users, and for
+   *     groups whose members were released
    */
   public Set<String> getMembers() {
-    return members;
+    return (members == null) ? Collections.<String>emptySet() : members;
+  }
+
+  /**
+   * Drops the members read from LDAP, once the catalog holds them (in its
+   * compact member sets): only range retrieval needs them here.
+   */
+  void releaseMembers() {
+    members = null;
+  }
+
+  /**
+   * @return the objectGUID in the form of <code>getTextGuid</code>, or the
+   *     SID for well known entities
+   */
+  String getObjectGUID() {
+    return (objectGUID == null) ? getSid() : getTextGuid(objectGUID);
   }
 
   @Override
   public String toString() {
     SBS result = new SBS();
     result.append("dn", dn);
-    result.append("members", members);
+    result.append("members", getMembers());
     result.append("sAMAccountName", sAMAccountName);
     result.append("userPrincipalName", userPrincipalName);
     result.append("primaryGroupId", primaryGroupId);
     result.append("sid", sid);
-    result.append("objectGUID", objectGUID);
+    result.append("objectGUID", getObjectGUID());
     result.append("sid", sid);
     result.append("uSNChanged", uSNChanged);
     result.append("userAccountControl", userAccountControl);
@@ -281,7 +388,7 @@ public class AdEntity {
 
   @VisibleForTesting
   void setUserAccountControl(long userAccountControl) {
-    this.userAccountControl = userAccountControl;
+    this.userAccountControl = (int) userAccountControl;
   }
 
   /**
@@ -292,12 +399,29 @@ public class AdEntity {
   }
 
   public String getSid() {
+    return (sid == null) ? null : sid.toString();
+  }
+
+  /** @return the SID, as parsed from objectSid */
+  Sid getObjectSid() {
     return sid;
   }
 
+  /**
+   * @return the SID of the user's primary group: that of the user, with
+   *     primaryGroupId as the RID -- or null for groups
+   */
   public String getPrimaryGroupSid() {
-    int index = sid.lastIndexOf('-') + 1;
-    return sid.substring(0,  index) + primaryGroupId;
+    Sid primaryGroup = getPrimaryGroupObjectSid();
+    return (primaryGroup == null) ? null : primaryGroup.toString();
+  }
+
+  /**
+   * @return the SID of the user's primary group, derived from the user's SID
+   *     without rendering either -- or null for groups
+   */
+  Sid getPrimaryGroupObjectSid() {
+    return (isGroup() || sid == null) ? null : sid.withRid(primaryGroupId);
   }
 
   public static String parseForeignSecurityPrincipal(String dn) {
@@ -308,41 +432,112 @@ public class AdEntity {
     int end = dn.indexOf(',');
     String sid = dn.substring(start + 1, end);
     // check for mangled or malformed security principal format
-    if (!sid.matches("^S-1-[15](-[0-9]+)+$")) {
+    if (!FOREIGN_SID_PATTERN.matcher(sid).matches()) {
       log.fine("invalid foreign security principal [" + dn + "].");
       return null;
     }
     return sid;
   }
 
+  /**
+   * Entities are equal when they are the same object in Active Directory:
+   * when they have the same SID (or, lacking SIDs, the same DN).  An updated
+   * entity from an incremental crawl thus equals its previous version, and
+   * neither its hash nor its equality change as members are appended, so
+   * entities are cheap and stable keys of catalog collections.  Use
+   * <code>CONTENT_ORDER</code> to compare all fields.
+   */
   @Override
   public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
     if (!(o instanceof AdEntity)) {
       return false;
     }
     AdEntity other = (AdEntity) o;
-    return dn.equals(other.dn)
-        && ((sAMAccountName == null) ? (other.sAMAccountName == null) :
-            sAMAccountName.equals(other.sAMAccountName))
-        && ((userPrincipalName == null) ? (other.userPrincipalName == null) :
-            userPrincipalName.equals(other.userPrincipalName))
-        && ((primaryGroupId == null) ? (other.primaryGroupId == null) :
-            primaryGroupId.equals(other.primaryGroupId))
-        && ((sid == null) ? (other.sid == null) : sid.equals(other.sid))
-        && ((members == null) ? (other.members == null) :
-            members.equals(other.members))
-        && uSNChanged == other.uSNChanged
-        && userAccountControl == other.userAccountControl;
-        // note: 3 fields (objectGUID, wellKnown, and allMembershipsRetrieved)
-        // are intentionally skipped - we'd need a setter method to make the
-        // "golden" values correct.
+    return hashCode() == other.hashCode()
+        && ((sid == null) ? (other.sid == null && dn.equals(other.dn))
+            : sid.equals(other.sid));
   }
 
   @Override
   public int hashCode() {
-    // same 3 fields as above are excluded here.
-    return Arrays.hashCode(new Object[] {dn, sAMAccountName, userPrincipalName,
-        primaryGroupId, sid, members, uSNChanged, userAccountControl});
+    int h = hash;
+    if (h == 0) {
+      h = (sid == null) ? dn.hashCode() : sid.hashCode();
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * Orders entities by their fields; entities compare as 0 when all those
+   * fields are equal.  The members are not compared, as the catalog holds
+   * them (and <code>GroupCatalog.equals</code> compares them) once the
+   * entities are indexed.  Three fields (objectGUID,
+   * wellKnown, and allMembershipsRetrieved) are intentionally skipped - we'd
+   * need a setter method to make the "golden" values of tests correct.
+   */
+  @VisibleForTesting
+  static final Comparator<AdEntity> CONTENT_ORDER = new Comparator<AdEntity>() {
+    @Override
+    public int compare(AdEntity a, AdEntity b) {
+      int c = a.dn.compareTo(b.dn);
+      if (c == 0) {
+        c = compareNullable(a.sAMAccountName, b.sAMAccountName);
+      }
+      if (c == 0) {
+        c = compareNullable(a.userPrincipalName, b.userPrincipalName);
+      }
+      if (c == 0) {
+        c = compareNullable(a.primaryGroupId, b.primaryGroupId);
+      }
+      if (c == 0) {
+        c = (a.sid == null || b.sid == null)
+            ? compareNullable(a.getSid(), b.getSid()) : a.sid.compareTo(b.sid);
+      }
+      if (c == 0) {
+        c = compareLongs(a.uSNChanged, b.uSNChanged);
+      }
+      if (c == 0) {
+        c = compareLongs(a.userAccountControl, b.userAccountControl);
+      }
+      return c;
+    }
+  };
+
+  /**
+   * @return true if both collections hold entities with the same contents,
+   *     by <code>CONTENT_ORDER</code>
+   */
+  @VisibleForTesting
+  static boolean sameContents(Collection<AdEntity> a,
+      Collection<AdEntity> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    List<AdEntity> sortedA = new ArrayList<AdEntity>(a);
+    List<AdEntity> sortedB = new ArrayList<AdEntity>(b);
+    Collections.sort(sortedA, CONTENT_ORDER);
+    Collections.sort(sortedB, CONTENT_ORDER);
+    for (int i = 0; i < sortedA.size(); i++) {
+      if (CONTENT_ORDER.compare(sortedA.get(i), sortedB.get(i)) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int compareNullable(String a, String b) {
+    if (a == null || b == null) {
+      return (a == null) ? ((b == null) ? 0 : -1) : 1;
+    }
+    return a.compareTo(b);
+  }
+
+  private static int compareLongs(long a, long b) {
+    return (a < b) ? -1 : ((a == b) ? 0 : 1);
   }
 
   /**
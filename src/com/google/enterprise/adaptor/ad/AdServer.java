@@ -21,9 +21,15 @@ import com.google.enterprise.adaptor.StartupException;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,21 +43,37 @@ import javax.naming.NamingException;
 import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
-import javax.naming.ldap.PagedResultsControl;
-import javax.naming.ldap.PagedResultsResponseControl;
 
 /** Client that talks to Active Directory. */
 public class AdServer {
   private static final Logger LOGGER
       = Logger.getLogger(AdServer.class.getName());
 
-  private LdapContext ldapContext;
-  private final SearchControls searchCtls;
+  /** Default number of LDAP connections kept per server. */
+  static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+  /** Default time after which an unused LDAP connection is closed. */
+  static final long DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+  /** Page size used unless configured otherwise (also AD's default limit). */
+  static final int DEFAULT_PAGE_SIZE = 1000;
+
+  // DirSync returns added member values as member;range=1-1, removed ones as
+  // member;range=0-0
+  private static final Pattern MEMBER_CHANGE_PATTERN =
+      Pattern.compile("member;range=([01])-.*", Pattern.CASE_INSENSITIVE);
+  // matches no object: lets a DirSync search just return a current cookie
+  private static final String NO_OBJECTS_FILTER = "(!(objectClass=*))";
+
+  private final LdapTransport transport;
+  private volatile int rangeRetrievalConcurrency = 1;
+  private volatile int pageSize = DEFAULT_PAGE_SIZE;
+  private boolean adaptivePageSize;
+  // set by initialize() when adaptivePageSize is true
+  private volatile PageSizeTuner pageSizeTuner;
+  private volatile int prefetchPages;
 
   // properties necessary for connection and reconnection
   private Method connectMethod;
@@ -74,6 +96,8 @@ public class AdServer {
   private String dsServiceName;
   private String sid;
   private long highestCommittedUSN;
+  // DirSync cookie recording the member changes read up to now
+  private volatile byte[] dirSyncCookie;
   private String invocationID;
   private String dnsRoot;
   private String ldapTimeoutInMillis;
@@ -98,14 +122,118 @@ public class AdServer {
   AdServer(String hostName, String userSearchBaseDN, String groupSearchBaseDN,
       String userSearchFilter, String groupSearchFilter,
       LdapContext ldapContext) {
+    this(hostName, userSearchBaseDN, groupSearchBaseDN, userSearchFilter,
+        groupSearchFilter, null, ldapContext);
+  }
+
+  /** Creates an AdServer doing its LDAP requests through transport. */
+  AdServer(String hostName, int port, String userSearchBaseDN,
+      String groupSearchBaseDN, String userSearchFilter,
+      String groupSearchFilter, LdapTransport transport) {
+    this(hostName, userSearchBaseDN, groupSearchBaseDN, userSearchFilter,
+        groupSearchFilter, transport, null);
+    if (null == transport) {
+      throw new NullPointerException();
+    }
+    this.port = port;
+  }
+
+  /** Uses JNDI (starting with ldapContext) unless given a transport. */
+  private AdServer(String hostName, String userSearchBaseDN,
+      String groupSearchBaseDN, String userSearchFilter,
+      String groupSearchFilter, LdapTransport transport,
+      LdapContext ldapContext) {
     this.hostName = hostName;
     this.userSearchBaseDN = userSearchBaseDN;
     this.groupSearchBaseDN = groupSearchBaseDN;
     this.userSearchFilter = userSearchFilter;
     this.groupSearchFilter = groupSearchFilter;
-    this.ldapContext = ldapContext;
-    searchCtls = new SearchControls();
-    searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    if (transport == null) {
+      transport = new JndiLdapTransport(
+          new LdapContextPool.ContextFactory() {
+            @Override
+            public LdapContext create() throws StartupException {
+              return newLdapContext();
+            }
+          }, ldapContext);
+    }
+    this.transport = transport;
+  }
+
+  /**
+   * Sets the maximum number of LDAP connections to this server that may be
+   * open at once, i.e. the number of searches that can run concurrently.
+   */
+  public void setConnectionPoolSize(int connectionPoolSize) {
+    transport.setMaxConnections(connectionPoolSize);
+  }
+
+  public int getConnectionPoolSize() {
+    return transport.getMaxConnections();
+  }
+
+  /**
+   * Sets how long an LDAP connection may sit unused before it is closed (0
+   * means never).  One connection is always kept open.
+   */
+  public void setConnectionIdleTimeoutMillis(long idleTimeoutMillis) {
+    transport.setIdleTimeoutMillis(idleTimeoutMillis);
+  }
+
+  /**
+   * Sets the maximum number of member range retrieval requests that are sent
+   * to this server at once.  Each request uses its own pooled connection, so
+   * more than <code>getConnectionPoolSize()</code> requests never run
+   * concurrently.
+   */
+  public void setRangeRetrievalConcurrency(int rangeRetrievalConcurrency) {
+    if (rangeRetrievalConcurrency < 1) {
+      throw new IllegalArgumentException(
+          "range retrieval concurrency must be positive");
+    }
+    this.rangeRetrievalConcurrency = rangeRetrievalConcurrency;
+  }
+
+  /** Sets the (fixed) number of entries requested per page of results. */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("page size must be positive");
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * When true, the page size starts at <code>min(pageSize, MaxPageSize)</code>
+   * and is tuned from observed page latency and heap usage, never exceeding
+   * the DC's <code>MaxPageSize</code> policy.  Takes effect on
+   * <code>initialize()</code>.
+   */
+  public void setAdaptivePageSize(boolean adaptivePageSize) {
+    this.adaptivePageSize = adaptivePageSize;
+  }
+
+  /**
+   * Sets how many pages of a paged search may be read ahead (on a separate
+   * thread) while earlier pages are still being processed; 0 reads each page
+   * only once the previous one is processed.
+   */
+  public void setPrefetchPages(int prefetchPages) {
+    if (prefetchPages < 0) {
+      throw new IllegalArgumentException(
+          "prefetch pages must not be negative");
+    }
+    this.prefetchPages = prefetchPages;
+  }
+
+  /** @return the page size the next paged search starts with */
+  public int getPageSize() {
+    PageSizeTuner tuner = pageSizeTuner;
+    return (tuner == null) ? pageSize : tuner.getPageSize();
+  }
+
+  /** Closes all LDAP connections to this server. */
+  public void close() {
+    transport.close();
   }
 
   /**
@@ -192,12 +320,26 @@ public class AdServer {
     }
   }
 
+  /**
+   * Replaces all pooled connections with a single new one.  Connections in use
+   * by other threads are closed once they are released.
+   */
   @VisibleForTesting
   void recreateLdapContext() throws StartupException {
-    ldapContext = createLdapContext(connectMethod, hostName, port, principal,
+    transport.reconnect();
+  }
+
+  private LdapContext newLdapContext() throws StartupException {
+    return createLdapContext(connectMethod, hostName, port, principal,
         password, ldapTimeoutInMillis);
   }
 
+  /** Returns the connection pool, when connected through JNDI. */
+  @VisibleForTesting
+  LdapContextPool getContextPool() {
+    return ((JndiLdapTransport) transport).getContextPool();
+  }
+
   /**
    * Connects to the Active Directory server and retrieves AD configuration
    * information.
@@ -210,7 +352,7 @@ public class AdServer {
       throws CommunicationException, NamingException {
     Attributes attributes;
     try {
-      attributes = ldapContext.getAttributes("");
+      attributes = transport.readRootDse();
     } catch (CommunicationException ce) {
       LOGGER.log(Level.FINER,
           "Reconnecting to AdServer after detecting issue", ce);
@@ -222,7 +364,7 @@ public class AdServer {
         ne.setRootCause(se);
         throw ne;
       }
-      attributes = ldapContext.getAttributes("");
+      attributes = transport.readRootDse();
     } catch (NamingException ne) {
       if (ne.getMessage() != null
           && ne.getMessage().contains("read timed out")) {
@@ -268,6 +410,14 @@ public class AdServer {
         "nETBIOSName", configurationNamingContext);
     dnsRoot = (String) get("(ncName=" + dn + ")", "dnsRoot",
         configurationNamingContext);
+    if (adaptivePageSize) {
+      int maxPageSize = readMaxPageSize();
+      pageSizeTuner = new PageSizeTuner(Math.min(pageSize, maxPageSize),
+          Math.min(PageSizeTuner.MIN_PAGE_SIZE, maxPageSize), maxPageSize);
+      LOGGER.log(Level.CONFIG, "Adaptive LDAP page size for {0}: starting at "
+          + "{1}, MaxPageSize is {2}", new Object[] {hostName,
+          pageSizeTuner.getPageSize(), maxPageSize});
+    }
     LOGGER.log(Level.INFO, "Connected to domain (dn = " + dn + ", netbios = "
         + nETBIOSName + ", hostname = " + hostName + ", dsServiceName = "
         + dsServiceName + ", highestCommittedUSN = " + highestCommittedUSN
@@ -283,19 +433,10 @@ public class AdServer {
    * @return first attribute object
    */
   protected Object get(String filter, String attribute, String base) {
-    searchCtls.setReturningAttributes(new String[] {attribute});
     try {
-      ensureConnectionIsCurrent();
-      NamingEnumeration<SearchResult> ldapResults =
-          ldapContext.search(base, filter, searchCtls);
-      if (!ldapResults.hasMore()) {
-        return null;
-      }
-      SearchResult sr = ldapResults.next();
-      Attributes attrs = sr.getAttributes();
-      Attribute at = attrs.get(attribute);
+      Attribute at = getAttribute(filter, attribute, base);
       if (at != null) {
-        return attrs.get(attribute).get(0);
+        return at.get(0);
       }
     } catch (NamingException e) {
       LOGGER.log(Level.WARNING,
@@ -305,29 +446,54 @@ public class AdServer {
   }
 
   /**
-   * Set request controls on the LDAP query
-   * @param deleted include deleted control
+   * Like <code>get</code>, but returns all values of the attribute.
+   * @return the attribute, or null if not found
+   */
+  private Attribute getAttribute(String filter, String attribute, String base)
+      throws NamingException {
+    ensureConnectionIsCurrent();
+    SearchResult sr = transport.findFirst(base, filter,
+        new String[] {attribute});
+    return (sr == null) ? null : sr.getAttributes().get(attribute);
+  }
+
+  /**
+   * Reads the MaxPageSize LDAP policy of the DC from the
+   * <code>lDAPAdminLimits</code> of its Default Query Policy.
+   * @return MaxPageSize, or <code>DEFAULT_PAGE_SIZE</code> if unavailable
    */
-  private void setControls(boolean deleted) {
+  @VisibleForTesting
+  int readMaxPageSize() {
+    String policyDn = "CN=Default Query Policy,CN=Query-Policies,"
+        + "CN=Directory Service,CN=Windows NT,CN=Services,"
+        + configurationNamingContext;
     try {
-      Control[] controls;
-      if (deleted) {
-        controls = new Control[] {
-            new PagedResultsControl(1000, false), new DeletedControl()};
-      } else {
-        controls = new Control[] {
-            new PagedResultsControl(1000, false)};
+      Attribute limits = getAttribute("(objectClass=*)", "lDAPAdminLimits",
+          policyDn);
+      for (int i = 0; limits != null && i < limits.size(); i++) {
+        String limit = limits.get(i).toString();
+        if (limit.toLowerCase().startsWith("maxpagesize=")) {
+          int maxPageSize =
+              Integer.parseInt(limit.substring(limit.indexOf('=') + 1).trim());
+          if (maxPageSize > 0) {
+            return maxPageSize;
+          }
+        }
       }
-      ldapContext.setRequestControls(controls);
-    } catch (IOException e) {
-      LOGGER.log(Level.WARNING, "Couldn't initialize LDAP paging control. "
-        + "Will continue without paging - this can cause issue if there"
-        + "are more than 1000 members in one group.", e);
     } catch (NamingException e) {
-      LOGGER.log(Level.WARNING, "Couldn't initialize LDAP paging control. "
-          + "Will continue without paging - this can cause issue if there"
-          + "are more than 1000 members in one group.", e);
+      LOGGER.log(Level.WARNING, "Failed retrieving MaxPageSize from AD "
+          + "server", e);
+    } catch (NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Invalid MaxPageSize in lDAPAdminLimits", e);
     }
+    LOGGER.log(Level.CONFIG, "MaxPageSize not found for {0}; assuming {1}",
+        new Object[] {hostName, DEFAULT_PAGE_SIZE});
+    return DEFAULT_PAGE_SIZE;
+  }
+
+  /** Receives the entities found by a streaming <code>search</code>. */
+  public interface EntityHandler {
+    void handle(AdEntity entity);
   }
 
   /**
@@ -339,66 +505,80 @@ public class AdServer {
    */
   public Set<AdEntity> search(String baseDN, String filter, boolean deleted,
       String[] attributes) throws InterruptedNamingException {
-    Set<AdEntity> results = new HashSet<AdEntity>();
-    searchCtls.setReturningAttributes(attributes);
-    setControls(deleted);
+    final Set<AdEntity> results = new HashSet<AdEntity>();
+    search(baseDN, filter, deleted, attributes, new EntityHandler() {
+      @Override
+      public void handle(AdEntity entity) {
+        results.add(entity);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Searches Active Directory and passes an AdEntity for each result found to
+   * <code>handler</code>, without collecting them all in memory.  Entities
+   * are handed over page by page, as they arrive; groups whose members need
+   * range retrieval are handed over once all their members are retrieved,
+   * after the last page.
+   * @param baseDN baseDN for the search (use "dn" when empty/null)
+   * @param filter LDAP filter to search in the AD for
+   * @param attributes list of attributes to retrieve
+   * @param handler called (on the calling thread) for each entity found
+   */
+  public void search(String baseDN, String filter, boolean deleted,
+      String[] attributes, EntityHandler handler)
+      throws InterruptedNamingException {
+    List<AdEntity> incompleteGroups = new ArrayList<AdEntity>();
     if (null == baseDN || "".equals(baseDN)) {
       baseDN = dn;
     }
+    LdapTransport.PagedSearch pagedSearch = null;
+    boolean abandoned = false;
     try {
       ensureConnectionIsCurrent();
-      byte[] cookie = null;
-      do {
-        NamingEnumeration<SearchResult> ldapResults =
-            ldapContext.search(baseDN, filter, searchCtls);
-        while (ldapResults.hasMoreElements()) {
-          SearchResult sr = ldapResults.next();
-          try {
-            results.add(new AdEntity(sr));
-          } catch (Exception ex) {
-            // It is possible that Search Result returned is missing
-            // few attributes required to construct AD Entity object.
-            // Such results will be ignored.
-            // This exception is logged and ignored to allow connector to
-            // continue crawling otherwise connector can not
-            // proceed with traversal.
-            LOGGER.log(Level.WARNING, "Error Processing Search Result "
-                + sr, ex);
-          }
+      PageSizeTuner tuner = pageSizeTuner;
+      pagedSearch = transport.startPagedSearch(baseDN, filter, attributes,
+          deleted, getPageSize());
+      PageSource pages = (tuner == null)
+          ? pagedSearch : new TunedPages(pagedSearch, tuner);
+      int prefetch = prefetchPages;
+      if (prefetch > 0) {
+        PagePrefetcher prefetcher = new PagePrefetcher(pages, prefetch);
+        try {
+          handlePages(prefetcher, incompleteGroups, handler);
+        } finally {
+          // abandoned mid-page: the connection can't be reused
+          abandoned = !prefetcher.close();
         }
-        cookie = null;
-        Control[] controls = ldapContext.getResponseControls();
-        for (int i = 0; controls != null && i < controls.length; ++i) {
-          if (controls[i] instanceof PagedResultsResponseControl) {
-            cookie = ((PagedResultsResponseControl) controls[i]).getCookie();
-            ldapContext.setRequestControls(new Control[] {
-                new PagedResultsControl(1000, cookie, Control.CRITICAL)});
-          }
-        }
-      } while ((cookie != null) && (cookie.length != 0));
+      } else {
+        handlePages(pages, incompleteGroups, handler);
+      }
+      pagedSearch.close(false);
+      pagedSearch = null;
 
       // if we received non complete attribute we need to use range based
       // retrieval to get the rest of members
-      for (AdEntity g : results) {
-        if (!g.isGroup() || g.areAllMembershipsRetrieved()) {
-          continue;
+      if (rangeRetrievalConcurrency > 1 && incompleteGroups.size() > 1) {
+        new RangeRetriever(newRangeFetcher(), rangeRetrievalConcurrency)
+            .retrieve(incompleteGroups);
+      } else {
+        for (AdEntity g : incompleteGroups) {
+          int batch = g.getMembers().size();
+          int start = g.getMembers().size();
+          do {
+            LOGGER.finest("Retrieving additional groups for [" + g + "] "
+                + "starting at " + start);
+            SearchResult sr = fetchRange(g, start, batch);
+            if (sr == null) {
+              LOGGER.log(Level.WARNING, "Group [{0}] disappeared during "
+                  + "member range retrieval", g.getDn());
+              break;
+            }
+            int found = g.appendGroups(sr);
+            start += found;
+          } while (!g.areAllMembershipsRetrieved());
         }
-
-        int batch = g.getMembers().size();
-        int start = g.getMembers().size();
-        do {
-          String memberRange = String.format("member;Range=%d-%d", start,
-              start + batch - 1);
-          LOGGER.finest(
-              "Retrieving additional groups for [" + g + "] " + memberRange);
-          searchCtls.setReturningAttributes(new String[] {memberRange});
-          NamingEnumeration<SearchResult> ldapResults = ldapContext.search(
-              baseDN, "(sAMAccountName=" + g.getSAMAccountName() + ")",
-              searchCtls);
-          SearchResult sr = ldapResults.next();
-          int found = g.appendGroups(sr);
-          start += found;
-        } while (!g.areAllMembershipsRetrieved());
       }
     } catch (InterruptedNamingException e) {
       throw e;
@@ -417,8 +597,203 @@ public class AdServer {
           + " continue without paging - this can cause issue if there are more"
           + " than 1000 members in one group. ",
           e);
+    } finally {
+      if (pagedSearch != null) {
+        pagedSearch.close(abandoned);
+      }
+    }
+    // as before streaming, a (logged) failure still yields what was found
+    for (AdEntity g : incompleteGroups) {
+      handler.handle(g);
+    }
+  }
+
+  /**
+   * Hands each entity on <code>pages</code> to <code>handler</code>, except
+   * groups with members left to retrieve, which are added to
+   * <code>incompleteGroups</code>.
+   */
+  private static void handlePages(PageSource pages,
+      List<AdEntity> incompleteGroups, EntityHandler handler)
+      throws NamingException, IOException {
+    List<SearchResult> page;
+    while ((page = pages.nextPage()) != null) {
+      for (SearchResult sr : page) {
+        AdEntity entity;
+        try {
+          entity = new AdEntity(sr);
+        } catch (Exception ex) {
+          // It is possible that Search Result returned is missing
+          // few attributes required to construct AD Entity object.
+          // Such results will be ignored.
+          // This exception is logged and ignored to allow connector to
+          // continue crawling otherwise connector can not
+          // proceed with traversal.
+          LOGGER.log(Level.WARNING, "Error Processing Search Result "
+              + sr, ex);
+          continue;
+        }
+        if (entity.isGroup() && !entity.areAllMembershipsRetrieved()) {
+          incompleteGroups.add(entity);
+        } else {
+          handler.handle(entity);
+        }
+      }
+    }
+  }
+
+  /** Pages of a paged search, with their size picked by a tuner. */
+  private static class TunedPages implements PageSource {
+    private final LdapTransport.PagedSearch pagedSearch;
+    private final PageSizeTuner tuner;
+
+    TunedPages(LdapTransport.PagedSearch pagedSearch, PageSizeTuner tuner) {
+      this.pagedSearch = pagedSearch;
+      this.tuner = tuner;
+    }
+
+    @Override
+    public List<SearchResult> nextPage() throws NamingException, IOException {
+      long pageStart = System.currentTimeMillis();
+      List<SearchResult> page = pagedSearch.nextPage();
+      if (page != null) {
+        pagedSearch.setPageSize(tuner.pageCompleted(page.size(),
+            System.currentTimeMillis() - pageStart));
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Retrieves members <code>start</code> to <code>start + batch - 1</code> of
+   * group <code>g</code>, by reading the group's own entry (a base-scope
+   * search on its DN) rather than searching the subtree for it.
+   * @return the search result, or null if the group is no longer there
+   */
+  private SearchResult fetchRange(AdEntity g, int start, int batch)
+      throws NamingException {
+    String memberRange = String.format("member;Range=%d-%d", start,
+        start + batch - 1);
+    return transport.readEntry(g.getDn(), new String[] {memberRange});
+  }
+
+  /** Returns a fetcher doing each range request through the transport. */
+  private RangeRetriever.RangeFetcher newRangeFetcher() {
+    return new RangeRetriever.RangeFetcher() {
+      @Override
+      public SearchResult fetch(AdEntity group, int start, int batch)
+          throws NamingException {
+        return fetchRange(group, start, batch);
+      }
+    };
+  }
+
+  /** The members added to and removed from one group. */
+  public static class MemberChanges {
+    final Set<String> added = new HashSet<String>();
+    final Set<String> removed = new HashSet<String>();
+
+    public Set<String> getAdded() {
+      return added;
+    }
+
+    public Set<String> getRemoved() {
+      return removed;
+    }
+  }
+
+  /**
+   * Sets the DirSync cookie to the current state of the directory, so that
+   * <code>readMemberChanges</code> returns only the changes made from now on.
+   * Done before a full crawl, so that no change made during the crawl is
+   * missed.
+   */
+  public void resetDirSyncCookie() throws NamingException {
+    // left unset if this fails
+    dirSyncCookie = null;
+    byte[] cookie = new byte[0];
+    DirSyncControl.Result result;
+    do {
+      result = transport.dirSync(dn, NO_OBJECTS_FILTER,
+          new String[] {"objectGUID"}, cookie);
+      cookie = result.cookie;
+    } while (result.moreResults);
+    dirSyncCookie = cookie;
+  }
+
+  /** @return false if the DirSync cookie was never (successfully) reset */
+  public boolean hasDirSyncCookie() {
+    return dirSyncCookie != null;
+  }
+
+  /** @return the DirSync cookie, or null if it is not set */
+  byte[] getDirSyncCookie() {
+    return dirSyncCookie;
+  }
+
+  /**
+   * Restores the watermarks saved with a catalog snapshot, so that the next
+   * incremental crawl reads the changes made since the snapshot was saved
+   * rather than since this server was initialized.
+   * @param highestCommittedUSN the USN saved in the snapshot
+   * @param dirSyncCookie the DirSync cookie saved in the snapshot (or null)
+   */
+  void restoreWatermarks(long highestCommittedUSN, byte[] dirSyncCookie) {
+    this.highestCommittedUSN = highestCommittedUSN;
+    this.dirSyncCookie = dirSyncCookie;
+  }
+
+  /**
+   * Reads the values added to and removed from the <code>member</code>
+   * attribute of groups since the DirSync cookie was last reset or read, and
+   * advances the cookie.  Only the changed values are transferred, however
+   * large the groups.
+   * @return the changes, by group DN
+   */
+  public Map<String, MemberChanges> readMemberChanges()
+      throws NamingException {
+    byte[] cookie = dirSyncCookie;
+    if (cookie == null) {
+      throw new IllegalStateException("DirSync cookie not set");
+    }
+    Map<String, MemberChanges> changes = new HashMap<String, MemberChanges>();
+    DirSyncControl.Result result;
+    do {
+      result = transport.dirSync(dn, "(objectClass=group)",
+          new String[] {"member"}, cookie);
+      for (SearchResult sr : result.entries) {
+        addMemberChanges(sr, changes);
+      }
+      cookie = result.cookie;
+    } while (result.moreResults);
+    dirSyncCookie = cookie;
+    LOGGER.log(Level.FINE, "DirSync returned member changes of {0} groups "
+        + "from {1}", new Object[] {changes.size(), hostName});
+    return changes;
+  }
+
+  private static void addMemberChanges(SearchResult sr,
+      Map<String, MemberChanges> changes) throws NamingException {
+    NamingEnumeration<? extends Attribute> attrs =
+        sr.getAttributes().getAll();
+    while (attrs.hasMore()) {
+      Attribute attr = attrs.next();
+      Matcher m = MEMBER_CHANGE_PATTERN.matcher(attr.getID());
+      if (!m.matches()) {
+        continue;
+      }
+      String groupDn = sr.getNameInNamespace();
+      MemberChanges groupChanges = changes.get(groupDn);
+      if (groupChanges == null) {
+        groupChanges = new MemberChanges();
+        changes.put(groupDn, groupChanges);
+      }
+      Set<String> values =
+          "1".equals(m.group(1)) ? groupChanges.added : groupChanges.removed;
+      for (int i = 0; i < attr.size(); i++) {
+        values.add(attr.get(i).toString());
+      }
     }
-    return results;
   }
 
   /**
@@ -472,21 +847,6 @@ public class AdServer {
     return groupSearchFilter;
   }
 
-  class DeletedControl implements Control {
-    @Override
-    public byte[] getEncodedValue() {
-        return new byte[] {};
-    }
-    @Override
-    public String getID() {
-        return "1.2.840.113556.1.4.417";
-    }
-    @Override
-    public boolean isCritical() {
-        return true;
-    }
-  }
-
   @Override
   public String toString() {
     return "[" + nETBIOSName + "] ";
@@ -0,0 +1,272 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Minimal encoder and decoder for the subset of ASN.1 BER (definite lengths
+ * only) that LDAP v3 messages use.
+ */
+final class Ber {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final int BOOLEAN = 0x01;
+  static final int INTEGER = 0x02;
+  static final int OCTET_STRING = 0x04;
+  static final int NULL = 0x05;
+  static final int ENUMERATED = 0x0a;
+  static final int SEQUENCE = 0x30;
+  static final int SET = 0x31;
+
+  private Ber() {
+  }
+
+  /**
+   * Returns the total length of the element starting at <code>offset</code>
+   * (tag and length included), or -1 if <code>length</code> bytes are not
+   * enough to tell.
+   */
+  static int elementLength(byte[] buf, int offset, int length)
+      throws IOException {
+    if (length < 2) {
+      return -1;
+    }
+    int first = buf[offset + 1] & 0xff;
+    if (first < 0x80) {
+      return 2 + first;
+    }
+    int n = first & 0x7f;
+    if (n == 0 || n > 4) {
+      throw new IOException("unsupported BER length encoding");
+    }
+    if (length < 2 + n) {
+      return -1;
+    }
+    long contentLength = 0;
+    for (int i = 0; i < n; i++) {
+      contentLength = (contentLength << 8) | (buf[offset + 2 + i] & 0xff);
+    }
+    if (contentLength > Integer.MAX_VALUE - 6) {
+      throw new IOException("BER element too long: " + contentLength);
+    }
+    return 2 + n + (int) contentLength;
+  }
+
+  /**
+   * Writes BER elements.  Constructed elements are written by calling
+   * <code>begin</code>, writing their contents, then <code>end</code>.
+   */
+  static class Writer {
+    private byte[] buf = new byte[128];
+    private int pos;
+    // content start positions of the constructed elements begun
+    private final Deque<Integer> open = new ArrayDeque<Integer>();
+
+    Writer begin(int tag) {
+      writeByte(tag);
+      open.push(pos);
+      return this;
+    }
+
+    /** Ends the innermost constructed element, inserting its length. */
+    Writer end() {
+      int start = open.pop();
+      byte[] length = encodeLength(pos - start);
+      ensureCapacity(length.length);
+      System.arraycopy(buf, start, buf, start + length.length, pos - start);
+      System.arraycopy(length, 0, buf, start, length.length);
+      pos += length.length;
+      return this;
+    }
+
+    Writer writeInt(int tag, long value) {
+      int n = 1;
+      while (n < 8 && (value >> (8 * n - 1)) != 0
+          && (value >> (8 * n - 1)) != -1) {
+        n++;
+      }
+      writeByte(tag);
+      writeLength(n);
+      for (int i = n - 1; i >= 0; i--) {
+        writeByte((int) (value >> (8 * i)));
+      }
+      return this;
+    }
+
+    Writer writeBoolean(int tag, boolean value) {
+      writeByte(tag);
+      writeLength(1);
+      writeByte(value ? 0xff : 0);
+      return this;
+    }
+
+    Writer writeOctetString(int tag, byte[] value) {
+      writeByte(tag);
+      writeLength(value.length);
+      ensureCapacity(value.length);
+      System.arraycopy(value, 0, buf, pos, value.length);
+      pos += value.length;
+      return this;
+    }
+
+    Writer writeString(int tag, String value) {
+      return writeOctetString(tag, value.getBytes(UTF8));
+    }
+
+    Writer writeNull(int tag) {
+      writeByte(tag);
+      writeLength(0);
+      return this;
+    }
+
+    byte[] toByteArray() {
+      if (!open.isEmpty()) {
+        throw new IllegalStateException("unterminated constructed element");
+      }
+      return Arrays.copyOf(buf, pos);
+    }
+
+    private void writeLength(int length) {
+      for (byte b : encodeLength(length)) {
+        writeByte(b);
+      }
+    }
+
+    private void writeByte(int b) {
+      ensureCapacity(1);
+      buf[pos++] = (byte) b;
+    }
+
+    private void ensureCapacity(int more) {
+      if (pos + more > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+      }
+    }
+
+    private static byte[] encodeLength(int length) {
+      if (length < 0x80) {
+        return new byte[] {(byte) length};
+      }
+      int n = (length > 0xffffff) ? 4 : (length > 0xffff) ? 3
+          : (length > 0xff) ? 2 : 1;
+      byte[] encoded = new byte[n + 1];
+      encoded[0] = (byte) (0x80 | n);
+      for (int i = 0; i < n; i++) {
+        encoded[n - i] = (byte) (length >> (8 * i));
+      }
+      return encoded;
+    }
+  }
+
+  /** Reads the BER elements in a range of a byte array, in order. */
+  static class Reader {
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+
+    Reader(byte[] buf) {
+      this(buf, 0, buf.length);
+    }
+
+    Reader(byte[] buf, int offset, int length) {
+      this.buf = buf;
+      this.pos = offset;
+      this.limit = offset + length;
+    }
+
+    boolean hasMore() {
+      return pos < limit;
+    }
+
+    /** @return the tag of the next element, without reading it */
+    int peekTag() throws IOException {
+      if (pos >= limit) {
+        throw new IOException("unexpected end of BER data");
+      }
+      return buf[pos] & 0xff;
+    }
+
+    /** Reads a constructed element, returning a reader of its contents. */
+    Reader readConstructed(int tag) throws IOException {
+      int length = readHeader(tag);
+      Reader contents = new Reader(buf, pos, length);
+      pos += length;
+      return contents;
+    }
+
+    long readInt(int tag) throws IOException {
+      int length = readHeader(tag);
+      if (length < 1 || length > 8) {
+        throw new IOException("invalid BER integer length: " + length);
+      }
+      long value = buf[pos];  // sign-extended
+      for (int i = 1; i < length; i++) {
+        value = (value << 8) | (buf[pos + i] & 0xff);
+      }
+      pos += length;
+      return value;
+    }
+
+    boolean readBoolean(int tag) throws IOException {
+      int length = readHeader(tag);
+      if (length != 1) {
+        throw new IOException("invalid BER boolean length: " + length);
+      }
+      return buf[pos++] != 0;
+    }
+
+    byte[] readOctetString(int tag) throws IOException {
+      int length = readHeader(tag);
+      byte[] value = Arrays.copyOfRange(buf, pos, pos + length);
+      pos += length;
+      return value;
+    }
+
+    String readString(int tag) throws IOException {
+      int length = readHeader(tag);
+      String value = new String(buf, pos, length, UTF8);
+      pos += length;
+      return value;
+    }
+
+    /** Skips the next element, whatever it is. */
+    void skip() throws IOException {
+      int length = readHeader(peekTag());
+      pos += length;
+    }
+
+    /** Reads the tag and length of the next element, checking the tag. */
+    private int readHeader(int tag) throws IOException {
+      int actual = peekTag();
+      if (actual != tag) {
+        throw new IOException(String.format(
+            "expected BER tag 0x%02x, found 0x%02x", tag, actual));
+      }
+      int total = elementLength(buf, pos, limit - pos);
+      if (total < 0 || pos + total > limit) {
+        throw new IOException("truncated BER element");
+      }
+      int headerLength = ((buf[pos + 1] & 0x80) == 0)
+          ? 2 : 2 + (buf[pos + 1] & 0x7f);
+      pos += headerLength;
+      return total - headerLength;
+    }
+  }
+}
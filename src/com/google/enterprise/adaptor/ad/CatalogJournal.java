@@ -0,0 +1,497 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the changes incremental crawls make to a
+ * <code>GroupCatalog</code>, on top of the base <code>CatalogSnapshot</code>
+ * it was started for, so that an incremental poll need not rewrite the whole
+ * snapshot.
+ *
+ * <p>Each record holds the changes of one poll: the new watermarks of the
+ * servers, the new state (or removal) of each user/group changed, the members
+ * of the groups changed, whether each user that moved (or was deleted) is
+ * now a primary/well-known member of its old and new groups, and the deleted
+ * groups whose empty definitions are still to be pushed.  A record is
+ * written with its length and a CRC32, and synced to disk, in one go.
+ * Recovery loads the base snapshot and replays the intact records in order;
+ * a record torn by a crash, and everything after it, is discarded (the
+ * watermarks of the last intact record make the next incremental crawl read
+ * its changes again).
+ */
+class CatalogJournal {
+  private static final Logger log
+      = Logger.getLogger(CatalogJournal.class.getName());
+
+  static final int MAGIC = 0x4144434a;  // "ADCJ"
+  static final int VERSION = 4;
+  /** Length of the header: magic, version and base generation. */
+  private static final int HEADER_LENGTH = 16;
+  /** Longest record accepted when reading, as a sanity check. */
+  private static final int MAX_RECORD_LENGTH = 1 << 30;
+
+  private static final int PRIMARY_MEMBER = 0;
+  private static final int WELL_KNOWN_MEMBER = 1;
+
+  private final File file;
+  // generation of the base snapshot the journal file is for, or -1 if the
+  // file cannot be appended to before reset is called
+  private long generation = -1;
+
+  CatalogJournal(File file) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  long length() {
+    return file.length();
+  }
+
+  /** @return true if the journal is on top of a base snapshot */
+  boolean isOpen() {
+    return generation >= 0;
+  }
+
+  /**
+   * Empties the journal, to hold the changes made on top of the base
+   * snapshot of generation <code>baseGeneration</code> from now on.
+   */
+  void reset(long baseGeneration) throws IOException {
+    generation = -1;
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      DataOutputStream out = new DataOutputStream(fos);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(baseGeneration);
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    generation = baseGeneration;
+  }
+
+  /**
+   * Appends the changes made to <code>catalog</code> as one record, with the
+   * current watermarks of <code>servers</code>.
+   * @throws IOException if the record could not be written, in which case
+   *     the journal needs a <code>reset</code> (after a new base snapshot)
+   */
+  void append(AdAdaptor.GroupCatalog catalog, Changes changes,
+      List<AdServer> servers) throws IOException {
+    if (!isOpen()) {
+      throw new IllegalStateException("journal not reset");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CatalogSnapshot.Output out = new CatalogSnapshot.Output(bytes);
+    CatalogSnapshot.writeServers(out, servers);
+    writeChanges(out, catalog, changes);
+    out.writeChecksum();
+    out.close();
+
+    boolean appended = false;
+    FileOutputStream fos = new FileOutputStream(file, /*append=*/ true);
+    try {
+      DataOutputStream record = new DataOutputStream(fos);
+      record.writeInt(bytes.size());
+      bytes.writeTo(record);
+      record.flush();
+      fos.getFD().sync();
+      appended = true;
+    } finally {
+      fos.close();
+      if (!appended) {
+        generation = -1;
+      }
+    }
+    log.log(Level.FINE, "Journaled changes to {0} entities ({1} bytes)",
+        new Object[] {changes.sids.size(), bytes.size()});
+  }
+
+  /**
+   * Replays the journal onto <code>catalog</code>, just loaded from the base
+   * snapshot of generation <code>baseGeneration</code>, and restores the
+   * watermarks of <code>servers</code> to those of the last record.  Leaves
+   * the journal ready for appending: a journal for another base snapshot is
+   * emptied, and a torn last record is cut off.
+   * @return false if the journal was written for other servers (in which
+   *     case the catalog must not be used)
+   * @throws IOException if the journal could not be read, or a record is
+   *     inconsistent with the catalog
+   */
+  boolean replay(AdAdaptor.GroupCatalog catalog, long baseGeneration,
+      List<AdServer> servers) throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new FileInputStream(file));
+    } catch (FileNotFoundException e) {
+      reset(baseGeneration);
+      return true;
+    }
+    long validLength = HEADER_LENGTH;
+    int records = 0;
+    try {
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION
+            || in.readLong() != baseGeneration) {
+          // written before (or without) the current base snapshot, which
+          // already includes any changes it holds
+          log.log(Level.FINE, "Ignoring journal {0}: not for snapshot {1}",
+              new Object[] {file, baseGeneration});
+          validLength = -1;
+        }
+      } catch (EOFException e) {
+        validLength = -1;
+      }
+      while (validLength >= 0) {
+        byte[] record = readRecord(in);
+        if (record == null) {
+          break;
+        }
+        CatalogSnapshot.Input recordIn =
+            new CatalogSnapshot.Input(new ByteArrayInputStream(record));
+        List<CatalogSnapshot.SavedServer> saved;
+        try {
+          saved = CatalogSnapshot.readServers(recordIn);
+          // read the whole record before applying any of it
+          skipChanges(recordIn);
+          recordIn.verifyChecksum();
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Discarding corrupt journal record "
+              + (records + 1) + " (and any after it) in " + file, e);
+          break;
+        } catch (RuntimeException e) {
+          log.log(Level.WARNING, "Discarding corrupt journal record "
+              + (records + 1) + " (and any after it) in " + file, e);
+          break;
+        }
+        if (!CatalogSnapshot.matchServers(file, saved, servers)) {
+          return false;
+        }
+        recordIn = new CatalogSnapshot.Input(new ByteArrayInputStream(record));
+        CatalogSnapshot.readServers(recordIn);
+        readChanges(recordIn, catalog);
+        CatalogSnapshot.restoreWatermarks(saved, servers);
+        validLength += 4 + record.length;
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (validLength < 0) {
+      reset(baseGeneration);
+    } else {
+      if (validLength < file.length()) {
+        log.log(Level.WARNING, "Truncating journal {0} after {1} records",
+            new Object[] {file, records});
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+          raf.setLength(validLength);
+          raf.getFD().sync();
+        } finally {
+          raf.close();
+        }
+      }
+      generation = baseGeneration;
+    }
+    log.log(Level.INFO, "Replayed {0} records from journal {1}",
+        new Object[] {records, file});
+    return true;
+  }
+
+  /** @return the next record, or null at the end of an intact journal */
+  private static byte[] readRecord(DataInputStream in) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 0 || length > MAX_RECORD_LENGTH) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    try {
+      in.readFully(record);
+    } catch (EOFException e) {
+      return null;
+    }
+    return record;
+  }
+
+  private static void writeChanges(CatalogSnapshot.Output out,
+      AdAdaptor.GroupCatalog catalog, Changes changes) throws IOException {
+    Set<String> dns = new HashSet<String>();
+    List<String[]> primaryCandidates = new ArrayList<String[]>();
+    primaryCandidates.addAll(changes.oldPrimaryMemberships);
+    dns.addAll(changes.oldDns);
+
+    out.writeVarInt(changes.sids.size());
+    for (String sid : changes.sids) {
+      out.writeString(sid);
+      AdEntity e = catalog.bySid.get(sid);
+      out.writeBoolean(e != null);
+      if (e == null) {
+        continue;
+      }
+      e.writeTo(out);
+      out.writeString(catalog.domain.get(e));
+      Set<String> members = catalog.members.get(e);
+      out.writeBoolean(members != null);
+      if (members != null) {
+        out.writeStrings(members);
+      }
+      dns.add(e.getDn());
+      if (!e.isGroup()) {
+        primaryCandidates.add(new String[] {e.getPrimaryGroupSid(),
+            e.getDn()});
+      }
+    }
+
+    // the groups whose members changed, but that were not replaced
+    List<AdEntity> groups = new ArrayList<AdEntity>();
+    for (AdEntity group : changes.groups) {
+      if (!group.isWellKnown() && !changes.sids.contains(group.getSid())
+          && catalog.members.containsKey(group)) {
+        groups.add(group);
+      }
+    }
+    out.writeVarInt(groups.size());
+    for (AdEntity group : groups) {
+      out.writeString(group.getSid());
+      out.writeStrings(catalog.members.get(group));
+    }
+
+    List<Object[]> facts = new ArrayList<Object[]>();
+    for (String[] candidate : primaryCandidates) {
+      AdEntity group = catalog.bySid.get(candidate[0]);
+      if (group != null) {
+        Set<String> primary = catalog.primaryMembers.get(group);
+        facts.add(new Object[] {PRIMARY_MEMBER, candidate[0], candidate[1],
+            primary != null && primary.contains(candidate[1])});
+      }
+    }
+    for (Map.Entry<AdEntity, Set<String>> wellKnown
+        : catalog.wellKnownMembership.entrySet()) {
+      for (String dn : dns) {
+        facts.add(new Object[] {WELL_KNOWN_MEMBER,
+            wellKnown.getKey().getSid(), dn,
+            wellKnown.getValue().contains(dn)});
+      }
+    }
+    out.writeVarInt(facts.size());
+    for (Object[] fact : facts) {
+      out.writeVarInt((Integer) fact[0]);
+      out.writeString((String) fact[1]);
+      out.writeString((String) fact[2]);
+      out.writeBoolean((Boolean) fact[3]);
+    }
+
+    // all the deleted groups still to be pushed, replacing earlier records
+    out.writeVarInt(catalog.deletedGroups.size());
+    for (Map.Entry<AdEntity, GroupPrincipal> entry
+        : catalog.deletedGroups.entrySet()) {
+      entry.getKey().writeTo(out);
+      CatalogSnapshot.writePrincipal(out, entry.getValue());
+    }
+  }
+
+  /** Reads (and checks the framing of) the changes, without applying them */
+  private static void skipChanges(CatalogSnapshot.Input in)
+      throws IOException {
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      in.readString();
+      if (in.readBoolean()) {
+        AdEntity.readFrom(in);
+        in.readString();
+        if (in.readBoolean()) {
+          in.readStrings(new ArrayList<String>());
+        }
+      }
+    }
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      in.readString();
+      in.readStrings(new ArrayList<String>());
+    }
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      in.readVarInt();
+      in.readString();
+      in.readString();
+      in.readBoolean();
+    }
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      AdEntity.readFrom(in);
+      CatalogSnapshot.readPrincipal(in);
+    }
+  }
+
+  private static void readChanges(CatalogSnapshot.Input in,
+      AdAdaptor.GroupCatalog catalog) throws IOException {
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      String sid = in.readString();
+      AdEntity old = catalog.bySid.remove(sid);
+      Set<String> oldPrimaryMembers = null;
+      if (old != null) {
+        catalog.entities.remove(old);
+        if (catalog.byDn.get(old.getDn()) == old) {
+          catalog.byDn.remove(old.getDn());
+        }
+        catalog.members.remove(old);
+        catalog.domain.remove(old);
+        oldPrimaryMembers = catalog.primaryMembers.remove(old);
+      }
+      if (!in.readBoolean()) {
+        continue;
+      }
+      AdEntity e = AdEntity.readFrom(in);
+      catalog.entities.add(e);
+      catalog.bySid.put(sid, e);
+      catalog.byDn.put(e.getDn(), e);
+      String domain = in.readString();
+      if (domain != null) {
+        catalog.domain.put(e, domain);
+      }
+      if (in.readBoolean()) {
+        catalog.members.put(e, in.readStrings(catalog.newMemberSet()));
+      }
+      if (oldPrimaryMembers != null) {
+        catalog.primaryMembers.put(e, oldPrimaryMembers);
+      }
+    }
+
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      AdEntity group = catalog.bySid.get(in.readString());
+      Set<String> members = in.readStrings(catalog.newMemberSet());
+      if (group == null) {
+        throw new IOException("journal refers to an unknown group");
+      }
+      catalog.members.put(group, members);
+    }
+
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      int kind = in.readVarInt();
+      AdEntity group = catalog.bySid.get(in.readString());
+      String dn = in.readString();
+      boolean member = in.readBoolean();
+      if (group == null) {
+        continue;
+      }
+      Map<AdEntity, Set<String>> memberships = (kind == PRIMARY_MEMBER)
+          ? catalog.primaryMembers : catalog.wellKnownMembership;
+      Set<String> groupMembers = memberships.get(group);
+      if (member) {
+        if (groupMembers == null) {
+          groupMembers = catalog.newMemberSet();
+          memberships.put(group, groupMembers);
+        }
+        groupMembers.add(dn);
+      } else if (groupMembers != null) {
+        groupMembers.remove(dn);
+      }
+    }
+
+    catalog.deletedGroups.clear();
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      AdEntity e = AdEntity.readFrom(in);
+      catalog.deletedGroups.put(e, CatalogSnapshot.readPrincipal(in));
+    }
+  }
+
+  /**
+   * The users/groups an incremental crawl changed, collected by
+   * <code>GroupCatalog</code> while it applies the changes (when it has
+   * this set), so that <code>append</code> can journal their new state.
+   */
+  static class Changes {
+    /** SIDs of the entities replaced, added or removed. */
+    final Set<String> sids = new HashSet<String>();
+    /** {primary group SID, DN} of the previous versions of changed users. */
+    final List<String[]> oldPrimaryMemberships = new ArrayList<String[]>();
+    /** DNs of the previous versions of the changed entities. */
+    final Set<String> oldDns = new HashSet<String>();
+    /** The groups whose members may have changed. */
+    final Set<AdEntity> groups = new HashSet<AdEntity>();
+    /** Set when a full crawl replaced the catalog's contents. */
+    boolean fullCrawl;
+    /** Set when deleted groups were pushed, and are no longer pending. */
+    boolean deletedGroupsPushed;
+
+    /**
+     * Records that the entity with <code>sid</code> is about to be replaced
+     * or removed; <code>old</code> is its current version (if any).
+     */
+    void entityChanging(String sid, AdEntity old) {
+      if (sid == null) {
+        return;
+      }
+      sids.add(sid);
+      if (old != null) {
+        oldDns.add(old.getDn());
+        if (!old.isGroup()) {
+          oldPrimaryMemberships.add(new String[] {old.getPrimaryGroupSid(),
+              old.getDn()});
+        }
+      }
+    }
+
+    /** Records the entities an incremental crawl returned as updated. */
+    void entitiesChanged(Set<AdEntity> changed) {
+      for (AdEntity e : changed) {
+        if (e.isGroup()) {
+          groups.add(e);
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return sids.isEmpty() && groups.isEmpty() && !fullCrawl
+          && !deletedGroupsPushed;
+    }
+  }
+}
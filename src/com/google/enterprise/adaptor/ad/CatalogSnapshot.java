@@ -0,0 +1,595 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves a complete <code>GroupCatalog</code>, together with the watermarks
+ * (<code>dsServiceName</code>, <code>invocationID</code>,
+ * <code>highestCommittedUSN</code> and DirSync cookie) of the servers it was
+ * read from, to a file, so that after a restart the adaptor can load it and
+ * go straight to incremental crawls instead of re-crawling every domain.
+ *
+ * <p>The file holds a header, the servers, a table of all entities (each
+ * written once, and referred to by index from the catalog's maps), and a
+ * CRC32 of everything before it.  Strings are written once and referred to
+ * by index afterwards, so the DN of a user that is a member of many groups
+ * takes a few bytes per group.  A snapshot is written to a temporary file
+ * that replaces the previous snapshot only once complete.
+ *
+ * <p>Each snapshot saved gets a new generation number, which a
+ * <code>CatalogJournal</code> records to tell which snapshot its changes
+ * apply to.
+ */
+class CatalogSnapshot {
+  private static final Logger log
+      = Logger.getLogger(CatalogSnapshot.class.getName());
+
+  static final int MAGIC = 0x41444353;  // "ADCS"
+  static final int VERSION = 5;
+  /** Longest string accepted when reading, as a sanity check. */
+  private static final int MAX_STRING_BYTES = 1 << 20;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private long generation;
+
+  CatalogSnapshot(File file) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /** @return the generation of the snapshot last saved or loaded */
+  long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Saves <code>catalog</code>, with the current watermarks of
+   * <code>servers</code> (which must be those of the crawls the catalog is
+   * the result of).
+   * @throws IOException if the snapshot could not be written; any previous
+   *     snapshot is left as it was
+   */
+  void save(AdAdaptor.GroupCatalog catalog, List<AdServer> servers)
+      throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    // unique even if the file was deleted since the last one was saved
+    long newGeneration =
+        Math.max(generation + 1, System.currentTimeMillis());
+    FileOutputStream fos = new FileOutputStream(tmp);
+    Output out = new Output(fos);
+    boolean written = false;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeVarLong(newGeneration);
+      writeServers(out, servers);
+      writeCatalog(out, catalog);
+      out.writeChecksum();
+      // on disk before it replaces the previous snapshot, which the journal
+      // is then reset to no longer apply to
+      out.flush();
+      fos.getFD().sync();
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        tmp.delete();
+      }
+    }
+    // File.renameTo does not replace an existing file everywhere
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      tmp.delete();
+      throw new IOException("could not rename " + tmp + " to " + file);
+    }
+    generation = newGeneration;
+    log.log(Level.FINE, "Saved catalog snapshot of {0} entities to {1}",
+        new Object[] {catalog.entities.size(), file});
+  }
+
+  /**
+   * Loads the snapshot into <code>catalog</code> (a newly created one), and
+   * restores the watermarks of <code>servers</code> to those saved with it.
+   * Nothing is restored unless the snapshot is intact and was saved for
+   * the same domain controllers, none of which has since been restored from
+   * backup.
+   * @return false if there is no snapshot, or it is not usable with
+   *     <code>servers</code>
+   * @throws IOException if the snapshot could not be read, or is corrupt
+   */
+  boolean load(AdAdaptor.GroupCatalog catalog, List<AdServer> servers)
+      throws IOException {
+    Input in;
+    try {
+      in = new Input(new FileInputStream(file));
+    } catch (FileNotFoundException e) {
+      log.log(Level.FINE, "No catalog snapshot at {0}", file);
+      return false;
+    }
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a catalog snapshot");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("unsupported catalog snapshot version "
+            + version);
+      }
+      long savedGeneration = in.readVarLong();
+      List<SavedServer> saved = readServers(in);
+      boolean usable = matchServers(file, saved, servers);
+      if (usable) {
+        readCatalog(in, catalog);
+        in.verifyChecksum();
+        restoreWatermarks(saved, servers);
+        generation = savedGeneration;
+        log.log(Level.INFO, "Loaded catalog snapshot of {0} entities from "
+            + "{1}", new Object[] {catalog.entities.size(), file});
+      }
+      return usable;
+    } catch (EOFException e) {
+      throw new IOException("truncated catalog snapshot " + file, e);
+    } catch (RuntimeException e) {
+      throw new IOException("corrupt catalog snapshot " + file, e);
+    } finally {
+      in.close();
+    }
+  }
+
+  static void writeServers(Output out, List<AdServer> servers)
+      throws IOException {
+    out.writeVarInt(servers.size());
+    for (AdServer server : servers) {
+      out.writeString(server.getHostName());
+      out.writeString(server.getDsServiceName());
+      out.writeString(server.getInvocationID());
+      out.writeVarLong(server.getHighestCommittedUSN());
+      out.writeBytes(server.getDirSyncCookie());
+    }
+  }
+
+  static List<SavedServer> readServers(Input in) throws IOException {
+    int count = in.readVarInt();
+    List<SavedServer> saved = new ArrayList<SavedServer>();
+    for (int i = 0; i < count; i++) {
+      SavedServer server = new SavedServer();
+      server.hostName = in.readString();
+      server.dsServiceName = in.readString();
+      server.invocationID = in.readString();
+      server.highestCommittedUSN = in.readVarLong();
+      server.dirSyncCookie = in.readBytes();
+      saved.add(server);
+    }
+    return saved;
+  }
+
+  /**
+   * @param file the snapshot (or journal) the watermarks were saved in
+   * @return true if the watermarks were saved for exactly these servers
+   */
+  static boolean matchServers(File file, List<SavedServer> saved,
+      List<AdServer> servers) {
+    if (saved.size() != servers.size()) {
+      log.log(Level.INFO, "Ignoring {0}: it was saved for "
+          + "{1} servers, not {2}", new Object[] {file, saved.size(),
+          servers.size()});
+      return false;
+    }
+    for (int i = 0; i < saved.size(); i++) {
+      SavedServer s = saved.get(i);
+      AdServer server = servers.get(i);
+      if (!equal(s.hostName, server.getHostName())
+          || !equal(s.dsServiceName, server.getDsServiceName())) {
+        log.log(Level.INFO, "Ignoring {0}: it was saved for "
+            + "{1} ({2}), not {3} ({4})", new Object[] {file, s.hostName,
+            s.dsServiceName, server.getHostName(),
+            server.getDsServiceName()});
+        return false;
+      }
+      if (!equal(s.invocationID, server.getInvocationID())) {
+        log.log(Level.INFO, "Ignoring {0}: {1} has been "
+            + "restored from backup since it was saved",
+            new Object[] {file, s.dsServiceName});
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static void restoreWatermarks(List<SavedServer> saved,
+      List<AdServer> servers) {
+    for (int i = 0; i < servers.size(); i++) {
+      servers.get(i).restoreWatermarks(saved.get(i).highestCommittedUSN,
+          saved.get(i).dirSyncCookie);
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  private static void writeCatalog(Output out, AdAdaptor.GroupCatalog catalog)
+      throws IOException {
+    // the maps may hold entities that are not in catalog.entities (and even
+    // entities equal to, but not the same as, others), so number every
+    // distinct object
+    Map<AdEntity, Integer> index = new IdentityHashMap<AdEntity, Integer>();
+    List<AdEntity> table = new ArrayList<AdEntity>();
+    addAll(index, table, catalog.entities);
+    addAll(index, table, catalog.bySid.values());
+    addAll(index, table, catalog.byDn.values());
+    addAll(index, table, catalog.members.keySet());
+    addAll(index, table, catalog.primaryMembers.keySet());
+    addAll(index, table, catalog.domain.keySet());
+    addAll(index, table, catalog.wellKnownMembership.keySet());
+    addAll(index, table, catalog.deletedGroups.keySet());
+    out.writeVarInt(table.size());
+    for (AdEntity e : table) {
+      e.writeTo(out);
+    }
+
+    out.writeVarInt(catalog.entities.size());
+    for (AdEntity e : catalog.entities) {
+      out.writeVarInt(index.get(e));
+    }
+    writeMembers(out, index, catalog.members);
+    writeMembers(out, index, catalog.primaryMembers);
+    writeIndex(out, index, catalog.bySid);
+    writeIndex(out, index, catalog.byDn);
+    out.writeVarInt(catalog.domain.size());
+    for (Map.Entry<AdEntity, String> entry : catalog.domain.entrySet()) {
+      out.writeVarInt(index.get(entry.getKey()));
+      out.writeString(entry.getValue());
+    }
+    writeMembers(out, index, catalog.wellKnownMembership);
+    out.writeVarInt(catalog.deletedGroups.size());
+    for (Map.Entry<AdEntity, GroupPrincipal> entry
+        : catalog.deletedGroups.entrySet()) {
+      out.writeVarInt(index.get(entry.getKey()));
+      writePrincipal(out, entry.getValue());
+    }
+  }
+
+  private static void addAll(Map<AdEntity, Integer> index,
+      List<AdEntity> table, Collection<AdEntity> entities) {
+    for (AdEntity e : entities) {
+      if (!index.containsKey(e)) {
+        index.put(e, table.size());
+        table.add(e);
+      }
+    }
+  }
+
+  private static void writeMembers(Output out, Map<AdEntity, Integer> index,
+      Map<AdEntity, Set<String>> members) throws IOException {
+    out.writeVarInt(members.size());
+    for (Map.Entry<AdEntity, Set<String>> entry : members.entrySet()) {
+      out.writeVarInt(index.get(entry.getKey()));
+      out.writeStrings(entry.getValue());
+    }
+  }
+
+  private static void writeIndex(Output out, Map<AdEntity, Integer> index,
+      Map<String, AdEntity> byName) throws IOException {
+    out.writeVarInt(byName.size());
+    for (Map.Entry<String, AdEntity> entry : byName.entrySet()) {
+      out.writeString(entry.getKey());
+      out.writeVarInt(index.get(entry.getValue()));
+    }
+  }
+
+  private static void readCatalog(Input in, AdAdaptor.GroupCatalog catalog)
+      throws IOException {
+    // the catalog's own well-known entities replace the saved copies
+    Map<AdEntity, AdEntity> wellKnown = new HashMap<AdEntity, AdEntity>();
+    wellKnown.put(catalog.everyone, catalog.everyone);
+    wellKnown.put(catalog.interactive, catalog.interactive);
+    wellKnown.put(catalog.authenticatedUsers, catalog.authenticatedUsers);
+    int count = in.readVarInt();
+    List<AdEntity> table = new ArrayList<AdEntity>();
+    for (int i = 0; i < count; i++) {
+      AdEntity e = AdEntity.readFrom(in);
+      AdEntity canonical = wellKnown.get(e);
+      table.add((canonical == null) ? e : canonical);
+    }
+
+    catalog.entities.clear();
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      catalog.entities.add(table.get(in.readVarInt()));
+    }
+    readMembers(in, table, catalog, catalog.members);
+    readMembers(in, table, catalog, catalog.primaryMembers);
+    readIndex(in, table, catalog.bySid);
+    readIndex(in, table, catalog.byDn);
+    catalog.domain.clear();
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      catalog.domain.put(table.get(in.readVarInt()), in.readString());
+    }
+    readMembers(in, table, catalog, catalog.wellKnownMembership);
+    catalog.deletedGroups.clear();
+    count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      AdEntity e = table.get(in.readVarInt());
+      catalog.deletedGroups.put(e, readPrincipal(in));
+    }
+  }
+
+  static void writePrincipal(Output out, GroupPrincipal group)
+      throws IOException {
+    out.writeString(group.getName());
+    out.writeString(group.getNamespace());
+  }
+
+  static GroupPrincipal readPrincipal(Input in) throws IOException {
+    String name = in.readString();
+    String namespace = in.readString();
+    try {
+      return new GroupPrincipal(name, namespace);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("invalid group name: " + name, e);
+    }
+  }
+
+  private static void readMembers(Input in, List<AdEntity> table,
+      AdAdaptor.GroupCatalog catalog, Map<AdEntity, Set<String>> members)
+      throws IOException {
+    members.clear();
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      AdEntity e = table.get(in.readVarInt());
+      members.put(e, in.readStrings(catalog.newMemberSet()));
+    }
+  }
+
+  private static void readIndex(Input in, List<AdEntity> table,
+      Map<String, AdEntity> byName) throws IOException {
+    byName.clear();
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      String name = in.readString();
+      byName.put(name, table.get(in.readVarInt()));
+    }
+  }
+
+  /** The watermarks of one server, as saved in a snapshot. */
+  static class SavedServer {
+    String hostName;
+    String dsServiceName;
+    String invocationID;
+    long highestCommittedUSN;
+    byte[] dirSyncCookie;
+  }
+
+  /**
+   * Writes the primitive values of a snapshot, keeping a running CRC32 of
+   * them.  Each distinct string is written once; later occurrences are
+   * written as its index.
+   */
+  static class Output {
+    private final CRC32 crc = new CRC32();
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    Output(OutputStream os) {
+      out = new DataOutputStream(new CheckedOutputStream(
+          new BufferedOutputStream(os), crc));
+    }
+
+    void writeInt(int value) throws IOException {
+      out.writeInt(value);
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+      out.writeBoolean(value);
+    }
+
+    void writeVarInt(int value) throws IOException {
+      writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /** Writes 7 bits per byte, low bits first. */
+    void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.writeByte((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.writeByte((int) value);
+    }
+
+    /**
+     * Writes null as 0, else its length + 1, so that an empty array reads
+     * back as an empty array rather than null.
+     */
+    void writeBytes(byte[] value) throws IOException {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      writeVarInt(value.length + 1);
+      out.write(value);
+    }
+
+    /**
+     * Writes null as 0, a string written before as its index + 1, and a new
+     * string as the next index + 1 followed by its UTF-8 bytes.
+     */
+    void writeString(String value) throws IOException {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      Integer id = strings.get(value);
+      if (id != null) {
+        writeVarInt(id + 1);
+        return;
+      }
+      strings.put(value, strings.size());
+      writeVarInt(strings.size());
+      byte[] bytes = value.getBytes(UTF_8);
+      writeVarInt(bytes.length);
+      out.write(bytes);
+    }
+
+    void writeStrings(Collection<String> values) throws IOException {
+      writeVarInt(values.size());
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+
+    /** Writes the CRC32 of everything written so far. */
+    void writeChecksum() throws IOException {
+      out.flush();
+      out.writeInt((int) crc.getValue());
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /** Reads the values written by <code>Output</code>. */
+  static class Input {
+    private final CRC32 crc = new CRC32();
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<String>();
+
+    Input(InputStream is) {
+      in = new DataInputStream(new CheckedInputStream(
+          new BufferedInputStream(is), crc));
+    }
+
+    int readInt() throws IOException {
+      return in.readInt();
+    }
+
+    boolean readBoolean() throws IOException {
+      return in.readBoolean();
+    }
+
+    int readVarInt() throws IOException {
+      long value = readVarLong();
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IOException("invalid count or index: " + value);
+      }
+      return (int) value;
+    }
+
+    long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("invalid variable-length number");
+    }
+
+    byte[] readBytes() throws IOException {
+      int length = readVarInt();
+      if (length == 0) {
+        return null;
+      }
+      byte[] value = new byte[checkLength(length - 1)];
+      in.readFully(value);
+      return value;
+    }
+
+    String readString() throws IOException {
+      int id = readVarInt();
+      if (id == 0) {
+        return null;
+      }
+      if (id <= strings.size()) {
+        return strings.get(id - 1);
+      }
+      if (id != strings.size() + 1) {
+        throw new IOException("invalid string index: " + id);
+      }
+      byte[] bytes = new byte[checkLength(readVarInt())];
+      in.readFully(bytes);
+      String value = new String(bytes, UTF_8);
+      strings.add(value);
+      return value;
+    }
+
+    <T extends Collection<String>> T readStrings(T values)
+        throws IOException {
+      int count = readVarInt();
+      for (int i = 0; i < count; i++) {
+        values.add(readString());
+      }
+      return values;
+    }
+
+    /** Checks the CRC32 of everything read so far against the saved one. */
+    void verifyChecksum() throws IOException {
+      int computed = (int) crc.getValue();
+      if (in.readInt() != computed) {
+        throw new IOException("catalog snapshot checksum mismatch");
+      }
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
+    private static int checkLength(int length) throws IOException {
+      if (length > MAX_STRING_BYTES) {
+        throw new IOException("invalid length: " + length);
+      }
+      return length;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives group definitions as <code>makeDefs</code> makes them, and pushes
+ * them in chunks of at most <code>maxGroups</code> groups and
+ * <code>maxMembers</code> members, so that only a chunk of the definitions
+ * is held at a time rather than those of the whole forest.  A group with
+ * more than <code>maxMembers</code> members is pushed in a chunk of its own.
+ *
+ * <p>With <code>GroupFingerprints</code>, groups unchanged since they were
+ * last pushed are left out, and the groups of a chunk are recorded as pushed
+ * once the chunk is; those of a chunk that failed are forgotten.
+ *
+ * <p>With an executor, the groups are split by the hash of their names into
+ * shards, whose chunks are pushed by the executor's threads concurrently
+ * (the <code>DocIdPusher</code> being thread-safe).  Each shard has at most
+ * one chunk being pushed, and one being filled, at a time: the chunks of a
+ * shard are pushed in order, so that the definition of a group pushed twice
+ * ends up the last one made.  A chunk the pusher fails to push in full is
+ * pushed again, up to <code>retries</code> times, without holding up the
+ * other shards.
+ */
+class ChunkedGroupPusher implements AdAdaptor.GroupCatalog.DefinitionHandler {
+  private static final Logger log
+      = Logger.getLogger(ChunkedGroupPusher.class.getName());
+
+  private final DocIdPusher pusher;
+  private final boolean caseSensitive;
+  private final GroupFingerprints pushedGroups;  // null to push all groups
+  private final int maxGroups;
+  private final long maxMembers;
+  private final ExecutorService executor;  // null to push on this thread
+  private final int retries;
+  private final Shard[] shards;
+
+  private int nGroups;
+  private int nUnchanged;
+  private final AtomicInteger nChunks = new AtomicInteger();
+  private final AtomicInteger nFailedChunks = new AtomicInteger();
+  private final Set<GroupPrincipal> failedGroups =
+      Collections.synchronizedSet(new HashSet<GroupPrincipal>());
+
+  /** Pushes the chunks on the calling thread, without retrying them. */
+  ChunkedGroupPusher(DocIdPusher pusher, boolean caseSensitive,
+      GroupFingerprints pushedGroups, int maxGroups, long maxMembers) {
+    this(pusher, caseSensitive, pushedGroups, maxGroups, maxMembers, null, 1,
+        0);
+  }
+
+  /**
+   * @param pushedGroups the groups last pushed, or null to push all groups
+   * @param maxGroups most groups in a chunk; 0 for no limit
+   * @param maxMembers most members in a chunk; 0 for no limit
+   * @param executor runs the pushes of the shards, or null to push on the
+   *     calling thread
+   * @param nShards the number of shards, at most the executor's threads
+   * @param retries the times a failed chunk is pushed again
+   */
+  ChunkedGroupPusher(DocIdPusher pusher, boolean caseSensitive,
+      GroupFingerprints pushedGroups, int maxGroups, long maxMembers,
+      ExecutorService executor, int nShards, int retries) {
+    if (nShards < 1 || (executor == null && nShards != 1)) {
+      throw new IllegalArgumentException("invalid number of shards: "
+          + nShards);
+    }
+    this.pusher = pusher;
+    this.caseSensitive = caseSensitive;
+    this.pushedGroups = pushedGroups;
+    this.maxGroups = maxGroups;
+    this.maxMembers = maxMembers;
+    this.executor = executor;
+    this.retries = retries;
+    shards = new Shard[nShards];
+    for (int i = 0; i < nShards; i++) {
+      shards[i] = new Shard();
+    }
+  }
+
+  @Override
+  public void handle(GroupPrincipal group, List<Principal> def)
+      throws InterruptedException {
+    nGroups++;
+    Long fingerprint = null;
+    if (pushedGroups != null) {
+      fingerprint = GroupFingerprints.fingerprint(def);
+      if (pushedGroups.isPushed(group, fingerprint)) {
+        nUnchanged++;
+        return;
+      }
+    }
+    Shard shard = shards[(StringTable.mix(group.hashCode()) & 0x7FFFFFFF)
+        % shards.length];
+    if (maxMembers > 0 && shard.chunkMembers + def.size() > maxMembers) {
+      flush(shard);  // the group would take the chunk over maxMembers
+    }
+    shard.chunk.put(group, def);
+    if (fingerprint != null) {
+      shard.fingerprints.put(group, fingerprint);
+    }
+    shard.chunkMembers += def.size();
+    if ((maxGroups > 0 && shard.chunk.size() >= maxGroups)
+        || (maxMembers > 0 && shard.chunkMembers >= maxMembers)) {
+      flush(shard);
+    }
+  }
+
+  /**
+   * Pushes the definitions received since the last chunks were pushed, and
+   * waits for all chunks to be pushed.
+   */
+  void flush() throws InterruptedException {
+    for (Shard shard : shards) {
+      flush(shard);
+    }
+    for (Shard shard : shards) {
+      shard.awaitPush();
+    }
+  }
+
+  /** @return the number of groups received, pushed or not */
+  int getGroupCount() {
+    return nGroups;
+  }
+
+  /** @return the number of groups left out as unchanged */
+  int getUnchangedCount() {
+    return nUnchanged;
+  }
+
+  /** @return the number of chunks pushed */
+  int getChunkCount() {
+    return nChunks.get();
+  }
+
+  /** @return the number of chunks the pusher failed to push in full */
+  int getFailedChunkCount() {
+    return nFailedChunks.get();
+  }
+
+  /** @return the groups of the chunks the pusher failed to push in full */
+  Set<GroupPrincipal> getFailedGroups() {
+    return failedGroups;
+  }
+
+  /** Hands the chunk of <code>shard</code> over to be pushed. */
+  private void flush(Shard shard) throws InterruptedException {
+    if (shard.chunk.isEmpty()) {
+      return;
+    }
+    final Map<GroupPrincipal, List<Principal>> chunk = shard.chunk;
+    final Map<GroupPrincipal, Long> fingerprints = shard.fingerprints;
+    log.log(Level.FINER, "Pushing {0} groups with {1} members",
+        new Object[] {chunk.size(), shard.chunkMembers});
+    // new maps, rather than cleared ones, as the pusher may keep the chunk
+    shard.chunk = new HashMap<GroupPrincipal, List<Principal>>();
+    shard.fingerprints = new HashMap<GroupPrincipal, Long>();
+    shard.chunkMembers = 0;
+    if (executor == null) {
+      push(chunk, fingerprints);
+      return;
+    }
+    shard.awaitPush();
+    shard.push = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        push(chunk, fingerprints);
+        return null;
+      }
+    });
+  }
+
+  /** Pushes one chunk, retrying it if the pusher fails to push it all. */
+  private void push(Map<GroupPrincipal, List<Principal>> chunk,
+      Map<GroupPrincipal, Long> fingerprints) throws InterruptedException {
+    nChunks.incrementAndGet();
+    for (int attempt = 0; ; attempt++) {
+      GroupPrincipal failed =
+          pusher.pushGroupDefinitions(chunk, caseSensitive);
+      if (failed == null) {
+        if (pushedGroups != null) {
+          pushedGroups.recordPushed(fingerprints);
+        }
+        return;
+      }
+      if (attempt == retries) {
+        nFailedChunks.incrementAndGet();
+        failedGroups.addAll(chunk.keySet());
+        if (pushedGroups != null) {
+          // the groups ahead of the failed one may have been pushed: a group
+          // that reverts to the definition last recorded must not be left out
+          pushedGroups.forget(chunk.keySet());
+        }
+        log.log(Level.WARNING, "Failed to push group {0}; its chunk will be "
+            + "pushed again next time", failed);
+        return;
+      }
+      log.log(Level.FINE, "Failed to push group {0}; pushing its chunk again",
+          failed);
+    }
+  }
+
+  /** The chunk being filled, and the one being pushed, of a shard. */
+  private static class Shard {
+    Map<GroupPrincipal, List<Principal>> chunk =
+        new HashMap<GroupPrincipal, List<Principal>>();
+    Map<GroupPrincipal, Long> fingerprints =
+        new HashMap<GroupPrincipal, Long>();
+    long chunkMembers;
+    Future<Void> push;  // null if none
+
+    /** Waits for the chunk being pushed, if any, to be pushed. */
+    void awaitPush() throws InterruptedException {
+      if (push == null) {
+        return;
+      }
+      try {
+        push.get();
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      } finally {
+        push = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+/**
+ * The AD DirSync control (LDAP_SERVER_DIRSYNC_OID), which makes a search
+ * return only the objects changed since the state recorded in a cookie, each
+ * with only its changed attributes.
+ *
+ * <p>The control is always sent with the incremental-values flag: for a
+ * linked multi-valued attribute such as <code>member</code>, only the values
+ * added since the cookie are returned (as <code>member;range=1-1</code>) and
+ * the values removed (as <code>member;range=0-0</code>), rather than all the
+ * values.  The object-security flag lets accounts without the "Replicating
+ * Directory Changes" right use the control, for the objects they can read.
+ * DirSync searches must be based at the root of a naming context, and cannot
+ * be paged.
+ */
+class DirSyncControl implements Control {
+  static final String OID = "1.2.840.113556.1.4.841";
+
+  static final int OBJECT_SECURITY = 0x00000001;
+  static final int INCREMENTAL_VALUES = 0x80000000;
+
+  private final byte[] value;
+
+  /**
+   * @param cookie the cookie returned by the previous DirSync search, or an
+   *     empty array to start from scratch
+   */
+  DirSyncControl(byte[] cookie) {
+    value = new Ber.Writer().begin(Ber.SEQUENCE)
+        .writeInt(Ber.INTEGER, OBJECT_SECURITY | INCREMENTAL_VALUES)
+        .writeInt(Ber.INTEGER, 0)  // MaxBytes: the server's default
+        .writeOctetString(Ber.OCTET_STRING, cookie)
+        .end().toByteArray();
+  }
+
+  @Override
+  public byte[] getEncodedValue() {
+    return value.clone();
+  }
+
+  @Override
+  public String getID() {
+    return OID;
+  }
+
+  @Override
+  public boolean isCritical() {
+    return true;
+  }
+
+  /** The entries returned by one DirSync search, and its response control. */
+  static class Result {
+    final List<SearchResult> entries;
+    /** The cookie to send with the next DirSync search. */
+    final byte[] cookie;
+    /** True if more changes are left to read with <code>cookie</code>. */
+    final boolean moreResults;
+
+    Result(List<SearchResult> entries, byte[] cookie, boolean moreResults) {
+      this.entries = entries;
+      this.cookie = cookie;
+      this.moreResults = moreResults;
+    }
+
+    /**
+     * @param value the encoded value of the DirSync response control, or null
+     *     if the server did not return one
+     */
+    static Result decode(List<SearchResult> entries, byte[] value)
+        throws NamingException {
+      if (value == null) {
+        throw new NamingException("no DirSync response control returned");
+      }
+      try {
+        Ber.Reader seq = new Ber.Reader(value).readConstructed(Ber.SEQUENCE);
+        boolean moreResults = seq.readInt(Ber.INTEGER) != 0;
+        seq.readInt(Ber.INTEGER);  // unused
+        return new Result(entries, seq.readOctetString(Ber.OCTET_STRING),
+            moreResults);
+      } catch (IOException e) {
+        NamingException ne =
+            new NamingException("invalid DirSync response control");
+        ne.setRootCause(e);
+        throw ne;
+      }
+    }
+  }
+}
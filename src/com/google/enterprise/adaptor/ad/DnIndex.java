@@ -0,0 +1,157 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Index of the catalog's entities by DN, held as an array indexed by the ID
+ * of each DN in a <code>StringTable</code>.  Indexing an entity gives its DN
+ * an ID (the entity's ID in the catalog), which member sets of the same table
+ * use in place of the DN, so <code>getById</code> finds the entity for a
+ * member without the member's DN being looked up at all.
+ */
+class DnIndex extends AbstractMap<String, AdEntity> {
+  private final StringTable table;
+  private AdEntity[] byId = new AdEntity[1024];
+  private int size;
+
+  DnIndex(StringTable table) {
+    this.table = table;
+  }
+
+  StringTable getTable() {
+    return table;
+  }
+
+  /** Returns the entity whose DN has ID <code>id</code>, or null. */
+  AdEntity getById(int id) {
+    return (id < byId.length) ? byId[id] : null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public AdEntity get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    int id = table.find((String) key);
+    return (id < 0) ? null : getById(id);
+  }
+
+  @Override
+  public AdEntity put(String dn, AdEntity e) {
+    if (e == null) {
+      throw new NullPointerException("null entity for " + dn);
+    }
+    int id = table.intern(dn);
+    if (id >= byId.length) {
+      byId = Arrays.copyOf(byId, Math.max(byId.length * 2, id + 1));
+    }
+    AdEntity previous = byId[id];
+    byId[id] = e;
+    if (previous == null) {
+      size++;
+    }
+    return previous;
+  }
+
+  @Override
+  public AdEntity remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    int id = table.find((String) key);
+    if (id < 0 || id >= byId.length || byId[id] == null) {
+      return null;
+    }
+    AdEntity previous = byId[id];
+    byId[id] = null;
+    size--;
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(byId, null);
+    size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, AdEntity>> entrySet() {
+    return new AbstractSet<Map.Entry<String, AdEntity>>() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, AdEntity>> iterator() {
+        return new Iterator<Map.Entry<String, AdEntity>>() {
+          private int next = advance(0);
+          private int last = -1;
+
+          private int advance(int id) {
+            while (id < byId.length && byId[id] == null) {
+              id++;
+            }
+            return id;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return next < byId.length;
+          }
+
+          @Override
+          public Map.Entry<String, AdEntity> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            last = next;
+            next = advance(next + 1);
+            return new SimpleImmutableEntry<String, AdEntity>(
+                table.get(last), byId[last]);
+          }
+
+          @Override
+          public void remove() {
+            if (last < 0 || byId[last] == null) {
+              throw new IllegalStateException();
+            }
+            byId[last] = null;
+            size--;
+            last = -1;
+          }
+        };
+      }
+    };
+  }
+}
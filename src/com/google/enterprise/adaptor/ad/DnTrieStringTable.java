@@ -0,0 +1,194 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Arrays;
+
+/**
+ * <code>StringTable</code> that stores DNs as a tree of their components, so
+ * that the suffix shared by the DNs of an OU (such as
+ * <code>OU=Users,OU=EMEA,DC=corp,DC=example,DC=com</code>) is stored once.
+ *
+ * <p>A DN is split into its RDNs at the commas not escaped by a backslash
+ * (as <code>AdEntity.getCommonName</code> finds the first RDN), and stored as
+ * the node of its first RDN, whose parent is the node of the second RDN, and
+ * so on up to the last RDN.  Each node takes its parent's index, and the
+ * position and length of its RDN in a shared <code>char[]</code>: about 20
+ * bytes, plus the RDN's characters, for each distinct RDN under each parent.
+ * A DN is rendered again by walking up from its node.
+ *
+ * <p>Components are matched exactly, as the catalog matches DNs: Active
+ * Directory returns the DNs of an OU in one spelling, so their suffixes are
+ * shared all the same.
+ */
+class DnTrieStringTable extends StringTable {
+  private static final int ROOT = -1;
+
+  /** Node of each string, by ID. */
+  private int[] nodeOf = new int[1024];
+
+  private int[] parents = new int[1024];
+  private int[] starts = new int[1024];
+  private int[] lengths = new int[1024];
+  private int[] nodeHashes = new int[1024];
+  private int nNodes;
+  /** Node + 1 of the nodes, by hash of their parent and RDN; 0 if empty. */
+  private int[] nodeSlots = new int[2048];
+
+  private char[] chars = new char[16 * 1024];
+  private int nChars;
+
+  @Override
+  protected void store(int id, String s) {
+    if (id == nodeOf.length) {
+      nodeOf = Arrays.copyOf(nodeOf, id * 2);
+    }
+    nodeOf[id] = internSuffix(s, 0);
+  }
+
+  @Override
+  protected String load(int id) {
+    int node = nodeOf[id];
+    int length = -1;
+    for (int n = node; n != ROOT; n = parents[n]) {
+      length += lengths[n] + 1;
+    }
+    char[] dn = new char[length];
+    int pos = 0;
+    for (int n = node; n != ROOT; n = parents[n]) {
+      if (n != node) {
+        dn[pos++] = ',';
+      }
+      System.arraycopy(chars, starts[n], dn, pos, lengths[n]);
+      pos += lengths[n];
+    }
+    return new String(dn);
+  }
+
+  @Override
+  protected boolean matches(int id, String s) {
+    int pos = 0;
+    for (int n = nodeOf[id]; n != ROOT; n = parents[n]) {
+      if (n != nodeOf[id]) {
+        if (pos >= s.length() || s.charAt(pos++) != ',') {
+          return false;
+        }
+      }
+      if (!regionMatches(n, s, pos, lengths[n])) {
+        return false;
+      }
+      pos += lengths[n];
+    }
+    return pos == s.length();
+  }
+
+  /** @return the number of nodes: the distinct RDNs under each parent */
+  synchronized int getNodeCount() {
+    return nNodes;
+  }
+
+  /** @return the number of characters stored for the RDNs of the nodes */
+  synchronized int getCharCount() {
+    return nChars;
+  }
+
+  /**
+   * Returns the node of the DN that starts at <code>start</code> in
+   * <code>s</code>, adding it (and its parents) if needed.
+   */
+  private int internSuffix(String s, int start) {
+    int comma = indexOfSeparator(s, start);
+    // the parent DN is what follows the first RDN
+    int parent = (comma < 0) ? ROOT : internSuffix(s, comma + 1);
+    int end = (comma < 0) ? s.length() : comma;
+    return internNode(parent, s, start, end - start);
+  }
+
+  /**
+   * Returns the index of the first comma in <code>s</code> (from
+   * <code>start</code>) that is not escaped by a backslash, or -1.
+   */
+  private static int indexOfSeparator(String s, int start) {
+    int comma = s.indexOf(',', start);
+    while (comma > 0 && s.charAt(comma - 1) == '\\') {
+      comma = s.indexOf(',', comma + 1);
+    }
+    return comma;
+  }
+
+  private int internNode(int parent, String s, int start, int length) {
+    int hash = parent;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + s.charAt(i);
+    }
+    int mask = nodeSlots.length - 1;
+    int slot = mix(hash) & mask;
+    for (; nodeSlots[slot] != 0; slot = (slot + 1) & mask) {
+      int n = nodeSlots[slot] - 1;
+      if (nodeHashes[n] == hash && parents[n] == parent
+          && lengths[n] == length && regionMatches(n, s, start, length)) {
+        return n;
+      }
+    }
+    int node = nNodes++;
+    if (node == parents.length) {
+      parents = Arrays.copyOf(parents, node * 2);
+      starts = Arrays.copyOf(starts, node * 2);
+      lengths = Arrays.copyOf(lengths, node * 2);
+      nodeHashes = Arrays.copyOf(nodeHashes, node * 2);
+    }
+    if (nChars + length > chars.length) {
+      chars = Arrays.copyOf(chars,
+          Math.max(chars.length * 2, nChars + length));
+    }
+    s.getChars(start, start + length, chars, nChars);
+    parents[node] = parent;
+    starts[node] = nChars;
+    lengths[node] = length;
+    nodeHashes[node] = hash;
+    nChars += length;
+    nodeSlots[slot] = node + 1;
+    if (nNodes * 2 > nodeSlots.length) {
+      rehashNodes();
+    }
+    return node;
+  }
+
+  /** @return true if the RDN of <code>node</code> is in s at pos */
+  private boolean regionMatches(int node, String s, int pos, int length) {
+    if (lengths[node] != length || pos + length > s.length()) {
+      return false;
+    }
+    int start = starts[node];
+    for (int i = 0; i < length; i++) {
+      if (chars[start + i] != s.charAt(pos + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehashNodes() {
+    nodeSlots = new int[nodeSlots.length * 2];
+    int mask = nodeSlots.length - 1;
+    for (int n = 0; n < nNodes; n++) {
+      int slot = mix(nodeHashes[n]) & mask;
+      while (nodeSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      nodeSlots[slot] = n + 1;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fingerprints of the group definitions last pushed, so that a push can
+ * leave out the groups whose resolved members have not changed since.
+ *
+ * <p>A fingerprint is a 64-bit hash of the (sorted) hashes of the members'
+ * names, namespaces and kinds: it does not depend on the order in which the
+ * members were resolved, and changes when a member is added, removed or
+ * renamed.  Fingerprints are only kept in memory, so that the first push
+ * after a restart sends every group.
+ */
+class GroupFingerprints {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Map<GroupPrincipal, Long> pushed =
+      new HashMap<GroupPrincipal, Long>();
+
+  /**
+   * @return true if <code>group</code> was last pushed with a definition
+   *     of fingerprint <code>fingerprint</code>
+   */
+  synchronized boolean isPushed(GroupPrincipal group, long fingerprint) {
+    Long last = pushed.get(group);
+    return last != null && last == fingerprint;
+  }
+
+  /** Records the fingerprints of definitions that were pushed. */
+  synchronized void recordPushed(Map<GroupPrincipal, Long> fingerprints) {
+    pushed.putAll(fingerprints);
+  }
+
+  /**
+   * Forgets the fingerprints of <code>groups</code>, whose definitions may
+   * have been only partly pushed, so that they are pushed next time.
+   */
+  synchronized void forget(Collection<GroupPrincipal> groups) {
+    pushed.keySet().removeAll(groups);
+  }
+
+  /** Forgets all fingerprints, so that every group is pushed next time. */
+  synchronized void clear() {
+    pushed.clear();
+  }
+
+  synchronized int size() {
+    return pushed.size();
+  }
+
+  /** Returns the fingerprint of a group's members, in any order. */
+  static long fingerprint(Collection<Principal> members) {
+    long[] hashes = new long[members.size()];
+    int n = 0;
+    for (Principal member : members) {
+      hashes[n++] = hash(member);
+    }
+    Arrays.sort(hashes, 0, n);
+    long h = FNV_OFFSET ^ n;
+    for (int i = 0; i < n; i++) {
+      h = mix64((h ^ hashes[i]) * FNV_PRIME);
+    }
+    return h;
+  }
+
+  /** FNV-1a of the kind, name and namespace of <code>p</code>. */
+  private static long hash(Principal p) {
+    long h = FNV_OFFSET;
+    h = (h ^ (p.isGroup() ? 'g' : 'u')) * FNV_PRIME;
+    h = hash(h, p.getName());
+    h = (h ^ 0xFFFF) * FNV_PRIME;  // a noncharacter, as the separator
+    h = hash(h, p.getNamespace());
+    return mix64(h);
+  }
+
+  private static long hash(long h, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  /** The finalizer of MurmurHash3's 64-bit hash. */
+  private static long mix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,38 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Arrays;
+
+/**
+ * <code>StringTable</code> that keeps its strings on the heap: each distinct
+ * DN is held once, however many groups it is a member of.
+ */
+class HeapStringTable extends StringTable {
+  private String[] strings = new String[1024];
+
+  @Override
+  protected void store(int id, String s) {
+    if (id == strings.length) {
+      strings = Arrays.copyOf(strings, id * 2);
+    }
+    strings[id] = s;
+  }
+
+  @Override
+  protected String load(int id) {
+    return strings[id];
+  }
+}
@@ -0,0 +1,427 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap of non-negative int IDs, organized like a Roaring bitmap:
+ * the IDs are split by their high 16 bits into containers of up to 65536
+ * IDs.  A container with at most <code>ARRAY_MAX</code> IDs holds their low
+ * 16 bits in a sorted <code>char[]</code>; a fuller one holds a 65536-bit
+ * <code>long[]</code>.  Either way a container takes at most 8 KB, and
+ * unions and differences of full containers run a word (64 IDs) at a time.
+ */
+class IdBitmap {
+  /** Most IDs an array container holds before it becomes a bitmap. */
+  static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1 << 10;
+
+  private char[] keys = new char[4];
+  private Container[] containers = new Container[4];
+  private int nContainers;
+  private int cardinality;
+
+  int cardinality() {
+    return cardinality;
+  }
+
+  boolean contains(int id) {
+    int i = indexOf(highBits(id));
+    return i >= 0 && containers[i].contains((char) id);
+  }
+
+  /** @return true if <code>id</code> was not in the bitmap yet */
+  boolean add(int id) {
+    char key = highBits(id);
+    int i = indexOf(key);
+    if (i < 0) {
+      i = -i - 1;
+      insertContainer(i, key, new ArrayContainer());
+    }
+    int before = containers[i].cardinality;
+    containers[i] = containers[i].add((char) id);
+    if (containers[i].cardinality == before) {
+      return false;
+    }
+    cardinality++;
+    return true;
+  }
+
+  /** @return true if <code>id</code> was in the bitmap */
+  boolean remove(int id) {
+    int i = indexOf(highBits(id));
+    if (i < 0) {
+      return false;
+    }
+    int before = containers[i].cardinality;
+    containers[i] = containers[i].remove((char) id);
+    if (containers[i].cardinality == before) {
+      return false;
+    }
+    cardinality--;
+    if (containers[i].cardinality == 0) {
+      removeContainer(i);
+    }
+    return true;
+  }
+
+  /**
+   * Adds all IDs of <code>other</code> to this bitmap.
+   * @return true if this bitmap changed
+   */
+  boolean or(IdBitmap other) {
+    int before = cardinality;
+    for (int j = 0; j < other.nContainers; j++) {
+      char key = other.keys[j];
+      int i = indexOf(key);
+      if (i < 0) {
+        insertContainer(-i - 1, key, other.containers[j].copy());
+        cardinality += other.containers[j].cardinality;
+      } else {
+        int old = containers[i].cardinality;
+        containers[i] = containers[i].or(other.containers[j]);
+        cardinality += containers[i].cardinality - old;
+      }
+    }
+    return cardinality != before;
+  }
+
+  /**
+   * Removes all IDs of <code>other</code> from this bitmap.
+   * @return true if this bitmap changed
+   */
+  boolean andNot(IdBitmap other) {
+    int before = cardinality;
+    for (int j = 0; j < other.nContainers; j++) {
+      int i = indexOf(other.keys[j]);
+      if (i < 0) {
+        continue;
+      }
+      int old = containers[i].cardinality;
+      containers[i] = containers[i].andNot(other.containers[j]);
+      cardinality -= old - containers[i].cardinality;
+      if (containers[i].cardinality == 0) {
+        removeContainer(i);
+      }
+    }
+    return cardinality != before;
+  }
+
+  /**
+   * Returns the smallest ID in the bitmap that is at least <code>from</code>,
+   * or -1 if there is none.  IDs are iterated over in ascending order with
+   * <code>for (id = next(0); id >= 0; id = next(id + 1))</code>, which
+   * allows removing <code>id</code> along the way.
+   */
+  int next(int from) {
+    if (from < 0) {
+      return -1;
+    }
+    char key = highBits(from);
+    int i = indexOf(key);
+    if (i >= 0) {
+      int low = containers[i].next((char) from);
+      if (low >= 0) {
+        return (key << 16) | low;
+      }
+      i++;
+    } else {
+      i = -i - 1;
+    }
+    if (i < nContainers) {
+      return (keys[i] << 16) | containers[i].next((char) 0);
+    }
+    return -1;
+  }
+
+  /** Returns the IDs in the bitmap, in ascending order. */
+  int[] toArray() {
+    int[] ids = new int[cardinality];
+    int n = 0;
+    for (int id = next(0); id >= 0; id = next(id + 1)) {
+      ids[n++] = id;
+    }
+    return ids;
+  }
+
+  private static char highBits(int id) {
+    return (char) (id >>> 16);
+  }
+
+  private int indexOf(char key) {
+    return Arrays.binarySearch(keys, 0, nContainers, key);
+  }
+
+  private void insertContainer(int i, char key, Container container) {
+    if (nContainers == keys.length) {
+      keys = Arrays.copyOf(keys, nContainers * 2);
+      containers = Arrays.copyOf(containers, nContainers * 2);
+    }
+    System.arraycopy(keys, i, keys, i + 1, nContainers - i);
+    System.arraycopy(containers, i, containers, i + 1, nContainers - i);
+    keys[i] = key;
+    containers[i] = container;
+    nContainers++;
+  }
+
+  private void removeContainer(int i) {
+    System.arraycopy(keys, i + 1, keys, i, nContainers - i - 1);
+    System.arraycopy(containers, i + 1, containers, i, nContainers - i - 1);
+    containers[--nContainers] = null;
+  }
+
+  /**
+   * The low 16 bits of the IDs sharing the same high 16 bits.  Operations
+   * return the container to use from then on, which is a different one when
+   * the representation changes.
+   */
+  private abstract static class Container {
+    int cardinality;
+
+    abstract boolean contains(char low);
+    abstract Container add(char low);
+    abstract Container remove(char low);
+    abstract Container or(Container other);
+    abstract Container andNot(Container other);
+    /** @return the smallest value at least <code>from</code>, or -1 */
+    abstract int next(char from);
+    abstract Container copy();
+    abstract BitmapContainer toBitmap();
+  }
+
+  private static class ArrayContainer extends Container {
+    char[] values = new char[4];
+
+    @Override
+    boolean contains(char low) {
+      return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+    }
+
+    @Override
+    Container add(char low) {
+      int i = Arrays.binarySearch(values, 0, cardinality, low);
+      if (i >= 0) {
+        return this;
+      }
+      if (cardinality == ARRAY_MAX) {
+        return toBitmap().add(low);
+      }
+      i = -i - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+      }
+      System.arraycopy(values, i, values, i + 1, cardinality - i);
+      values[i] = low;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(char low) {
+      int i = Arrays.binarySearch(values, 0, cardinality, low);
+      if (i >= 0) {
+        System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+        cardinality--;
+      }
+      return this;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer
+          || cardinality + other.cardinality > ARRAY_MAX) {
+        return toBitmap().or(other);
+      }
+      // merge of two sorted arrays
+      ArrayContainer o = (ArrayContainer) other;
+      char[] merged = new char[cardinality + o.cardinality];
+      int i = 0;
+      int j = 0;
+      int n = 0;
+      while (i < cardinality && j < o.cardinality) {
+        if (values[i] < o.values[j]) {
+          merged[n++] = values[i++];
+        } else if (values[i] > o.values[j]) {
+          merged[n++] = o.values[j++];
+        } else {
+          merged[n++] = values[i++];
+          j++;
+        }
+      }
+      while (i < cardinality) {
+        merged[n++] = values[i++];
+      }
+      while (j < o.cardinality) {
+        merged[n++] = o.values[j++];
+      }
+      values = merged;
+      cardinality = n;
+      return this;
+    }
+
+    @Override
+    Container andNot(Container other) {
+      int n = 0;
+      for (int i = 0; i < cardinality; i++) {
+        if (!other.contains(values[i])) {
+          values[n++] = values[i];
+        }
+      }
+      cardinality = n;
+      return this;
+    }
+
+    @Override
+    int next(char from) {
+      int i = Arrays.binarySearch(values, 0, cardinality, from);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      return (i < cardinality) ? values[i] : -1;
+    }
+
+    @Override
+    Container copy() {
+      ArrayContainer copy = new ArrayContainer();
+      copy.values = Arrays.copyOf(values, Math.max(4, cardinality));
+      copy.cardinality = cardinality;
+      return copy;
+    }
+
+    @Override
+    BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.words[values[i] >>> 6] |= 1L << values[i];
+      }
+      bitmap.cardinality = cardinality;
+      return bitmap;
+    }
+  }
+
+  private static class BitmapContainer extends Container {
+    final long[] words = new long[WORDS];
+
+    @Override
+    boolean contains(char low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    Container add(char low) {
+      long word = words[low >>> 6];
+      if ((word & (1L << low)) == 0) {
+        words[low >>> 6] = word | (1L << low);
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(char low) {
+      long word = words[low >>> 6];
+      if ((word & (1L << low)) != 0) {
+        words[low >>> 6] = word & ~(1L << low);
+        cardinality--;
+      }
+      return shrinkIfSparse();
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        for (int i = 0; i < array.cardinality; i++) {
+          add(array.values[i]);
+        }
+        return this;
+      }
+      long[] otherWords = ((BitmapContainer) other).words;
+      int n = 0;
+      for (int i = 0; i < WORDS; i++) {
+        words[i] |= otherWords[i];
+        n += Long.bitCount(words[i]);
+      }
+      cardinality = n;
+      return this;
+    }
+
+    @Override
+    Container andNot(Container other) {
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        for (int i = 0; i < array.cardinality; i++) {
+          long bit = 1L << array.values[i];
+          if ((words[array.values[i] >>> 6] & bit) != 0) {
+            words[array.values[i] >>> 6] &= ~bit;
+            cardinality--;
+          }
+        }
+        return shrinkIfSparse();
+      }
+      long[] otherWords = ((BitmapContainer) other).words;
+      int n = 0;
+      for (int i = 0; i < WORDS; i++) {
+        words[i] &= ~otherWords[i];
+        n += Long.bitCount(words[i]);
+      }
+      cardinality = n;
+      return shrinkIfSparse();
+    }
+
+    @Override
+    int next(char from) {
+      int i = from >>> 6;
+      long word = words[i] & (-1L << from);
+      while (word == 0) {
+        if (++i == WORDS) {
+          return -1;
+        }
+        word = words[i];
+      }
+      return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    Container copy() {
+      BitmapContainer copy = new BitmapContainer();
+      System.arraycopy(words, 0, copy.words, 0, WORDS);
+      copy.cardinality = cardinality;
+      return copy;
+    }
+
+    @Override
+    BitmapContainer toBitmap() {
+      return this;
+    }
+
+    /** Goes back to an array once at most half of ARRAY_MAX is left. */
+    private Container shrinkIfSparse() {
+      if (cardinality > ARRAY_MAX / 2) {
+        return this;
+      }
+      ArrayContainer array = new ArrayContainer();
+      array.values = new char[Math.max(4, cardinality)];
+      int n = 0;
+      for (int low = next((char) 0); low >= 0 && n < cardinality;
+          low = (low == 0xFFFF) ? -1 : next((char) (low + 1))) {
+        array.values[n++] = (char) low;
+      }
+      array.cardinality = n;
+      return array;
+    }
+  }
+}
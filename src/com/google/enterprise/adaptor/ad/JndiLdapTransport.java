@@ -0,0 +1,306 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.adaptor.StartupException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.CompositeName;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * <code>LdapTransport</code> over JNDI's LDAP provider.  Each request runs
+ * synchronously on a context borrowed from an <code>LdapContextPool</code>,
+ * so there are as many requests outstanding as there are threads making
+ * them (up to the pool size).
+ */
+class JndiLdapTransport implements LdapTransport {
+  private static final Logger log
+      = Logger.getLogger(JndiLdapTransport.class.getName());
+
+  private final LdapContextPool.ContextFactory factory;
+  private final LdapContextPool contextPool;
+
+  JndiLdapTransport(LdapContextPool.ContextFactory factory,
+      LdapContext initialContext) {
+    this.factory = factory;
+    this.contextPool = new LdapContextPool(factory, initialContext,
+        AdServer.DEFAULT_CONNECTION_POOL_SIZE,
+        AdServer.DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS);
+  }
+
+  @VisibleForTesting
+  LdapContextPool getContextPool() {
+    return contextPool;
+  }
+
+  @Override
+  public void setMaxConnections(int maxConnections) {
+    contextPool.setMaxSize(maxConnections);
+  }
+
+  @Override
+  public int getMaxConnections() {
+    return contextPool.getMaxSize();
+  }
+
+  @Override
+  public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+    contextPool.setIdleTimeoutMillis(idleTimeoutMillis);
+  }
+
+  @Override
+  public Attributes readRootDse() throws NamingException {
+    LdapContext ldapContext = contextPool.borrow();
+    try {
+      return ldapContext.getAttributes("");
+    } finally {
+      contextPool.release(ldapContext);
+    }
+  }
+
+  @Override
+  public SearchResult findFirst(String base, String filter,
+      String[] attributes) throws NamingException {
+    SearchControls searchCtls = new SearchControls();
+    searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchCtls.setReturningAttributes(attributes);
+    LdapContext ldapContext = contextPool.borrow();
+    try {
+      NamingEnumeration<SearchResult> ldapResults =
+          ldapContext.search(base, filter, searchCtls);
+      if (!ldapResults.hasMore()) {
+        return null;
+      }
+      return ldapResults.next();
+    } finally {
+      contextPool.release(ldapContext);
+    }
+  }
+
+  @Override
+  public SearchResult readEntry(String dn, String[] attributes)
+      throws NamingException {
+    SearchControls searchCtls = new SearchControls();
+    searchCtls.setSearchScope(SearchControls.OBJECT_SCOPE);
+    searchCtls.setReturningAttributes(attributes);
+    // wrap the DN in a CompositeName, so JNDI passes it on unparsed (and with
+    // its LDAP escapes intact) even when it contains a '/'
+    Name name = new CompositeName().add(dn);
+    LdapContext ldapContext = contextPool.borrow();
+    try {
+      NamingEnumeration<SearchResult> ldapResults;
+      try {
+        ldapResults = ldapContext.search(name, "(objectClass=*)", searchCtls);
+      } catch (NameNotFoundException e) {
+        return null;
+      }
+      if (!ldapResults.hasMore()) {
+        return null;
+      }
+      return ldapResults.next();
+    } finally {
+      contextPool.release(ldapContext);
+    }
+  }
+
+  @Override
+  public PagedSearch startPagedSearch(String base, String filter,
+      String[] attributes, boolean deleted, int pageSize)
+      throws NamingException {
+    SearchControls searchCtls = new SearchControls();
+    searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchCtls.setReturningAttributes(attributes);
+    LdapContext ldapContext = contextPool.borrow();
+    setControls(ldapContext, deleted, pageSize);
+    return new JndiPagedSearch(ldapContext, base, filter, searchCtls,
+        deleted, pageSize);
+  }
+
+  @Override
+  public DirSyncControl.Result dirSync(String base, String filter,
+      String[] attributes, byte[] cookie) throws NamingException {
+    SearchControls searchCtls = new SearchControls();
+    searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchCtls.setReturningAttributes(attributes);
+    LdapContext ldapContext = contextPool.borrow();
+    try {
+      ldapContext.setRequestControls(
+          new Control[] {new DirSyncControl(cookie)});
+      List<SearchResult> entries = new ArrayList<SearchResult>();
+      NamingEnumeration<SearchResult> ldapResults =
+          ldapContext.search(base, filter, searchCtls);
+      while (ldapResults.hasMore()) {
+        entries.add(ldapResults.next());
+      }
+      byte[] value = null;
+      Control[] controls = ldapContext.getResponseControls();
+      for (int i = 0; controls != null && i < controls.length; ++i) {
+        if (DirSyncControl.OID.equals(controls[i].getID())) {
+          value = controls[i].getEncodedValue();
+        }
+      }
+      return DirSyncControl.Result.decode(entries, value);
+    } finally {
+      try {
+        // don't send the DirSync control with the context's next request
+        ldapContext.setRequestControls(null);
+      } finally {
+        contextPool.release(ldapContext);
+      }
+    }
+  }
+
+  @Override
+  public void reconnect() throws StartupException {
+    contextPool.reset(factory.create());
+  }
+
+  @Override
+  public void close() {
+    contextPool.close();
+  }
+
+  /**
+   * Set request controls on the LDAP query
+   * @param ldapContext the (borrowed) context to set the controls on
+   * @param deleted include deleted control
+   * @param pageSize number of results to request in the first page
+   */
+  private static void setControls(LdapContext ldapContext, boolean deleted,
+      int pageSize) {
+    try {
+      Control[] controls;
+      if (deleted) {
+        controls = new Control[] {
+            new PagedResultsControl(pageSize, false), new DeletedControl()};
+      } else {
+        controls = new Control[] {
+            new PagedResultsControl(pageSize, false)};
+      }
+      ldapContext.setRequestControls(controls);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Couldn't initialize LDAP paging control. "
+        + "Will continue without paging - this can cause issue if there"
+        + "are more than 1000 members in one group.", e);
+    } catch (NamingException e) {
+      log.log(Level.WARNING, "Couldn't initialize LDAP paging control. "
+          + "Will continue without paging - this can cause issue if there"
+          + "are more than 1000 members in one group.", e);
+    }
+  }
+
+  /** Paged search on a context it holds until closed. */
+  private class JndiPagedSearch implements PagedSearch {
+    private final LdapContext ldapContext;
+    private final String base;
+    private final String filter;
+    private final SearchControls searchCtls;
+    private final boolean deleted;
+    private volatile int pageSize;
+    private boolean done;
+    private boolean closed;
+
+    JndiPagedSearch(LdapContext ldapContext, String base, String filter,
+        SearchControls searchCtls, boolean deleted, int pageSize) {
+      this.ldapContext = ldapContext;
+      this.base = base;
+      this.filter = filter;
+      this.searchCtls = searchCtls;
+      this.deleted = deleted;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public void setPageSize(int pageSize) {
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public List<SearchResult> nextPage() throws NamingException, IOException {
+      if (done) {
+        return null;
+      }
+      List<SearchResult> page = new ArrayList<SearchResult>();
+      NamingEnumeration<SearchResult> ldapResults =
+          ldapContext.search(base, filter, searchCtls);
+      while (ldapResults.hasMoreElements()) {
+        page.add(ldapResults.next());
+      }
+      byte[] cookie = null;
+      Control[] controls = ldapContext.getResponseControls();
+      for (int i = 0; controls != null && i < controls.length; ++i) {
+        if (controls[i] instanceof PagedResultsResponseControl) {
+          cookie = ((PagedResultsResponseControl) controls[i]).getCookie();
+          Control paged =
+              new PagedResultsControl(pageSize, cookie, Control.CRITICAL);
+          // the next pages need to include deleted objects too
+          ldapContext.setRequestControls(deleted
+              ? new Control[] {paged, new DeletedControl()}
+              : new Control[] {paged});
+        }
+      }
+      done = (cookie == null) || (cookie.length == 0);
+      return page;
+    }
+
+    @Override
+    public void close(boolean abandoned) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (abandoned) {
+        contextPool.discard(ldapContext);
+      } else {
+        contextPool.release(ldapContext);
+      }
+    }
+  }
+
+  /** Asks AD to include deleted objects (tombstones) in search results. */
+  static class DeletedControl implements Control {
+    static final String OID = "1.2.840.113556.1.4.417";
+
+    @Override
+    public byte[] getEncodedValue() {
+        return new byte[] {};
+    }
+    @Override
+    public String getID() {
+        return OID;
+    }
+    @Override
+    public boolean isCritical() {
+        return true;
+    }
+  }
+}
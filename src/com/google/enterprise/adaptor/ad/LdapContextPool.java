@@ -0,0 +1,295 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.StartupException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * A bounded pool of authenticated <code>LdapContext</code>s to a single AD
+ * server.  A context is used by one thread at a time: callers
+ * <code>borrow()</code> a context, and must <code>release()</code> it when
+ * done (typically in a <code>finally</code> block).
+ *
+ * <p>Contexts that have sat unused for longer than the validation interval are
+ * checked (with a read of the RootDSE) before being handed out, and contexts
+ * unused for longer than the idle timeout are closed -- though one context is
+ * always kept open.
+ */
+class LdapContextPool {
+  private static final Logger log
+      = Logger.getLogger(LdapContextPool.class.getName());
+
+  /** Idle time after which a context is checked before it is handed out. */
+  static final long VALIDATION_INTERVAL_MILLIS = 60 * 1000L;
+
+  /** Creates new (authenticated) contexts for the pool. */
+  interface ContextFactory {
+    LdapContext create() throws StartupException;
+  }
+
+  private final ContextFactory factory;
+  private int maxSize;
+  private long idleTimeoutMillis;
+
+  // most recently released context is first
+  private final Deque<IdleContext> idle = new ArrayDeque<IdleContext>();
+  // contexts handed out, mapped to the generation they were created in
+  private final Map<LdapContext, Integer> leased =
+      new IdentityHashMap<LdapContext, Integer>();
+  // contexts being created (counted against maxSize)
+  private int pending;
+  // bumped by reset(), so contexts from before the reset are not reused
+  private int generation;
+  private boolean closed;
+
+  LdapContextPool(ContextFactory factory, LdapContext initialContext,
+      int maxSize, long idleTimeoutMillis) {
+    if (null == factory) {
+      throw new NullPointerException();
+    }
+    this.factory = factory;
+    setMaxSize(maxSize);
+    setIdleTimeoutMillis(idleTimeoutMillis);
+    if (initialContext != null) {
+      idle.addFirst(new IdleContext(initialContext, System.currentTimeMillis(),
+          generation));
+    }
+  }
+
+  synchronized void setMaxSize(int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("pool size must be positive");
+    }
+    this.maxSize = maxSize;
+    notifyAll();
+  }
+
+  synchronized int getMaxSize() {
+    return maxSize;
+  }
+
+  synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+    if (idleTimeoutMillis < 0) {
+      throw new IllegalArgumentException("idle timeout must not be negative");
+    }
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Returns a context for exclusive use by the caller, waiting for one to be
+   * released if all <code>maxSize</code> contexts are in use.
+   */
+  LdapContext borrow() throws NamingException {
+    while (true) {
+      IdleContext candidate;
+      int candidateGeneration;
+      synchronized (this) {
+        while (true) {
+          if (closed) {
+            throw new IllegalStateException("connection pool is closed");
+          }
+          evictIdleContexts(System.currentTimeMillis());
+          if (!idle.isEmpty() || size() < maxSize) {
+            break;
+          }
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException(
+                "interrupted while waiting for an LDAP connection");
+          }
+        }
+        candidate = idle.pollFirst();
+        candidateGeneration = generation;
+        pending++;
+      }
+
+      LdapContext ctx = null;
+      try {
+        if (candidate == null) {
+          ctx = createContext();
+        } else if (isHealthy(candidate)) {
+          ctx = candidate.context;
+          candidateGeneration = candidate.generation;
+        } else {
+          closeQuietly(candidate.context);
+        }
+      } finally {
+        synchronized (this) {
+          pending--;
+          if (ctx != null) {
+            leased.put(ctx, candidateGeneration);
+          }
+          notifyAll();
+        }
+      }
+      if (ctx != null) {
+        return ctx;
+      }
+      // the idle context was broken; try again
+    }
+  }
+
+  /**
+   * Returns <code>ctx</code> to the pool.  Contexts obtained before the last
+   * <code>reset()</code> are closed rather than reused.
+   */
+  void release(LdapContext ctx) {
+    boolean keep;
+    synchronized (this) {
+      Integer ctxGeneration = leased.remove(ctx);
+      if (ctxGeneration == null) {
+        throw new IllegalArgumentException("context not borrowed from pool");
+      }
+      keep = !closed && ctxGeneration == generation;
+      if (keep) {
+        idle.addFirst(new IdleContext(ctx, System.currentTimeMillis(),
+            ctxGeneration));
+      }
+      notifyAll();
+    }
+    if (!keep) {
+      closeQuietly(ctx);
+    }
+  }
+
+  /**
+   * Closes <code>ctx</code> instead of returning it to the pool, e.g. when it
+   * was abandoned in the middle of a request.
+   */
+  void discard(LdapContext ctx) {
+    synchronized (this) {
+      if (leased.remove(ctx) == null) {
+        throw new IllegalArgumentException("context not borrowed from pool");
+      }
+      notifyAll();
+    }
+    closeQuietly(ctx);
+  }
+
+  /**
+   * Discards every pooled context in favor of <code>replacement</code>, e.g.
+   * after a communication error.  Contexts currently borrowed are closed when
+   * released.
+   */
+  void reset(LdapContext replacement) {
+    Deque<IdleContext> stale;
+    synchronized (this) {
+      generation++;
+      stale = new ArrayDeque<IdleContext>(idle);
+      idle.clear();
+      if (!closed && replacement != null) {
+        idle.addFirst(new IdleContext(replacement, System.currentTimeMillis(),
+            generation));
+      }
+      notifyAll();
+    }
+    for (IdleContext ic : stale) {
+      closeQuietly(ic.context);
+    }
+  }
+
+  /** Closes all idle contexts; borrowed contexts are closed when released. */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    reset(null);
+  }
+
+  synchronized int size() {
+    return idle.size() + leased.size() + pending;
+  }
+
+  synchronized int idleCount() {
+    return idle.size();
+  }
+
+  /** Closes contexts idle for too long, but always keeps one. */
+  private void evictIdleContexts(long now) {
+    if (idleTimeoutMillis == 0) {
+      return;
+    }
+    // oldest contexts are at the end of the deque
+    Iterator<IdleContext> it = idle.descendingIterator();
+    while (it.hasNext() && size() > 1) {
+      IdleContext ic = it.next();
+      if (now - ic.lastUsed < idleTimeoutMillis) {
+        break;
+      }
+      it.remove();
+      log.log(Level.FINER, "Closing LDAP connection idle for {0} ms",
+          now - ic.lastUsed);
+      closeQuietly(ic.context);
+    }
+  }
+
+  private boolean isHealthy(IdleContext ic) {
+    if (System.currentTimeMillis() - ic.lastUsed < VALIDATION_INTERVAL_MILLIS) {
+      return true;
+    }
+    try {
+      ic.context.getAttributes("");
+      return true;
+    } catch (NamingException ne) {
+      log.log(Level.FINE, "Discarding broken LDAP connection", ne);
+      return false;
+    }
+  }
+
+  private LdapContext createContext() throws NamingException {
+    try {
+      return factory.create();
+    } catch (StartupException se) {
+      // authentication issues
+      NamingException ne = new NamingException("createLdapContext problem");
+      ne.setRootCause(se);
+      throw ne;
+    }
+  }
+
+  private static void closeQuietly(LdapContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException ne) {
+      log.log(Level.FINEST, "Error closing LDAP connection", ne);
+    }
+  }
+
+  private static class IdleContext {
+    final LdapContext context;
+    final long lastUsed;
+    final int generation;
+
+    IdleContext(LdapContext context, long lastUsed, int generation) {
+      this.context = context;
+      this.lastUsed = lastUsed;
+      this.generation = generation;
+    }
+  }
+}
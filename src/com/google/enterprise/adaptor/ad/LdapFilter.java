@@ -0,0 +1,492 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.directory.InvalidSearchFilterException;
+
+/**
+ * An LDAP search filter, parsed from its string form (RFC 4515) so it can be
+ * sent in the BER form (RFC 4511, section 4.5.1) of a search request.
+ */
+abstract class LdapFilter {
+  static final int AND = 0xa0;
+  static final int OR = 0xa1;
+  static final int NOT = 0xa2;
+  static final int EQUALITY = 0xa3;
+  static final int SUBSTRINGS = 0xa4;
+  static final int GREATER_OR_EQUAL = 0xa5;
+  static final int LESS_OR_EQUAL = 0xa6;
+  static final int PRESENT = 0x87;
+  static final int APPROX = 0xa8;
+  static final int EXTENSIBLE = 0xa9;
+
+  private static final int SUBSTRING_INITIAL = 0x80;
+  private static final int SUBSTRING_ANY = 0x81;
+  private static final int SUBSTRING_FINAL = 0x82;
+  private static final int MATCHING_RULE = 0x81;
+  private static final int MATCH_TYPE = 0x82;
+  private static final int MATCH_VALUE = 0x83;
+  private static final int DN_ATTRIBUTES = 0x84;
+
+  abstract void encode(Ber.Writer writer);
+
+  /** Parses a filter such as <code>(&amp;(objectClass=user)(cn=a*))</code>. */
+  static LdapFilter parse(String filter) throws InvalidSearchFilterException {
+    String trimmed = filter.trim();
+    if (!trimmed.startsWith("(")) {
+      // tolerated by JNDI too
+      trimmed = "(" + trimmed + ")";
+    }
+    Parser parser = new Parser(trimmed);
+    LdapFilter parsed = parser.parseFilter();
+    if (parser.pos != trimmed.length()) {
+      throw parser.error("unexpected characters after filter");
+    }
+    return parsed;
+  }
+
+  /** Decodes a filter from its BER form. */
+  static LdapFilter decode(Ber.Reader reader) throws IOException {
+    int tag = reader.peekTag();
+    switch (tag) {
+      case AND:
+      case OR: {
+        Ber.Reader set = reader.readConstructed(tag);
+        List<LdapFilter> filters = new ArrayList<LdapFilter>();
+        while (set.hasMore()) {
+          filters.add(decode(set));
+        }
+        return new Composite(tag, filters);
+      }
+      case NOT:
+        return new Not(decode(reader.readConstructed(NOT)));
+      case EQUALITY:
+      case GREATER_OR_EQUAL:
+      case LESS_OR_EQUAL:
+      case APPROX: {
+        Ber.Reader ava = reader.readConstructed(tag);
+        return new Comparison(tag, ava.readString(Ber.OCTET_STRING),
+            ava.readOctetString(Ber.OCTET_STRING));
+      }
+      case PRESENT:
+        return new Present(reader.readString(PRESENT));
+      case SUBSTRINGS: {
+        Ber.Reader seq = reader.readConstructed(SUBSTRINGS);
+        String type = seq.readString(Ber.OCTET_STRING);
+        Ber.Reader parts = seq.readConstructed(Ber.SEQUENCE);
+        byte[] initial = null;
+        byte[] fin = null;
+        List<byte[]> any = new ArrayList<byte[]>();
+        while (parts.hasMore()) {
+          int partTag = parts.peekTag();
+          byte[] value = parts.readOctetString(partTag);
+          if (partTag == SUBSTRING_INITIAL) {
+            initial = value;
+          } else if (partTag == SUBSTRING_ANY) {
+            any.add(value);
+          } else {
+            fin = value;
+          }
+        }
+        return new Substrings(type, initial, any, fin);
+      }
+      case EXTENSIBLE: {
+        Ber.Reader seq = reader.readConstructed(EXTENSIBLE);
+        String rule = null;
+        String type = null;
+        if (seq.peekTag() == MATCHING_RULE) {
+          rule = seq.readString(MATCHING_RULE);
+        }
+        if (seq.peekTag() == MATCH_TYPE) {
+          type = seq.readString(MATCH_TYPE);
+        }
+        byte[] value = seq.readOctetString(MATCH_VALUE);
+        boolean dnAttributes = seq.hasMore()
+            && seq.readBoolean(DN_ATTRIBUTES);
+        return new Extensible(rule, type, value, dnAttributes);
+      }
+      default:
+        throw new IOException(String.format("unknown filter tag 0x%02x",
+            tag));
+    }
+  }
+
+  /** <code>(&amp;...)</code> or <code>(|...)</code>. */
+  static class Composite extends LdapFilter {
+    final int tag;
+    final List<LdapFilter> filters;
+
+    Composite(int tag, List<LdapFilter> filters) {
+      this.tag = tag;
+      this.filters = Collections.unmodifiableList(filters);
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.begin(tag);
+      for (LdapFilter filter : filters) {
+        filter.encode(writer);
+      }
+      writer.end();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(tag == AND ? "(&" : "(|");
+      for (LdapFilter filter : filters) {
+        sb.append(filter);
+      }
+      return sb.append(')').toString();
+    }
+  }
+
+  /** <code>(!...)</code>. */
+  static class Not extends LdapFilter {
+    final LdapFilter filter;
+
+    Not(LdapFilter filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.begin(NOT);
+      filter.encode(writer);
+      writer.end();
+    }
+
+    @Override
+    public String toString() {
+      return "(!" + filter + ")";
+    }
+  }
+
+  /** <code>(attr=value)</code>, <code>(attr&gt;=value)</code> and so on. */
+  static class Comparison extends LdapFilter {
+    final int tag;
+    final String type;
+    final byte[] value;
+
+    Comparison(int tag, String type, byte[] value) {
+      this.tag = tag;
+      this.type = type;
+      this.value = value;
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.begin(tag)
+          .writeString(Ber.OCTET_STRING, type)
+          .writeOctetString(Ber.OCTET_STRING, value)
+          .end();
+    }
+
+    @Override
+    public String toString() {
+      String op = (tag == EQUALITY) ? "=" : (tag == GREATER_OR_EQUAL) ? ">="
+          : (tag == LESS_OR_EQUAL) ? "<=" : "~=";
+      return "(" + type + op + escape(value) + ")";
+    }
+  }
+
+  /** <code>(attr=*)</code>. */
+  static class Present extends LdapFilter {
+    final String type;
+
+    Present(String type) {
+      this.type = type;
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.writeString(PRESENT, type);
+    }
+
+    @Override
+    public String toString() {
+      return "(" + type + "=*)";
+    }
+  }
+
+  /** <code>(attr=initial*any*final)</code>; any part may be missing. */
+  static class Substrings extends LdapFilter {
+    final String type;
+    final byte[] initial;
+    final List<byte[]> any;
+    final byte[] fin;
+
+    Substrings(String type, byte[] initial, List<byte[]> any, byte[] fin) {
+      this.type = type;
+      this.initial = initial;
+      this.any = Collections.unmodifiableList(any);
+      this.fin = fin;
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.begin(SUBSTRINGS).writeString(Ber.OCTET_STRING, type)
+          .begin(Ber.SEQUENCE);
+      if (initial != null) {
+        writer.writeOctetString(SUBSTRING_INITIAL, initial);
+      }
+      for (byte[] value : any) {
+        writer.writeOctetString(SUBSTRING_ANY, value);
+      }
+      if (fin != null) {
+        writer.writeOctetString(SUBSTRING_FINAL, fin);
+      }
+      writer.end().end();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("(").append(type).append('=');
+      if (initial != null) {
+        sb.append(escape(initial));
+      }
+      sb.append('*');
+      for (byte[] value : any) {
+        sb.append(escape(value)).append('*');
+      }
+      if (fin != null) {
+        sb.append(escape(fin));
+      }
+      return sb.append(')').toString();
+    }
+  }
+
+  /** <code>(attr:dn:rule:=value)</code>, e.g. AD's bitwise matching rules. */
+  static class Extensible extends LdapFilter {
+    final String matchingRule;
+    final String type;
+    final byte[] value;
+    final boolean dnAttributes;
+
+    Extensible(String matchingRule, String type, byte[] value,
+        boolean dnAttributes) {
+      this.matchingRule = matchingRule;
+      this.type = type;
+      this.value = value;
+      this.dnAttributes = dnAttributes;
+    }
+
+    @Override
+    void encode(Ber.Writer writer) {
+      writer.begin(EXTENSIBLE);
+      if (matchingRule != null) {
+        writer.writeString(MATCHING_RULE, matchingRule);
+      }
+      if (type != null) {
+        writer.writeString(MATCH_TYPE, type);
+      }
+      writer.writeOctetString(MATCH_VALUE, value);
+      if (dnAttributes) {
+        writer.writeBoolean(DN_ATTRIBUTES, true);
+      }
+      writer.end();
+    }
+
+    @Override
+    public String toString() {
+      return "(" + (type == null ? "" : type) + (dnAttributes ? ":dn" : "")
+          + (matchingRule == null ? "" : ":" + matchingRule) + ":="
+          + escape(value) + ")";
+    }
+  }
+
+  /** Escapes a value for the string form of a filter. */
+  static String escape(byte[] value) {
+    StringBuilder sb = new StringBuilder();
+    String s = new String(value, Ber.UTF8);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '*' || c == '(' || c == ')' || c == '\\' || c == 0) {
+        sb.append(String.format("\\%02x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Recursive descent parser for the RFC 4515 grammar. */
+  private static class Parser {
+    private final String filter;
+    private int pos;
+
+    Parser(String filter) {
+      this.filter = filter;
+    }
+
+    LdapFilter parseFilter() throws InvalidSearchFilterException {
+      expect('(');
+      LdapFilter parsed;
+      char c = peek();
+      if (c == '&' || c == '|') {
+        pos++;
+        List<LdapFilter> filters = new ArrayList<LdapFilter>();
+        while (peek() == '(') {
+          filters.add(parseFilter());
+        }
+        parsed = new Composite(c == '&' ? AND : OR, filters);
+      } else if (c == '!') {
+        pos++;
+        parsed = new Not(parseFilter());
+      } else {
+        parsed = parseItem();
+      }
+      expect(')');
+      return parsed;
+    }
+
+    private LdapFilter parseItem() throws InvalidSearchFilterException {
+      int start = pos;
+      while (pos < filter.length() && "=~<>:()".indexOf(peek()) < 0) {
+        pos++;
+      }
+      String type = filter.substring(start, pos).trim();
+      char c = peek();
+      if (c == ':') {
+        return parseExtensible(type);
+      }
+      if (type.isEmpty()) {
+        throw error("missing attribute description");
+      }
+      if (c == '~' || c == '<' || c == '>') {
+        pos++;
+        expect('=');
+        int tag = (c == '~') ? APPROX
+            : (c == '<') ? LESS_OR_EQUAL : GREATER_OR_EQUAL;
+        return new Comparison(tag, type, parseValue());
+      }
+      expect('=');
+      // the value may contain unescaped '*'s: split it into substrings
+      List<byte[]> parts = new ArrayList<byte[]>();
+      parts.add(parseValue());
+      while (peek() == '*') {
+        pos++;
+        parts.add(parseValue());
+      }
+      if (parts.size() == 1) {
+        return new Comparison(EQUALITY, type, parts.get(0));
+      }
+      if (parts.size() == 2 && parts.get(0).length == 0
+          && parts.get(1).length == 0) {
+        return new Present(type);
+      }
+      byte[] initial = parts.get(0).length == 0 ? null : parts.get(0);
+      byte[] fin = parts.get(parts.size() - 1);
+      fin = fin.length == 0 ? null : fin;
+      List<byte[]> any = new ArrayList<byte[]>();
+      for (byte[] part : parts.subList(1, parts.size() - 1)) {
+        if (part.length == 0) {
+          throw error("empty substring");
+        }
+        any.add(part);
+      }
+      return new Substrings(type, initial, any, fin);
+    }
+
+    private LdapFilter parseExtensible(String type)
+        throws InvalidSearchFilterException {
+      boolean dnAttributes = false;
+      String rule = null;
+      while (peek() == ':') {
+        pos++;
+        if (peek() == '=') {
+          pos++;
+          if (type.isEmpty() && rule == null) {
+            throw error("extensible match needs a type or a matching rule");
+          }
+          return new Extensible(rule, type.isEmpty() ? null : type,
+              parseValue(), dnAttributes);
+        }
+        int start = pos;
+        while (pos < filter.length() && peek() != ':') {
+          pos++;
+        }
+        String part = filter.substring(start, pos);
+        if ("dn".equalsIgnoreCase(part) && rule == null && !dnAttributes) {
+          dnAttributes = true;
+        } else if (rule == null && !part.isEmpty()) {
+          rule = part;
+        } else {
+          throw error("invalid extensible match");
+        }
+      }
+      throw error("invalid extensible match");
+    }
+
+    /** Parses an (escaped) assertion value, up to a '*' or ')'. */
+    private byte[] parseValue() throws InvalidSearchFilterException {
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      int start = pos;
+      while (pos < filter.length() && peek() != '*' && peek() != ')') {
+        char c = peek();
+        if (c == '(') {
+          throw error("unescaped '(' in value");
+        }
+        if (c == '\\') {
+          flush(value, start, pos);
+          if (pos + 3 > filter.length()) {
+            throw error("truncated escape");
+          }
+          try {
+            value.write(Integer.parseInt(
+                filter.substring(pos + 1, pos + 3), 16));
+          } catch (NumberFormatException e) {
+            throw error("invalid escape");
+          }
+          pos += 3;
+          start = pos;
+        } else {
+          pos++;
+        }
+      }
+      flush(value, start, pos);
+      return value.toByteArray();
+    }
+
+    private void flush(ByteArrayOutputStream value, int start, int end) {
+      byte[] bytes = filter.substring(start, end).getBytes(Ber.UTF8);
+      value.write(bytes, 0, bytes.length);
+    }
+
+    private char peek() throws InvalidSearchFilterException {
+      if (pos >= filter.length()) {
+        throw error("unexpected end of filter");
+      }
+      return filter.charAt(pos);
+    }
+
+    private void expect(char c) throws InvalidSearchFilterException {
+      if (peek() != c) {
+        throw error("expected '" + c + "'");
+      }
+      pos++;
+    }
+
+    InvalidSearchFilterException error(String message) {
+      return new InvalidSearchFilterException(message + " at position "
+          + pos + " of " + filter);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.StartupException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * The LDAP operations <code>AdServer</code> needs from a domain controller.
+ * Implementations are safe for use by several threads at once; how many
+ * requests can actually be outstanding at a time depends on the
+ * implementation and on <code>setMaxConnections</code>.
+ */
+interface LdapTransport {
+  /** A paged (subtree) search, read with <code>nextPage</code>. */
+  interface PagedSearch extends PageSource {
+    /** Sets the page size requested for the pages after the current one. */
+    void setPageSize(int pageSize);
+
+    /**
+     * Ends the search.
+     * @param abandoned true if a page may still be being read, in which case
+     *     its connection must not be reused as is
+     */
+    void close(boolean abandoned);
+  }
+
+  /** Sets the maximum number of connections open to the server at once. */
+  void setMaxConnections(int maxConnections);
+
+  int getMaxConnections();
+
+  /**
+   * Sets how long a connection may sit unused before it is closed (0 means
+   * never).  One connection is always kept open.
+   */
+  void setIdleTimeoutMillis(long idleTimeoutMillis);
+
+  /** Reads the attributes of the RootDSE. */
+  Attributes readRootDse() throws NamingException;
+
+  /**
+   * Searches the subtree under <code>base</code> (without paging).
+   * @return the first result, or null if nothing matched
+   */
+  SearchResult findFirst(String base, String filter, String[] attributes)
+      throws NamingException;
+
+  /**
+   * Reads entry <code>dn</code> (a base-scope search).
+   * @return the entry, or null if there is no such entry
+   */
+  SearchResult readEntry(String dn, String[] attributes)
+      throws NamingException;
+
+  /**
+   * Starts a paged search of the subtree under <code>base</code>.
+   * @param deleted whether to include deleted objects (tombstones)
+   * @param pageSize number of results to request in the first page
+   */
+  PagedSearch startPagedSearch(String base, String filter,
+      String[] attributes, boolean deleted, int pageSize)
+      throws NamingException;
+
+  /**
+   * Runs one (unpaged) search of the subtree under <code>base</code> with the
+   * <code>DirSyncControl</code>, returning the matching objects changed since
+   * <code>cookie</code>.
+   * @param base the root of a naming context
+   * @param cookie the cookie of the previous DirSync search, or an empty
+   *     array for all objects
+   */
+  DirSyncControl.Result dirSync(String base, String filter,
+      String[] attributes, byte[] cookie) throws NamingException;
+
+  /**
+   * Replaces all connections with a single new one, e.g. after a
+   * communication error.  Requests in progress on the old connections may
+   * fail.
+   */
+  void reconnect() throws StartupException;
+
+  /** Closes all connections. */
+  void close();
+}
@@ -0,0 +1,353 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of member DNs that holds only the IDs the DNs have in a
+ * <code>StringTable</code>, so that each DN is stored once (and, with an
+ * <code>OffHeapStringTable</code>, outside the heap).  DNs are looked up in
+ * the table as they are iterated over.
+ *
+ * <p>Up to <code>BITMAP_THRESHOLD</code> members, the IDs are kept in an
+ * open-addressing int array.  Larger sets (such as Domain Users, or the
+ * members of Everyone) switch to an <code>IdBitmap</code>, which takes a bit
+ * or two bytes per member, and which other bitmaps are added to and removed
+ * from a word at a time.  Sets of the same table are added to and removed
+ * from each other by ID, without the DNs being looked up.
+ */
+class MemberSet extends AbstractSet<String> {
+  /** Most members kept in the int array before switching to a bitmap. */
+  static final int BITMAP_THRESHOLD = 1024;
+  private static final int EMPTY = 0;
+  private static final int REMOVED = -1;
+
+  private final StringTable table;
+  /** ID + 1 of the members; EMPTY and REMOVED mark unused slots. */
+  private int[] slots = new int[8];
+  private int used;  // slots not EMPTY
+  /** The members, once there are more than BITMAP_THRESHOLD; else null. */
+  private IdBitmap bitmap;
+  private int size;
+  private int modCount;
+
+  MemberSet(StringTable table) {
+    this.table = table;
+  }
+
+  MemberSet(StringTable table, Collection<String> members) {
+    this(table);
+    addAll(members);
+  }
+
+  StringTable getTable() {
+    return table;
+  }
+
+  /** @return true if the members are held in a bitmap */
+  boolean isBitmap() {
+    return bitmap != null;
+  }
+
+  /** Returns the IDs of the members, in no particular order. */
+  int[] toIds() {
+    if (bitmap != null) {
+      return bitmap.toArray();
+    }
+    int[] ids = new int[size];
+    int i = 0;
+    for (int slot : slots) {
+      if (slot > 0) {
+        ids[i++] = slot - 1;
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    int id = table.find((String) o);
+    return id >= 0 && containsId(id);
+  }
+
+  @Override
+  public boolean add(String dn) {
+    return addId(table.intern(dn));
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends String> c) {
+    if (!isSameTable(c)) {
+      return super.addAll(c);
+    }
+    MemberSet other = (MemberSet) c;
+    if (bitmap == null && size + other.size > BITMAP_THRESHOLD) {
+      toBitmap();
+    }
+    if (bitmap != null && other.bitmap != null) {
+      if (!bitmap.or(other.bitmap)) {
+        return false;
+      }
+      size = bitmap.cardinality();
+      modCount++;
+      return true;
+    }
+    boolean changed = false;
+    for (int id : other.toIds()) {
+      changed |= addId(id);
+    }
+    return changed;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    int id = table.find((String) o);
+    return id >= 0 && removeId(id);
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    if (!isSameTable(c)) {
+      return super.removeAll(c);
+    }
+    MemberSet other = (MemberSet) c;
+    if (bitmap != null && other.bitmap != null) {
+      if (!bitmap.andNot(other.bitmap)) {
+        return false;
+      }
+      size = bitmap.cardinality();
+      modCount++;
+      return true;
+    }
+    boolean changed = false;
+    for (int id : other.toIds()) {
+      changed |= removeId(id);
+    }
+    return changed;
+  }
+
+  @Override
+  public void clear() {
+    slots = new int[8];
+    used = 0;
+    bitmap = null;
+    size = 0;
+    modCount++;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return (bitmap == null) ? new SlotIterator() : new BitmapIterator();
+  }
+
+  private boolean isSameTable(Collection<?> c) {
+    return c instanceof MemberSet && ((MemberSet) c).table == table;
+  }
+
+  private boolean containsId(int id) {
+    return (bitmap == null)
+        ? slots[findSlot(id)] == id + 1 : bitmap.contains(id);
+  }
+
+  private boolean addId(int id) {
+    if (bitmap != null) {
+      if (!bitmap.add(id)) {
+        return false;
+      }
+      size++;
+      modCount++;
+      return true;
+    }
+    int slot = findSlot(id);
+    if (slots[slot] == id + 1) {
+      return false;
+    }
+    if (slots[slot] == EMPTY) {
+      used++;
+    }
+    slots[slot] = id + 1;
+    size++;
+    modCount++;
+    if (size > BITMAP_THRESHOLD) {
+      toBitmap();
+    } else if (used * 4 > slots.length * 3) {
+      // mostly REMOVED markers: rehash at the same size
+      resize(size * 2 > slots.length ? slots.length * 2 : slots.length);
+    }
+    return true;
+  }
+
+  private boolean removeId(int id) {
+    if (bitmap != null) {
+      if (!bitmap.remove(id)) {
+        return false;
+      }
+    } else {
+      int slot = findSlot(id);
+      if (slots[slot] != id + 1) {
+        return false;
+      }
+      slots[slot] = REMOVED;
+    }
+    size--;
+    modCount++;
+    return true;
+  }
+
+  private void toBitmap() {
+    bitmap = new IdBitmap();
+    for (int slot : slots) {
+      if (slot > 0) {
+        bitmap.add(slot - 1);
+      }
+    }
+    slots = null;
+    used = 0;
+  }
+
+  /**
+   * Returns the slot holding <code>id</code>, or else the slot it would be
+   * added to: the first REMOVED slot, or the EMPTY slot ending its probe.
+   */
+  private int findSlot(int id) {
+    int mask = slots.length - 1;
+    int free = -1;
+    for (int slot = StringTable.mix(id) & mask; ; slot = (slot + 1) & mask) {
+      if (slots[slot] == id + 1) {
+        return slot;
+      } else if (slots[slot] == EMPTY) {
+        return (free < 0) ? slot : free;
+      } else if (slots[slot] == REMOVED && free < 0) {
+        free = slot;
+      }
+    }
+  }
+
+  private void resize(int capacity) {
+    int[] old = slots;
+    slots = new int[capacity];
+    used = 0;
+    int mask = capacity - 1;
+    for (int value : old) {
+      if (value > 0) {
+        int slot = StringTable.mix(value - 1) & mask;
+        while (slots[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+        used++;
+      }
+    }
+  }
+
+  private void checkForComodification(int expectedModCount) {
+    if (modCount != expectedModCount) {
+      throw new ConcurrentModificationException();
+    }
+  }
+
+  /** Iterates over the int array; removing only marks the slot REMOVED. */
+  private class SlotIterator implements Iterator<String> {
+    private final int[] iterated = slots;
+    private int next = advance(0);
+    private int last = -1;
+    private int expectedModCount = modCount;
+
+    private int advance(int slot) {
+      while (slot < iterated.length && iterated[slot] <= 0) {
+        slot++;
+      }
+      return slot;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < iterated.length;
+    }
+
+    @Override
+    public String next() {
+      checkForComodification(expectedModCount);
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      next = advance(next + 1);
+      return table.get(iterated[last] - 1);
+    }
+
+    @Override
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      checkForComodification(expectedModCount);
+      removeId(iterated[last] - 1);
+      expectedModCount = modCount;
+      last = -1;
+    }
+  }
+
+  /** Iterates over the bitmap, in ascending order of ID. */
+  private class BitmapIterator implements Iterator<String> {
+    private final IdBitmap iterated = bitmap;
+    private int next = iterated.next(0);
+    private int last = -1;
+    private int expectedModCount = modCount;
+
+    @Override
+    public boolean hasNext() {
+      return next >= 0;
+    }
+
+    @Override
+    public String next() {
+      checkForComodification(expectedModCount);
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      next = iterated.next(next + 1);
+      return table.get(last);
+    }
+
+    @Override
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      checkForComodification(expectedModCount);
+      removeId(last);
+      expectedModCount = modCount;
+      last = -1;
+    }
+  }
+}
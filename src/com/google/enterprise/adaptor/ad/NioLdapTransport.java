@@ -0,0 +1,954 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.enterprise.adaptor.StartupException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.AuthenticationException;
+import javax.naming.AuthenticationNotSupportedException;
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+/**
+ * <code>LdapTransport</code> speaking LDAP v3 itself over non-blocking
+ * sockets.  Requests from any number of threads are multiplexed over at most
+ * <code>maxConnections</code> connections, each request tagged with its own
+ * message ID; a single I/O thread writes the requests and hands each response
+ * to the thread waiting for it.  So many range retrievals, say, can be
+ * outstanding on one or two connections, where JNDI needs a connection (and a
+ * thread) per request.
+ *
+ * <p>Only plain LDAP (no SSL) with simple authentication is supported.
+ * Referrals are ignored, as with JNDI's default settings.
+ */
+class NioLdapTransport implements LdapTransport {
+  private static final Logger log
+      = Logger.getLogger(NioLdapTransport.class.getName());
+
+  // LDAP v3 protocol operations (RFC 4511)
+  private static final int BIND_REQUEST = 0x60;
+  private static final int BIND_RESPONSE = 0x61;
+  private static final int UNBIND_REQUEST = 0x42;
+  private static final int SEARCH_REQUEST = 0x63;
+  private static final int SEARCH_RESULT_ENTRY = 0x64;
+  private static final int SEARCH_RESULT_DONE = 0x65;
+  private static final int SEARCH_RESULT_REFERENCE = 0x73;
+  private static final int ABANDON_REQUEST = 0x50;
+  private static final int EXTENDED_RESPONSE = 0x78;
+  private static final int CONTROLS = 0xa0;
+  private static final int SIMPLE_AUTHENTICATION = 0x80;
+
+  private static final int SCOPE_BASE = 0;
+  private static final int SCOPE_SUBTREE = 2;
+  private static final int DEREF_ALWAYS = 3;
+
+  private static final int SUCCESS = 0;
+  private static final int SIZE_LIMIT_EXCEEDED = 4;
+  private static final int NO_SUCH_OBJECT = 32;
+
+  static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+  /** Attributes whose values are returned as byte[], as JNDI does. */
+  private static final Set<String> BINARY_ATTRIBUTES = new HashSet<String>(
+      Arrays.asList("photo", "personalsignature", "audio", "jpegphoto",
+          "javaserializeddata", "thumbnailphoto", "thumbnaillogo",
+          "userpassword", "usercertificate", "cacertificate",
+          "authorityrevocationlist", "certificaterevocationlist",
+          "crosscertificatepair", "x500uniqueidentifier"));
+
+  private static final LdapFilter ANY_OBJECT = new LdapFilter.Present(
+      "objectClass");
+
+  private static final Control[] NO_CONTROLS = new Control[0];
+
+  private final String hostName;
+  private final int port;
+  private final String principal;
+  private final String password;
+  private final long readTimeoutMillis;
+  private final Selector selector;
+  private final Thread ioThread;
+  // run on the I/O thread, so only it touches selection keys
+  private final Queue<Runnable> ioTasks = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicInteger lastMessageId = new AtomicInteger();
+
+  // guarded by this
+  private final List<Connection> connections = new ArrayList<Connection>();
+  // connections being opened (counted against maxConnections)
+  private int pending;
+  private int maxConnections = AdServer.DEFAULT_CONNECTION_POOL_SIZE;
+  private long idleTimeoutMillis =
+      AdServer.DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS;
+  private volatile boolean closed;
+
+  /**
+   * Connects (and binds) to the server.
+   * @param readTimeoutMillis how long to wait for a response (0 means
+   *     forever); also used as the connect timeout
+   */
+  NioLdapTransport(String hostName, int port, String principal,
+      String password, long readTimeoutMillis) throws StartupException {
+    if (null == hostName || null == principal || null == password) {
+      throw new NullPointerException();
+    }
+    this.hostName = hostName;
+    this.port = port;
+    this.principal = principal;
+    this.password = password;
+    this.readTimeoutMillis = readTimeoutMillis;
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new RuntimeException("could not open selector", e);
+    }
+    ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ioLoop();
+      }
+    }, "ldap-nio-" + hostName);
+    ioThread.setDaemon(true);
+    ioThread.start();
+    try {
+      Connection first = openConnectionOrFail();
+      synchronized (this) {
+        connections.add(first);
+      }
+    } catch (StartupException e) {
+      close();
+      throw e;
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized void setMaxConnections(int maxConnections) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("pool size must be positive");
+    }
+    this.maxConnections = maxConnections;
+  }
+
+  @Override
+  public synchronized int getMaxConnections() {
+    return maxConnections;
+  }
+
+  @Override
+  public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+    if (idleTimeoutMillis < 0) {
+      throw new IllegalArgumentException("idle timeout must not be negative");
+    }
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  @Override
+  public Attributes readRootDse() throws NamingException {
+    SearchResult rootDse = readEntry("", null);
+    if (rootDse == null) {
+      throw new NamingException("could not read RootDSE of " + hostName);
+    }
+    return rootDse.getAttributes();
+  }
+
+  @Override
+  public SearchResult findFirst(String base, String filter,
+      String[] attributes) throws NamingException {
+    Connection conn = connection();
+    int id = nextMessageId();
+    Operation op = call(conn, id, searchRequest(id, base, SCOPE_SUBTREE, 1,
+        LdapFilter.parse(filter), attributes, 0, null, NO_CONTROLS));
+    // the size limit of 1 is "exceeded" when more than one entry matches
+    if (op.resultCode != SIZE_LIMIT_EXCEEDED) {
+      checkResult(op);
+    }
+    return op.entries.isEmpty() ? null : op.entries.get(0);
+  }
+
+  @Override
+  public SearchResult readEntry(String dn, String[] attributes)
+      throws NamingException {
+    Connection conn = connection();
+    int id = nextMessageId();
+    Operation op = call(conn, id, searchRequest(id, dn, SCOPE_BASE, 0,
+        ANY_OBJECT, attributes, 0, null, NO_CONTROLS));
+    if (op.resultCode == NO_SUCH_OBJECT) {
+      return null;
+    }
+    checkResult(op);
+    return op.entries.isEmpty() ? null : op.entries.get(0);
+  }
+
+  @Override
+  public PagedSearch startPagedSearch(String base, String filter,
+      String[] attributes, boolean deleted, int pageSize)
+      throws NamingException {
+    return new NioPagedSearch(connection(), base, LdapFilter.parse(filter),
+        attributes, deleted, pageSize);
+  }
+
+  @Override
+  public DirSyncControl.Result dirSync(String base, String filter,
+      String[] attributes, byte[] cookie) throws NamingException {
+    Connection conn = connection();
+    int id = nextMessageId();
+    Operation op = call(conn, id, searchRequest(id, base, SCOPE_SUBTREE, 0,
+        LdapFilter.parse(filter), attributes, 0, null,
+        new Control[] {new DirSyncControl(cookie)}));
+    checkResult(op);
+    return DirSyncControl.Result.decode(op.entries,
+        op.controls.get(DirSyncControl.OID));
+  }
+
+  @Override
+  public void reconnect() throws StartupException {
+    List<Connection> old;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("LDAP transport is closed");
+      }
+      old = new ArrayList<Connection>(connections);
+      connections.clear();
+    }
+    for (Connection conn : old) {
+      conn.close();
+    }
+    Connection replacement = openConnectionOrFail();
+    synchronized (this) {
+      connections.add(replacement);
+    }
+  }
+
+  @Override
+  public void close() {
+    List<Connection> open;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      open = new ArrayList<Connection>(connections);
+      connections.clear();
+    }
+    for (Connection conn : open) {
+      conn.close();
+    }
+    selector.wakeup();
+  }
+
+  /** Runs on the I/O thread until the transport is closed. */
+  private void ioLoop() {
+    while (!closed) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "LDAP I/O thread select failed", e);
+      }
+      runIoTasks();
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        Connection conn = (Connection) key.attachment();
+        try {
+          if (key.isReadable()) {
+            conn.read();
+          }
+          if (key.isValid() && key.isWritable()) {
+            conn.write();
+          }
+        } catch (CancelledKeyException e) {
+          // closed while we were at it
+        } catch (IOException e) {
+          conn.fail(communicationException("connection to " + hostName
+              + ":" + port + " failed", e));
+        }
+      }
+    }
+    // the connections' close tasks
+    runIoTasks();
+    try {
+      selector.close();
+    } catch (IOException e) {
+      log.log(Level.FINEST, "Error closing selector", e);
+    }
+  }
+
+  private void runIoTasks() {
+    Runnable task;
+    while ((task = ioTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /** Queues a task for the I/O thread. */
+  private void onIoThread(Runnable task) {
+    ioTasks.add(task);
+    selector.wakeup();
+  }
+
+  private int nextMessageId() {
+    while (true) {
+      int id = lastMessageId.incrementAndGet();
+      if (id > 0) {
+        return id;
+      }
+      // wrapped around; message ID 0 is reserved for unsolicited notices
+      lastMessageId.compareAndSet(id, 0);
+    }
+  }
+
+  /**
+   * Returns the connection with the fewest outstanding requests, opening a
+   * new one if all are busy and there is room for another.  The new
+   * connection is opened (and bound) outside the lock, so that the other
+   * threads can keep sending requests on the open ones meanwhile.
+   */
+  private Connection connection() throws NamingException {
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("LDAP transport is closed");
+      }
+      long now = System.currentTimeMillis();
+      Connection best = null;
+      Iterator<Connection> it = connections.iterator();
+      while (it.hasNext()) {
+        Connection conn = it.next();
+        if (conn.broken) {
+          it.remove();
+        } else if (idleTimeoutMillis > 0 && connections.size() > 1
+            && conn.outstanding.isEmpty()
+            && now - conn.lastUsed >= idleTimeoutMillis) {
+          log.log(Level.FINER, "Closing LDAP connection idle for {0} ms",
+              now - conn.lastUsed);
+          it.remove();
+          conn.close();
+        } else if (best == null
+            || conn.outstanding.size() < best.outstanding.size()) {
+          best = conn;
+        }
+      }
+      if (best != null && (best.outstanding.isEmpty()
+          || connections.size() + pending >= maxConnections)) {
+        best.lastUsed = now;
+        return best;
+      }
+      pending++;
+    }
+    Connection conn = null;
+    boolean added = false;
+    try {
+      conn = openConnection();
+    } finally {
+      synchronized (this) {
+        pending--;
+        if (conn != null && !closed) {
+          conn.lastUsed = System.currentTimeMillis();
+          connections.add(conn);
+          added = true;
+        }
+      }
+    }
+    if (!added) {
+      // the transport was closed while the connection was being opened
+      conn.close();
+      throw new IllegalStateException("LDAP transport is closed");
+    }
+    return conn;
+  }
+
+  private Connection openConnectionOrFail() throws StartupException {
+    try {
+      return openConnection();
+    } catch (NamingException ne) {
+      String warning = String.format("Cannot connect to server \"%s\" as "
+          + "user \"%s\" with the specified password.  Please make sure "
+          + "they are specified correctly.  If the AD server is currently "
+          + "down, please try again later.", hostName, principal);
+      if (ne instanceof AuthenticationException) {
+        throw new StartupException(warning, ne);
+      }
+      throw new RuntimeException(warning, ne);
+    }
+  }
+
+  /** Connects and binds a new connection. */
+  private Connection openConnection() throws NamingException {
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.socket().connect(new InetSocketAddress(hostName, port),
+          (int) Math.min(readTimeoutMillis, Integer.MAX_VALUE));
+      channel.socket().setTcpNoDelay(true);
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e2) {
+          log.log(Level.FINEST, "Error closing socket", e2);
+        }
+      }
+      throw communicationException("could not connect to " + hostName + ":"
+          + port, e);
+    }
+    Connection conn = new Connection(channel);
+    conn.register();
+    int id = nextMessageId();
+    Ber.Writer bind = new Ber.Writer();
+    bind.begin(Ber.SEQUENCE).writeInt(Ber.INTEGER, id)
+        .begin(BIND_REQUEST)
+        .writeInt(Ber.INTEGER, 3)
+        .writeString(Ber.OCTET_STRING, principal)
+        .writeString(SIMPLE_AUTHENTICATION, password)
+        .end().end();
+    try {
+      checkResult(call(conn, id, bind.toByteArray()));
+    } catch (NamingException e) {
+      conn.close();
+      throw e;
+    }
+    log.log(Level.FINE, "Opened LDAP connection to {0}:{1}",
+        new Object[] {hostName, port});
+    return conn;
+  }
+
+  /** Sends a request, and waits for its result. */
+  private Operation call(Connection conn, int id, byte[] request)
+      throws NamingException {
+    Operation op = new Operation();
+    conn.send(id, op, request);
+    boolean done;
+    try {
+      done = op.await(readTimeoutMillis);
+    } catch (InterruptedNamingException e) {
+      conn.abandon(id);
+      throw e;
+    }
+    if (!done) {
+      conn.abandon(id);
+      // same wording as JNDI, which AdServer looks for
+      throw new NamingException("LDAP response read timed out, timeout used:"
+          + readTimeoutMillis + "ms.");
+    }
+    if (op.failure != null) {
+      CommunicationException ce =
+          new CommunicationException(op.failure.getMessage());
+      ce.setRootCause(op.failure);
+      throw ce;
+    }
+    return op;
+  }
+
+  private byte[] searchRequest(int id, String base, int scope,
+      int sizeLimit, LdapFilter filter, String[] attributes, int pageSize,
+      byte[] cookie, Control[] controls) {
+    Ber.Writer w = new Ber.Writer();
+    w.begin(Ber.SEQUENCE).writeInt(Ber.INTEGER, id)
+        .begin(SEARCH_REQUEST)
+        .writeString(Ber.OCTET_STRING, base)
+        .writeInt(Ber.ENUMERATED, scope)
+        .writeInt(Ber.ENUMERATED, DEREF_ALWAYS)
+        .writeInt(Ber.INTEGER, sizeLimit)
+        .writeInt(Ber.INTEGER, 0)
+        .writeBoolean(Ber.BOOLEAN, false);
+    filter.encode(w);
+    w.begin(Ber.SEQUENCE);
+    for (int i = 0; attributes != null && i < attributes.length; i++) {
+      w.writeString(Ber.OCTET_STRING, attributes[i]);
+    }
+    w.end().end();
+    boolean paged = pageSize > 0 || cookie != null;
+    if (paged || controls.length > 0) {
+      w.begin(CONTROLS);
+      if (paged) {
+        byte[] value = new Ber.Writer().begin(Ber.SEQUENCE)
+            .writeInt(Ber.INTEGER, pageSize)
+            .writeOctetString(Ber.OCTET_STRING,
+                (cookie == null) ? new byte[0] : cookie)
+            .end().toByteArray();
+        w.begin(Ber.SEQUENCE)
+            .writeString(Ber.OCTET_STRING, PAGED_RESULTS_OID)
+            .writeBoolean(Ber.BOOLEAN, true)
+            .writeOctetString(Ber.OCTET_STRING, value)
+            .end();
+      }
+      for (Control control : controls) {
+        w.begin(Ber.SEQUENCE)
+            .writeString(Ber.OCTET_STRING, control.getID())
+            .writeBoolean(Ber.BOOLEAN, control.isCritical());
+        byte[] value = control.getEncodedValue();
+        if (value.length > 0) {
+          w.writeOctetString(Ber.OCTET_STRING, value);
+        }
+        w.end();
+      }
+      w.end();
+    }
+    return w.end().toByteArray();
+  }
+
+  /** Throws the exception JNDI would for an unsuccessful result. */
+  private static void checkResult(Operation op)
+      throws NamingException {
+    if (op.resultCode == SUCCESS) {
+      return;
+    }
+    String message = "[LDAP: error code " + op.resultCode + " - "
+        + op.diagnosticMessage + "]";
+    NamingException ne;
+    switch (op.resultCode) {
+      case 3:
+        ne = new TimeLimitExceededException(message);
+        break;
+      case SIZE_LIMIT_EXCEEDED:
+        ne = new SizeLimitExceededException(message);
+        break;
+      case 7:
+      case 12:
+      case 53:
+        ne = new OperationNotSupportedException(message);
+        break;
+      case NO_SUCH_OBJECT:
+        ne = new NameNotFoundException(message);
+        break;
+      case 34:
+        ne = new InvalidNameException(message);
+        break;
+      case 48:
+        ne = new AuthenticationNotSupportedException(message);
+        break;
+      case 49:
+        ne = new AuthenticationException(message);
+        break;
+      case 50:
+        ne = new NoPermissionException(message);
+        break;
+      case 51:
+      case 52:
+        ne = new ServiceUnavailableException(message);
+        break;
+      default:
+        ne = new NamingException(message);
+        break;
+    }
+    throw ne;
+  }
+
+  private static CommunicationException communicationException(
+      String message, Throwable cause) {
+    CommunicationException ce = new CommunicationException(message);
+    ce.setRootCause(cause);
+    return ce;
+  }
+
+  private static SearchResult decodeEntry(Ber.Reader entry)
+      throws IOException {
+    String dn = entry.readString(Ber.OCTET_STRING);
+    Attributes attrs = new BasicAttributes(true);
+    Ber.Reader list = entry.readConstructed(Ber.SEQUENCE);
+    while (list.hasMore()) {
+      Ber.Reader partial = list.readConstructed(Ber.SEQUENCE);
+      String type = partial.readString(Ber.OCTET_STRING);
+      String lower = type.toLowerCase();
+      boolean binary = lower.endsWith(";binary")
+          || BINARY_ATTRIBUTES.contains(lower);
+      Attribute attr = new BasicAttribute(type);
+      Ber.Reader values = partial.readConstructed(Ber.SET);
+      while (values.hasMore()) {
+        attr.add(binary ? values.readOctetString(Ber.OCTET_STRING)
+            : values.readString(Ber.OCTET_STRING));
+      }
+      attrs.put(attr);
+    }
+    SearchResult sr = new SearchResult(dn, null, attrs, false);
+    sr.setNameInNamespace(dn);
+    return sr;
+  }
+
+  /** Returns the values of the response controls, by OID. */
+  private static Map<String, byte[]> readResponseControls(
+      Ber.Reader controls) throws IOException {
+    Map<String, byte[]> values = new HashMap<String, byte[]>();
+    while (controls.hasMore()) {
+      Ber.Reader control = controls.readConstructed(Ber.SEQUENCE);
+      String oid = control.readString(Ber.OCTET_STRING);
+      if (control.hasMore() && control.peekTag() == Ber.BOOLEAN) {
+        control.readBoolean(Ber.BOOLEAN);
+      }
+      values.put(oid, control.hasMore()
+          ? control.readOctetString(Ber.OCTET_STRING) : new byte[0]);
+    }
+    return values;
+  }
+
+  /** Returns the cookie from the paged results response control, if any. */
+  private static byte[] readPagedResultsCookie(Operation op)
+      throws NamingException {
+    byte[] value = op.controls.get(PAGED_RESULTS_OID);
+    if (value == null) {
+      return null;
+    }
+    try {
+      Ber.Reader seq = new Ber.Reader(value).readConstructed(Ber.SEQUENCE);
+      seq.readInt(Ber.INTEGER);  // estimated result count
+      return seq.readOctetString(Ber.OCTET_STRING);
+    } catch (IOException e) {
+      throw communicationException("invalid paged results control", e);
+    }
+  }
+
+  /** A request, and (once done) its response. */
+  private static class Operation {
+    // written by the I/O thread only, read once done
+    final List<SearchResult> entries = new ArrayList<SearchResult>();
+    int resultCode;
+    String diagnosticMessage;
+    Map<String, byte[]> controls = Collections.emptyMap();
+    NamingException failure;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    void complete(int resultCode, String diagnosticMessage,
+        Map<String, byte[]> controls) {
+      this.resultCode = resultCode;
+      this.diagnosticMessage = diagnosticMessage;
+      this.controls = controls;
+      done.countDown();
+    }
+
+    void fail(NamingException failure) {
+      this.failure = failure;
+      done.countDown();
+    }
+
+    /** @return false if the response did not arrive in time */
+    boolean await(long timeoutMillis) throws InterruptedNamingException {
+      try {
+        if (timeoutMillis == 0) {
+          done.await();
+          return true;
+        }
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedNamingException(
+            "interrupted while waiting for an LDAP response");
+      }
+    }
+  }
+
+  /** One connection, with any number of requests outstanding on it. */
+  private class Connection {
+    final SocketChannel channel;
+    // requests awaiting their result, by message ID
+    final Map<Integer, Operation> outstanding =
+        new ConcurrentHashMap<Integer, Operation>();
+    volatile long lastUsed = System.currentTimeMillis();
+    volatile boolean broken;
+    // guarded by itself
+    private final Deque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+    // touched by the I/O thread only
+    private SelectionKey key;
+    private byte[] readBuffer = new byte[64 * 1024];
+    private int readLength;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void register() {
+      onIoThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            key = channel.register(selector, SelectionKey.OP_READ,
+                Connection.this);
+          } catch (ClosedChannelException e) {
+            fail(communicationException("connection closed", e));
+          }
+        }
+      });
+    }
+
+    /** Queues a request; <code>op</code> receives its response. */
+    void send(int id, Operation op, byte[] request) throws NamingException {
+      if (op != null) {
+        outstanding.put(id, op);
+      }
+      if (broken) {
+        // fail() may have missed op
+        outstanding.remove(id);
+        throw new CommunicationException("connection to " + hostName
+            + " is closed");
+      }
+      synchronized (writes) {
+        writes.add(ByteBuffer.wrap(request));
+      }
+      onIoThread(new Runnable() {
+        @Override
+        public void run() {
+          if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+      });
+    }
+
+    /** Stops waiting for request <code>id</code>, and tells the server. */
+    void abandon(int id) {
+      outstanding.remove(id);
+      int abandonId = nextMessageId();
+      byte[] request = new Ber.Writer().begin(Ber.SEQUENCE)
+          .writeInt(Ber.INTEGER, abandonId)
+          .writeInt(ABANDON_REQUEST, id)
+          .end().toByteArray();
+      try {
+        send(abandonId, null, request);
+      } catch (NamingException e) {
+        // the connection is gone, and the request with it
+      }
+    }
+
+    /** Unbinds and closes the connection, failing outstanding requests. */
+    void close() {
+      broken = true;
+      onIoThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            channel.write(ByteBuffer.wrap(new Ber.Writer()
+                .begin(Ber.SEQUENCE).writeInt(Ber.INTEGER, nextMessageId())
+                .writeNull(UNBIND_REQUEST).end().toByteArray()));
+          } catch (IOException e) {
+            log.log(Level.FINEST, "Error sending unbind request", e);
+          }
+          fail(new CommunicationException("connection closed"));
+        }
+      });
+    }
+
+    /** Closes the connection, failing all outstanding requests. */
+    void fail(NamingException cause) {
+      broken = true;
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.log(Level.FINEST, "Error closing socket", e);
+      }
+      Iterator<Operation> it = outstanding.values().iterator();
+      while (it.hasNext()) {
+        Operation op = it.next();
+        it.remove();
+        op.fail(cause);
+      }
+    }
+
+    void write() throws IOException {
+      synchronized (writes) {
+        while (!writes.isEmpty()) {
+          ByteBuffer buffer = writes.peek();
+          channel.write(buffer);
+          if (buffer.hasRemaining()) {
+            return;
+          }
+          writes.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    void read() throws IOException {
+      if (readLength == readBuffer.length) {
+        readBuffer = Arrays.copyOf(readBuffer, readBuffer.length * 2);
+      }
+      int n = channel.read(ByteBuffer.wrap(readBuffer, readLength,
+          readBuffer.length - readLength));
+      if (n < 0) {
+        throw new EOFException("connection closed by server");
+      }
+      readLength += n;
+      int offset = 0;
+      while (true) {
+        int length = Ber.elementLength(readBuffer, offset,
+            readLength - offset);
+        if (length < 0 || length > readLength - offset) {
+          if (length > readBuffer.length) {
+            // make room for the whole message
+            readBuffer = Arrays.copyOf(readBuffer, length);
+          }
+          break;
+        }
+        dispatch(new Ber.Reader(readBuffer, offset, length));
+        offset += length;
+      }
+      System.arraycopy(readBuffer, offset, readBuffer, 0,
+          readLength - offset);
+      readLength -= offset;
+    }
+
+    /** Hands a response message to the request it answers. */
+    private void dispatch(Ber.Reader message) throws IOException {
+      Ber.Reader msg = message.readConstructed(Ber.SEQUENCE);
+      int id = (int) msg.readInt(Ber.INTEGER);
+      int tag = msg.peekTag();
+      Ber.Reader response = msg.readConstructed(tag);
+      if (id == 0 && tag == EXTENDED_RESPONSE) {
+        // notice of disconnection
+        response.readInt(Ber.ENUMERATED);
+        response.readString(Ber.OCTET_STRING);
+        throw new IOException("server closed the connection: "
+            + response.readString(Ber.OCTET_STRING));
+      }
+      Operation op = outstanding.get(id);
+      if (op == null) {
+        // abandoned, or a response we did not wait for
+        return;
+      }
+      switch (tag) {
+        case SEARCH_RESULT_ENTRY:
+          op.entries.add(decodeEntry(response));
+          break;
+        case SEARCH_RESULT_REFERENCE:
+          // referrals are ignored
+          break;
+        case SEARCH_RESULT_DONE:
+        case BIND_RESPONSE:
+          int resultCode = (int) response.readInt(Ber.ENUMERATED);
+          response.readString(Ber.OCTET_STRING);  // matchedDN
+          String diagnosticMessage = response.readString(Ber.OCTET_STRING);
+          Map<String, byte[]> controls = Collections.emptyMap();
+          if (msg.hasMore() && msg.peekTag() == CONTROLS) {
+            controls = readResponseControls(msg.readConstructed(CONTROLS));
+          }
+          outstanding.remove(id);
+          op.complete(resultCode, diagnosticMessage, controls);
+          break;
+        default:
+          throw new IOException(String.format(
+              "unexpected LDAP response 0x%02x", tag));
+      }
+    }
+  }
+
+  /** Paged search on one connection, shared with other requests. */
+  private class NioPagedSearch implements PagedSearch {
+    private final Connection conn;
+    private final String base;
+    private final LdapFilter filter;
+    private final String[] attributes;
+    private final Control[] controls;
+    private volatile int pageSize;
+    private volatile int currentId;
+    private byte[] cookie;
+    private boolean done;
+
+    NioPagedSearch(Connection conn, String base, LdapFilter filter,
+        String[] attributes, boolean deleted, int pageSize) {
+      this.conn = conn;
+      this.base = base;
+      this.filter = filter;
+      this.attributes = attributes;
+      this.controls = deleted
+          ? new Control[] {new JndiLdapTransport.DeletedControl()}
+          : NO_CONTROLS;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public void setPageSize(int pageSize) {
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public List<SearchResult> nextPage() throws NamingException {
+      if (done) {
+        return null;
+      }
+      int id = nextMessageId();
+      currentId = id;
+      Operation op = call(conn, id, searchRequest(id, base, SCOPE_SUBTREE, 0,
+          filter, attributes, pageSize, cookie, controls));
+      checkResult(op);
+      cookie = readPagedResultsCookie(op);
+      done = (cookie == null) || (cookie.length == 0);
+      return op.entries;
+    }
+
+    @Override
+    public void close(boolean abandoned) {
+      if (abandoned) {
+        conn.abandon(currentId);
+      } else if (!done && cookie != null) {
+        // a page size of 0 lets the server free the search's state
+        int id = nextMessageId();
+        try {
+          conn.send(id, null, searchRequest(id, base, SCOPE_SUBTREE, 0,
+              filter, attributes, 0, cookie, controls));
+        } catch (NamingException e) {
+          // the connection is gone, and the search with it
+        }
+      }
+      done = true;
+    }
+  }
+}
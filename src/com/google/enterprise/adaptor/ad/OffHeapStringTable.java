@@ -0,0 +1,128 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>StringTable</code> that keeps its strings (the DNs of group members)
+ * in buffers outside the Java heap.
+ *
+ * <p>The UTF-8 bytes of the strings are appended to chunks of
+ * <code>CHUNK_BYTES</code>, allocated either as direct buffers or as
+ * memory-mapped (deleted) temporary files, so that the OS can page them out.
+ * On the heap, the table keeps only the location and hash of each string, and
+ * its slot in the index: about 20 bytes per string, however long it is.  The
+ * chunks are freed when the table is garbage collected.
+ */
+class OffHeapStringTable extends StringTable {
+  private static final Logger log
+      = Logger.getLogger(OffHeapStringTable.class.getName());
+
+  static final int CHUNK_BYTES = 16 << 20;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final boolean mapped;
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private ByteBuffer current;
+  /** Location of each string: chunk index in the high, offset in the low
+   * 32 bits. */
+  private long[] locations = new long[1024];
+  private long bytesUsed;
+
+  /**
+   * @param mapped true to store the strings in memory-mapped temporary files,
+   *     false to store them in direct buffers
+   */
+  OffHeapStringTable(boolean mapped) {
+    this.mapped = mapped;
+  }
+
+  @Override
+  protected void store(int id, String s) {
+    if (id == locations.length) {
+      locations = Arrays.copyOf(locations, id * 2);
+    }
+    locations[id] = append(s.getBytes(UTF_8));
+  }
+
+  @Override
+  protected String load(int id) {
+    ByteBuffer chunk = chunks.get((int) (locations[id] >>> 32));
+    int offset = (int) locations[id];
+    byte[] bytes = new byte[chunk.getInt(offset)];
+    ByteBuffer view = chunk.duplicate();
+    view.position(offset + 4);
+    view.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** @return the number of bytes of strings stored outside the heap */
+  synchronized long getBytesUsed() {
+    return bytesUsed;
+  }
+
+  /** Stores the length and <code>bytes</code> of a string in a chunk. */
+  private long append(byte[] bytes) {
+    int needed = 4 + bytes.length;
+    if (current == null || current.remaining() < needed) {
+      current = newChunk(Math.max(CHUNK_BYTES, needed));
+      chunks.add(current);
+    }
+    int offset = current.position();
+    current.putInt(bytes.length);
+    current.put(bytes);
+    bytesUsed += needed;
+    return ((long) (chunks.size() - 1) << 32) | offset;
+  }
+
+  private ByteBuffer newChunk(int capacity) {
+    if (!mapped) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    try {
+      File file = File.createTempFile("ad-members", ".dat");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        MappedByteBuffer chunk = raf.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, capacity);
+        log.log(Level.FINE, "Mapped {0} bytes of member DNs to {1}",
+            new Object[] {capacity, file});
+        return chunk;
+      } finally {
+        raf.close();
+        // the mapping outlives the file (where the OS allows deleting it)
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not map a temporary file -- storing "
+          + "member DNs in direct buffers instead.", e);
+      return ByteBuffer.allocateDirect(capacity);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Reads the pages of a paged search ahead of the caller, on a thread of its
+ * own: the request for page N+1 is sent as soon as page N (and its cookie) has
+ * arrived, while the caller is still turning page N into
+ * <code>AdEntity</code>s.
+ *
+ * <p>At most <code>maxPages</code> pages are read ahead; after that the
+ * reading thread waits for the caller to catch up, so a slow caller does not
+ * fill the heap.  An exception thrown while reading a page is rethrown to the
+ * caller by <code>nextPage()</code>, once the pages before it are consumed.
+ */
+class PagePrefetcher implements PageSource {
+  private static final Object END_OF_PAGES = new Object();
+
+  private final BlockingQueue<Object> pages;
+  private final ExecutorService executor;
+  private final Future<?> reading;
+  private boolean done;
+
+  PagePrefetcher(final PageSource source, int maxPages) {
+    if (maxPages < 1) {
+      throw new IllegalArgumentException("maxPages must be positive");
+    }
+    pages = new ArrayBlockingQueue<Object>(maxPages);
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "ldap-page-prefetch");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    reading = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        // queued even when close() interrupted the source, as the source
+        // may throw InterruptedNamingException for other reasons too, and
+        // the caller would then wait for a page forever; close() discards it
+        Object last = END_OF_PAGES;
+        try {
+          List<SearchResult> page;
+          while ((page = source.nextPage()) != null) {
+            pages.put(page);
+          }
+        } catch (Exception e) {
+          last = e;
+        } catch (Error e) {
+          last = e;
+        }
+        pages.put(last);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Waits for the next page read ahead.
+   * @return the next page of results, or null after the last page
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<SearchResult> nextPage() throws NamingException, IOException {
+    if (done) {
+      return null;
+    }
+    Object page;
+    try {
+      page = pages.take();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedNamingException(
+          "interrupted while waiting for a page of search results");
+    }
+    if (page instanceof List) {
+      return (List<SearchResult>) page;
+    }
+    done = true;
+    if (page == END_OF_PAGES) {
+      return null;
+    } else if (page instanceof NamingException) {
+      throw (NamingException) page;
+    } else if (page instanceof IOException) {
+      throw (IOException) page;
+    } else if (page instanceof RuntimeException) {
+      throw (RuntimeException) page;
+    } else if (page instanceof Error) {
+      throw (Error) page;
+    }
+    throw new RuntimeException((Throwable) page);
+  }
+
+  /**
+   * Stops reading ahead.
+   * @return true if the source is no longer in use; false if a page was still
+   *     being read, in which case the source's connection is in an unknown
+   *     state and should not be reused
+   */
+  boolean close() {
+    // the last page (or exception) is queued only once the source is done
+    boolean idle = done || reading.isDone();
+    if (!idle) {
+      reading.cancel(true);
+    }
+    executor.shutdown();
+    pages.clear();
+    return idle;
+  }
+}
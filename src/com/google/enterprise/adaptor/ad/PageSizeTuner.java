@@ -0,0 +1,102 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the LDAP page size for paged searches from how long recent pages took
+ * and how full the heap is.
+ *
+ * <p>A page that came back quickly (well under <code>TARGET_MILLIS</code>)
+ * doubles the page size, so fast LAN DCs are crawled in fewer round trips; a
+ * slow page halves it, so a WAN-linked DC does not time out, and neither does
+ * a large page sit in memory for long.  The page size never grows while the
+ * heap is more than <code>HEAP_HIGH_WATER</code> full, and is halved when it
+ * is more than <code>HEAP_CRITICAL</code> full.  It always stays between
+ * <code>minPageSize</code> and <code>maxPageSize</code> (the DC's
+ * <code>MaxPageSize</code> policy).
+ */
+class PageSizeTuner {
+  private static final Logger log
+      = Logger.getLogger(PageSizeTuner.class.getName());
+
+  /** Smallest page size used in adaptive mode. */
+  static final int MIN_PAGE_SIZE = 100;
+  /** Page latency aimed for. */
+  static final long TARGET_MILLIS = 2000;
+  static final double HEAP_HIGH_WATER = 0.70;
+  static final double HEAP_CRITICAL = 0.85;
+
+  private final int minPageSize;
+  private final int maxPageSize;
+  private int pageSize;
+
+  PageSizeTuner(int initialPageSize, int minPageSize, int maxPageSize) {
+    if (minPageSize < 1 || maxPageSize < minPageSize) {
+      throw new IllegalArgumentException("invalid page size bounds: "
+          + minPageSize + "-" + maxPageSize);
+    }
+    this.minPageSize = minPageSize;
+    this.maxPageSize = maxPageSize;
+    this.pageSize = clamp(initialPageSize);
+  }
+
+  synchronized int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Records that a page of <code>results</code> entries took
+   * <code>elapsedMillis</code> to retrieve (and process), and adjusts the page
+   * size to use for the next page.
+   * @return the page size to use for the next page
+   */
+  synchronized int pageCompleted(int results, long elapsedMillis) {
+    int previous = pageSize;
+    double heapUsage = getHeapUsage();
+    if (heapUsage > HEAP_CRITICAL) {
+      pageSize = clamp(pageSize / 2);
+    } else if (results < pageSize) {
+      // a short (i.e. last) page says nothing about the DC's speed
+    } else if (elapsedMillis > TARGET_MILLIS) {
+      pageSize = clamp(pageSize / 2);
+    } else if (elapsedMillis < TARGET_MILLIS / 4
+        && heapUsage < HEAP_HIGH_WATER) {
+      pageSize = clamp(pageSize * 2);
+    }
+    if (pageSize != previous) {
+      log.log(Level.FINE, "LDAP page size changed from {0} to {1} (page took "
+          + "{2} ms, heap {3}% full)", new Object[] {previous, pageSize,
+          elapsedMillis, Math.round(heapUsage * 100)});
+    }
+    return pageSize;
+  }
+
+  /** Returns the fraction of the maximum heap size in use. */
+  @VisibleForTesting
+  double getHeapUsage() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    return (double) used / runtime.maxMemory();
+  }
+
+  private int clamp(int size) {
+    return Math.max(minPageSize, Math.min(maxPageSize, size));
+  }
+}
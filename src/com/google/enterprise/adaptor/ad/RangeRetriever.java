@@ -0,0 +1,175 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Retrieves the remaining members of groups whose <code>member</code>
+ * attribute was truncated, using range retrieval
+ * (<code>member;Range=x-y</code>).
+ *
+ * <p>Up to <code>concurrency</code> range requests (for different groups) are
+ * outstanding at any time.  As soon as one range arrives, the request for that
+ * group's next range is sent, and only then are the received members appended
+ * to the group.  Appending is done on the calling thread only, so
+ * <code>AdEntity</code> needs no synchronization.
+ */
+class RangeRetriever {
+  private static final Logger log
+      = Logger.getLogger(RangeRetriever.class.getName());
+
+  /** Issues a single range retrieval request. */
+  interface RangeFetcher {
+    /**
+     * @return the search result holding the members from <code>start</code>
+     *     to (at most) <code>start + batch - 1</code> of <code>group</code>,
+     *     or null if the group was not found
+     */
+    SearchResult fetch(AdEntity group, int start, int batch)
+        throws NamingException;
+  }
+
+  private final RangeFetcher fetcher;
+  private final int concurrency;
+
+  RangeRetriever(RangeFetcher fetcher, int concurrency) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be positive");
+    }
+    this.fetcher = fetcher;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Appends all remaining members to each of <code>groups</code>, none of
+   * which may have all memberships retrieved yet.
+   */
+  void retrieve(Collection<AdEntity> groups) throws NamingException {
+    if (groups.isEmpty()) {
+      return;
+    }
+    int threads = Math.min(concurrency, groups.size());
+    log.log(Level.FINE, "Retrieving members of {0} groups with {1} threads.",
+        new Object[]{groups.size(), threads});
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CompletionService<Range> completionService =
+          new ExecutorCompletionService<Range>(executor);
+      Iterator<AdEntity> waiting = groups.iterator();
+      int outstanding = 0;
+      while (outstanding < threads && waiting.hasNext()) {
+        submit(completionService, newRange(waiting.next()));
+        outstanding++;
+      }
+      while (outstanding > 0) {
+        Range range = take(completionService);
+        outstanding--;
+        if (range.result == null) {
+          log.log(Level.WARNING, "Group [{0}] disappeared during member range "
+              + "retrieval", range.group.getDn());
+          if (waiting.hasNext()) {
+            submit(completionService, newRange(waiting.next()));
+            outstanding++;
+          }
+          continue;
+        }
+        Attribute member = AdEntity.findMemberAttr(
+            range.result.getAttributes());
+        int found = (member == null) ? 0 : member.size();
+        if (!AdEntity.isLastMemberRange(member) && found > 0) {
+          submit(completionService, new Range(range.group,
+              range.start + found, range.batch));
+          outstanding++;
+        } else if (waiting.hasNext()) {
+          submit(completionService, newRange(waiting.next()));
+          outstanding++;
+        }
+        range.group.appendGroups(range.result);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Range newRange(AdEntity group) {
+    int retrieved = group.getMembers().size();
+    return new Range(group, retrieved, retrieved);
+  }
+
+  private void submit(CompletionService<Range> completionService,
+      final Range range) {
+    completionService.submit(new Callable<Range>() {
+      @Override
+      public Range call() throws NamingException {
+        // members are being appended on another thread: log only the dn
+        log.log(Level.FINEST, "Retrieving additional groups for [{0}] "
+            + "starting at {1}",
+            new Object[]{range.group.getDn(), range.start});
+        range.result = fetcher.fetch(range.group, range.start, range.batch);
+        return range;
+      }
+    });
+  }
+
+  private static Range take(CompletionService<Range> completionService)
+      throws NamingException {
+    try {
+      return completionService.take().get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedNamingException(
+          "interrupted while retrieving group members");
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof NamingException) {
+        throw (NamingException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /** One range retrieval request, and (once done) its result. */
+  private static class Range {
+    final AdEntity group;
+    final int start;
+    final int batch;
+    SearchResult result;
+
+    Range(AdEntity group, int start, int batch) {
+      this.group = group;
+      this.start = start;
+      this.batch = batch;
+    }
+  }
+}
@@ -0,0 +1,346 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Arrays;
+
+/**
+ * A security identifier, parsed once from its binary (or text) form.
+ *
+ * <p>The identifier authority and the sub-authorities are held as numbers:
+ * the last sub-authority (the RID of domain SIDs) apart from the others, which
+ * the SIDs of one domain share -- so the SID of a user's primary group is
+ * derived by replacing the RID, without copying the domain part.  SIDs hash
+ * and compare by those numbers, and their text form
+ * (<code>S-1-5-21-x-y-z-rid</code>) is only rendered when asked for.
+ * <code>SidIndex</code> interns the domain part and keys entities by the
+ * domain's index and the RID.
+ *
+ * <p>Text that is not a SID (as the tests give to well known entities) is
+ * kept as it is.
+ */
+final class Sid implements Comparable<Sid> {
+  private static final int[] NO_SUB_AUTHORITIES = new int[0];
+
+  private final byte revision;
+  /** The 48-bit identifier authority, or -1 for text that is not a SID. */
+  private final long authority;
+  /** All sub-authorities but the last one, which is <code>rid</code>. */
+  private final int[] domain;
+  private final int rid;
+  private final boolean hasRid;
+  private final int domainHash;
+  private final int hash;
+  /** The text as given, for text not a SID; else null. */
+  private final String text;
+
+  private Sid(byte revision, long authority, int[] domain, int rid,
+      boolean hasRid) {
+    this.revision = revision;
+    this.authority = authority;
+    this.domain = domain;
+    this.rid = rid;
+    this.hasRid = hasRid;
+    int h = (int) (authority ^ (authority >>> 32)) * 31 + revision;
+    this.domainHash = h * 31 + Arrays.hashCode(domain);
+    this.hash = domainHash * 31 + (hasRid ? rid : -1);
+    this.text = null;
+  }
+
+  /** For text that is not a SID. */
+  private Sid(String text) {
+    this.revision = 0;
+    this.authority = -1;
+    this.domain = NO_SUB_AUTHORITIES;
+    this.rid = 0;
+    this.hasRid = false;
+    this.domainHash = 0;
+    this.hash = text.hashCode();
+    this.text = text;
+  }
+
+  /**
+   * Parses the binary form of a SID: the revision, the count of
+   * sub-authorities, the 48-bit big-endian authority and then the 32-bit
+   * little-endian sub-authorities.
+   * @param objectSid the binary SID, as retrieved from LDAP
+   * @return the SID, or null if <code>objectSid</code> is null
+   * @throws IllegalArgumentException if <code>objectSid</code> is too short
+   */
+  static Sid fromBinary(byte[] objectSid) {
+    if (objectSid == null) {
+      return null;
+    }
+    if (objectSid.length < 8) {
+      throw new IllegalArgumentException("truncated SID");
+    }
+    int count = objectSid[1] & 0xFF;
+    if (objectSid.length < 8 + 4 * count) {
+      throw new IllegalArgumentException("truncated SID");
+    }
+    long authority = 0;
+    for (int i = 2; i < 8; i++) {
+      authority = (authority << 8) | (objectSid[i] & 0xFF);
+    }
+    int[] domain = (count <= 1) ? NO_SUB_AUTHORITIES : new int[count - 1];
+    int last = 0;
+    for (int j = 0; j < count; j++) {
+      int offset = 8 + 4 * j;
+      int sub = (objectSid[offset] & 0xFF)
+          | (objectSid[offset + 1] & 0xFF) << 8
+          | (objectSid[offset + 2] & 0xFF) << 16
+          | (objectSid[offset + 3] & 0xFF) << 24;
+      if (j < count - 1) {
+        domain[j] = sub;
+      } else {
+        last = sub;
+      }
+    }
+    return new Sid(objectSid[0], authority, domain, last, count > 0);
+  }
+
+  /**
+   * Parses the text form of a SID.
+   * @param text <code>S-</code>revision<code>-</code>authority followed by
+   *     the sub-authorities, all in decimal
+   * @return the SID, or null if <code>text</code> is null; text that is not
+   *     a SID is kept as it is
+   */
+  static Sid parse(String text) {
+    if (text == null) {
+      return null;
+    }
+    if (!text.startsWith("S-")) {
+      return new Sid(text);
+    }
+    // S-revision-authority-sub...: at most 2 + 255 numbers
+    long[] numbers = new long[8];
+    int n = 0;
+    long value = -1;
+    for (int i = 2; i <= text.length(); i++) {
+      char c = (i == text.length()) ? '-' : text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (value == 0) {
+          return new Sid(text);  // leading zero: not the canonical form
+        }
+        value = ((value < 0) ? 0 : value * 10) + (c - '0');
+        if (value > 0xFFFFFFFFFFFFL) {
+          return new Sid(text);
+        }
+      } else if (c == '-' && value >= 0) {
+        if (n == numbers.length) {
+          numbers = Arrays.copyOf(numbers, n * 2);
+        }
+        numbers[n++] = value;
+        value = -1;
+      } else {
+        return new Sid(text);
+      }
+    }
+    if (n < 2 || numbers[0] > 0xFF || n - 2 > 0xFF) {
+      return new Sid(text);
+    }
+    int count = n - 2;
+    int[] domain = (count <= 1) ? NO_SUB_AUTHORITIES : new int[count - 1];
+    for (int j = 0; j < count; j++) {
+      if (numbers[2 + j] > 0xFFFFFFFFL) {
+        return new Sid(text);
+      }
+      if (j < count - 1) {
+        domain[j] = (int) numbers[2 + j];
+      }
+    }
+    return new Sid((byte) numbers[0], numbers[1], domain,
+        (count > 0) ? (int) numbers[n - 1] : 0, count > 0);
+  }
+
+  /**
+   * Returns the SID with the same domain and authority as this one, and
+   * <code>rid</code> as the last sub-authority.
+   * @param rid the relative identifier, in decimal (a primaryGroupId)
+   */
+  Sid withRid(String rid) {
+    if (authority >= 0 && hasRid) {
+      long value = parseRid(rid);
+      if (value >= 0) {
+        return new Sid(revision, authority, domain, (int) value, true);
+      }
+    }
+    String prefix = toString();
+    return parse(prefix.substring(0, prefix.lastIndexOf('-') + 1) + rid);
+  }
+
+  /**
+   * Returns the SID with the same domain and authority as this one, and
+   * <code>rid</code> as the last sub-authority.
+   * @throws IllegalStateException if this SID has no RID
+   */
+  Sid withRid(int rid) {
+    if (!hasRid()) {
+      throw new IllegalStateException(this + " has no RID");
+    }
+    return new Sid(revision, authority, domain, rid, true);
+  }
+
+  /**
+   * @return true if this SID has a last sub-authority (its RID), and is not
+   *     merely text
+   */
+  boolean hasRid() {
+    return authority >= 0 && hasRid;
+  }
+
+  /** @return the last sub-authority, if <code>hasRid</code> */
+  int getRid() {
+    return rid;
+  }
+
+  /**
+   * @return a hash of the revision, authority and all sub-authorities but
+   *     the RID: the same for all SIDs of a domain
+   */
+  int getDomainHash() {
+    return domainHash;
+  }
+
+  /**
+   * @return true if both SIDs have RIDs, and the same revision, authority
+   *     and sub-authorities but the RID
+   */
+  boolean isSameDomain(Sid other) {
+    return hasRid() && other.hasRid() && domainHash == other.domainHash
+        && authority == other.authority && revision == other.revision
+        && (domain == other.domain || Arrays.equals(domain, other.domain));
+  }
+
+  /** @return <code>rid</code> as an unsigned 32-bit number, or -1 */
+  private static long parseRid(String rid) {
+    if (rid.isEmpty() || rid.length() > 10) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = 0; i < rid.length(); i++) {
+      char c = rid.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return (value > 0xFFFFFFFFL) ? -1 : value;
+  }
+
+  /** @return true for SIDs of the Builtin domain (S-1-5-32-x) */
+  boolean isBuiltin() {
+    if (authority < 0) {
+      return text.startsWith("S-1-5-32-");
+    }
+    return authority == 5 && domain.length > 0 && domain[0] == 32;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof Sid)) {
+      return false;
+    }
+    Sid other = (Sid) o;
+    if (hash != other.hash || authority != other.authority) {
+      return false;
+    }
+    if (authority < 0) {
+      return text.equals(other.text);
+    }
+    return rid == other.rid && hasRid == other.hasRid
+        && revision == other.revision && Arrays.equals(domain, other.domain);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  /** Orders SIDs by their numbers, and text that is not a SID first. */
+  @Override
+  public int compareTo(Sid other) {
+    if (authority < 0 || other.authority < 0) {
+      if (authority >= 0 || other.authority >= 0) {
+        return (authority < 0) ? -1 : 1;
+      }
+      return text.compareTo(other.text);
+    }
+    int c = compareUnsigned(revision & 0xFF, other.revision & 0xFF);
+    if (c == 0) {
+      c = compareUnsigned(authority, other.authority);
+    }
+    int count = subAuthorityCount();
+    int otherCount = other.subAuthorityCount();
+    for (int j = 0; c == 0 && j < Math.min(count, otherCount); j++) {
+      c = compareUnsigned(subAuthority(j) & 0xFFFFFFFFL,
+          other.subAuthority(j) & 0xFFFFFFFFL);
+    }
+    return (c != 0) ? c : compareUnsigned(count, otherCount);
+  }
+
+  private int subAuthorityCount() {
+    return hasRid ? domain.length + 1 : 0;
+  }
+
+  private int subAuthority(int j) {
+    return (j < domain.length) ? domain[j] : rid;
+  }
+
+  private static int compareUnsigned(long a, long b) {
+    return (a < b) ? -1 : ((a == b) ? 0 : 1);
+  }
+
+  /**
+   * Renders the text form of the SID.  It is not kept: the catalog looks
+   * SIDs up by their numbers, so the text is needed only now and then.
+   */
+  @Override
+  public String toString() {
+    if (text != null) {
+      return text;
+    }
+    // "S-" and up to 3 + 15 + 256 * 11 characters for the numbers
+    char[] buf = new char[2 + 3 + 16 + 11 * subAuthorityCount()];
+    buf[0] = 'S';
+    buf[1] = '-';
+    int n = appendDecimal(buf, 2, revision & 0xFF);
+    buf[n++] = '-';
+    n = appendDecimal(buf, n, authority);
+    for (int j = 0; j < subAuthorityCount(); j++) {
+      buf[n++] = '-';
+      n = appendDecimal(buf, n, subAuthority(j) & 0xFFFFFFFFL);
+    }
+    return new String(buf, 0, n);
+  }
+
+  /** Writes <code>value</code> at <code>pos</code>, returning the end. */
+  private static int appendDecimal(char[] buf, int pos, long value) {
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    int end = pos + digits;
+    for (int i = end - 1; i >= pos; i--) {
+      buf[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return end;
+  }
+}
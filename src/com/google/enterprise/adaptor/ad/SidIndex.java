@@ -0,0 +1,335 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Index of the catalog's entities by SID.  All SIDs of a domain share their
+ * <code>S-1-5-21-x-y-z</code> prefix, which is interned once: an entity is
+ * keyed by the index of its domain and its RID, packed into a long, in an
+ * open-addressing table -- so <code>find</code> looks up a <code>Sid</code>
+ * without rendering or hashing any text.  Keys that are not SIDs with a RID
+ * (such as the SIDs the tests give well known entities) are kept in a plain
+ * <code>HashMap</code>.
+ */
+class SidIndex extends AbstractMap<String, AdEntity> {
+  /** Marks a slot whose entry was removed. */
+  private static final Object REMOVED = new Object();
+
+  /** One SID of each domain, by domain index. */
+  private Sid[] domains = new Sid[8];
+  private int nDomains;
+  /** Domain index + 1 of the domains, by hash; 0 marks unused slots. */
+  private int[] domainSlots = new int[16];
+
+  /** Domain index in the high, RID in the low 32 bits of each key. */
+  private long[] keys = new long[16];
+  /** The entities; null for unused and REMOVED for removed slots. */
+  private Object[] values = new Object[16];
+  private int used;  // slots not null
+  private int packedSize;
+
+  private final Map<String, AdEntity> others = new HashMap<String, AdEntity>();
+
+  /** Returns the entity with SID <code>sid</code>, or null. */
+  AdEntity find(Sid sid) {
+    if (sid == null || !sid.hasRid()) {
+      return others.get((sid == null) ? null : sid.toString());
+    }
+    int domain = findDomain(sid);
+    if (domain < 0) {
+      return null;
+    }
+    Object value = values[findSlot(pack(domain, sid.getRid()))];
+    return (value == REMOVED) ? null : (AdEntity) value;
+  }
+
+  /**
+   * Indexes <code>e</code> by <code>sid</code>.
+   * @return the entity indexed by <code>sid</code> before, or null
+   */
+  AdEntity add(Sid sid, AdEntity e) {
+    if (e == null) {
+      throw new NullPointerException("null entity for " + sid);
+    }
+    if (sid == null || !sid.hasRid()) {
+      return others.put((sid == null) ? null : sid.toString(), e);
+    }
+    long key = pack(internDomain(sid), sid.getRid());
+    int slot = findSlot(key);
+    Object previous = values[slot];
+    if (previous == null || previous == REMOVED) {
+      if (previous == null) {
+        used++;
+      }
+      keys[slot] = key;
+      values[slot] = e;
+      packedSize++;
+      if (used * 4 > values.length * 3) {
+        resize(packedSize * 2 > values.length
+            ? values.length * 2 : values.length);
+      }
+      return null;
+    }
+    values[slot] = e;
+    return (AdEntity) previous;
+  }
+
+  /**
+   * Removes the entity indexed by <code>sid</code>.
+   * @return the entity removed, or null
+   */
+  AdEntity remove(Sid sid) {
+    if (sid == null || !sid.hasRid()) {
+      return others.remove((sid == null) ? null : sid.toString());
+    }
+    int domain = findDomain(sid);
+    if (domain < 0) {
+      return null;
+    }
+    int slot = findSlot(pack(domain, sid.getRid()));
+    Object previous = values[slot];
+    if (previous == null || previous == REMOVED) {
+      return null;
+    }
+    values[slot] = REMOVED;
+    packedSize--;
+    return (AdEntity) previous;
+  }
+
+  /** @return the number of distinct domains of the SIDs indexed so far */
+  int getDomainCount() {
+    return nDomains;
+  }
+
+  @Override
+  public int size() {
+    return packedSize + others.size();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public AdEntity get(Object key) {
+    if (key != null && !(key instanceof String)) {
+      return null;
+    }
+    return find(Sid.parse((String) key));
+  }
+
+  @Override
+  public AdEntity put(String sid, AdEntity e) {
+    return add(Sid.parse(sid), e);
+  }
+
+  @Override
+  public AdEntity remove(Object key) {
+    if (key != null && !(key instanceof String)) {
+      return null;
+    }
+    return remove(Sid.parse((String) key));
+  }
+
+  /** Adds the entries of another index without rendering their SIDs. */
+  @Override
+  public void putAll(Map<? extends String, ? extends AdEntity> m) {
+    if (!(m instanceof SidIndex)) {
+      super.putAll(m);
+      return;
+    }
+    SidIndex other = (SidIndex) m;
+    for (int slot = 0; slot < other.values.length; slot++) {
+      Object value = other.values[slot];
+      if (value != null && value != REMOVED) {
+        long key = other.keys[slot];
+        add(other.domains[(int) (key >>> 32)].withRid((int) key),
+            (AdEntity) value);
+      }
+    }
+    others.putAll(other.others);
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(values, null);
+    used = 0;
+    packedSize = 0;
+    others.clear();
+  }
+
+  @Override
+  public Set<Map.Entry<String, AdEntity>> entrySet() {
+    return new AbstractSet<Map.Entry<String, AdEntity>>() {
+      @Override
+      public int size() {
+        return SidIndex.this.size();
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, AdEntity>> iterator() {
+        return new Iterator<Map.Entry<String, AdEntity>>() {
+          private final Iterator<Map.Entry<String, AdEntity>> othersIt
+              = others.entrySet().iterator();
+          private int next = advance(0);
+          private int last = -1;
+          private boolean lastWasOther;
+
+          private int advance(int slot) {
+            while (slot < values.length
+                && (values[slot] == null || values[slot] == REMOVED)) {
+              slot++;
+            }
+            return slot;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return next < values.length || othersIt.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, AdEntity> next() {
+            if (next >= values.length) {
+              lastWasOther = true;
+              return othersIt.next();
+            }
+            last = next;
+            next = advance(next + 1);
+            long key = keys[last];
+            return new SimpleImmutableEntry<String, AdEntity>(
+                domains[(int) (key >>> 32)].withRid((int) key).toString(),
+                (AdEntity) values[last]);
+          }
+
+          @Override
+          public void remove() {
+            if (lastWasOther) {
+              othersIt.remove();
+              lastWasOther = false;
+              return;
+            }
+            if (last < 0 || values[last] == REMOVED) {
+              throw new IllegalStateException();
+            }
+            values[last] = REMOVED;
+            packedSize--;
+            last = -1;
+          }
+        };
+      }
+    };
+  }
+
+  private static long pack(int domain, int rid) {
+    return ((long) domain << 32) | (rid & 0xFFFFFFFFL);
+  }
+
+  /** Returns the index of the domain of <code>sid</code>, or -1. */
+  private int findDomain(Sid sid) {
+    int mask = domainSlots.length - 1;
+    for (int slot = StringTable.mix(sid.getDomainHash()) & mask;
+        domainSlots[slot] != 0; slot = (slot + 1) & mask) {
+      if (domains[domainSlots[slot] - 1].isSameDomain(sid)) {
+        return domainSlots[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  private int internDomain(Sid sid) {
+    int domain = findDomain(sid);
+    if (domain >= 0) {
+      return domain;
+    }
+    if (nDomains == domains.length) {
+      domains = Arrays.copyOf(domains, nDomains * 2);
+    }
+    domain = nDomains++;
+    domains[domain] = sid;
+    if (nDomains * 2 > domainSlots.length) {
+      domainSlots = new int[domainSlots.length * 2];
+      for (int i = 0; i < nDomains; i++) {
+        insertDomainSlot(i);
+      }
+    } else {
+      insertDomainSlot(domain);
+    }
+    return domain;
+  }
+
+  private void insertDomainSlot(int domain) {
+    int mask = domainSlots.length - 1;
+    int slot = StringTable.mix(domains[domain].getDomainHash()) & mask;
+    while (domainSlots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    domainSlots[slot] = domain + 1;
+  }
+
+  private static int hash(long key) {
+    return StringTable.mix((int) (key ^ (key >>> 32)));
+  }
+
+  /**
+   * Returns the slot holding <code>key</code>, or else the slot it would be
+   * added to: the first REMOVED slot, or the unused slot ending its probe.
+   */
+  private int findSlot(long key) {
+    int mask = values.length - 1;
+    int free = -1;
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      if (values[slot] == null) {
+        return (free < 0) ? slot : free;
+      } else if (values[slot] == REMOVED) {
+        if (free < 0) {
+          free = slot;
+        }
+      } else if (keys[slot] == key) {
+        return slot;
+      }
+    }
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    used = 0;
+    int mask = capacity - 1;
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null && oldValues[i] != REMOVED) {
+        int slot = hash(oldKeys[i]) & mask;
+        while (values[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+        used++;
+      }
+    }
+  }
+}
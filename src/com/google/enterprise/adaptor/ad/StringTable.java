@@ -0,0 +1,122 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary that gives each distinct string (DN) added to it a dense int ID,
+ * starting at 0, so that sets of members and indexes by DN can hold ints
+ * instead of strings.  Strings are never removed.
+ *
+ * <p>The table keeps the hash of each string and an open-addressing index
+ * from hash to ID; subclasses decide where the strings themselves are
+ * stored.  All methods are synchronized, so one table can be shared by the
+ * catalogs of servers crawled in parallel.
+ */
+abstract class StringTable {
+  private int[] hashes = new int[1024];
+  private int size;
+  /** ID + 1 of the strings, by hash; 0 marks an empty slot. */
+  private int[] slots = new int[2048];
+
+  /**
+   * Returns the ID of <code>s</code>, adding it to the table if it is not
+   * there yet.
+   */
+  synchronized int intern(String s) {
+    int hash = s.hashCode();
+    int slot = findSlot(s, hash);
+    if (slots[slot] != 0) {
+      return slots[slot] - 1;
+    }
+    int id = size++;
+    if (id == hashes.length) {
+      hashes = Arrays.copyOf(hashes, id * 2);
+    }
+    hashes[id] = hash;
+    store(id, s);
+    slots[slot] = id + 1;
+    if (size * 2 > slots.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  /** Returns the ID of <code>s</code>, or -1 if it is not in the table. */
+  synchronized int find(String s) {
+    return slots[findSlot(s, s.hashCode())] - 1;
+  }
+
+  /** Returns the string with ID <code>id</code>. */
+  synchronized String get(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("no string with ID " + id);
+    }
+    return load(id);
+  }
+
+  /** @return the number of strings in the table (and the next ID) */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Stores string <code>s</code>, which is given ID <code>id</code>. */
+  protected abstract void store(int id, String s);
+
+  /** Returns the string stored with ID <code>id</code>. */
+  protected abstract String load(int id);
+
+  /**
+   * Returns true if the string stored with ID <code>id</code> equals
+   * <code>s</code>.  Subclasses that store strings in pieces override this
+   * to compare without rendering the stored string.
+   */
+  protected boolean matches(int id, String s) {
+    return load(id).equals(s);
+  }
+
+  /**
+   * Returns the index of the slot holding string <code>s</code> (with hash
+   * <code>hash</code>), or of the empty slot it would go into.
+   */
+  private int findSlot(String s, int hash) {
+    int mask = slots.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      int id = slots[slot] - 1;
+      if (id < 0 || (hashes[id] == hash && matches(id, s))) {
+        return slot;
+      }
+    }
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = mix(hashes[id]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+
+  /** Spreads the bits of a hash code (or an ID) over a table. */
+  static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
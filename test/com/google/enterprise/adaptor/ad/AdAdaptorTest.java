@@ -18,6 +18,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -27,6 +28,7 @@ import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.Adaptor;
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.ExceptionHandler;
 import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
 import com.google.enterprise.adaptor.Principal;
@@ -36,8 +38,10 @@ import com.google.enterprise.adaptor.UserPrincipal;
 
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,10 +49,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -182,13 +188,72 @@ public class AdAdaptorTest {
   public void testMakeFullCatalogFromTwoServersWithDifferentBaseDNsAndFilters()
       throws Exception {
     AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    String baseDn1 = "ou=gsbn1";
+    String baseDn2 = "ou=gsbn2";
+    List<String> fakeMembers = Arrays.asList("dn_for_user_1", "dn_for_user_2");
+    MockLdapContext ldapContext = twoServerMockLdapContext(fakeMembers);
+    Map<String, String> configEntries = twoServerConfig();
+    AdAdaptor adAdaptor = new FakeAdaptorWithSharedMockLdapContext(ldapContext);
+    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
+        /*init=*/ true);
+    Map<GroupPrincipal, Collection<Principal>> results = pusher.getGroups();
+    // the above (eventually) calls AdAdaptor.init() with the specified config.
+
+    final AdEntity goldenEntity1 = new AdEntity("S-1-0-0",
+        "cn=name\\ under," + baseDn1);
+    final AdEntity goldenEntity2 = new AdEntity("S-1-0-1",
+        "cn=name\\ under," + baseDn2);
+    final AdEntity everyone = new AdEntity("S-1-1-0", "CN=Everyone");
+    final AdEntity authUsers = new AdEntity("S-1-5-11",
+        "CN=Authenticated Users,DC=NT Authority");
+    final AdEntity interactive = new AdEntity("S-1-5-4",
+        "CN=Interactive,DC=NT Authority");
+    goldenEntity1.getMembers().addAll(fakeMembers);
+    goldenEntity2.getMembers().addAll(fakeMembers);
+    final Map<AdEntity, Set<String>> goldenMembers =
+        new HashMap<AdEntity, Set<String>>();
+    goldenMembers.put(goldenEntity1, goldenEntity1.getMembers());
+    goldenMembers.put(goldenEntity2, goldenEntity2.getMembers());
+    final Map<String, AdEntity> goldenSid =
+        new HashMap<String, AdEntity>();
+    goldenSid.put(goldenEntity1.getSid(), goldenEntity1);
+    goldenSid.put(goldenEntity2.getSid(), goldenEntity2);
+    goldenSid.put("S-1-1-0", everyone);
+    goldenSid.put("S-1-5-11", authUsers);
+    goldenSid.put("S-1-5-4", interactive);
+    final Map<String, AdEntity> goldenDn =
+        new HashMap<String, AdEntity>();
+    goldenDn.put(goldenEntity1.getDn(), goldenEntity1);
+    goldenDn.put(goldenEntity2.getDn(), goldenEntity2);
+    final Map<AdEntity, String> goldenDomain = new HashMap<AdEntity, String>();
+    goldenDomain.put(goldenEntity1, "GSA-CONNECTORS");
+    goldenDomain.put(goldenEntity2, "GSA-CONNECTORS");
+
+    AdAdaptor.GroupCatalog golden = new GroupCatalogBuilder()
+        .setFeedBuiltinGroups(true)
+        .setEntities(Sets.newHashSet(goldenEntity1, goldenEntity2, everyone,
+            authUsers, interactive))
+        .setMembers(goldenMembers)
+        .setBySid(goldenSid)
+        .setByDn(goldenDn)
+        .setDomain(goldenDomain).build();
+
+    AdAdaptor.GroupCatalog actual = adAdaptor.makeFullCatalog();
+    assertTrue(golden.equals(actual));
+  }
+
+  /**
+   * Returns a MockLdapContext with one group for each of the two servers
+   * configured by <code>twoServerConfig()</code>.
+   */
+  private MockLdapContext twoServerMockLdapContext(List<String> fakeMembers)
+      throws Exception {
     MockLdapContext ldapContext = defaultMockLdapContext();
     // add a group to be found by server1
     String filter1 = "(&(&(objectClass=group)"
         + "(groupType:1.2.840.113556.1.4.803:=2147483648))(gsf1))";
     // the following matches the GroupSearchBaseDn for server 1
     String baseDn1 = "ou=gsbn1";
-    List<String> fakeMembers = Arrays.asList("dn_for_user_1", "dn_for_user_2");
     ldapContext.addSearchResult(filter1, "cn", baseDn1, "group1")
                .addSearchResult(filter1, "objectSid;binary", baseDn1,
                    hexStringToByteArray("010100000000000000000000")) // S-1-0-0
@@ -210,9 +275,14 @@ public class AdAdaptorTest {
                .addSearchResult(filter2, "member", baseDn2, fakeMembers)
                .addSearchResult(filter2, "sAMAccountName", baseDn2,
                    "name under");
+    return ldapContext;
+  }
 
-    // create a configuration to specify two servers, each with different
-    // BaseDNs and Filters
+  /**
+   * Returns a configuration to specify two servers, each with different
+   * BaseDNs and Filters.
+   */
+  private static Map<String, String> twoServerConfig() {
     Map<String, String> configEntries = new HashMap<String, String>();
     configEntries.put("gsa.hostname", "localhost");
     configEntries.put("ad.servers", "server1,server2");
@@ -235,53 +305,260 @@ public class AdAdaptorTest {
     configEntries.put("ad.groupSearchFilter", "cn=GroupNotFound");
     configEntries.put("server.port", "5680");
     configEntries.put("server.dashboardPort", "5681");
-    AdAdaptor adAdaptor = new FakeAdaptorWithSharedMockLdapContext(ldapContext);
-    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
-        /*init=*/ true);
-    Map<GroupPrincipal, Collection<Principal>> results = pusher.getGroups();
-    // the above (eventually) calls AdAdaptor.init() with the specified config.
+    return configEntries;
+  }
 
-    final AdEntity goldenEntity1 = new AdEntity("S-1-0-0",
-        "cn=name\\ under," + baseDn1);
-    final AdEntity goldenEntity2 = new AdEntity("S-1-0-1",
-        "cn=name\\ under," + baseDn2);
-    final AdEntity everyone = new AdEntity("S-1-1-0", "CN=Everyone");
-    final AdEntity authUsers = new AdEntity("S-1-5-11",
-        "CN=Authenticated Users,DC=NT Authority");
-    final AdEntity interactive = new AdEntity("S-1-5-4",
-        "CN=Interactive,DC=NT Authority");
-    goldenEntity1.getMembers().addAll(fakeMembers);
-    goldenEntity2.getMembers().addAll(fakeMembers);
-    final Map<AdEntity, Set<String>> goldenMembers =
-        new HashMap<AdEntity, Set<String>>();
-    goldenMembers.put(goldenEntity1, goldenEntity1.getMembers());
-    goldenMembers.put(goldenEntity2, goldenEntity2.getMembers());
-    final Map<String, AdEntity> goldenSid =
-        new HashMap<String, AdEntity>();
-    goldenSid.put(goldenEntity1.getSid(), goldenEntity1);
-    goldenSid.put(goldenEntity2.getSid(), goldenEntity2);
-    goldenSid.put("S-1-1-0", everyone);
-    goldenSid.put("S-1-5-11", authUsers);
-    goldenSid.put("S-1-5-4", interactive);
-    final Map<String, AdEntity> goldenDn =
-        new HashMap<String, AdEntity>();
-    goldenDn.put(goldenEntity1.getDn(), goldenEntity1);
-    goldenDn.put(goldenEntity2.getDn(), goldenEntity2);
-    final Map<AdEntity, String> goldenDomain = new HashMap<AdEntity, String>();
-    goldenDomain.put(goldenEntity1, "GSA-CONNECTORS");
-    goldenDomain.put(goldenEntity2, "GSA-CONNECTORS");
+  /**
+   * Returns a MockLdapContext for server <code>n</code> (1 or 2) of those
+   * configured by <code>perServerConfig()</code>, with a group of its own.
+   */
+  private MockLdapContext serverMockLdapContext(int n) throws Exception {
+    MockLdapContext ldapContext = defaultMockLdapContext();
+    String filter = "(&(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))(gsf" + n + "))";
+    String baseDn = "ou=gsbn" + n;
+    ldapContext.addSearchResult(filter, "cn", baseDn, "group" + n)
+               .addSearchResult(filter, "objectSid;binary", baseDn,
+                   // S-1-0-0 for server 1, S-1-0-1 for server 2
+                   hexStringToByteArray("01010000000000000" + (n - 1)
+                       + "000000"))
+               .addSearchResult(filter, "objectGUID;binary", baseDn,
+                   hexStringToByteArray("000102030405060708090a0b0" + n))
+               .addSearchResult(filter, "member", baseDn,
+                   Arrays.asList("dn_for_user_1", "dn_for_user_2"))
+               .addSearchResult(filter, "sAMAccountName", baseDn,
+                   "group" + n);
+    return ldapContext;
+  }
 
-    AdAdaptor.GroupCatalog golden = new GroupCatalogBuilder()
-        .setFeedBuiltinGroups(true)
-        .setEntities(Sets.newHashSet(goldenEntity1, goldenEntity2, everyone,
-            authUsers, interactive))
-        .setMembers(goldenMembers)
-        .setBySid(goldenSid)
-        .setByDn(goldenDn)
-        .setDomain(goldenDomain).build();
+  /**
+   * Adds a user, whose primary group is the group of server <code>n</code>,
+   * to what an incremental crawl of server <code>n</code> finds.
+   */
+  private static void addUpdatedUser(MockLdapContext ldapContext, int n) {
+    String filter = "(&(uSNChanged>=12345679)(&(&(objectClass=user)"
+        + "(objectCategory=person))(usf" + n + ")))";
+    String baseDn = "ou=usbn" + n;
+    ldapContext.addKey("highestCommittedUSN", "12345679");
+    ldapContext.addSearchResult(filter, "objectSid;binary", baseDn,
+                   // S-1-0-5 for server 1, S-1-0-6 for server 2
+                   hexStringToByteArray("01010000000000000" + (n + 4)
+                       + "000000"))
+               .addSearchResult(filter, "objectGUID;binary", baseDn,
+                   hexStringToByteArray("000102030405060708090a0b1" + n))
+               .addSearchResult(filter, "primaryGroupId", baseDn, "" + (n - 1))
+               .addSearchResult(filter, "sAMAccountName", baseDn, "user" + n);
+  }
 
-    AdAdaptor.GroupCatalog actual = adAdaptor.makeFullCatalog();
-    assertTrue(golden.equals(actual));
+  /**
+   * Returns <code>twoServerConfig()</code>, with the servers on hosts
+   * <code>host1</code> and <code>host2</code>.
+   */
+  private static Map<String, String> perServerConfig() {
+    Map<String, String> configEntries = twoServerConfig();
+    configEntries.put("ad.servers.server1.host", "host1");
+    configEntries.put("ad.servers.server2.host", "host2");
+    return configEntries;
+  }
+
+  private FakeAdaptorWithMockLdapContextPerServer newPerServerAdaptor()
+      throws Exception {
+    Map<String, MockLdapContext> ldapContexts =
+        new HashMap<String, MockLdapContext>();
+    ldapContexts.put("host1", serverMockLdapContext(1));
+    ldapContexts.put("host2", serverMockLdapContext(2));
+    return new FakeAdaptorWithMockLdapContextPerServer(ldapContexts);
+  }
+
+  @Test
+  public void testMakeFullCatalogInParallelMatchesSequentialCrawl()
+      throws Exception {
+    Map<String, String> configEntries = perServerConfig();
+    AdAdaptor sequential = newPerServerAdaptor();
+    pushGroupDefinitions(sequential, configEntries,
+        new AccumulatingDocIdPusher(), /*fullPush=*/ true, /*init=*/ true);
+
+    configEntries.put("ad.crawlConcurrency", "2");
+    AdAdaptor parallel = newPerServerAdaptor();
+    pushGroupDefinitions(parallel, configEntries,
+        new AccumulatingDocIdPusher(), /*fullPush=*/ true, /*init=*/ true);
+
+    assertEquals(sequential.makeFullCatalog(), parallel.makeFullCatalog());
+  }
+
+  @Test
+  public void testIncrementalCrawlInParallelMatchesSequentialCrawl()
+      throws Exception {
+    Map<GroupPrincipal, Collection<Principal>> sequential =
+        pushIncrementalUpdates(1);
+    Map<GroupPrincipal, Collection<Principal>> parallel =
+        pushIncrementalUpdates(2);
+    assertEquals(sequential, parallel);
+    for (int n = 1; n <= 2; n++) {
+      assertEquals(Arrays.asList(
+          new UserPrincipal("user" + n + "@GSA-CONNECTORS", "Default")),
+          parallel.get(
+              new GroupPrincipal("group" + n + "@GSA-CONNECTORS", "Default")));
+    }
+  }
+
+  /**
+   * Does a full push, and then an incremental push of a user added to the
+   * group of each server, crawling <code>crawlConcurrency</code> servers at
+   * a time.
+   * @return the groups pushed by the incremental push
+   */
+  private Map<GroupPrincipal, Collection<Principal>> pushIncrementalUpdates(
+      int crawlConcurrency) throws Exception {
+    FakeAdaptorWithMockLdapContextPerServer adAdaptor = newPerServerAdaptor();
+    Map<String, String> configEntries = perServerConfig();
+    configEntries.put("ad.crawlConcurrency", "" + crawlConcurrency);
+    pushGroupDefinitions(adAdaptor, configEntries,
+        new AccumulatingDocIdPusher(), /*fullPush=*/ true, /*init=*/ true);
+    addUpdatedUser(adAdaptor.ldapContexts.get("host1"), 1);
+    addUpdatedUser(adAdaptor.ldapContexts.get("host2"), 2);
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, pusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    return pusher.getGroups();
+  }
+
+  @Test
+  public void testParallelCrawlReportsFirstFailureInConfiguredOrder()
+      throws Exception {
+    FakeAdaptorWithMockLdapContextPerServer adAdaptor = newPerServerAdaptor();
+    Map<String, String> configEntries = perServerConfig();
+    configEntries.put("ad.crawlConcurrency", "2");
+    initializeAdaptorConfig(adAdaptor, configEntries);
+
+    // host2 fails first, but host1 comes first in the configuration
+    adAdaptor.failingHosts.put("host1", 200L);
+    adAdaptor.failingHosts.put("host2", 0L);
+    assertCrawlFails(adAdaptor, /*fullPush=*/ true, "host1");
+    adAdaptor.failingHosts.remove("host1");
+    assertCrawlFails(adAdaptor, /*fullPush=*/ true, "host2");
+
+    // likewise for incremental crawls
+    adAdaptor.failingHosts.clear();
+    adAdaptor.getDocIds(new AccumulatingDocIdPusher());
+    adAdaptor.failingHosts.put("host1", 200L);
+    adAdaptor.failingHosts.put("host2", 0L);
+    assertCrawlFails(adAdaptor, /*fullPush=*/ false, "host1");
+
+    // the catalog was discarded: the next incremental crawl is a full one,
+    // which pushes nothing
+    adAdaptor.failingHosts.clear();
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adAdaptor.getModifiedDocIds(pusher);
+    assertEquals(Collections.emptyMap(), pusher.getGroups());
+    adAdaptor.failingHosts.put("host2", 0L);
+    assertCrawlFails(adAdaptor, /*fullPush=*/ false, "host2");
+  }
+
+  private static void assertCrawlFails(AdAdaptor adAdaptor, boolean fullPush,
+      String host) throws Exception {
+    try {
+      pushGroupDefinitions(adAdaptor, null, new AccumulatingDocIdPusher(),
+          fullPush, /*init=*/ false);
+      fail("Did not catch expected exception.");
+    } catch (IOException ioe) {
+      assertEquals("could not get entities from " + host, ioe.getMessage());
+    }
+  }
+
+  @Test
+  public void testRestartPushesCatalogFromSnapshot() throws Exception {
+    File snapshotFile = File.createTempFile("catalog", ".snapshot");
+    snapshotFile.delete();
+    try {
+      List<String> fakeMembers =
+          Arrays.asList("dn_for_user_1", "dn_for_user_2");
+      Map<String, String> configEntries = twoServerConfig();
+      configEntries.put("ad.catalogSnapshotFile", snapshotFile.getPath());
+      AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+      pushGroupDefinitions(new FakeAdaptorWithSharedMockLdapContext(
+          twoServerMockLdapContext(fakeMembers)), configEntries, pusher,
+          /*fullPush=*/ true, /*init=*/ true);
+      assertTrue(snapshotFile.exists());
+
+      // after a restart, the same groups are pushed from the snapshot
+      AccumulatingDocIdPusher restartPusher = new AccumulatingDocIdPusher();
+      pushGroupDefinitions(new FakeAdaptorWithSharedMockLdapContext(
+          twoServerMockLdapContext(fakeMembers)), configEntries,
+          restartPusher, /*fullPush=*/ true, /*init=*/ true);
+      assertEquals(pusher.getGroups(), restartPusher.getGroups());
+    } finally {
+      snapshotFile.delete();
+    }
+  }
+
+  @Test
+  public void testFakeAdaptorInitBadCrawlConcurrency() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.crawlConcurrency", "0");
+    try {
+      initializeAdaptorConfig(adAdaptor, configEntries);
+      fail("Did not catch expected exception");
+    } catch (InvalidConfigurationException ice) {
+      assertTrue(ice.toString().contains(
+          "invalid value for ad.crawlConcurrency"));
+    }
+  }
+
+  @Test
+  public void testFakeAdaptorInitBadPageSize() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.servers.server1.ldapPageSize", "bogus");
+    try {
+      initializeAdaptorConfig(adAdaptor, configEntries);
+      fail("Did not catch expected exception");
+    } catch (InvalidConfigurationException ice) {
+      assertTrue(ice.toString().contains(
+          "invalid value for ad.ldapPageSize"));
+    }
+  }
+
+  @Test
+  public void testFakeAdaptorInitBadTransport() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.transport", "carrier-pigeon");
+    try {
+      initializeAdaptorConfig(adAdaptor, configEntries);
+      fail("Did not catch expected exception");
+    } catch (InvalidConfigurationException ice) {
+      assertTrue(ice.toString().contains("invalid value for ad.transport"));
+    }
+  }
+
+  @Test
+  public void testFakeAdaptorInitBadIncrementalMode() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.incrementalMode", "sometimes");
+    try {
+      initializeAdaptorConfig(adAdaptor, configEntries);
+      fail("Did not catch expected exception");
+    } catch (InvalidConfigurationException ice) {
+      assertTrue(ice.toString().contains(
+          "invalid value for ad.incrementalMode"));
+    }
+  }
+
+  @Test
+  public void testFakeAdaptorInitNioTransportWithSsl() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.transport", "nio");
+    configEntries.put("ad.servers.server1.method", "ssl");
+    try {
+      initializeAdaptorConfig(adAdaptor, configEntries);
+      fail("Did not catch expected exception");
+    } catch (InvalidConfigurationException ice) {
+      assertTrue(ice.toString().contains("supports only method=standard"));
+    }
   }
 
   @Test
@@ -315,7 +592,9 @@ public class AdAdaptorTest {
     final AdEntity goldenEntity = groupEntity[0];
     final Map<AdEntity, Set<String>> goldenMembers =
         new HashMap<AdEntity, Set<String>>();
-    goldenMembers.put(goldenEntity, goldenEntity.getMembers());
+    goldenMembers.put(goldenEntity, new HashSet<String>(members));
+    // the catalog holds the members; the entity no longer does
+    assertTrue(goldenEntity.getMembers().isEmpty());
     final Map<String, AdEntity> goldenSid =
         new HashMap<String, AdEntity>();
     goldenSid.put(goldenEntity.getSid(), goldenEntity);
@@ -662,8 +941,8 @@ public class AdAdaptorTest {
     // attempt to invoke incremental crawl during a full crawl
     MoreFakeAdaptor adaptor = new MoreFakeAdaptor();
     adaptor.resetCrawlFlags();
-    Thread fullThread = new FullCrawlThread(adaptor);
-    Thread incrementalThread = new IncrementalCrawlThread(adaptor);
+    CrawlThread fullThread = new FullCrawlThread(adaptor);
+    CrawlThread incrementalThread = new IncrementalCrawlThread(adaptor);
     fullThread.start();
     try {
       Thread.sleep(BRIEF_DELAY_IN_MILLISECONDS);
@@ -671,8 +950,8 @@ public class AdAdaptorTest {
       throw new InterruptedNamingException(ex.getMessage());
     }
     incrementalThread.start();
-    fullThread.join();
-    incrementalThread.join();
+    fullThread.finish();
+    incrementalThread.finish();
     assertTrue(adaptor.ranFullCrawl());
     assertFalse(adaptor.ranIncrementalCrawl());
 
@@ -687,8 +966,8 @@ public class AdAdaptorTest {
       throw new InterruptedNamingException(ex.getMessage());
     }
     fullThread.start();
-    incrementalThread.join();
-    fullThread.join();
+    incrementalThread.finish();
+    fullThread.finish();
     assertTrue(adaptor.ranFullCrawl());
     assertTrue(adaptor.ranIncrementalCrawl());
   }
@@ -741,7 +1020,7 @@ public class AdAdaptorTest {
     Set<AdEntity> updateResults = groupCatalog.readUpdatesFrom(adServer, null,
         "0x0123456789abc", 12345677L);
     Set<AdEntity> goldenResults = Collections.emptySet();
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
 
     // now do an incremental crawl
     updateResults = groupCatalog.readUpdatesFrom(adServer, "ds_service_name",
@@ -752,7 +1031,7 @@ public class AdAdaptorTest {
         false, new String[] { "member", "objectSid;binary", "objectGUID;binary",
             "primaryGroupId", "sAMAccountName" });
     goldenResults = incrementalUserSet;
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
 
     assertEquals(1, incrementalUserSet.size());
     for (AdEntity ae : incrementalUserSet) {
@@ -799,10 +1078,54 @@ public class AdAdaptorTest {
     // do another incremental crawl with same results
     updateResults = groupCatalog.readUpdatesFrom(adServer, "ds_service_name",
         "0x0123456789abc", 12345677L);
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
     assertEquals(golden, groupCatalog);
   }
 
+  @Test
+  public void testApplyIncrementalUpdatesWithMemberChanges() throws Exception {
+    String groupDn = "CN=group,DC=example,DC=com";
+    AdEntity group = new AdEntity("S-1-5-21-42-1000", groupDn);
+    Map<AdEntity, Set<String>> members = new HashMap<AdEntity, Set<String>>();
+    members.put(group, Sets.newHashSet("CN=user1", "CN=user2"));
+    Map<String, AdEntity> bySid = new HashMap<String, AdEntity>();
+    bySid.put(group.getSid(), group);
+    Map<String, AdEntity> byDn = new HashMap<String, AdEntity>();
+    byDn.put(groupDn, group);
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder()
+        .setEntities(Sets.newHashSet(group))
+        .setMembers(members)
+        .setBySid(bySid)
+        .setByDn(byDn)
+        .setDomain(new HashMap<AdEntity, String>()).build();
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, defaultMockLdapContext());
+    adServer.initialize();
+
+    // the changed group, read without its members
+    AdEntity changedGroup = new AdEntity("S-1-5-21-42-1000", groupDn);
+    Map<String, AdServer.MemberChanges> memberChanges =
+        new HashMap<String, AdServer.MemberChanges>();
+    AdServer.MemberChanges changes = new AdServer.MemberChanges();
+    changes.getAdded().add("CN=user3");
+    changes.getRemoved().add("CN=user1");
+    memberChanges.put(groupDn, changes);
+    AdServer.MemberChanges unknownGroupChanges = new AdServer.MemberChanges();
+    unknownGroupChanges.getAdded().add("CN=user1");
+    memberChanges.put("CN=other group,DC=example,DC=com",
+        unknownGroupChanges);
+
+    Set<AdEntity> updated = groupCatalog.applyIncrementalUpdates(adServer,
+        new AdAdaptor.GroupCatalog.IncrementalUpdates(
+            Sets.newHashSet(changedGroup), Sets.<AdEntity>newHashSet(),
+            memberChanges));
+    assertEquals(Sets.newHashSet(changedGroup), updated);
+    assertEquals(Sets.newHashSet("CN=user2", "CN=user3"),
+        groupCatalog.members.get(changedGroup));
+    assertNull(groupCatalog.byDn.get("CN=other group,DC=example,DC=com"));
+  }
+
   @Test
   public void testIncrementalCrawlUpdatesUserPrimaryGroup() throws Exception {
     AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder().build();
@@ -880,7 +1203,7 @@ public class AdAdaptorTest {
     Set<AdEntity> updateResults = groupCatalog.readUpdatesFrom(adServer, null,
         "0x0123456789abc", 12345677L);
     Set<AdEntity> goldenResults = Collections.emptySet();
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
 
     // now do an incremental crawl
     updateResults = groupCatalog.readUpdatesFrom(adServer, "ds_service_name",
@@ -892,7 +1215,7 @@ public class AdAdaptorTest {
     goldenResults = incrementalResults;
     goldenResults.add(groupB);
     goldenResults.add(everyone);
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
 
     assertEquals(3, incrementalResults.size());
     AdEntity goldenUserEntity = null;
@@ -938,7 +1261,449 @@ public class AdAdaptorTest {
     // do another incremental crawl with same results
     updateResults = groupCatalog.readUpdatesFrom(adServer, "ds_service_name",
         "0x0123456789abc", 12345677L);
-    assertEquals(goldenResults, updateResults);
+    assertSameEntities(goldenResults, updateResults);
+  }
+
+  @Test
+  public void testJournalReplaysIncrementalCrawl() throws Exception {
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder().build();
+    MockLdapContext ldapContext = defaultMockLdapContext();
+    String filter = "(|(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))"
+        + "(&(objectClass=user)(objectCategory=person)))";
+    String incrementalFilter = "(&(uSNChanged>=12345678)" + filter + ")";
+    String searchDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(filter, "cn", searchDn, "username")
+               .addSearchResult(filter, "objectSid;binary", searchDn,
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(filter, "objectGUID;binary", searchDn,
+                   hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(filter, "primaryGroupId", searchDn, "groupA")
+               .addSearchResult(filter, "sAMAccountName", searchDn, "username");
+    // in the increment, the user moves to group B
+    ldapContext.addSearchResult(incrementalFilter, "cn", searchDn, "username")
+               .addSearchResult(incrementalFilter, "objectSid;binary", searchDn,
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(incrementalFilter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(incrementalFilter, "primaryGroupId", searchDn,
+                   "groupB")
+               .addSearchResult(incrementalFilter, "sAMAccountName", searchDn,
+                   "username");
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    groupCatalog.bySid.put("S-1-5-32-groupA",
+        new AdEntity("S-1-5-32-groupA", "groupA"));
+    groupCatalog.bySid.put("S-1-5-32-groupB",
+        new AdEntity("S-1-5-32-groupB", "groupB"));
+    groupCatalog.readEverythingFrom(adServer, /*includeMembers=*/ true);
+
+    File snapshotFile = File.createTempFile("catalog", ".snapshot");
+    File journalFile = new File(snapshotFile.getPath() + ".journal");
+    try {
+      CatalogSnapshot snapshot = new CatalogSnapshot(snapshotFile);
+      CatalogJournal journal = new CatalogJournal(journalFile);
+      List<AdServer> servers = Arrays.asList(adServer);
+      snapshot.save(groupCatalog, servers);
+      journal.reset(snapshot.getGeneration());
+      long baseLength = journal.length();
+
+      groupCatalog.journalChanges = new CatalogJournal.Changes();
+      groupCatalog.readUpdatesFrom(adServer, "ds_service_name",
+          "0x0123456789abc", 12345677L);
+      assertFalse(groupCatalog.journalChanges.isEmpty());
+      journal.append(groupCatalog, groupCatalog.journalChanges, servers);
+      assertTrue(journal.length() > baseLength);
+
+      // the base snapshot plus the journal give the updated catalog
+      AdAdaptor.GroupCatalog restored = new GroupCatalogBuilder().build();
+      CatalogSnapshot restoredSnapshot = new CatalogSnapshot(snapshotFile);
+      assertTrue(restoredSnapshot.load(restored, servers));
+      assertTrue(new CatalogJournal(journalFile).replay(restored,
+          restoredSnapshot.getGeneration(), servers));
+      assertEquals(groupCatalog, restored);
+
+      // a torn record is cut off, leaving the catalog of the base snapshot
+      RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+      try {
+        raf.setLength(raf.length() - 3);
+      } finally {
+        raf.close();
+      }
+      AdAdaptor.GroupCatalog base = new GroupCatalogBuilder().build();
+      assertTrue(restoredSnapshot.load(base, servers));
+      assertTrue(new CatalogJournal(journalFile).replay(base,
+          restoredSnapshot.getGeneration(), servers));
+      assertEquals(baseLength, journalFile.length());
+      assertFalse(groupCatalog.equals(base));
+
+      // a journal for another snapshot is ignored, and emptied
+      snapshot.save(groupCatalog, servers);
+      journal.append(groupCatalog, groupCatalog.journalChanges, servers);
+      AdAdaptor.GroupCatalog latest = new GroupCatalogBuilder().build();
+      assertTrue(snapshot.load(latest, servers));
+      assertTrue(new CatalogJournal(journalFile).replay(latest,
+          snapshot.getGeneration(), servers));
+      assertEquals(groupCatalog, latest);
+      assertEquals(baseLength, journalFile.length());
+    } finally {
+      snapshotFile.delete();
+      journalFile.delete();
+    }
+  }
+
+  @Test
+  public void testIncrementalCrawlRemovesDeletedUser() throws Exception {
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder().build();
+    MockLdapContext ldapContext = defaultMockLdapContext();
+    String filter = "(|(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))"
+        + "(&(objectClass=user)(objectCategory=person)))";
+    String tombstoneFilter = "(&(isDeleted=TRUE)(uSNChanged>=12345678)"
+        + "(|(objectClass=group)(objectClass=user)))";
+    String searchDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(filter, "cn", searchDn, "user")
+               .addSearchResult(filter, "objectSid;binary",
+                   searchDn,      // S-1-5-32-544
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(filter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(filter, "primaryGroupId",
+                   searchDn, "groupA")
+               .addSearchResult(filter, "sAMAccountName",
+                   searchDn, "user");
+    // the user is deleted: its tombstone keeps the SID
+    ldapContext.addSearchResult(tombstoneFilter, "objectSid;binary",
+                   searchDn,
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(tombstoneFilter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(tombstoneFilter, "sAMAccountName", searchDn,
+                   "user");
+
+    AdEntity groupA = new AdEntity("S-1-5-32-groupA", "groupA");
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    groupCatalog.bySid.put(groupA.getSid(), groupA);
+    groupCatalog.readEverythingFrom(adServer, /*includeMembers=*/ true);
+    AdEntity user = groupCatalog.bySid.get("S-1-5-32-544");
+    assertNotNull(user);
+    assertEquals(Sets.newHashSet(user.getDn()),
+        groupCatalog.primaryMembers.get(groupA));
+
+    Set<AdEntity> updateResults = groupCatalog.readUpdatesFrom(adServer,
+        "ds_service_name", "0x0123456789abc", 12345677L);
+    assertSameEntities(Sets.newHashSet(groupA, groupCatalog.everyone),
+        updateResults);
+    assertFalse(groupCatalog.entities.contains(user));
+    assertNull(groupCatalog.bySid.get(user.getSid()));
+    assertNull(groupCatalog.byDn.get(user.getDn()));
+    assertEquals(Collections.emptySet(),
+        groupCatalog.primaryMembers.get(groupA));
+    assertFalse(groupCatalog.wellKnownMembership.get(groupCatalog.everyone)
+        .contains(user.getDn()));
+  }
+
+  @Test
+  public void testIncrementalCrawlEmptiesDeletedGroup() throws Exception {
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder().build();
+    MockLdapContext ldapContext = defaultMockLdapContext();
+    String filter = "(|(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))"
+        + "(&(objectClass=user)(objectCategory=person)))";
+    String tombstoneFilter = "(&(isDeleted=TRUE)(uSNChanged>=12345678)"
+        + "(|(objectClass=group)(objectClass=user)))";
+    String searchDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(filter, "cn", searchDn, "group")
+               .addSearchResult(filter, "objectSid;binary",
+                   searchDn,      // S-1-5-32-544
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(filter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(filter, "sAMAccountName",
+                   searchDn, "group")
+               .addSearchResult(filter, "member", searchDn,
+                   "cn=user,DN_for_default_naming_context");
+    ldapContext.addSearchResult(tombstoneFilter, "objectSid;binary",
+                   searchDn,
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(tombstoneFilter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(tombstoneFilter, "sAMAccountName", searchDn,
+                   "group");
+
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    groupCatalog.readEverythingFrom(adServer, /*includeMembers=*/ true);
+    AdEntity group = groupCatalog.bySid.get("S-1-5-32-544");
+    assertNotNull(group);
+    assertTrue(group.isGroup());
+
+    Set<AdEntity> updateResults = groupCatalog.readUpdatesFrom(adServer,
+        "ds_service_name", "0x0123456789abc", 12345677L);
+    assertEquals(Sets.newHashSet(group), updateResults);
+    assertFalse(groupCatalog.entities.contains(group));
+    assertNull(groupCatalog.members.get(group));
+
+    // the deleted group is made with no members, until it is pushed
+    final Map<GroupPrincipal, List<Principal>> golden =
+        new HashMap<GroupPrincipal, List<Principal>>();
+    GroupPrincipal principal =
+        new GroupPrincipal("group@BUILTIN", "example.com");
+    golden.put(principal, Collections.<Principal>emptyList());
+    assertEquals(golden, groupCatalog.makeDefs(updateResults));
+    assertEquals(golden,
+        groupCatalog.makeDefs(Collections.<AdEntity>emptySet()));
+    groupCatalog.groupsPushed(updateResults,
+        Collections.singleton(principal));
+    assertEquals(golden, groupCatalog.makeDefs(updateResults));
+    groupCatalog.groupsPushed(updateResults,
+        Collections.<GroupPrincipal>emptySet());
+    assertEquals(Collections.emptyMap(),
+        groupCatalog.makeDefs(updateResults));
+  }
+
+  @Test
+  public void testDeletedGroupsToPushAreSavedAndJournaled() throws Exception {
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder().build();
+    MockLdapContext ldapContext = defaultMockLdapContext();
+    String filter = "(|(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))"
+        + "(&(objectClass=user)(objectCategory=person)))";
+    String tombstoneFilter = "(&(isDeleted=TRUE)(uSNChanged>=12345678)"
+        + "(|(objectClass=group)(objectClass=user)))";
+    String searchDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(filter, "cn", searchDn, "group")
+               .addSearchResult(filter, "objectSid;binary",
+                   searchDn,      // S-1-5-32-544
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(filter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(filter, "sAMAccountName",
+                   searchDn, "group");
+    ldapContext.addSearchResult(tombstoneFilter, "objectSid;binary",
+                   searchDn,
+                   hexStringToByteArray("01020000000000052000000020020000"))
+               .addSearchResult(tombstoneFilter, "objectGUID;binary",
+                   searchDn, hexStringToByteArray("000102030405060708090a0b0e"))
+               .addSearchResult(tombstoneFilter, "sAMAccountName", searchDn,
+                   "group");
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    groupCatalog.readEverythingFrom(adServer, /*includeMembers=*/ true);
+    GroupPrincipal principal =
+        new GroupPrincipal("group@BUILTIN", "example.com");
+
+    File snapshotFile = File.createTempFile("catalog", ".snapshot");
+    File journalFile = new File(snapshotFile.getPath() + ".journal");
+    try {
+      CatalogSnapshot snapshot = new CatalogSnapshot(snapshotFile);
+      CatalogJournal journal = new CatalogJournal(journalFile);
+      List<AdServer> servers = Arrays.asList(adServer);
+      snapshot.save(groupCatalog, servers);
+      journal.reset(snapshot.getGeneration());
+
+      // the group is deleted, and the push of its empty definition fails
+      groupCatalog.journalChanges = new CatalogJournal.Changes();
+      Set<AdEntity> updateResults = groupCatalog.readUpdatesFrom(adServer,
+          "ds_service_name", "0x0123456789abc", 12345677L);
+      groupCatalog.groupsPushed(updateResults,
+          Collections.singleton(principal));
+      journal.append(groupCatalog, groupCatalog.journalChanges, servers);
+      AdAdaptor.GroupCatalog restored = new GroupCatalogBuilder().build();
+      assertTrue(snapshot.load(restored, servers));
+      assertTrue(new CatalogJournal(journalFile).replay(restored,
+          snapshot.getGeneration(), servers));
+      assertEquals(Collections.singletonList(principal),
+          new ArrayList<GroupPrincipal>(restored.deletedGroups.values()));
+      assertEquals(groupCatalog, restored);
+
+      // and so is a snapshot saved while it is still to be pushed
+      snapshot.save(groupCatalog, servers);
+      journal.reset(snapshot.getGeneration());
+      restored = new GroupCatalogBuilder().build();
+      assertTrue(snapshot.load(restored, servers));
+      assertEquals(groupCatalog.deletedGroups, restored.deletedGroups);
+
+      // its push succeeds: that alone is journaled
+      groupCatalog.journalChanges = new CatalogJournal.Changes();
+      groupCatalog.groupsPushed(updateResults,
+          Collections.<GroupPrincipal>emptySet());
+      assertFalse(groupCatalog.journalChanges.isEmpty());
+      journal.append(groupCatalog, groupCatalog.journalChanges, servers);
+      restored = new GroupCatalogBuilder().build();
+      assertTrue(snapshot.load(restored, servers));
+      assertTrue(new CatalogJournal(journalFile).replay(restored,
+          snapshot.getGeneration(), servers));
+      assertEquals(Collections.emptyMap(), restored.deletedGroups);
+    } finally {
+      snapshotFile.delete();
+      journalFile.delete();
+    }
+  }
+
+  @Test
+  public void testDeletedGroupIsPushedAgainAfterFailure() throws Exception {
+    final MockLdapContext ldapContext = defaultMockLdapContext();
+    String groupFilter = "(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))";
+    String userFilter = "(&(objectClass=user)(objectCategory=person))";
+    ldapContext.addSearchResult(groupFilter, "objectSid;binary", "ou=groups",
+            hexStringToByteArray("010100000000000000000000")) // S-1-0-0
+        .addSearchResult(groupFilter, "objectGUID;binary", "ou=groups",
+            hexStringToByteArray("000102030405060708090a0b0e"))
+        .addSearchResult(groupFilter, "sAMAccountName", "ou=groups", "group")
+        .addSearchResult(userFilter, "objectSid;binary", "ou=users",
+            hexStringToByteArray("010100000000000001000000")) // S-1-0-1
+        .addSearchResult(userFilter, "objectGUID;binary", "ou=users",
+            hexStringToByteArray("000102030405060708090a0b0f"))
+        .addSearchResult(userFilter, "primaryGroupId", "ou=users", "0")
+        .addSearchResult(userFilter, "sAMAccountName", "ou=users", "user");
+    AdAdaptor adAdaptor = new AdAdaptor() {
+      @Override
+      AdServer newAdServer(Method method, String host, int port,
+          String principal, String passwd, String userSearchBaseDN,
+          String groupSearchBaseDN, String userSearchFilter,
+          String groupSearchFilter, String ldapTimeoutInMillis) {
+        return new AdServer(host, userSearchBaseDN, groupSearchBaseDN,
+            userSearchFilter, groupSearchFilter, ldapContext) {
+          @Override
+          void recreateLdapContext() {
+            // leave ldapContext unchanged
+          }
+        };
+      }
+    };
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.servers.server1.userSearchBaseDN", "ou=users");
+    configEntries.put("ad.servers.server1.groupSearchBaseDN", "ou=groups");
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
+        /*init=*/ true);
+    final GroupPrincipal group =
+        new GroupPrincipal("group@GSA-CONNECTORS", "Default");
+    assertEquals(1, pusher.getGroups().get(group).size());
+
+    // the group is deleted, and the push of its empty definition fails
+    ldapContext.addKey("highestCommittedUSN", "12345679");
+    String tombstoneFilter = "(&(isDeleted=TRUE)(uSNChanged>=12345679)"
+        + "(|(objectClass=group)(objectClass=user)))";
+    String searchDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(tombstoneFilter, "objectSid;binary", searchDn,
+            hexStringToByteArray("010100000000000000000000"))
+        .addSearchResult(tombstoneFilter, "objectGUID;binary", searchDn,
+            hexStringToByteArray("000102030405060708090a0b0e"))
+        .addSearchResult(tombstoneFilter, "sAMAccountName", searchDn, "group");
+    AccumulatingDocIdPusher failingPusher = new AccumulatingDocIdPusher() {
+      @Override
+      public GroupPrincipal pushGroupDefinitions(
+          Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+          boolean caseSensitive, ExceptionHandler handler)
+          throws InterruptedException {
+        return defs.containsKey(group) ? group
+            : super.pushGroupDefinitions(defs, caseSensitive, handler);
+      }
+    };
+    pushGroupDefinitions(adAdaptor, configEntries, failingPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertFalse(failingPusher.getGroups().containsKey(group));
+
+    // the next push sends it, though nothing changed since
+    AccumulatingDocIdPusher incrementalPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, incrementalPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertEquals(Collections.emptyList(),
+        incrementalPusher.getGroups().get(group));
+
+    // and only once
+    AccumulatingDocIdPusher nextPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, nextPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertFalse(nextPusher.getGroups().containsKey(group));
+  }
+
+  @Test
+  public void testFailedGroupIsPushedAgain() throws Exception {
+    final MockLdapContext ldapContext = defaultMockLdapContext();
+    String groupFilter = "(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))";
+    String userFilter = "(&(objectClass=user)(objectCategory=person))";
+    ldapContext.addSearchResult(groupFilter, "objectSid;binary", "ou=groups",
+            hexStringToByteArray("010100000000000000000000")) // S-1-0-0
+        .addSearchResult(groupFilter, "objectGUID;binary", "ou=groups",
+            hexStringToByteArray("000102030405060708090a0b0e"))
+        .addSearchResult(groupFilter, "sAMAccountName", "ou=groups", "group");
+    AdAdaptor adAdaptor = new AdAdaptor() {
+      @Override
+      AdServer newAdServer(Method method, String host, int port,
+          String principal, String passwd, String userSearchBaseDN,
+          String groupSearchBaseDN, String userSearchFilter,
+          String groupSearchFilter, String ldapTimeoutInMillis) {
+        return new AdServer(host, userSearchBaseDN, groupSearchBaseDN,
+            userSearchFilter, groupSearchFilter, ldapContext) {
+          @Override
+          void recreateLdapContext() {
+            // leave ldapContext unchanged
+          }
+        };
+      }
+    };
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.servers.server1.userSearchBaseDN", "ou=users");
+    configEntries.put("ad.servers.server1.groupSearchBaseDN", "ou=groups");
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
+        /*init=*/ true);
+    final GroupPrincipal group =
+        new GroupPrincipal("group@GSA-CONNECTORS", "Default");
+    assertEquals(0, pusher.getGroups().get(group).size());
+
+    // a user is added to the group, and the push of the group fails
+    ldapContext.addKey("highestCommittedUSN", "12345679");
+    for (String filter : Arrays.asList(userFilter,
+        "(&(uSNChanged>=12345679)" + userFilter + ")")) {
+      ldapContext.addSearchResult(filter, "objectSid;binary", "ou=users",
+              hexStringToByteArray("010100000000000001000000")) // S-1-0-1
+          .addSearchResult(filter, "objectGUID;binary", "ou=users",
+              hexStringToByteArray("000102030405060708090a0b0f"))
+          .addSearchResult(filter, "primaryGroupId", "ou=users", "0")
+          .addSearchResult(filter, "sAMAccountName", "ou=users", "user");
+    }
+    AccumulatingDocIdPusher failingPusher = new AccumulatingDocIdPusher() {
+      @Override
+      public GroupPrincipal pushGroupDefinitions(
+          Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+          boolean caseSensitive, ExceptionHandler handler)
+          throws InterruptedException {
+        return defs.containsKey(group) ? group
+            : super.pushGroupDefinitions(defs, caseSensitive, handler);
+      }
+    };
+    pushGroupDefinitions(adAdaptor, configEntries, failingPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertFalse(failingPusher.getGroups().containsKey(group));
+
+    // the next incremental push sends it, though nothing changed since
+    AccumulatingDocIdPusher incrementalPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, incrementalPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertEquals(Arrays.asList(
+        new UserPrincipal("user@GSA-CONNECTORS", "Default")),
+        incrementalPusher.getGroups().get(group));
+
+    // and only once
+    AccumulatingDocIdPusher nextPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, nextPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertFalse(nextPusher.getGroups().containsKey(group));
   }
 
   @Test
@@ -1071,7 +1836,91 @@ public class AdAdaptorTest {
       golden.put(new GroupPrincipal("known_group", "example.com"),
           Collections.<Principal>emptyList());
     }
-    assertEquals(golden, groupCatalog.makeDefs(groupCatalog.entities));
+    assertDefsEqual(golden, groupCatalog.makeDefs(groupCatalog.entities));
+  }
+
+  @Test
+  public void testGroupCatalogMakeDefsWithOffHeapMembers() throws Exception {
+    AdAdaptor.GroupCatalog groupCatalog = new AdAdaptor.GroupCatalog(
+        defaultLocalizedStringMap(), "example.com", false,
+        new OffHeapStringTable(false));
+
+    MockLdapContext ldapContext = mockLdapContextForMakeDefs(false);
+
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+
+    groupCatalog.readEverythingFrom(adServer, /*includeMembers=*/ true);
+    for (Set<String> members : groupCatalog.members.values()) {
+      assertTrue(members instanceof MemberSet);
+    }
+
+    tweakGroupCatalogForMakeDefs(groupCatalog, adServer, false);
+
+    final Map<GroupPrincipal, List<Principal>> golden =
+        new HashMap<GroupPrincipal, List<Principal>>();
+    {
+      golden.put(new GroupPrincipal("sam@GSA-CONNECTORS", "example.com"),
+          Arrays.asList(
+              new UserPrincipal("sam2", "example.com"),
+              new GroupPrincipal("known_group", "example.com")));
+      golden.put(new GroupPrincipal("known_group", "example.com"),
+          Collections.<Principal>emptyList());
+    }
+    assertDefsEqual(golden, groupCatalog.makeDefs(groupCatalog.entities));
+  }
+
+  @Test
+  public void testGroupCatalogMakeDefsSharesPrincipals() throws Exception {
+    AdEntity group1 = new AdEntity("S-1-5-21-42-1001", "CN=group1");
+    AdEntity group2 = new AdEntity("S-1-5-21-42-1002", "CN=group2");
+    AdEntity user = new AdEntity("S-1-5-21-42-1003", "CN=user", "513",
+        "user");
+    AdEntity badUser = new AdEntity("S-1-5-21-42-1004", "CN=bad", "513",
+        "");
+    Map<AdEntity, Set<String>> members = new HashMap<AdEntity, Set<String>>();
+    members.put(group1, Sets.newHashSet("CN=user", "CN=group2", "CN=bad"));
+    members.put(group2, Sets.newHashSet("CN=user", "CN=bad"));
+    Map<String, AdEntity> bySid = new HashMap<String, AdEntity>();
+    Map<String, AdEntity> byDn = new HashMap<String, AdEntity>();
+    for (AdEntity e : Arrays.asList(group1, group2, user, badUser)) {
+      bySid.put(e.getSid(), e);
+      byDn.put(e.getDn(), e);
+    }
+    AdAdaptor.GroupCatalog groupCatalog = new GroupCatalogBuilder()
+        .setEntities(Sets.newHashSet(group1, group2, user, badUser))
+        .setMembers(members)
+        .setBySid(bySid)
+        .setByDn(byDn)
+        .setDomain(new HashMap<AdEntity, String>()).build();
+
+    Map<GroupPrincipal, List<Principal>> defs =
+        groupCatalog.makeDefs(groupCatalog.entities);
+    GroupPrincipal principal1 = new GroupPrincipal("group1", "example.com");
+    GroupPrincipal principal2 = new GroupPrincipal("group2", "example.com");
+    Principal userPrincipal = new UserPrincipal("user", "example.com");
+    assertEquals(Sets.newHashSet(userPrincipal, principal2),
+        new HashSet<Principal>(defs.get(principal1)));
+    assertEquals(Arrays.asList(userPrincipal), defs.get(principal2));
+
+    // each principal is made once, and shared by the definitions
+    Principal userIn1 = null;
+    Principal group2In1 = null;
+    for (Principal p : defs.get(principal1)) {
+      if (p.isGroup()) {
+        group2In1 = p;
+      } else {
+        userIn1 = p;
+      }
+    }
+    assertSame(userIn1, defs.get(principal2).get(0));
+    for (GroupPrincipal key : defs.keySet()) {
+      if (key.equals(principal2)) {
+        assertSame(group2In1, key);
+      }
+    }
   }
 
   @Test
@@ -1133,9 +1982,10 @@ public class AdAdaptorTest {
     AdEntity formerGroup = null;
     for (AdEntity entity : groupCatalog.entities) {
       if ("cn=name\\ under,DN_for_default_naming_context".equals(entity.getDn())
-          && (entity.getMembers().size() == 4)) {
+          && entity.isGroup()
+          && (groupCatalog.members.get(entity).size() == 4)) {
         formerGroup = entity;
-        for (String member : entity.getMembers()) {
+        for (String member : groupCatalog.members.get(entity)) {
           replacementGroup.getMembers().add(member);
         }
         // trigger the IllegalArgumentException paths by adding empty-named
@@ -1156,11 +2006,13 @@ public class AdAdaptorTest {
       }
     }
     assertNotNull(formerGroup);
-    groupCatalog.members.put(replacementGroup, replacementGroup.getMembers());
+    // the replacement has the same SID, so it equals formerGroup: remove first
     groupCatalog.members.remove(formerGroup);
+    groupCatalog.members.put(replacementGroup, replacementGroup.getMembers());
+    groupCatalog.entities.remove(formerGroup);
+    groupCatalog.domain.remove(formerGroup);
     groupCatalog.entities.add(replacementGroup);
     groupCatalog.entities.add(groupWithNoName);
-    groupCatalog.entities.remove(formerGroup);
 
     // rest of this method resembles the previous test, except for the empty-
     // named user and group.
@@ -1184,11 +2036,41 @@ public class AdAdaptorTest {
         assertTrue("results did not have key " + key, results.containsKey(key));
         assertNull("non-null result for key " + key, results.get(key));
       } else {
-        assertEquals(value, results.get(key));
+        assertEquals(new HashSet<Principal>(value),
+            new HashSet<Principal>(results.get(key)));
       }
     }
   }
 
+  /**
+   * Asserts that <code>results</code> holds entities with the same fields as
+   * those of <code>golden</code> (entities are otherwise equal when only
+   * their SIDs are).
+   */
+  private static void assertSameEntities(Set<AdEntity> golden,
+      Set<AdEntity> results) {
+    assertTrue("expected " + golden + " but was " + results,
+        AdEntity.sameContents(golden, results));
+  }
+
+  /**
+   * Asserts that <code>results</code> defines the same groups as
+   * <code>golden</code>, with the same members in any order (member sets
+   * are not ordered by DN).
+   */
+  private static void assertDefsEqual(
+      Map<GroupPrincipal, List<Principal>> golden,
+      Map<GroupPrincipal, List<Principal>> results) {
+    assertEquals(golden.keySet(), results.keySet());
+    for (GroupPrincipal group : golden.keySet()) {
+      assertEquals("members of " + group,
+          new HashSet<Principal>(golden.get(group)),
+          new HashSet<Principal>(results.get(group)));
+      assertEquals("members of " + group, golden.get(group).size(),
+          results.get(group).size());
+    }
+  }
+
   // Tests for the methods of the outer class
 
   @Test
@@ -1414,6 +2296,141 @@ public class AdAdaptorTest {
     assertEquals(goldenGroups, results);
   }
 
+  @Test
+  public void testFakeAdaptorPushesOnlyChangedGroups() throws Exception {
+    AdAdaptor adAdaptor = new FakeAdaptor();
+    Map<String, String> configEntries = defaultConfig();
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
+        /*init=*/ true);
+    assertEquals(4, pusher.getGroups().size());
+
+    // nothing changed since: neither push sends any group
+    AccumulatingDocIdPusher secondPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, secondPusher,
+        /*fullPush=*/ true, /*init=*/ false);
+    pushGroupDefinitions(adAdaptor, configEntries, secondPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertEquals(0, secondPusher.getGroups().size());
+
+    // unless unchanged groups are to be pushed all the same
+    configEntries.put("ad.pushUnchangedGroups", "true");
+    AccumulatingDocIdPusher thirdPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, thirdPusher,
+        /*fullPush=*/ true, /*init=*/ true);
+    pushGroupDefinitions(adAdaptor, configEntries, thirdPusher,
+        /*fullPush=*/ true, /*init=*/ false);
+    assertEquals(pusher.getGroups(), thirdPusher.getGroups());
+  }
+
+  @Test
+  public void testFakeAdaptorPushesShardsConcurrently() throws Exception {
+    Map<String, String> configEntries = defaultConfig();
+    AccumulatingDocIdPusher golden = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(new FakeAdaptor(), configEntries, golden,
+        /*fullPush=*/ true, /*init=*/ true);
+
+    configEntries.put("ad.pushConcurrency", "3");
+    configEntries.put("ad.pushChunkGroups", "1");
+    final AccumulatingDocIdPusher accumulator = new AccumulatingDocIdPusher();
+    DocIdPusher pusher = new DelegatingDocIdPusher() {
+      @Override
+      protected DocIdPusher delegate() {
+        return accumulator;
+      }
+
+      @Override
+      public synchronized GroupPrincipal pushGroupDefinitions(
+          Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+          boolean caseSensitive, ExceptionHandler handler)
+          throws InterruptedException {
+        return super.pushGroupDefinitions(defs, caseSensitive, handler);
+      }
+    };
+    pushGroupDefinitions(new FakeAdaptor(), configEntries, pusher,
+        /*fullPush=*/ true, /*init=*/ true);
+    assertEquals(golden.getGroups(), accumulator.getGroups());
+  }
+
+  @Test
+  public void testIncrementalPushLeavesEveryoneToFullPush() throws Exception {
+    assertEveryonePushedIncrementally(false);
+    assertEveryonePushedIncrementally(true);
+  }
+
+  /**
+   * Adds a user between a full and an incremental push, and checks that
+   * Everyone is pushed with the user by the incremental push only when
+   * <code>ad.pushEveryoneIncrementally</code> is true.
+   */
+  private void assertEveryonePushedIncrementally(boolean incrementally)
+      throws Exception {
+    final MockLdapContext ldapContext = defaultMockLdapContext();
+    String groupFilter = "(&(objectClass=group)"
+        + "(groupType:1.2.840.113556.1.4.803:=2147483648))";
+    String userFilter = "(&(objectClass=user)(objectCategory=person))";
+    ldapContext.addSearchResult(groupFilter, "objectSid;binary", "ou=groups",
+            hexStringToByteArray("010100000000000000000000")) // S-1-0-0
+        .addSearchResult(groupFilter, "objectGUID;binary", "ou=groups",
+            hexStringToByteArray("000102030405060708090a0b0e"))
+        .addSearchResult(groupFilter, "sAMAccountName", "ou=groups", "group");
+    AdAdaptor adAdaptor = new AdAdaptor() {
+      @Override
+      AdServer newAdServer(Method method, String host, int port,
+          String principal, String passwd, String userSearchBaseDN,
+          String groupSearchBaseDN, String userSearchFilter,
+          String groupSearchFilter, String ldapTimeoutInMillis) {
+        return new AdServer(host, userSearchBaseDN, groupSearchBaseDN,
+            userSearchFilter, groupSearchFilter, ldapContext) {
+          @Override
+          void recreateLdapContext() {
+            // leave ldapContext unchanged
+          }
+        };
+      }
+    };
+    Map<String, String> configEntries = defaultConfig();
+    configEntries.put("ad.servers.server1.userSearchBaseDN", "ou=users");
+    configEntries.put("ad.servers.server1.groupSearchBaseDN", "ou=groups");
+    configEntries.put("ad.pushEveryoneIncrementally", "" + incrementally);
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, pusher, /*fullPush=*/ true,
+        /*init=*/ true);
+    GroupPrincipal everyone = new GroupPrincipal("Everyone", "Default");
+    assertEquals(0, pusher.getGroups().get(everyone).size());
+
+    // a user is added to the group (as its primary group)
+    ldapContext.addKey("highestCommittedUSN", "12345679");
+    for (String filter : Arrays.asList(userFilter,
+        "(&(uSNChanged>=12345679)" + userFilter + ")")) {
+      ldapContext.addSearchResult(filter, "objectSid;binary", "ou=users",
+              hexStringToByteArray("010100000000000001000000")) // S-1-0-1
+          .addSearchResult(filter, "objectGUID;binary", "ou=users",
+              hexStringToByteArray("000102030405060708090a0b0f"))
+          .addSearchResult(filter, "primaryGroupId", "ou=users", "0")
+          .addSearchResult(filter, "sAMAccountName", "ou=users", "user");
+    }
+    AccumulatingDocIdPusher incrementalPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, incrementalPusher,
+        /*fullPush=*/ false, /*init=*/ false);
+    assertEquals(1, incrementalPusher.getGroups().get(
+        new GroupPrincipal("group@GSA-CONNECTORS", "Default")).size());
+    assertEquals(incrementally,
+        incrementalPusher.getGroups().containsKey(everyone));
+
+    // the next full push sends it, unless it was sent already
+    AccumulatingDocIdPusher fullPusher = new AccumulatingDocIdPusher();
+    pushGroupDefinitions(adAdaptor, configEntries, fullPusher,
+        /*fullPush=*/ true, /*init=*/ false);
+    if (incrementally) {
+      assertFalse(fullPusher.getGroups().containsKey(everyone));
+    } else {
+      assertEquals(Arrays.asList(
+          new UserPrincipal("user@GSA-CONNECTORS", "Default")),
+          fullPusher.getGroups().get(everyone));
+    }
+  }
+
   @Test
   public void testGetDocIdsExceptionPath() throws Exception {
     AdAdaptor adAdaptor = new AdAdaptor() {
@@ -1436,13 +2453,13 @@ public class AdAdaptorTest {
           int timesSearchCalled = 0;
           int timesEnsureConnectionCalled = 0;
           @Override
-          public Set<AdEntity> search(String baseDn, String filter,
-              boolean deleted, String[] attributes)
+          public void search(String baseDn, String filter,
+              boolean deleted, String[] attributes, EntityHandler handler)
               throws InterruptedNamingException {
             if (errorFilter.equals(filter) && timesSearchCalled++ == 0) {
               throw new InterruptedNamingException("First exception");
             } else {
-              return super.search(baseDn, filter, deleted, attributes);
+              super.search(baseDn, filter, deleted, attributes, handler);
             }
           }
           @Override
@@ -1812,6 +2829,51 @@ public class AdAdaptorTest {
     }
   };
 
+  /**
+   * A version of AdAdaptor whose (mock) AdServers each have a MockLdapContext
+   * of their own, by host, so that they can be crawled in parallel.  Servers
+   * whose hosts are in <code>failingHosts</code> fail to connect, after the
+   * given delay (in milliseconds).
+   */
+  public class FakeAdaptorWithMockLdapContextPerServer extends AdAdaptor {
+    final Map<String, MockLdapContext> ldapContexts;
+    final Map<String, Long> failingHosts =
+        new ConcurrentHashMap<String, Long>();
+
+    public FakeAdaptorWithMockLdapContextPerServer(
+        Map<String, MockLdapContext> ldapContexts) {
+      this.ldapContexts = ldapContexts;
+    }
+    @Override
+    AdServer newAdServer(Method method, String host, int port,
+        String principal, String passwd, String userSearchBaseDN,
+        String groupSearchBaseDN, String userSearchFilter,
+        String groupSearchFilter, String ldapTimeoutInMillis) {
+      return new AdServer(host, userSearchBaseDN, groupSearchBaseDN,
+          userSearchFilter, groupSearchFilter, ldapContexts.get(host)) {
+        @Override
+        void recreateLdapContext() {
+          // leave ldapContext unchanged
+        }
+        @Override
+        public void ensureConnectionIsCurrent()
+            throws CommunicationException, NamingException {
+          Long delay = failingHosts.get(getHostName());
+          if (delay == null) {
+            super.ensureConnectionIsCurrent();
+            return;
+          }
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException ex) {
+            throw new InterruptedNamingException(ex.getMessage());
+          }
+          throw new CommunicationException("testing " + getHostName());
+        }
+      };
+    }
+  };
+
   /** Simple Fake of GroupCatalog that tracks calls to full/incremental crawl */
   private static class FakeCatalog extends AdAdaptor.GroupCatalog {
     private boolean ranFullCrawl;
@@ -1897,37 +2959,55 @@ public class AdAdaptorTest {
     }
   };
 
+  /** a thread that crawls, keeping what the crawl throws for the test */
+  private abstract static class CrawlThread extends Thread {
+    private volatile Exception failure;
+
+    abstract void crawl(DocIdPusher pusher) throws Exception;
+
+    @Override
+    public void run() {
+      try {
+        crawl(new AccumulatingDocIdPusher());
+      } catch (Exception ex) {
+        failure = ex;
+      }
+    }
+
+    /** Waits for the crawl to end, rethrowing what it threw (if anything). */
+    void finish() throws Exception {
+      join();
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
   /** generates a thread that invokes a (fake!) full crawl */
-  private static class FullCrawlThread extends Thread {
-    FullCrawlThread (final AdAdaptor adAdaptor) {
-      super((new Runnable() {
-        @Override
-        public void run() {
-          try {
-            AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
-            adAdaptor.getDocIds(pusher);
-          } catch (Exception ex) {
-            throw new RuntimeException(ex);
-          }
-        }
-      }));
+  private static class FullCrawlThread extends CrawlThread {
+    private final AdAdaptor adAdaptor;
+
+    FullCrawlThread (AdAdaptor adAdaptor) {
+      this.adAdaptor = adAdaptor;
+    }
+
+    @Override
+    void crawl(DocIdPusher pusher) throws Exception {
+      adAdaptor.getDocIds(pusher);
     }
   }
 
   /** generates a thread that invokes a (fake!) incremental crawl */
-  private static class IncrementalCrawlThread extends Thread {
-    IncrementalCrawlThread (final AdAdaptor adAdaptor) {
-      super((new Runnable() {
-        @Override
-        public void run() {
-          try {
-            AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
-            adAdaptor.getModifiedDocIds(pusher);
-          } catch (Exception ex) {
-            throw new RuntimeException(ex);
-          }
-        }
-      }));
+  private static class IncrementalCrawlThread extends CrawlThread {
+    private final AdAdaptor adAdaptor;
+
+    IncrementalCrawlThread (AdAdaptor adAdaptor) {
+      this.adAdaptor = adAdaptor;
+    }
+
+    @Override
+    void crawl(DocIdPusher pusher) throws Exception {
+      adAdaptor.getModifiedDocIds(pusher);
     }
   }
 
@@ -63,13 +63,16 @@ public class AdEntityTest {
 
   @Test
   public void testEquals() throws Exception {
-    AdEntity one = one = new AdEntity("foo", "bar");
+    AdEntity one = new AdEntity("foo", "bar");
     String nonAdEntity = new String("bogus");
     assertFalse(one.equals(nonAdEntity));
+    // the same SID is the same entity, even renamed
     AdEntity two = new AdEntity("foo", "baz");
-    assertFalse(one.equals(nonAdEntity));
+    assertEquals(one, two);
+    assertEquals(one.hashCode(), two.hashCode());
+    assertTrue(AdEntity.CONTENT_ORDER.compare(one, two) != 0);
     two = new AdEntity("baz", "bar");
-    assertFalse(one.equals(nonAdEntity));
+    assertFalse(one.equals(two));
 
     Attributes attrs = new BasicAttributes();
     attrs.put("objectGUID;binary",
@@ -89,17 +92,43 @@ public class AdEntityTest {
     sr = new SearchResult("SR name", attrs, attrs);
     sr.setNameInNamespace("cn=user,ou=Users,dc=example,dc=com");
     two = new AdEntity(sr);
-    assertFalse(one.equals(two));
+    assertEquals(one, two);
+    assertTrue(AdEntity.CONTENT_ORDER.compare(one, two) != 0);
     // TODO(myk): additional equality tests for other fields, if deemed useful
 
     // test userAccountControl field for equality
     one = new AdEntity("dn1", "dn=user,ou=Users,dc=example,dc=com");
     two = new AdEntity("dn1", "dn=user,ou=Users,dc=example,dc=com");
-    assertEquals(one, two);
+    assertEquals(0, AdEntity.CONTENT_ORDER.compare(one, two));
     two.setUserAccountControl(514);  // disabled user
-    assertFalse(one.equals(two));
+    assertTrue(AdEntity.CONTENT_ORDER.compare(one, two) != 0);
     two.setUserAccountControl(0);
-    assertEquals(one, two);
+    assertEquals(0, AdEntity.CONTENT_ORDER.compare(one, two));
+  }
+
+  @Test
+  public void testHashStableAsMembersAreAppended() throws Exception {
+    AdEntity group = new AdEntity("S-1-5-21-42-1000", "cn=group");
+    Set<AdEntity> groups = new HashSet<AdEntity>();
+    groups.add(group);
+    int hash = group.hashCode();
+    AdEntity copy = new AdEntity("S-1-5-21-42-1000", "cn=group");
+    assertEquals(0, AdEntity.CONTENT_ORDER.compare(group, copy));
+    group.getMembers().add("cn=user");
+    assertEquals(hash, group.hashCode());
+    assertTrue(groups.contains(group));
+    // members are compared by the catalog, from its own member sets
+    assertEquals(0, AdEntity.CONTENT_ORDER.compare(group, copy));
+    assertTrue(AdEntity.sameContents(groups, Collections.singleton(copy)));
+  }
+
+  @Test
+  public void testReleaseMembers() throws Exception {
+    AdEntity group = new AdEntity("S-1-5-21-42-1000", "cn=group");
+    group.getMembers().add("cn=user");
+    group.releaseMembers();
+    assertTrue(group.isGroup());
+    assertTrue(group.getMembers().isEmpty());
   }
 
   @Test
@@ -118,6 +147,45 @@ public class AdEntityTest {
     assertTrue(adEntity.isWellKnown());
   }
 
+  @Test
+  public void testCompactUsers() throws Exception {
+    AdEntity[] users = new AdEntity[2];
+    for (int i = 0; i < users.length; i++) {
+      Attributes attrs = new BasicAttributes();
+      attrs.put("objectGUID;binary",
+          AdServerTest.hexStringToByteArray("0a0b0c"));
+      attrs.put("objectSid;binary", // S-1-0-0
+          AdServerTest.hexStringToByteArray("010100000000000000000000"));
+      attrs.put("primaryGroupId", new String("513"));
+      SearchResult sr = new SearchResult("SR name", attrs, attrs);
+      sr.setNameInNamespace("cn=user" + i + ",ou=Users,dc=example,dc=com");
+      users[i] = new AdEntity(sr);
+    }
+    assertEquals("0xabc", users[0].getObjectGUID());
+    assertEquals("S-1-0-513", users[1].getPrimaryGroupSid());
+    assertEquals(Collections.<String>emptySet(), users[0].getMembers());
+    try {
+      users[0].getMembers().add("cn=group");
+      fail("users have no member set to add to");
+    } catch (UnsupportedOperationException expected) {
+    }
+    assertEquals("S-1-1-1", new AdEntity("S-1-1-1", "cn=x").getObjectGUID());
+  }
+
+  @Test
+  public void testMissingGuid() throws Exception {
+    Attributes attrs = new BasicAttributes();
+    attrs.put("objectSid;binary", // S-1-0-0
+        AdServerTest.hexStringToByteArray("010100000000000000000000"));
+    SearchResult sr = new SearchResult("SR name", attrs, attrs);
+    sr.setNameInNamespace("cn=user,ou=Users,dc=example,dc=com");
+    try {
+      new AdEntity(sr);
+      fail("entity without an objectGUID");
+    } catch (javax.naming.NamingException expected) {
+    }
+  }
+
   @Test
   public void testAppendGroupsOnEmptyGroup() throws Exception {
     AdEntity adEntity = new AdEntity("parentGroup", "dc=com");
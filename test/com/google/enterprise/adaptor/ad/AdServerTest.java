@@ -547,8 +547,10 @@ public class AdServerTest {
     addStandardKeysAndResults(ldapContext);
     // populate additional attributes with values we can test
     final String filter = "ou=Users";
-    final String filter2 = "(sAMAccountName=sam)";
+    final String filter2 = "(objectClass=*)";
     final String userDn = "DN_for_default_naming_context";
+    // range retrieval reads the group's own entry
+    final String groupDn = "cn=name\\ under," + userDn;
     List<String> members = Arrays.asList("dn_for_user_0", "dn_for_user_1");
     List<String> moreMembers = Arrays.asList("dn_for_user_2", "dn_for_user_3");
     ldapContext.addSearchResult(filter, "cn", userDn, "users")
@@ -556,11 +558,11 @@ public class AdServerTest {
                    hexStringToByteArray("000102030405060708090a0b0c"))
                .addSearchResult(filter, "sAMAccountName", userDn, "sam")
                .addSearchResult(filter, "member;Range=0-1", userDn, members);
-    ldapContext.addSearchResult(filter2, "cn", userDn, "users")
-               .addSearchResult(filter2, "objectGUID;binary", userDn,
+    ldapContext.addSearchResult(filter2, "cn", groupDn, "users")
+               .addSearchResult(filter2, "objectGUID;binary", groupDn,
                    hexStringToByteArray("000102030405060708090a0b0c"))
-               .addSearchResult(filter2, "sAMAccountName", userDn, "sam2")
-               .addSearchResult(filter2, "member;Range=2-3*", userDn,
+               .addSearchResult(filter2, "sAMAccountName", groupDn, "sam2")
+               .addSearchResult(filter2, "member;Range=2-3*", groupDn,
                     moreMembers);
     AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
         "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
@@ -584,8 +586,10 @@ public class AdServerTest {
     addStandardKeysAndResults(ldapContext);
     // populate additional attributes with values we can test
     final String filter = "ou=Users";
-    final String filter2 = "(sAMAccountName=sam)";
+    final String filter2 = "(objectClass=*)";
     final String userDn = "DN_for_default_naming_context";
+    // range retrieval reads the group's own entry
+    final String groupDn = "cn=name\\ under," + userDn;
     List<String> members = Arrays.asList("dn_for_user_0", "dn_for_user_1");
     List<String> moreMembers = Arrays.asList("dn_for_user_2", "dn_for_user_3");
     List<String> evenMore = Arrays.asList("dn_for_user_4");
@@ -594,13 +598,13 @@ public class AdServerTest {
                    hexStringToByteArray("000102030405060708090a0b0c"))
                .addSearchResult(filter, "sAMAccountName", userDn, "sam")
                .addSearchResult(filter, "member;Range=0-1", userDn, members);
-    ldapContext.addSearchResult(filter2, "cn", userDn, "users")
-               .addSearchResult(filter2, "objectGUID;binary", userDn,
+    ldapContext.addSearchResult(filter2, "cn", groupDn, "users")
+               .addSearchResult(filter2, "objectGUID;binary", groupDn,
                    hexStringToByteArray("000102030405060708090a0b0c"))
-               .addSearchResult(filter2, "sAMAccountName", userDn, "sam2")
-               .addSearchResult(filter2, "member;Range=2-3", userDn,
+               .addSearchResult(filter2, "sAMAccountName", groupDn, "sam2")
+               .addSearchResult(filter2, "member;Range=2-3", groupDn,
                     moreMembers)
-               .addSearchResult(filter2, "member;Range=4-5*", userDn,
+               .addSearchResult(filter2, "member;Range=4-5*", groupDn,
                     evenMore);
     AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
         "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
@@ -620,6 +624,171 @@ public class AdServerTest {
     }
   }
 
+  @Test
+  public void testStreamingSearchHandsOverCompleteGroups() throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    addStandardKeysAndResults(ldapContext);
+    final String filter = "ou=Users";
+    final String filter2 = "(objectClass=*)";
+    final String userDn = "DN_for_default_naming_context";
+    final String groupDn = "cn=name\\ under," + userDn;
+    List<String> members = Arrays.asList("dn_for_user_0", "dn_for_user_1");
+    List<String> moreMembers = Arrays.asList("dn_for_user_2", "dn_for_user_3");
+    ldapContext.addSearchResult(filter, "cn", userDn, "users")
+               .addSearchResult(filter, "objectGUID;binary", userDn,
+                   hexStringToByteArray("000102030405060708090a0b0c"))
+               .addSearchResult(filter, "sAMAccountName", userDn, "sam")
+               .addSearchResult(filter, "member;Range=0-1", userDn, members);
+    ldapContext.addSearchResult(filter2, "member;Range=2-3*", groupDn,
+        moreMembers);
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    final List<AdEntity> handled = new ArrayList<AdEntity>();
+    adServer.search("", filter, false,
+        new String[] { "cn", "member", "member;Range=0-1", "member;Range=2-3",
+                       "objectGUID;binary", "sAMAccountName" },
+        new AdServer.EntityHandler() {
+          @Override
+          public void handle(AdEntity entity) {
+            assertTrue(entity.areAllMembershipsRetrieved());
+            handled.add(entity);
+          }
+        });
+    assertEquals(1, handled.size());
+    HashSet<String> expectedMembers = new HashSet<String>(members);
+    expectedMembers.addAll(moreMembers);
+    assertEquals(expectedMembers, handled.get(0).getMembers());
+  }
+
+  @Test
+  public void testSearchStopsRangeRetrievalWhenGroupIsGone()
+      throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext() {
+      @Override
+      public NamingEnumeration<SearchResult> search(Name name, String filter,
+          SearchControls searchControls) throws NamingException {
+        assertEquals(SearchControls.OBJECT_SCOPE,
+            searchControls.getSearchScope());
+        throw new NameNotFoundException(name.get(0));
+      }
+    };
+    addStandardKeysAndResults(ldapContext);
+    final String filter = "ou=Users";
+    final String userDn = "DN_for_default_naming_context";
+    List<String> members = Arrays.asList("dn_for_user_0", "dn_for_user_1");
+    ldapContext.addSearchResult(filter, "cn", userDn, "users")
+               .addSearchResult(filter, "objectGUID;binary", userDn,
+                   hexStringToByteArray("000102030405060708090a0b0c"))
+               .addSearchResult(filter, "sAMAccountName", userDn, "sam")
+               .addSearchResult(filter, "member;Range=0-1", userDn, members);
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.initialize();
+    Set<AdEntity> resultSet = adServer.search("", filter, false,
+        new String[] { "cn", "member", "member;Range=0-1",
+                       "objectGUID;binary", "sAMAccountName" });
+    assertEquals(1, resultSet.size());
+    for (AdEntity ae : resultSet) {
+      assertEquals(new HashSet<String>(members), ae.getMembers());
+    }
+  }
+
+  @Test
+  public void testReadMaxPageSize() throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    addStandardKeysAndResults(ldapContext);
+    ldapContext.addSearchResult("(objectClass=*)", "lDAPAdminLimits",
+        "CN=Default Query Policy,CN=Query-Policies,CN=Directory Service,"
+        + "CN=Windows NT,CN=Services,naming_context",
+        Arrays.asList("MaxConnections=5000", "MaxPageSize=4000",
+            "MaxValRange=1500"));
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.setPageSize(2000);
+    adServer.setAdaptivePageSize(true);
+    adServer.initialize();
+    assertEquals(4000, adServer.readMaxPageSize());
+    assertEquals(2000, adServer.getPageSize());
+  }
+
+  @Test
+  public void testAdaptivePageSizeWithoutQueryPolicy() throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    addStandardKeysAndResults(ldapContext);
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.setPageSize(5000);
+    adServer.setAdaptivePageSize(true);
+    adServer.initialize();
+    assertEquals(AdServer.DEFAULT_PAGE_SIZE, adServer.getPageSize());
+  }
+
+  @Test
+  public void testFixedPageSize() throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    addStandardKeysAndResults(ldapContext);
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    assertEquals(AdServer.DEFAULT_PAGE_SIZE, adServer.getPageSize());
+    adServer.setPageSize(250);
+    adServer.initialize();
+    assertEquals(250, adServer.getPageSize());
+  }
+
+  @Test
+  public void testSearchWithPrefetch() throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    addStandardKeysAndResults(ldapContext);
+    final String filter = "ou=Users";
+    final String userDn = "DN_for_default_naming_context";
+    ldapContext.addSearchResult(filter, "cn", userDn, "users")
+               .addSearchResult(filter, "objectGUID;binary", userDn,
+                   hexStringToByteArray("000102030405060708090a0b0c"))
+               .addSearchResult(filter, "sAMAccountName", userDn, "sam");
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    adServer.setPrefetchPages(2);
+    adServer.initialize();
+    Set<AdEntity> resultSet = adServer.search("", filter, false,
+        new String[] { "cn", "objectGUID;binary", "sAMAccountName" });
+    assertEquals(1, resultSet.size());
+    assertEquals("sam", resultSet.iterator().next().getSAMAccountName());
+    // the connection went back to the pool
+    assertEquals(1, adServer.getContextPool().idleCount());
+  }
+
+  @Test
+  public void testSearchWithPrefetchThrowsNameNotFoundException()
+      throws Exception {
+    AdServer adServer = helperSearchThrowsNamingException(
+        new NameNotFoundException("test"));
+    adServer.setPrefetchPages(1);
+    try {
+      adServer.search("baseDN", "" /* filter */, false,
+          new String[] { "cn", "primaryGroupId", "objectGUID;binary" });
+      fail("Did not catch expected exception.");
+    } catch (IllegalStateException ise) {
+      assertTrue("Unexpected exception", ise.getMessage().contains(
+          "Could not find requested baseDN"));
+    }
+  }
+
+  @Test
+  public void testNegativePrefetchPages() throws Exception {
+    AdServer adServer = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, new MockLdapContext());
+    thrown.expect(IllegalArgumentException.class);
+    adServer.setPrefetchPages(-1);
+  }
+
   public AdServer helperSearchThrowsNamingException(final NamingException ne)
       throws NamingException {
     MockLdapContext ldapContext = new MockLdapContext() {
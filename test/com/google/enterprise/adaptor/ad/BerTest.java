@@ -0,0 +1,101 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Test cases for {@link Ber}. */
+public class BerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testIntegers() throws Exception {
+    long[] values = {0, 1, 127, 128, 255, 256, -1, -128, -129, 65536,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE};
+    for (long value : values) {
+      byte[] encoded = new Ber.Writer().writeInt(Ber.INTEGER, value)
+          .toByteArray();
+      assertEquals(value, new Ber.Reader(encoded).readInt(Ber.INTEGER));
+    }
+    // minimal encodings
+    assertArrayEquals(new byte[] {2, 1, 127},
+        new Ber.Writer().writeInt(Ber.INTEGER, 127).toByteArray());
+    assertArrayEquals(new byte[] {2, 2, 0, (byte) 128},
+        new Ber.Writer().writeInt(Ber.INTEGER, 128).toByteArray());
+    assertArrayEquals(new byte[] {2, 1, (byte) 0xff},
+        new Ber.Writer().writeInt(Ber.INTEGER, -1).toByteArray());
+  }
+
+  @Test
+  public void testNestedElementsWithLongLengths() throws Exception {
+    byte[] big = new byte[300];
+    Arrays.fill(big, (byte) 7);
+    byte[] encoded = new Ber.Writer().begin(Ber.SEQUENCE)
+        .writeString(Ber.OCTET_STRING, "abc")
+        .begin(Ber.SET).writeOctetString(Ber.OCTET_STRING, big).end()
+        .writeBoolean(Ber.BOOLEAN, true)
+        .end().toByteArray();
+    assertEquals(encoded.length,
+        Ber.elementLength(encoded, 0, encoded.length));
+    // a prefix is not enough to tell the length
+    assertEquals(-1, Ber.elementLength(encoded, 0, 1));
+    Ber.Reader seq = new Ber.Reader(encoded).readConstructed(Ber.SEQUENCE);
+    assertEquals("abc", seq.readString(Ber.OCTET_STRING));
+    Ber.Reader set = seq.readConstructed(Ber.SET);
+    assertArrayEquals(big, set.readOctetString(Ber.OCTET_STRING));
+    assertFalse(set.hasMore());
+    assertTrue(seq.readBoolean(Ber.BOOLEAN));
+    assertFalse(seq.hasMore());
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    byte[] encoded = new Ber.Writer().begin(Ber.SEQUENCE)
+        .writeNull(Ber.NULL).writeInt(Ber.INTEGER, 5).end().toByteArray();
+    Ber.Reader seq = new Ber.Reader(encoded).readConstructed(Ber.SEQUENCE);
+    seq.skip();
+    assertEquals(5, seq.readInt(Ber.INTEGER));
+  }
+
+  @Test
+  public void testUnexpectedTag() throws Exception {
+    byte[] encoded = new Ber.Writer().writeInt(Ber.INTEGER, 1).toByteArray();
+    thrown.expect(IOException.class);
+    new Ber.Reader(encoded).readString(Ber.OCTET_STRING);
+  }
+
+  @Test
+  public void testTruncatedElement() throws Exception {
+    byte[] encoded = new Ber.Writer().writeString(Ber.OCTET_STRING, "abcd")
+        .toByteArray();
+    thrown.expect(IOException.class);
+    new Ber.Reader(encoded, 0, encoded.length - 1)
+        .readString(Ber.OCTET_STRING);
+  }
+
+  @Test
+  public void testUnterminatedElement() throws Exception {
+    thrown.expect(IllegalStateException.class);
+    new Ber.Writer().begin(Ber.SEQUENCE).toByteArray();
+  }
+}
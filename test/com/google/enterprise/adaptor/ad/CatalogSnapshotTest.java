@@ -0,0 +1,311 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+/** Test cases for {@link CatalogSnapshot}. */
+public class CatalogSnapshotTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private File file;
+  private CatalogSnapshot snapshot;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("catalog", ".snapshot");
+    file.delete();
+    snapshot = new CatalogSnapshot(file);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    AdServer server = newAdServer("invocation");
+    server.restoreWatermarks(12345678L, new byte[] {1, 2, 3});
+    AdAdaptor.GroupCatalog catalog = newCatalog();
+    snapshot.save(catalog, Arrays.asList(server));
+
+    AdServer restartedServer = newAdServer("invocation");
+    assertEquals(12345679L, restartedServer.getHighestCommittedUSN());
+    AdAdaptor.GroupCatalog loaded = newEmptyCatalog();
+    assertTrue(snapshot.load(loaded, Arrays.asList(restartedServer)));
+    assertEquals(catalog, loaded);
+    assertEquals(12345678L, restartedServer.getHighestCommittedUSN());
+    assertArrayEquals(new byte[] {1, 2, 3},
+        restartedServer.getDirSyncCookie());
+    // the catalog's own well-known groups are reused
+    assertSame(loaded.everyone, loaded.bySid.get("S-1-1-0"));
+    assertTrue(loaded.entities.contains(loaded.everyone));
+    // and the same entity objects are shared between the maps again
+    AdEntity group = loaded.byDn.get("cn=group,dc=example,dc=com");
+    assertSame(group, loaded.bySid.get(group.getSid()));
+    assertTrue(loaded.members.containsKey(group));
+  }
+
+  @Test
+  public void testMissingSnapshot() throws Exception {
+    assertFalse(snapshot.load(newEmptyCatalog(),
+        Arrays.asList(newAdServer("invocation"))));
+  }
+
+  @Test
+  public void testServerRestoredFromBackup() throws Exception {
+    snapshot.save(newCatalog(), Arrays.asList(newAdServer("invocation")));
+    AdServer restoredServer = newAdServer("other invocation");
+    assertFalse(snapshot.load(newEmptyCatalog(),
+        Arrays.asList(restoredServer)));
+    assertEquals(12345679L, restoredServer.getHighestCommittedUSN());
+  }
+
+  @Test
+  public void testServersChanged() throws Exception {
+    snapshot.save(newCatalog(), Arrays.asList(newAdServer("invocation")));
+    List<AdServer> servers = Arrays.asList(newAdServer("invocation"),
+        newAdServer("invocation"));
+    assertFalse(snapshot.load(newEmptyCatalog(), servers));
+  }
+
+  @Test
+  public void testCorruptSnapshot() throws Exception {
+    snapshot.save(newCatalog(), Arrays.asList(newAdServer("invocation")));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // flip a bit in the middle of the catalog
+      long position = raf.length() / 2;
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 0x10);
+    } finally {
+      raf.close();
+    }
+    AdServer server = newAdServer("invocation");
+    thrown.expect(IOException.class);
+    try {
+      snapshot.load(newEmptyCatalog(), Arrays.asList(server));
+    } finally {
+      // nothing was restored
+      assertEquals(12345679L, server.getHighestCommittedUSN());
+    }
+  }
+
+  @Test
+  public void testTruncatedSnapshot() throws Exception {
+    snapshot.save(newCatalog(), Arrays.asList(newAdServer("invocation")));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 10);
+    } finally {
+      raf.close();
+    }
+    thrown.expect(IOException.class);
+    snapshot.load(newEmptyCatalog(), Arrays.asList(newAdServer("invocation")));
+  }
+
+  @Test
+  public void testNotASnapshot() throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeBytes("not a snapshot");
+    } finally {
+      raf.close();
+    }
+    thrown.expect(IOException.class);
+    snapshot.load(newEmptyCatalog(), Arrays.asList(newAdServer("invocation")));
+  }
+
+  @Test
+  public void testSaveReplacesPreviousSnapshot() throws Exception {
+    AdServer server = newAdServer("invocation");
+    snapshot.save(newEmptyCatalog(), Arrays.asList(server));
+    AdAdaptor.GroupCatalog catalog = newCatalog();
+    snapshot.save(catalog, Arrays.asList(server));
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+    AdAdaptor.GroupCatalog loaded = newEmptyCatalog();
+    assertTrue(snapshot.load(loaded, Arrays.asList(server)));
+    assertEquals(catalog, loaded);
+  }
+
+  @Test
+  public void testStringsAreWrittenOnce() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CatalogSnapshot.Output out = new CatalogSnapshot.Output(bytes);
+    String dn = "cn=a user with a long name,ou=Users,dc=example,dc=com";
+    out.writeString(dn);
+    out.writeString(null);
+    out.writeString(dn);
+    out.writeVarLong(300L);
+    out.writeChecksum();
+    out.close();
+    assertEquals(2 + dn.length() + 1 + 1 + 2 + 4, bytes.size());
+
+    CatalogSnapshot.Input in = new CatalogSnapshot.Input(
+        new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(dn, in.readString());
+    assertNull(in.readString());
+    assertEquals(dn, in.readString());
+    assertEquals(300L, in.readVarLong());
+    in.verifyChecksum();
+  }
+
+  @Test
+  public void testBytesRoundTrip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CatalogSnapshot.Output out = new CatalogSnapshot.Output(bytes);
+    out.writeBytes(null);
+    out.writeBytes(new byte[0]);
+    out.writeBytes(new byte[] {1, 2, 3});
+    out.writeChecksum();
+    out.close();
+
+    CatalogSnapshot.Input in = new CatalogSnapshot.Input(
+        new ByteArrayInputStream(bytes.toByteArray()));
+    assertNull(in.readBytes());
+    assertArrayEquals(new byte[0], in.readBytes());
+    assertArrayEquals(new byte[] {1, 2, 3}, in.readBytes());
+    in.verifyChecksum();
+  }
+
+  /** Returns an initialized AdServer whose DC has the given invocationID. */
+  private static AdServer newAdServer(String invocationId) throws Exception {
+    MockLdapContext ldapContext = new MockLdapContext();
+    ldapContext.addKey("defaultNamingContext", "DN_for_default_naming_context")
+               .addKey("dsServiceName", "ds_service_name")
+               .addKey("highestCommittedUSN", "12345679")
+               .addKey("configurationNamingContext", "naming_context")
+               .addSearchResult(
+                 "distinguishedName=DN_for_default_naming_context",
+                 "objectSid;binary",
+                 "DN_for_default_naming_context",   // S-1-0-0
+                 AdServerTest.hexStringToByteArray("010100000000000000000000"))
+               .addSearchResult("distinguishedName=ds_service_name",
+                 "invocationID;binary",
+                 "ds_service_name",
+                 invocationId.getBytes("UTF-8"))
+               .addSearchResult("(ncName=DN_for_default_naming_context)",
+                 "nETBIOSName",
+                 "naming_context",
+                 "GSA-CONNECTORS");
+    AdServer server = new AdServer("localhost", "" /*userSearchBaseDN*/,
+        "" /*groupSearchBaseDN*/, "" /*userSearchFilter*/,
+        "" /*groupSearchFilter*/, ldapContext);
+    server.initialize();
+    return server;
+  }
+
+  private static AdAdaptor.GroupCatalog newEmptyCatalog() {
+    Map<String, String> strings = new HashMap<String, String>();
+    strings.put("Everyone", "Everyone");
+    strings.put("NTAuthority", "NT Authority");
+    strings.put("Interactive", "Interactive");
+    strings.put("AuthenticatedUsers", "Authenticated Users");
+    strings.put("Builtin", "BUILTIN");
+    return new AdAdaptor.GroupCatalog(strings, "example.com", false);
+  }
+
+  /** Returns a catalog with a user that is a (primary) member of a group. */
+  private static AdAdaptor.GroupCatalog newCatalog() throws Exception {
+    AdAdaptor.GroupCatalog catalog = newEmptyCatalog();
+    String userDn = "cn=user,dc=example,dc=com";
+    AdEntity user = newEntity(userDn, "S-1-5-21-42-1001",
+        "0102030405060708090a0b0c0d0e0f10", "513");
+    AdEntity group = newEntity("cn=group,dc=example,dc=com",
+        "S-1-5-21-42-513", "1112131415161718191a1b1c1d1e1f20", null,
+        userDn, "cn=other,dc=example,dc=com");
+    for (AdEntity e : Arrays.asList(user, group)) {
+      catalog.entities.add(e);
+      catalog.bySid.put(e.getSid(), e);
+      catalog.byDn.put(e.getDn(), e);
+      catalog.domain.put(e, "EXAMPLE");
+    }
+    catalog.members.put(group, new TreeSet<String>(group.getMembers()));
+    catalog.primaryMembers.put(group,
+        new TreeSet<String>(Collections.singleton(userDn)));
+    catalog.wellKnownMembership.get(catalog.everyone).add(userDn);
+    return catalog;
+  }
+
+  private static AdEntity newEntity(String dn, String sid, String guid,
+      String primaryGroupId, String... members) throws Exception {
+    Attributes attrs = new BasicAttributes();
+    attrs.put("objectGUID;binary", AdServerTest.hexStringToByteArray(guid));
+    attrs.put("objectSid;binary", sidToBytes(sid));
+    attrs.put("sAMAccountName", dn.substring(3, dn.indexOf(',')));
+    attrs.put("uSNChanged", "12345");
+    if (primaryGroupId != null) {
+      attrs.put("primaryGroupId", primaryGroupId);
+      attrs.put("userPrincipalName", "user@example.com");
+      attrs.put("userAccountControl", "512");
+    } else {
+      BasicAttribute member = new BasicAttribute("member");
+      for (String m : members) {
+        member.add(m);
+      }
+      attrs.put(member);
+    }
+    SearchResult sr = new SearchResult(dn, null, attrs);
+    sr.setNameInNamespace(dn);
+    return new AdEntity(sr);
+  }
+
+  /** Encodes a textual SID the way AD returns objectSid. */
+  private static byte[] sidToBytes(String sid) {
+    String[] parts = sid.split("-");
+    int subAuthorities = parts.length - 3;
+    byte[] bytes = new byte[8 + 4 * subAuthorities];
+    bytes[0] = (byte) Integer.parseInt(parts[1]);
+    bytes[1] = (byte) subAuthorities;
+    long authority = Long.parseLong(parts[2]);
+    for (int i = 0; i < 6; i++) {
+      bytes[2 + i] = (byte) (authority >> (8 * (5 - i)));
+    }
+    for (int j = 0; j < subAuthorities; j++) {
+      long rid = Long.parseLong(parts[3 + j]);
+      for (int k = 0; k < 4; k++) {
+        bytes[8 + 4 * j + k] = (byte) (rid >> (8 * k));
+      }
+    }
+    return bytes;
+  }
+}
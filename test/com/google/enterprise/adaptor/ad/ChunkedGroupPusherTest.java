@@ -0,0 +1,271 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Sets;
+import com.google.enterprise.adaptor.ExceptionHandler;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Test cases for {@link ChunkedGroupPusher}. */
+public class ChunkedGroupPusherTest {
+  /** Records the size of each push, and fails the next pushes asked to. */
+  private static class ChunkRecordingPusher extends AccumulatingDocIdPusher {
+    final List<Integer> chunkSizes = new ArrayList<Integer>();
+    int failures;
+
+    @Override
+    public synchronized GroupPrincipal pushGroupDefinitions(
+        Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+        boolean caseSensitive, ExceptionHandler handler)
+        throws InterruptedException {
+      chunkSizes.add(defs.size());
+      if (failures > 0) {
+        failures--;
+        return defs.keySet().iterator().next();
+      }
+      return super.pushGroupDefinitions(defs, caseSensitive, handler);
+    }
+  }
+
+  private static GroupPrincipal group(int i) {
+    return new GroupPrincipal("group" + i, "Default");
+  }
+
+  private static List<Principal> members(int n) {
+    List<Principal> members = new ArrayList<Principal>();
+    for (int i = 0; i < n; i++) {
+      members.add(new UserPrincipal("user" + i, "Default"));
+    }
+    return members;
+  }
+
+  @Test
+  public void testChunksByGroupCount() throws Exception {
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, null, 3, 0);
+    for (int i = 0; i < 7; i++) {
+      chunks.handle(group(i), members(1));
+    }
+    assertEquals(Arrays.asList(3, 3), pusher.chunkSizes);
+    chunks.flush();
+    chunks.flush();
+    assertEquals(Arrays.asList(3, 3, 1), pusher.chunkSizes);
+    assertEquals(7, pusher.getGroups().size());
+    assertEquals(3, chunks.getChunkCount());
+    assertEquals(7, chunks.getGroupCount());
+  }
+
+  @Test
+  public void testChunksByMemberCount() throws Exception {
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, null, 0, 10);
+    chunks.handle(group(0), members(4));
+    chunks.handle(group(1), members(4));
+    assertEquals(Collections.emptyList(), pusher.chunkSizes);
+    chunks.handle(group(2), members(4));
+    assertEquals(Arrays.asList(2), pusher.chunkSizes);
+    chunks.handle(group(3), members(6));
+    assertEquals(Arrays.asList(2, 2), pusher.chunkSizes);
+    chunks.handle(group(4), members(0));
+    chunks.flush();
+    assertEquals(Arrays.asList(2, 2, 1), pusher.chunkSizes);
+  }
+
+  @Test
+  public void testLargeGroupIsPushedOnItsOwn() throws Exception {
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, null, 0, 10);
+    chunks.handle(group(0), members(1));
+    chunks.handle(group(1), members(25));
+    assertEquals(Arrays.asList(1, 1), pusher.chunkSizes);
+    chunks.handle(group(2), members(1));
+    chunks.flush();
+    assertEquals(Arrays.asList(1, 1, 1), pusher.chunkSizes);
+    assertEquals(members(25), pusher.getGroups().get(group(1)));
+    assertEquals(members(1), pusher.getGroups().get(group(0)));
+  }
+
+  @Test
+  public void testNoLimitsPushesOnce() throws Exception {
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, null, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      chunks.handle(group(i), members(i));
+    }
+    chunks.flush();
+    assertEquals(Arrays.asList(100), pusher.chunkSizes);
+  }
+
+  @Test
+  public void testUnchangedGroupsAreLeftOut() throws Exception {
+    GroupFingerprints pushedGroups = new GroupFingerprints();
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, pushedGroups, 2, 0);
+    for (int i = 0; i < 4; i++) {
+      chunks.handle(group(i), members(i));
+    }
+    chunks.flush();
+    assertEquals(4, pushedGroups.size());
+
+    pusher = new ChunkRecordingPusher();
+    chunks = new ChunkedGroupPusher(pusher, false, pushedGroups, 2, 0);
+    for (int i = 0; i < 4; i++) {
+      chunks.handle(group(i), members((i == 2) ? 5 : i));
+    }
+    chunks.flush();
+    assertEquals(Arrays.asList(1), pusher.chunkSizes);
+    assertEquals(Collections.singleton(group(2)),
+        pusher.getGroups().keySet());
+    assertEquals(3, chunks.getUnchangedCount());
+  }
+
+  @Test
+  public void testFailedChunkIsNotRecorded() throws Exception {
+    GroupFingerprints pushedGroups = new GroupFingerprints();
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, pushedGroups, 2, 0);
+    chunks.handle(group(0), members(1));
+    chunks.handle(group(1), members(1));
+    pusher.failures = 1;
+    chunks.handle(group(2), members(1));
+    chunks.handle(group(3), members(1));
+    chunks.handle(group(4), members(1));
+    chunks.flush();
+    assertEquals(3, chunks.getChunkCount());
+    assertEquals(1, chunks.getFailedChunkCount());
+    assertEquals(3, pushedGroups.size());
+    assertEquals(Sets.newHashSet(group(2), group(3)),
+        chunks.getFailedGroups());
+    assertFalse(pushedGroups.isPushed(group(2),
+        GroupFingerprints.fingerprint(members(1))));
+  }
+
+  @Test
+  public void testRevertedGroupIsPushedAfterFailedChunk() throws Exception {
+    GroupFingerprints pushedGroups = new GroupFingerprints();
+    ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+    ChunkedGroupPusher chunks =
+        new ChunkedGroupPusher(pusher, false, pushedGroups, 0, 0);
+    chunks.handle(group(0), members(1));
+    chunks.flush();
+    assertTrue(pushedGroups.isPushed(group(0),
+        GroupFingerprints.fingerprint(members(1))));
+
+    // the new definition may have been pushed before the chunk failed
+    pusher = new ChunkRecordingPusher();
+    pusher.failures = 1;
+    chunks = new ChunkedGroupPusher(pusher, false, pushedGroups, 0, 0);
+    chunks.handle(group(0), members(2));
+    chunks.flush();
+    assertEquals(1, chunks.getFailedChunkCount());
+    assertEquals(0, pushedGroups.size());
+
+    // so reverting to the definition last recorded must push it again
+    pusher = new ChunkRecordingPusher();
+    chunks = new ChunkedGroupPusher(pusher, false, pushedGroups, 0, 0);
+    chunks.handle(group(0), members(1));
+    chunks.flush();
+    assertEquals(0, chunks.getUnchangedCount());
+    assertEquals(members(1), pusher.getGroups().get(group(0)));
+  }
+
+  @Test
+  public void testShardsArePushedConcurrently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      GroupFingerprints pushedGroups = new GroupFingerprints();
+      ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+      ChunkedGroupPusher chunks = new ChunkedGroupPusher(pusher, false,
+          pushedGroups, 0, 0, executor, 4, 0);
+      Map<GroupPrincipal, Collection<Principal>> golden =
+          new HashMap<GroupPrincipal, Collection<Principal>>();
+      for (int i = 0; i < 1000; i++) {
+        chunks.handle(group(i), members(i % 10));
+        golden.put(group(i), members(i % 10));
+      }
+      assertEquals(Collections.emptyList(), pusher.chunkSizes);
+      chunks.flush();
+      // no limits: one chunk for each shard
+      assertEquals(4, pusher.chunkSizes.size());
+      assertEquals(golden, pusher.getGroups());
+      assertEquals(1000, pushedGroups.size());
+
+      // with limits, the chunks of a shard are pushed in order
+      pusher = new ChunkRecordingPusher();
+      chunks = new ChunkedGroupPusher(pusher, false, null, 7, 0, executor, 4,
+          0);
+      for (int i = 0; i < 1000; i++) {
+        chunks.handle(group(i % 100), members(i / 100));
+      }
+      chunks.flush();
+      assertEquals(1000, chunks.getGroupCount());
+      for (int i = 0; i < 100; i++) {
+        assertEquals(members(9), pusher.getGroups().get(group(i)));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedShardIsRetried() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      GroupFingerprints pushedGroups = new GroupFingerprints();
+      ChunkRecordingPusher pusher = new ChunkRecordingPusher();
+      pusher.failures = 2;
+      ChunkedGroupPusher chunks = new ChunkedGroupPusher(pusher, false,
+          pushedGroups, 0, 0, executor, 2, 2);
+      for (int i = 0; i < 10; i++) {
+        chunks.handle(group(i), members(1));
+      }
+      chunks.flush();
+      assertEquals(2, chunks.getChunkCount());
+      assertEquals(0, chunks.getFailedChunkCount());
+      assertEquals(4, pusher.chunkSizes.size());
+      assertEquals(10, pusher.getGroups().size());
+      assertEquals(10, pushedGroups.size());
+
+      // too many failures: the chunk is given up on, until next time
+      pusher.failures = 3;
+      chunks = new ChunkedGroupPusher(pusher, false, pushedGroups, 0, 0,
+          executor, 1, 2);
+      for (int i = 10; i < 20; i++) {
+        chunks.handle(group(i), members(1));
+      }
+      chunks.flush();
+      assertEquals(1, chunks.getFailedChunkCount());
+      assertEquals(10, pushedGroups.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link DnIndex}. */
+public class DnIndexTest {
+  @Test
+  public void testBehavesLikeHashMap() {
+    StringTable table = new HeapStringTable();
+    DnIndex index = new DnIndex(table);
+    Map<String, AdEntity> golden = new HashMap<String, AdEntity>();
+    AdEntity a = new AdEntity("S-1-5-21-1", "cn=a");
+    AdEntity b = new AdEntity("S-1-5-21-2", "cn=b");
+    assertNull(index.put("cn=a", a));
+    golden.put("cn=a", a);
+    assertNull(index.put("cn=b", b));
+    golden.put("cn=b", b);
+    assertEquals(b, index.put("cn=b", a));
+    golden.put("cn=b", a);
+    assertEquals(golden, index);
+    assertEquals(index, golden);
+    assertEquals(golden.hashCode(), index.hashCode());
+
+    assertEquals(a, index.remove("cn=b"));
+    assertNull(index.remove("cn=b"));
+    assertNull(index.remove("cn=unknown"));
+    assertEquals(1, index.size());
+    assertFalse(index.containsKey("cn=b"));
+    assertTrue(index.containsKey("cn=a"));
+    index.clear();
+    assertTrue(index.isEmpty());
+  }
+
+  @Test
+  public void testGetById() {
+    StringTable table = new HeapStringTable();
+    DnIndex index = new DnIndex(table);
+    AdEntity a = new AdEntity("S-1-5-21-1", "cn=a");
+    int member = table.intern("cn=not_an_entity");
+    index.put("cn=a", a);
+    assertSame(a, index.getById(table.find("cn=a")));
+    assertNull(index.getById(member));
+    assertNull(index.getById(12345));
+  }
+
+  @Test
+  public void testEntryIteratorRemove() {
+    DnIndex index = new DnIndex(new OffHeapStringTable(false));
+    for (int i = 0; i < 10; i++) {
+      index.put("cn=e" + i, new AdEntity("S-1-5-21-" + i, "cn=e" + i));
+    }
+    Iterator<Map.Entry<String, AdEntity>> it = index.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, AdEntity> entry = it.next();
+      assertEquals(entry.getKey(), entry.getValue().getDn());
+      if (!entry.getKey().equals("cn=e3")) {
+        it.remove();
+      }
+    }
+    assertEquals(Collections.singleton("cn=e3"), index.keySet());
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link DnTrieStringTable}. */
+public class DnTrieStringTableTest {
+  @Test
+  public void testRoundTrip() {
+    DnTrieStringTable table = new DnTrieStringTable();
+    String[] dns = {
+        "CN=Smith\\, John,OU=Users,DC=example,DC=com",
+        "CN=a,OU=Users,DC=example,DC=com",
+        "DC=example,DC=com",
+        "CN=trailing,",
+        ",DC=com",
+        "CN=a,,DC=com",
+        "no commas",
+        "",
+    };
+    int[] ids = new int[dns.length];
+    for (int i = 0; i < dns.length; i++) {
+      ids[i] = table.intern(dns[i]);
+      assertEquals(i, ids[i]);
+    }
+    for (int i = 0; i < dns.length; i++) {
+      assertEquals(dns[i], table.get(ids[i]));
+      assertEquals(ids[i], table.find(dns[i]));
+      assertEquals(ids[i], table.intern(dns[i]));
+    }
+    assertEquals(dns.length, table.size());
+  }
+
+  @Test
+  public void testParentsAreNotGivenIds() {
+    DnTrieStringTable table = new DnTrieStringTable();
+    table.intern("CN=a,OU=Users,DC=example,DC=com");
+    assertEquals(-1, table.find("OU=Users,DC=example,DC=com"));
+    assertEquals(-1, table.find("DC=com"));
+    assertEquals(-1, table.find("CN=a,OU=Users,DC=example"));
+    assertEquals(-1, table.find("CN=a,OU=Users,DC=example,DC=com,"));
+    assertEquals(1, table.size());
+    assertEquals(1, table.intern("OU=Users,DC=example,DC=com"));
+    assertEquals(4, table.getNodeCount());
+  }
+
+  @Test
+  public void testSuffixesAreShared() {
+    DnTrieStringTable table = new DnTrieStringTable();
+    String suffix = ",OU=Users,OU=EMEA,DC=corp,DC=example,DC=com";
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.intern("CN=user" + i + suffix));
+    }
+    // one node for each user, and one for each RDN of the suffix
+    assertEquals(10000 + 5, table.getNodeCount());
+    int userChars = 0;
+    for (int i = 0; i < 10000; i++) {
+      userChars += ("CN=user" + i).length();
+      assertEquals("CN=user" + i + suffix, table.get(i));
+    }
+    assertEquals(userChars + suffix.length() - 5, table.getCharCount());
+  }
+
+  @Test
+  public void testComponentsAreMatchedExactly() {
+    DnTrieStringTable table = new DnTrieStringTable();
+    int lower = table.intern("CN=a,DC=example,DC=com");
+    assertEquals(-1, table.find("cn=a,dc=example,dc=com"));
+    int upper = table.intern("CN=A,DC=example,DC=com");
+    assertTrue(lower != upper);
+    assertEquals("CN=A,DC=example,DC=com", table.get(upper));
+    assertEquals(4, table.getNodeCount());
+  }
+
+  @Test
+  public void testMemberSet() {
+    StringTable table = new DnTrieStringTable();
+    Set<String> golden = new TreeSet<String>();
+    MemberSet members = new MemberSet(table);
+    for (int i = 0; i < 3000; i++) {
+      String dn = "CN=user" + i + ",OU=ou" + (i % 7) + ",DC=example,DC=com";
+      assertTrue(members.add(dn));
+      golden.add(dn);
+    }
+    assertTrue(members.isBitmap());
+    assertEquals(golden, new TreeSet<String>(members));
+    assertTrue(members.remove("CN=user5,OU=ou5,DC=example,DC=com"));
+    assertFalse(members.contains("CN=user5,OU=ou5,DC=example,DC=com"));
+    assertFalse(members.contains("CN=user5,OU=ou4,DC=example,DC=com"));
+  }
+}
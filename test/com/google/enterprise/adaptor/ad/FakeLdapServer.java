@@ -0,0 +1,571 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.*;
+
+/**
+ * In-process stand-in for an LDAP v3 server, for testing
+ * {@link NioLdapTransport}.  Serves the entries added with
+ * <code>addEntry</code>; supports simple bind, base and subtree searches
+ * (filters are evaluated by {@link #matches}), the paged results control,
+ * size limits, <code>member;Range=x-y</code> range retrieval and, for the
+ * changes made with <code>addMember</code> and <code>removeMember</code>,
+ * the DirSync control.
+ *
+ * <p>Requests on a connection are processed concurrently, so responses may
+ * come back in a different order than the requests were sent.
+ */
+class FakeLdapServer {
+  private static final Pattern RANGE =
+      Pattern.compile("(?i)(member);range=(\\d+)-(\\d+|\\*)");
+  private static final String BIT_AND_RULE = "1.2.840.113556.1.4.803";
+  private static final String BIT_OR_RULE = "1.2.840.113556.1.4.804";
+
+  private final ServerSocket serverSocket;
+  private final String principal;
+  private final String password;
+  private final Map<String, Attributes> entries =
+      Collections.synchronizedMap(new LinkedHashMap<String, Attributes>());
+  private final ExecutorService workers = Executors.newCachedThreadPool();
+  private final List<Socket> sockets =
+      Collections.synchronizedList(new ArrayList<Socket>());
+  private final Attributes rootDse = new BasicAttributes(true);
+  // {group DN, member DN, "1" if added or "0" if removed}; a DirSync cookie
+  // is the number of changes already returned
+  private final List<String[]> memberChanges =
+      Collections.synchronizedList(new ArrayList<String[]>());
+
+  final AtomicInteger connectionsAccepted = new AtomicInteger();
+  final AtomicInteger searchesReceived = new AtomicInteger();
+  private final AtomicInteger searchesInProgress = new AtomicInteger();
+  final AtomicInteger maxSearchesInProgress = new AtomicInteger();
+  volatile long responseDelayMillis;
+  volatile long bindDelayMillis;
+  volatile int dirSyncChangesPerResponse = Integer.MAX_VALUE;
+
+  FakeLdapServer(String principal, String password) throws IOException {
+    this.principal = principal;
+    this.password = password;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+    Thread acceptor = new Thread("fake-ldap-server") {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  FakeLdapServer addRootDseAttribute(String name, Object value) {
+    rootDse.put(name, value);
+    return this;
+  }
+
+  FakeLdapServer addEntry(String dn, Attributes attributes) {
+    entries.put(dn.toLowerCase(), new EntryAttributes(dn, attributes));
+    return this;
+  }
+
+  /** Adds a member to a group, recording the change for DirSync. */
+  void addMember(String groupDn, String memberDn) {
+    entries.get(groupDn.toLowerCase()).get("member").add(memberDn);
+    memberChanges.add(new String[] {groupDn, memberDn, "1"});
+  }
+
+  /** Removes a member from a group, recording the change for DirSync. */
+  void removeMember(String groupDn, String memberDn) {
+    entries.get(groupDn.toLowerCase()).get("member").remove(memberDn);
+    memberChanges.add(new String[] {groupDn, memberDn, "0"});
+  }
+
+  /** Drops all client connections (without a notice of disconnection). */
+  void disconnectAll() throws IOException {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      sockets.clear();
+    }
+  }
+
+  void close() throws IOException {
+    serverSocket.close();
+    disconnectAll();
+    workers.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      connectionsAccepted.incrementAndGet();
+      sockets.add(socket);
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      });
+    }
+  }
+
+  private void serve(final Socket socket) {
+    try {
+      InputStream in = socket.getInputStream();
+      final OutputStream out = socket.getOutputStream();
+      boolean bound = false;
+      while (true) {
+        byte[] message = readMessage(in);
+        if (message == null) {
+          return;
+        }
+        Ber.Reader msg = new Ber.Reader(message).readConstructed(Ber.SEQUENCE);
+        final int id = (int) msg.readInt(Ber.INTEGER);
+        int tag = msg.peekTag();
+        if (tag == 0x60) {
+          Ber.Reader bind = msg.readConstructed(0x60);
+          bind.readInt(Ber.INTEGER);
+          String name = bind.readString(Ber.OCTET_STRING);
+          String credentials = bind.readString(0x80);
+          bound = principal.equals(name) && password.equals(credentials);
+          if (bindDelayMillis > 0) {
+            try {
+              Thread.sleep(bindDelayMillis);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              closeQuietly(socket);
+              return;
+            }
+          }
+          write(out, new Ber.Writer().begin(Ber.SEQUENCE)
+              .writeInt(Ber.INTEGER, id).begin(0x61)
+              .writeInt(Ber.ENUMERATED, bound ? 0 : 49)
+              .writeString(Ber.OCTET_STRING, "")
+              .writeString(Ber.OCTET_STRING, bound ? "" : "bad credentials")
+              .end().end().toByteArray());
+        } else if (tag == 0x42) {
+          socket.close();
+          return;
+        } else if (tag == 0x50) {
+          // abandon: nothing to do, the search finishes quickly anyway
+        } else if (tag == 0x63) {
+          if (!bound) {
+            throw new IOException("search before bind");
+          }
+          final Ber.Reader search = msg.readConstructed(0x63);
+          final Ber.Reader controls =
+              msg.hasMore() ? msg.readConstructed(0xa0) : null;
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                search(out, id, search, controls);
+              } catch (IOException e) {
+                closeQuietly(socket);
+              }
+            }
+          });
+        } else {
+          throw new IOException("unsupported request " + tag);
+        }
+      }
+    } catch (IOException e) {
+      closeQuietly(socket);
+    }
+  }
+
+  private void search(OutputStream out, int id, Ber.Reader search,
+      Ber.Reader controls) throws IOException {
+    int inProgress = searchesInProgress.incrementAndGet();
+    searchesReceived.incrementAndGet();
+    synchronized (maxSearchesInProgress) {
+      if (inProgress > maxSearchesInProgress.get()) {
+        maxSearchesInProgress.set(inProgress);
+      }
+    }
+    try {
+      if (responseDelayMillis > 0) {
+        Thread.sleep(responseDelayMillis);
+      }
+      String base = search.readString(Ber.OCTET_STRING);
+      int scope = (int) search.readInt(Ber.ENUMERATED);
+      search.readInt(Ber.ENUMERATED);
+      int sizeLimit = (int) search.readInt(Ber.INTEGER);
+      search.readInt(Ber.INTEGER);
+      search.readBoolean(Ber.BOOLEAN);
+      LdapFilter filter = LdapFilter.decode(search);
+      List<String> requested = new ArrayList<String>();
+      Ber.Reader attrs = search.readConstructed(Ber.SEQUENCE);
+      while (attrs.hasMore()) {
+        requested.add(attrs.readString(Ber.OCTET_STRING));
+      }
+      int pageSize = -1;
+      int offset = 0;
+      String dirSyncCookie = null;
+      while (controls != null && controls.hasMore()) {
+        Ber.Reader control = controls.readConstructed(Ber.SEQUENCE);
+        String oid = control.readString(Ber.OCTET_STRING);
+        if (control.hasMore() && control.peekTag() == Ber.BOOLEAN) {
+          control.readBoolean(Ber.BOOLEAN);
+        }
+        if (NioLdapTransport.PAGED_RESULTS_OID.equals(oid)) {
+          Ber.Reader value = new Ber.Reader(
+              control.readOctetString(Ber.OCTET_STRING))
+              .readConstructed(Ber.SEQUENCE);
+          pageSize = (int) value.readInt(Ber.INTEGER);
+          String cookie = value.readString(Ber.OCTET_STRING);
+          offset = cookie.isEmpty() ? 0 : Integer.parseInt(cookie);
+        } else if (DirSyncControl.OID.equals(oid)) {
+          Ber.Reader value = new Ber.Reader(
+              control.readOctetString(Ber.OCTET_STRING))
+              .readConstructed(Ber.SEQUENCE);
+          value.readInt(Ber.INTEGER);
+          value.readInt(Ber.INTEGER);
+          dirSyncCookie = value.readString(Ber.OCTET_STRING);
+        }
+      }
+
+      List<Attributes> found = new ArrayList<Attributes>();
+      int resultCode = 0;
+      if (base.isEmpty() && scope == 0) {
+        found.add(rootDse);
+      } else if (!entries.containsKey(base.toLowerCase())) {
+        resultCode = 32;
+      } else if (scope == 0) {
+        Attributes entry = entries.get(base.toLowerCase());
+        if (matches(filter, entry)) {
+          found.add(entry);
+        }
+      } else {
+        String suffix = "," + base.toLowerCase();
+        synchronized (entries) {
+          for (Map.Entry<String, Attributes> e : entries.entrySet()) {
+            if ((e.getKey().equals(base.toLowerCase())
+                || e.getKey().endsWith(suffix))
+                && matches(filter, e.getValue())) {
+              found.add(e.getValue());
+            }
+          }
+        }
+      }
+      String cookie = null;
+      boolean moreResults = false;
+      if (dirSyncCookie != null && !dirSyncCookie.isEmpty()) {
+        // only the member changes since the cookie
+        int start = Integer.parseInt(dirSyncCookie);
+        int end;
+        Map<String, Attributes> changed =
+            new LinkedHashMap<String, Attributes>();
+        synchronized (memberChanges) {
+          end = (int) Math.min(memberChanges.size(),
+              (long) start + dirSyncChangesPerResponse);
+          moreResults = end < memberChanges.size();
+          for (String[] change : memberChanges.subList(start, end)) {
+            if (!found.contains(entries.get(change[0].toLowerCase()))
+                || !requested.contains("member")) {
+              continue;
+            }
+            Attributes delta = changed.get(change[0]);
+            if (delta == null) {
+              delta = new EntryAttributes(change[0], new BasicAttributes(true));
+              changed.put(change[0], delta);
+            }
+            // a later change of the same value replaces an earlier one
+            String undone = "1".equals(change[2])
+                ? "member;range=0-0" : "member;range=1-1";
+            if (delta.get(undone) != null) {
+              delta.get(undone).remove(change[1]);
+            }
+            String range = "member;range=" + change[2] + "-" + change[2];
+            if (delta.get(range) == null) {
+              delta.put(new BasicAttribute(range));
+            }
+            delta.get(range).add(change[1]);
+          }
+        }
+        found = new ArrayList<Attributes>(changed.values());
+        requested = new ArrayList<String>();
+        cookie = "" + end;
+      } else if (dirSyncCookie != null) {
+        cookie = "" + memberChanges.size();
+      } else if (pageSize == 0) {
+        found.clear();
+      } else if (pageSize > 0) {
+        int end = Math.min(found.size(), offset + pageSize);
+        cookie = (end < found.size()) ? "" + end : "";
+        found = found.subList(Math.min(offset, end), end);
+      }
+      if (sizeLimit > 0 && found.size() > sizeLimit) {
+        found = found.subList(0, sizeLimit);
+        resultCode = 4;
+      }
+      for (Attributes entry : found) {
+        write(out, encodeEntry(id, entry, requested));
+      }
+      Ber.Writer done = new Ber.Writer().begin(Ber.SEQUENCE)
+          .writeInt(Ber.INTEGER, id).begin(0x65)
+          .writeInt(Ber.ENUMERATED, resultCode)
+          .writeString(Ber.OCTET_STRING, "")
+          .writeString(Ber.OCTET_STRING, resultCode == 32 ? "no such object"
+              : "")
+          .end();
+      if (dirSyncCookie != null) {
+        done.begin(0xa0).begin(Ber.SEQUENCE)
+            .writeString(Ber.OCTET_STRING, DirSyncControl.OID)
+            .writeOctetString(Ber.OCTET_STRING, new Ber.Writer()
+                .begin(Ber.SEQUENCE).writeInt(Ber.INTEGER, moreResults ? 1 : 0)
+                .writeInt(Ber.INTEGER, 0)
+                .writeString(Ber.OCTET_STRING, cookie).end().toByteArray())
+            .end().end();
+      } else if (cookie != null) {
+        done.begin(0xa0).begin(Ber.SEQUENCE)
+            .writeString(Ber.OCTET_STRING, NioLdapTransport.PAGED_RESULTS_OID)
+            .writeOctetString(Ber.OCTET_STRING, new Ber.Writer()
+                .begin(Ber.SEQUENCE).writeInt(Ber.INTEGER, 0)
+                .writeString(Ber.OCTET_STRING, cookie).end().toByteArray())
+            .end().end();
+      }
+      write(out, done.end().toByteArray());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (NamingException e) {
+      throw new IOException(e);
+    } finally {
+      searchesInProgress.decrementAndGet();
+    }
+  }
+
+  private static byte[] encodeEntry(int id, Attributes entry,
+      List<String> requested) throws NamingException {
+    Ber.Writer w = new Ber.Writer().begin(Ber.SEQUENCE)
+        .writeInt(Ber.INTEGER, id).begin(0x64)
+        .writeString(Ber.OCTET_STRING, entry instanceof EntryAttributes
+            ? ((EntryAttributes) entry).dn : "")
+        .begin(Ber.SEQUENCE);
+    List<Attribute> returned = new ArrayList<Attribute>();
+    if (requested.isEmpty()) {
+      NamingEnumeration<? extends Attribute> all = entry.getAll();
+      while (all.hasMore()) {
+        returned.add(all.next());
+      }
+    }
+    for (String name : requested) {
+      Matcher m = RANGE.matcher(name);
+      if (m.matches()) {
+        Attribute member = entry.get(m.group(1));
+        if (member == null) {
+          continue;
+        }
+        int start = Integer.parseInt(m.group(2));
+        int end = "*".equals(m.group(3)) ? member.size() - 1
+            : Math.min(Integer.parseInt(m.group(3)), member.size() - 1);
+        Attribute range = new BasicAttribute("member;range=" + start + "-"
+            + (end == member.size() - 1 ? "*" : "" + end));
+        for (int i = start; i <= end; i++) {
+          range.add(member.get(i));
+        }
+        returned.add(range);
+      } else {
+        Attribute attr = entry.get(name);
+        if (attr != null) {
+          // returned under the name asked for, e.g. "objectGUID;binary"
+          Attribute copy = new BasicAttribute(name);
+          for (int i = 0; i < attr.size(); i++) {
+            copy.add(attr.get(i));
+          }
+          returned.add(copy);
+        }
+      }
+    }
+    for (Attribute attr : returned) {
+      w.begin(Ber.SEQUENCE).writeString(Ber.OCTET_STRING, attr.getID())
+          .begin(Ber.SET);
+      for (int i = 0; i < attr.size(); i++) {
+        Object value = attr.get(i);
+        if (value instanceof byte[]) {
+          w.writeOctetString(Ber.OCTET_STRING, (byte[]) value);
+        } else {
+          w.writeString(Ber.OCTET_STRING, value.toString());
+        }
+      }
+      w.end().end();
+    }
+    return w.end().end().end().toByteArray();
+  }
+
+  /** Evaluates <code>filter</code> against an entry. */
+  static boolean matches(LdapFilter filter, Attributes entry)
+      throws NamingException {
+    if (filter instanceof LdapFilter.Composite) {
+      LdapFilter.Composite composite = (LdapFilter.Composite) filter;
+      boolean and = composite.tag == LdapFilter.AND;
+      for (LdapFilter f : composite.filters) {
+        if (matches(f, entry) != and) {
+          return !and;
+        }
+      }
+      return and;
+    } else if (filter instanceof LdapFilter.Not) {
+      return !matches(((LdapFilter.Not) filter).filter, entry);
+    } else if (filter instanceof LdapFilter.Present) {
+      return entry.get(((LdapFilter.Present) filter).type) != null;
+    }
+    String type;
+    if (filter instanceof LdapFilter.Comparison) {
+      type = ((LdapFilter.Comparison) filter).type;
+    } else if (filter instanceof LdapFilter.Substrings) {
+      type = ((LdapFilter.Substrings) filter).type;
+    } else {
+      type = ((LdapFilter.Extensible) filter).type;
+    }
+    Attribute attr = entry.get(type);
+    for (int i = 0; attr != null && i < attr.size(); i++) {
+      if (attr.get(i) instanceof String
+          && matchesValue(filter, ((String) attr.get(i)).toLowerCase())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matchesValue(LdapFilter filter, String value) {
+    if (filter instanceof LdapFilter.Comparison) {
+      LdapFilter.Comparison c = (LdapFilter.Comparison) filter;
+      int compared = value.compareTo(lower(c.value));
+      return (c.tag == LdapFilter.GREATER_OR_EQUAL) ? compared >= 0
+          : (c.tag == LdapFilter.LESS_OR_EQUAL) ? compared <= 0
+          : compared == 0;
+    } else if (filter instanceof LdapFilter.Substrings) {
+      LdapFilter.Substrings s = (LdapFilter.Substrings) filter;
+      int pos = 0;
+      if (s.initial != null) {
+        if (!value.startsWith(lower(s.initial))) {
+          return false;
+        }
+        pos = s.initial.length;
+      }
+      for (byte[] any : s.any) {
+        int found = value.indexOf(lower(any), pos);
+        if (found < 0) {
+          return false;
+        }
+        pos = found + any.length;
+      }
+      return s.fin == null || (value.endsWith(lower(s.fin))
+          && value.length() - s.fin.length >= pos);
+    }
+    LdapFilter.Extensible e = (LdapFilter.Extensible) filter;
+    long assertion = Long.parseLong(lower(e.value));
+    long actual = Long.parseLong(value);
+    if (BIT_AND_RULE.equals(e.matchingRule)) {
+      return (actual & assertion) == assertion;
+    } else if (BIT_OR_RULE.equals(e.matchingRule)) {
+      return (actual & assertion) != 0;
+    }
+    return actual == assertion;
+  }
+
+  private static String lower(byte[] value) {
+    return new String(value, Ber.UTF8).toLowerCase();
+  }
+
+  private static byte[] readMessage(InputStream in) throws IOException {
+    byte[] header = new byte[6];
+    int read = 0;
+    int total = -1;
+    byte[] message = null;
+    while (true) {
+      if (message == null) {
+        int b = in.read();
+        if (b < 0) {
+          if (read == 0) {
+            return null;
+          }
+          throw new EOFException();
+        }
+        header[read++] = (byte) b;
+        total = Ber.elementLength(header, 0, read);
+        if (total >= 0) {
+          message = Arrays.copyOf(header, total);
+        }
+      } else {
+        if (read == total) {
+          return message;
+        }
+        int n = in.read(message, read, total - read);
+        if (n < 0) {
+          throw new EOFException();
+        }
+        read += n;
+      }
+    }
+  }
+
+  private static void write(OutputStream out, byte[] message)
+      throws IOException {
+    synchronized (out) {
+      out.write(message);
+      out.flush();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+
+  /** Attributes of an entry, knowing the entry's DN. */
+  private static class EntryAttributes extends BasicAttributes {
+    final String dn;
+
+    EntryAttributes(String dn, Attributes attributes) {
+      super(true);
+      this.dn = dn;
+      NamingEnumeration<? extends Attribute> all = attributes.getAll();
+      while (all.hasMoreElements()) {
+        put(all.nextElement());
+      }
+    }
+  }
+}
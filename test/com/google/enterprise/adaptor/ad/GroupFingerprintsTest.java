@@ -0,0 +1,84 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link GroupFingerprints}. */
+public class GroupFingerprintsTest {
+  private static final Principal ALICE = new UserPrincipal("alice", "Default");
+  private static final Principal BOB = new UserPrincipal("bob", "Default");
+  private static final Principal ADMINS =
+      new GroupPrincipal("admins", "Default");
+
+  @Test
+  public void testFingerprintIgnoresOrder() {
+    assertEquals(
+        GroupFingerprints.fingerprint(Arrays.asList(ALICE, BOB, ADMINS)),
+        GroupFingerprints.fingerprint(Arrays.asList(ADMINS, BOB, ALICE)));
+  }
+
+  @Test
+  public void testFingerprintSeesChanges() {
+    Set<Long> fingerprints = new HashSet<Long>();
+    List<List<Principal>> defs = Arrays.asList(
+        Arrays.<Principal>asList(),
+        Arrays.asList(ALICE),
+        Arrays.asList(ALICE, BOB),
+        Arrays.asList(ALICE, ALICE),
+        Arrays.<Principal>asList(new GroupPrincipal("alice", "Default")),
+        Arrays.<Principal>asList(new UserPrincipal("alice", "Other")),
+        Arrays.<Principal>asList(new UserPrincipal("alic", "eDefault")));
+    for (List<Principal> def : defs) {
+      fingerprints.add(GroupFingerprints.fingerprint(def));
+    }
+    assertEquals(defs.size(), fingerprints.size());
+  }
+
+  @Test
+  public void testIsPushed() {
+    GroupPrincipal a = new GroupPrincipal("a", "Default");
+    GroupPrincipal b = new GroupPrincipal("b", "Default");
+    long aliceOnly = GroupFingerprints.fingerprint(Arrays.asList(ALICE));
+    long bobOnly = GroupFingerprints.fingerprint(Arrays.asList(BOB));
+    GroupFingerprints pushed = new GroupFingerprints();
+    assertFalse(pushed.isPushed(a, aliceOnly));
+
+    Map<GroupPrincipal, Long> fingerprints =
+        new HashMap<GroupPrincipal, Long>();
+    fingerprints.put(a, aliceOnly);
+    fingerprints.put(b, bobOnly);
+    pushed.recordPushed(fingerprints);
+    assertEquals(2, pushed.size());
+    assertTrue(pushed.isPushed(a, aliceOnly));
+    assertTrue(pushed.isPushed(b, bobOnly));
+    assertFalse(pushed.isPushed(b, aliceOnly));
+
+    pushed.forget(Collections.singleton(a));
+    assertFalse(pushed.isPushed(a, aliceOnly));
+    assertTrue(pushed.isPushed(b, bobOnly));
+
+    pushed.clear();
+    assertFalse(pushed.isPushed(b, bobOnly));
+  }
+}
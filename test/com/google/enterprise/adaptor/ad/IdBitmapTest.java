@@ -0,0 +1,127 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link IdBitmap}. */
+public class IdBitmapTest {
+  private static void assertSameIds(SortedSet<Integer> golden,
+      IdBitmap bitmap) {
+    assertEquals(golden.size(), bitmap.cardinality());
+    int[] ids = bitmap.toArray();
+    int i = 0;
+    for (int id : golden) {
+      assertEquals(id, ids[i++]);
+    }
+  }
+
+  /** Adds <code>count</code> random IDs below <code>range</code>. */
+  private static void addRandom(Random random, int count, int range,
+      SortedSet<Integer> golden, IdBitmap bitmap) {
+    for (int i = 0; i < count; i++) {
+      int id = random.nextInt(range);
+      assertEquals(golden.add(id), bitmap.add(id));
+    }
+  }
+
+  @Test
+  public void testAddRemoveContains() {
+    Random random = new Random(7);
+    SortedSet<Integer> golden = new TreeSet<Integer>();
+    IdBitmap bitmap = new IdBitmap();
+    // dense enough for some containers to become bitmaps and back
+    for (int i = 0; i < 40000; i++) {
+      int id = random.nextInt(200000);
+      if (random.nextInt(3) > 0) {
+        assertEquals(golden.add(id), bitmap.add(id));
+      } else {
+        assertEquals(golden.remove(id), bitmap.remove(id));
+      }
+    }
+    assertSameIds(golden, bitmap);
+    for (int id = 0; id < 200000; id += 7) {
+      assertEquals(golden.contains(id), bitmap.contains(id));
+    }
+    for (int id : new ArrayList<Integer>(golden)) {
+      assertTrue(bitmap.remove(id));
+    }
+    assertEquals(0, bitmap.cardinality());
+    assertEquals(-1, bitmap.next(0));
+  }
+
+  @Test
+  public void testFullContainerBecomesBitmapAndShrinksBack() {
+    SortedSet<Integer> golden = new TreeSet<Integer>();
+    IdBitmap bitmap = new IdBitmap();
+    for (int id = 0; id < 2 * IdBitmap.ARRAY_MAX; id++) {
+      golden.add(id * 3);
+      bitmap.add(id * 3);
+    }
+    assertSameIds(golden, bitmap);
+    for (int id = 0; id < 2 * IdBitmap.ARRAY_MAX; id += 2) {
+      golden.remove(id * 3);
+      bitmap.remove(id * 3);
+    }
+    for (int id = 1; id < 2 * IdBitmap.ARRAY_MAX; id += 4) {
+      golden.remove(id * 3);
+      bitmap.remove(id * 3);
+    }
+    assertSameIds(golden, bitmap);
+  }
+
+  @Test
+  public void testOrAndNot() {
+    Random random = new Random(11);
+    for (int range : new int[] {5000, 100000, 1000000}) {
+      SortedSet<Integer> goldenA = new TreeSet<Integer>();
+      SortedSet<Integer> goldenB = new TreeSet<Integer>();
+      IdBitmap a = new IdBitmap();
+      IdBitmap b = new IdBitmap();
+      addRandom(random, 20000, range, goldenA, a);
+      addRandom(random, 3000, range, goldenB, b);
+
+      assertEquals(goldenA.addAll(goldenB), a.or(b));
+      assertSameIds(goldenA, a);
+      assertFalse(a.or(b));
+      assertSameIds(goldenB, b);
+
+      assertEquals(goldenA.removeAll(goldenB), a.andNot(b));
+      assertSameIds(goldenA, a);
+      assertFalse(a.andNot(b));
+
+      assertEquals(goldenB.addAll(goldenA), b.or(a));
+      assertSameIds(goldenB, b);
+    }
+  }
+
+  @Test
+  public void testNext() {
+    IdBitmap bitmap = new IdBitmap();
+    bitmap.add(5);
+    bitmap.add(70000);
+    bitmap.add(65535);
+    assertEquals(5, bitmap.next(0));
+    assertEquals(5, bitmap.next(5));
+    assertEquals(65535, bitmap.next(6));
+    assertEquals(70000, bitmap.next(65536));
+    assertEquals(-1, bitmap.next(70001));
+    assertEquals(-1, bitmap.next(Integer.MAX_VALUE));
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.*;
+import javax.naming.ldap.*;
+
+/** Test cases for {@link LdapContextPool}. */
+public class LdapContextPoolTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  /** Factory of MockLdapContexts that counts how many it created. */
+  private static class CountingFactory
+      implements LdapContextPool.ContextFactory {
+    final AtomicInteger created = new AtomicInteger();
+    @Override
+    public LdapContext create() {
+      created.incrementAndGet();
+      try {
+        return new MockLdapContext();
+      } catch (NamingException ne) {
+        throw new RuntimeException(ne);
+      }
+    }
+  }
+
+  /** MockLdapContext that remembers whether it was closed. */
+  private static class ClosableLdapContext extends MockLdapContext {
+    boolean closed;
+    public ClosableLdapContext() throws NamingException {
+    }
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  @Test
+  public void testInitialContextIsReused() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    MockLdapContext initial = new MockLdapContext();
+    LdapContextPool pool = new LdapContextPool(factory, initial, 2, 0);
+    LdapContext ctx = pool.borrow();
+    assertSame(initial, ctx);
+    pool.release(ctx);
+    assertSame(initial, pool.borrow());
+    assertEquals(0, factory.created.get());
+  }
+
+  @Test
+  public void testGrowsUpToMaxSize() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    LdapContextPool pool =
+        new LdapContextPool(factory, new MockLdapContext(), 3, 0);
+    LdapContext first = pool.borrow();
+    LdapContext second = pool.borrow();
+    LdapContext third = pool.borrow();
+    assertNotSame(first, second);
+    assertNotSame(second, third);
+    assertEquals(2, factory.created.get());
+    assertEquals(3, pool.size());
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+    assertEquals(3, pool.idleCount());
+  }
+
+  @Test
+  public void testBorrowWaitsForRelease() throws Exception {
+    final LdapContextPool pool = new LdapContextPool(new CountingFactory(),
+        new MockLdapContext(), 1, 0);
+    final LdapContext ctx = pool.borrow();
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException ie) {
+          // release right away
+        }
+        pool.release(ctx);
+      }
+    };
+    releaser.start();
+    assertSame(ctx, pool.borrow());
+    releaser.join();
+  }
+
+  @Test
+  public void testDiscardedContextIsReplaced() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    MockLdapContext initial = new MockLdapContext();
+    LdapContextPool pool = new LdapContextPool(factory, initial, 1, 0);
+    pool.discard(pool.borrow());
+    assertEquals(0, pool.size());
+    assertNotSame(initial, pool.borrow());
+    assertEquals(1, factory.created.get());
+  }
+
+  @Test
+  public void testBorrowInterrupted() throws Exception {
+    LdapContextPool pool = new LdapContextPool(new CountingFactory(),
+        new MockLdapContext(), 1, 0);
+    pool.borrow();
+    Thread.currentThread().interrupt();
+    try {
+      pool.borrow();
+      fail("Did not catch expected InterruptedNamingException.");
+    } catch (InterruptedNamingException ine) {
+      // interrupt status is preserved
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  @Test
+  public void testResetClosesOldContexts() throws Exception {
+    ClosableLdapContext idle = new ClosableLdapContext();
+    ClosableLdapContext leased = new ClosableLdapContext();
+    MockLdapContext replacement = new MockLdapContext();
+    CountingFactory factory = new CountingFactory();
+    LdapContextPool pool = new LdapContextPool(factory, leased, 2, 0);
+    assertSame(leased, pool.borrow());
+    pool.reset(idle);  // "idle" is now the only pooled context
+    pool.reset(replacement);
+    assertTrue(idle.closed);
+    assertFalse(leased.closed);
+    pool.release(leased);
+    assertTrue(leased.closed);
+    assertSame(replacement, pool.borrow());
+    assertEquals(0, factory.created.get());
+  }
+
+  @Test
+  public void testIdleContextsAreEvictedButOneIsKept() throws Exception {
+    ClosableLdapContext initial = new ClosableLdapContext();
+    LdapContextPool pool = new LdapContextPool(new CountingFactory(), initial,
+        2, 1);
+    LdapContext first = pool.borrow();
+    LdapContext second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+    Thread.sleep(10);
+    LdapContext ctx = pool.borrow();
+    assertSame(second, ctx);
+    assertTrue(initial.closed);
+    pool.release(ctx);
+    assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void testReleaseOfUnknownContext() throws Exception {
+    LdapContextPool pool = new LdapContextPool(new CountingFactory(),
+        new MockLdapContext(), 1, 0);
+    thrown.expect(IllegalArgumentException.class);
+    pool.release(new MockLdapContext());
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import javax.naming.directory.InvalidSearchFilterException;
+
+/** Test cases for {@link LdapFilter}. */
+public class LdapFilterTest {
+  /** Parses, encodes and decodes the filter, returning its string form. */
+  private static String roundTrip(String filter) throws Exception {
+    Ber.Writer writer = new Ber.Writer();
+    LdapFilter.parse(filter).encode(writer);
+    Ber.Reader reader = new Ber.Reader(writer.toByteArray());
+    LdapFilter decoded = LdapFilter.decode(reader);
+    assertFalse(reader.hasMore());
+    return decoded.toString();
+  }
+
+  @Test
+  public void testSimpleFilters() throws Exception {
+    assertEquals("(cn=users)", roundTrip("(cn=users)"));
+    assertEquals("(objectClass=*)", roundTrip("(objectClass=*)"));
+    assertEquals("(uSNChanged>=1234)", roundTrip("(uSNChanged>=1234)"));
+    assertEquals("(uSNChanged<=1234)", roundTrip("(uSNChanged<=1234)"));
+    assertEquals("(cn~=user)", roundTrip("(cn~=user)"));
+  }
+
+  @Test
+  public void testMissingParenthesesAreTolerated() throws Exception {
+    assertEquals("(ou=Users)", roundTrip("ou=Users"));
+  }
+
+  @Test
+  public void testCompositeFilters() throws Exception {
+    String filter = "(&(objectClass=user)(|(cn=a)(!(cn=b))))";
+    assertEquals(filter, roundTrip(filter));
+    LdapFilter parsed = LdapFilter.parse(filter);
+    assertTrue(parsed instanceof LdapFilter.Composite);
+    assertEquals(2, ((LdapFilter.Composite) parsed).filters.size());
+  }
+
+  @Test
+  public void testSubstrings() throws Exception {
+    assertEquals("(cn=ab*)", roundTrip("(cn=ab*)"));
+    assertEquals("(cn=*yz)", roundTrip("(cn=*yz)"));
+    assertEquals("(cn=a*b*c*z)", roundTrip("(cn=a*b*c*z)"));
+    assertEquals("(cn=*m*)", roundTrip("(cn=*m*)"));
+  }
+
+  @Test
+  public void testExtensibleMatch() throws Exception {
+    String filter = "(groupType:1.2.840.113556.1.4.803:=2147483648)";
+    assertEquals(filter, roundTrip(filter));
+    LdapFilter.Extensible parsed =
+        (LdapFilter.Extensible) LdapFilter.parse(filter);
+    assertEquals("groupType", parsed.type);
+    assertEquals("1.2.840.113556.1.4.803", parsed.matchingRule);
+    assertEquals("(ou:dn:=Users)", roundTrip("(ou:dn:=Users)"));
+    assertEquals("(:1.2.3:=x)", roundTrip("(:1.2.3:=x)"));
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    LdapFilter.Comparison parsed = (LdapFilter.Comparison) LdapFilter.parse(
+        "(cn=a\\2ab\\28c\\29\\5c)");
+    assertEquals("a*b(c)\\", new String(parsed.value, Ber.UTF8));
+    assertEquals("(cn=a\\2ab\\28c\\29\\5c)", parsed.toString());
+    // DNs in filters keep their commas and '='s
+    assertEquals("(distinguishedName=CN=x,DC=example,DC=com)",
+        roundTrip("(distinguishedName=CN=x,DC=example,DC=com)"));
+    // non-ASCII values are sent as UTF-8
+    parsed = (LdapFilter.Comparison) LdapFilter.parse("(cn=Jürgen)");
+    assertEquals(7, parsed.value.length);
+  }
+
+  @Test
+  public void testInvalidFilters() throws Exception {
+    String[] invalid = {"(cn=a", "(cn=a))", "(=a)", "(&(cn=a)", "(cn=a(b)",
+        "(cn=\\zz)", "(cn=a**b)", "(::=x)", "()"};
+    for (String filter : invalid) {
+      try {
+        LdapFilter.parse(filter);
+        fail("Did not catch expected exception for " + filter);
+      } catch (InvalidSearchFilterException expected) {
+      }
+    }
+  }
+}
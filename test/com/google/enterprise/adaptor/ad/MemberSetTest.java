@@ -0,0 +1,182 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link MemberSet} and the {@link StringTable}s. */
+public class MemberSetTest {
+  @Test
+  public void testTableInternsEachStringOnce() {
+    OffHeapStringTable table = new OffHeapStringTable(false);
+    int a = table.intern("cn=a,dc=example,dc=com");
+    int b = table.intern("cn=b,dc=example,dc=com");
+    assertEquals(a, table.intern("cn=a,dc=example,dc=com"));
+    assertEquals(b, table.find("cn=b,dc=example,dc=com"));
+    assertEquals(-1, table.find("cn=c,dc=example,dc=com"));
+    assertEquals("cn=b,dc=example,dc=com", table.get(b));
+    assertEquals(2, table.size());
+  }
+
+  @Test
+  public void testTableGrowsPastItsInitialCapacity() {
+    OffHeapStringTable table = new OffHeapStringTable(false);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.intern("cn=user" + i + ",ou=Jürgen"));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.find("cn=user" + i + ",ou=Jürgen"));
+      assertEquals("cn=user" + i + ",ou=Jürgen", table.get(i));
+    }
+  }
+
+  @Test
+  public void testHeapTable() {
+    StringTable table = new HeapStringTable();
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i, table.intern("cn=user" + i));
+    }
+    assertEquals(17, table.intern("cn=user17"));
+    assertEquals("cn=user4999", table.get(4999));
+    assertEquals(-1, table.find("cn=user5000"));
+  }
+
+  @Test
+  public void testMappedTable() {
+    OffHeapStringTable table = new OffHeapStringTable(true);
+    int id = table.intern("cn=mapped");
+    assertEquals("cn=mapped", table.get(id));
+    assertEquals(4 + "cn=mapped".length(), table.getBytesUsed());
+  }
+
+  @Test
+  public void testSetBehavesLikeTreeSet() {
+    StringTable table = new HeapStringTable();
+    MemberSet set = new MemberSet(table);
+    Set<String> golden = new TreeSet<String>();
+    Random random = new Random(42);
+    for (int i = 0; i < 5000; i++) {
+      String dn = "cn=member" + random.nextInt(1000);
+      if (random.nextBoolean()) {
+        assertEquals(golden.add(dn), set.add(dn));
+      } else {
+        assertEquals(golden.remove(dn), set.remove(dn));
+      }
+      assertEquals(golden.size(), set.size());
+    }
+    assertEquals(golden, set);
+    assertEquals(set, golden);
+    assertTrue(set.contains(golden.iterator().next()));
+    assertFalse(set.contains("cn=unknown"));
+    assertFalse(set.contains(null));
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    MemberSet set = new MemberSet(new OffHeapStringTable(false),
+        Arrays.asList("cn=a", "cn=b", "cn=c", "cn=d"));
+    Iterator<String> it = set.iterator();
+    Set<String> seen = new HashSet<String>();
+    while (it.hasNext()) {
+      String dn = it.next();
+      seen.add(dn);
+      if (!dn.equals("cn=c")) {
+        it.remove();
+      }
+    }
+    assertEquals(4, seen.size());
+    assertEquals(Collections.singleton("cn=c"), set);
+  }
+
+  @Test
+  public void testAddAllFromSameTable() {
+    OffHeapStringTable table = new OffHeapStringTable(false);
+    MemberSet set = new MemberSet(table, Arrays.asList("cn=a", "cn=b"));
+    MemberSet other = new MemberSet(table, Arrays.asList("cn=b", "cn=c"));
+    assertTrue(set.addAll(other));
+    assertFalse(set.addAll(other));
+    assertEquals(new HashSet<String>(Arrays.asList("cn=a", "cn=b", "cn=c")),
+        set);
+    MemberSet fromOtherTable = new MemberSet(new OffHeapStringTable(false),
+        Arrays.asList("cn=d"));
+    assertTrue(set.addAll(fromOtherTable));
+    assertTrue(set.contains("cn=d"));
+  }
+
+  @Test
+  public void testLargeSetSwitchesToBitmap() {
+    StringTable table = new HeapStringTable();
+    MemberSet set = new MemberSet(table);
+    Set<String> golden = new HashSet<String>();
+    for (int i = 0; i <= MemberSet.BITMAP_THRESHOLD; i++) {
+      assertFalse(set.isBitmap());
+      set.add("cn=user" + i);
+      golden.add("cn=user" + i);
+    }
+    assertTrue(set.isBitmap());
+    assertEquals(golden, set);
+    assertTrue(set.remove("cn=user7"));
+    assertFalse(set.remove("cn=user7"));
+    assertFalse(set.contains("cn=user7"));
+    assertTrue(set.contains("cn=user8"));
+    Iterator<String> it = set.iterator();
+    while (it.hasNext()) {
+      if (!it.next().endsWith("0")) {
+        it.remove();
+      }
+    }
+    assertEquals(MemberSet.BITMAP_THRESHOLD / 10 + 1, set.size());
+  }
+
+  @Test
+  public void testBitmapUnionAndDifference() {
+    StringTable table = new HeapStringTable();
+    MemberSet everyone = new MemberSet(table);
+    MemberSet evens = new MemberSet(table);
+    MemberSet small = new MemberSet(table);
+    for (int i = 0; i < 3 * MemberSet.BITMAP_THRESHOLD; i++) {
+      everyone.add("cn=user" + i);
+      if (i % 2 == 0) {
+        evens.add("cn=user" + i);
+      }
+    }
+    small.add("cn=user1");
+    small.add("cn=other");
+    assertTrue(everyone.isBitmap());
+    assertTrue(evens.isBitmap());
+
+    MemberSet odds = new MemberSet(table, everyone);
+    assertTrue(odds.removeAll(evens));
+    assertFalse(odds.removeAll(evens));
+    assertEquals(3 * MemberSet.BITMAP_THRESHOLD / 2, odds.size());
+    assertFalse(odds.contains("cn=user2"));
+    assertTrue(odds.contains("cn=user3"));
+
+    assertTrue(odds.addAll(evens));
+    assertEquals(everyone, odds);
+    assertTrue(odds.addAll(small));
+    assertEquals(everyone.size() + 1, odds.size());
+    assertTrue(odds.removeAll(small));
+    assertFalse(odds.contains("cn=user1"));
+
+    assertTrue(small.addAll(evens));
+    assertTrue(small.isBitmap());
+    assertEquals(evens.size() + 2, small.size());
+  }
+}
@@ -92,6 +92,16 @@ public class MockLdapContext extends InitialLdapContext {
     return new SearchResultsNamingEnumeration(results);
   }
 
+  /**
+   * Searches by the (single component) name, e.g. the DN of a group whose
+   * members are retrieved by range.
+   */
+  @Override
+  public NamingEnumeration<SearchResult> search(Name name, String filter,
+      SearchControls searchControls) throws NamingException {
+    return search(name.get(0), filter, searchControls);
+  }
+
   /** properly handle collections as we add a new attribute */
   private static void addAttribute(Attributes attrs, String newAttr,
       Object value) {
@@ -0,0 +1,399 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import com.google.enterprise.adaptor.StartupException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+
+/** Test cases for {@link NioLdapTransport}, on a {@link FakeLdapServer}. */
+public class NioLdapTransportTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static final String BASE = "DC=example,DC=com";
+  private static final String USER = "CN=admin," + BASE;
+  private static final String PASSWORD = "secret";
+
+  private FakeLdapServer server;
+  private NioLdapTransport transport;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeLdapServer(USER, PASSWORD);
+    server.addRootDseAttribute("defaultNamingContext", BASE)
+        .addRootDseAttribute("dsServiceName", "CN=NTDS Settings," + BASE)
+        .addRootDseAttribute("highestCommittedUSN", "12345")
+        .addRootDseAttribute("configurationNamingContext",
+            "CN=Configuration," + BASE);
+    server.addEntry(BASE, entry("top", "example"));
+    for (int i = 0; i < 5; i++) {
+      server.addEntry("CN=user" + i + "," + BASE, entry("user", "user" + i));
+    }
+    Attributes group = entry("group", "group");
+    Attribute member = new BasicAttribute("member");
+    for (int i = 0; i < 5; i++) {
+      member.add("CN=user" + i + "," + BASE);
+    }
+    group.put(member);
+    group.put("groupType", "-2147483646");
+    server.addEntry("CN=group," + BASE, group);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (transport != null) {
+      transport.close();
+    }
+    server.close();
+  }
+
+  private static Attributes entry(String objectClass, String name) {
+    Attributes attrs = new BasicAttributes(true);
+    attrs.put("objectClass", objectClass);
+    attrs.put("sAMAccountName", name);
+    attrs.put("objectGUID;binary", new byte[] {1, 2, (byte) name.length()});
+    return attrs;
+  }
+
+  private NioLdapTransport newTransport(long timeoutMillis) throws Exception {
+    transport = new NioLdapTransport("localhost", server.getPort(), USER,
+        PASSWORD, timeoutMillis);
+    return transport;
+  }
+
+  @Test
+  public void testReadRootDse() throws Exception {
+    Attributes rootDse = newTransport(5000).readRootDse();
+    assertEquals(BASE, rootDse.get("defaultNamingContext").get());
+    assertEquals("12345", rootDse.get("highestCommittedUSN").get());
+  }
+
+  @Test
+  public void testBadPassword() throws Exception {
+    thrown.expect(StartupException.class);
+    new NioLdapTransport("localhost", server.getPort(), USER, "wrong", 5000);
+  }
+
+  @Test
+  public void testPagedSearchReadsAllPages() throws Exception {
+    LdapTransport.PagedSearch search = newTransport(5000).startPagedSearch(
+        BASE, "(objectClass=user)", new String[] {"sAMAccountName",
+        "objectGUID;binary"}, false, 2);
+    List<Integer> pageSizes = new ArrayList<Integer>();
+    Set<String> names = new HashSet<String>();
+    List<SearchResult> page;
+    while ((page = search.nextPage()) != null) {
+      pageSizes.add(page.size());
+      for (SearchResult sr : page) {
+        names.add((String) sr.getAttributes().get("sAMAccountName").get());
+        assertTrue(sr.getNameInNamespace().endsWith(BASE));
+        assertTrue(sr.getAttributes().get("objectGUID;binary").get()
+            instanceof byte[]);
+      }
+    }
+    search.close(false);
+    assertEquals(Arrays.asList(2, 2, 1), pageSizes);
+    assertEquals(new HashSet<String>(Arrays.asList("user0", "user1", "user2",
+        "user3", "user4")), names);
+  }
+
+  @Test
+  public void testPagedSearchPageSizeChange() throws Exception {
+    LdapTransport.PagedSearch search = newTransport(5000).startPagedSearch(
+        BASE, "(objectClass=user)", new String[] {"sAMAccountName"}, false, 1);
+    assertEquals(1, search.nextPage().size());
+    search.setPageSize(4);
+    assertEquals(4, search.nextPage().size());
+    assertNull(search.nextPage());
+  }
+
+  @Test
+  public void testPagedSearchOfMissingBase() throws Exception {
+    LdapTransport.PagedSearch search = newTransport(5000).startPagedSearch(
+        "DC=missing", "(objectClass=*)", new String[] {"cn"}, false, 10);
+    thrown.expect(NameNotFoundException.class);
+    search.nextPage();
+  }
+
+  @Test
+  public void testExtensibleMatchFilter() throws Exception {
+    SearchResult sr = newTransport(5000).findFirst(BASE,
+        "(&(objectClass=group)(groupType:1.2.840.113556.1.4.803:=2))",
+        new String[] {"sAMAccountName"});
+    assertEquals("group", sr.getAttributes().get("sAMAccountName").get());
+    assertNull(transport.findFirst(BASE,
+        "(groupType:1.2.840.113556.1.4.803:=4)", new String[] {"cn"}));
+  }
+
+  @Test
+  public void testFindFirstOfMany() throws Exception {
+    SearchResult sr = newTransport(5000).findFirst(BASE, "(sAMAccountName=u*)",
+        new String[] {"sAMAccountName"});
+    assertEquals("user0", sr.getAttributes().get("sAMAccountName").get());
+  }
+
+  @Test
+  public void testReadEntryRange() throws Exception {
+    SearchResult sr = newTransport(5000).readEntry("CN=group," + BASE,
+        new String[] {"member;Range=2-3"});
+    Attribute member = AdEntity.findMemberAttr(sr.getAttributes());
+    assertEquals("member;range=2-3", member.getID());
+    assertEquals(2, member.size());
+    sr = transport.readEntry("CN=group," + BASE,
+        new String[] {"member;Range=4-5"});
+    member = AdEntity.findMemberAttr(sr.getAttributes());
+    assertTrue(AdEntity.isLastMemberRange(member));
+  }
+
+  @Test
+  public void testReadMissingEntry() throws Exception {
+    assertNull(newTransport(5000).readEntry("CN=gone," + BASE,
+        new String[] {"cn"}));
+  }
+
+  @Test
+  public void testRequestsAreMultiplexedOverOneConnection() throws Exception {
+    newTransport(5000).setMaxConnections(1);
+    server.responseDelayMillis = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<Future<SearchResult>> results = new ArrayList<Future<SearchResult>>();
+    for (int i = 0; i < 5; i++) {
+      final String dn = "CN=user" + i + "," + BASE;
+      results.add(executor.submit(new Callable<SearchResult>() {
+        @Override
+        public SearchResult call() throws NamingException {
+          return transport.readEntry(dn, new String[] {"sAMAccountName"});
+        }
+      }));
+    }
+    for (int i = 0; i < 5; i++) {
+      assertEquals("user" + i, results.get(i).get().getAttributes()
+          .get("sAMAccountName").get());
+    }
+    executor.shutdown();
+    assertEquals(1, server.connectionsAccepted.get());
+    assertTrue(server.maxSearchesInProgress.get() > 1);
+  }
+
+  @Test
+  public void testBusyConnectionOpensAnother() throws Exception {
+    newTransport(5000).setMaxConnections(2);
+    server.responseDelayMillis = 200;
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          transport.readEntry("CN=user0," + BASE, new String[] {"cn"});
+        } catch (NamingException e) {
+          // checked by the main thread
+        }
+      }
+    };
+    reader.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.searchesReceived.get() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    transport.readEntry("CN=user1," + BASE, new String[] {"cn"});
+    reader.join();
+    assertEquals(2, server.connectionsAccepted.get());
+  }
+
+  @Test
+  public void testSlowConnectDoesNotHoldUpOtherRequests() throws Exception {
+    newTransport(5000).setMaxConnections(2);
+    server.responseDelayMillis = 200;
+    server.bindDelayMillis = 3000;
+    Thread busy = new Thread() {
+      @Override
+      public void run() {
+        try {
+          transport.readEntry("CN=user0," + BASE, new String[] {"cn"});
+        } catch (NamingException e) {
+          // checked by the main thread
+        }
+      }
+    };
+    busy.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.searchesReceived.get() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    // opens (and is slow to bind) a second connection
+    Thread opener = new Thread() {
+      @Override
+      public void run() {
+        try {
+          transport.readEntry("CN=user1," + BASE, new String[] {"cn"});
+        } catch (NamingException e) {
+          // checked by the main thread
+        }
+      }
+    };
+    opener.start();
+    while (server.connectionsAccepted.get() < 2
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    // the second connection counts against the pool, so the first one is
+    // used meanwhile, without waiting for the bind
+    long start = System.currentTimeMillis();
+    assertEquals("user2", transport.readEntry("CN=user2," + BASE,
+        new String[] {"sAMAccountName"}).getAttributes()
+        .get("sAMAccountName").get());
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    busy.join();
+    opener.join();
+    assertEquals(2, server.connectionsAccepted.get());
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    newTransport(100);
+    server.responseDelayMillis = 2000;
+    try {
+      transport.readRootDse();
+      fail("Did not catch expected exception.");
+    } catch (NamingException ne) {
+      assertTrue(ne.getMessage().contains("read timed out"));
+    }
+  }
+
+  @Test
+  public void testReconnectAfterDisconnect() throws Exception {
+    newTransport(5000).readRootDse();
+    server.disconnectAll();
+    try {
+      transport.readRootDse();
+      fail("Did not catch expected exception.");
+    } catch (CommunicationException expected) {
+    }
+    transport.reconnect();
+    assertEquals(BASE, transport.readRootDse().get("defaultNamingContext")
+        .get());
+  }
+
+  @Test
+  public void testDirSyncReturnsChangedValuesOnly() throws Exception {
+    newTransport(5000);
+    DirSyncControl.Result result = transport.dirSync(BASE,
+        "(!(objectClass=*))", new String[] {"objectGUID"}, new byte[0]);
+    assertTrue(result.entries.isEmpty());
+    assertFalse(result.moreResults);
+    server.addMember("CN=group," + BASE, "CN=user5," + BASE);
+    server.removeMember("CN=group," + BASE, "CN=user0," + BASE);
+    result = transport.dirSync(BASE, "(objectClass=group)",
+        new String[] {"member"}, result.cookie);
+    assertEquals(1, result.entries.size());
+    Attributes attrs = result.entries.get(0).getAttributes();
+    assertEquals("CN=group," + BASE,
+        result.entries.get(0).getNameInNamespace());
+    assertEquals("CN=user5," + BASE, attrs.get("member;range=1-1").get());
+    assertEquals("CN=user0," + BASE, attrs.get("member;range=0-0").get());
+    assertNull(attrs.get("member"));
+    result = transport.dirSync(BASE, "(objectClass=group)",
+        new String[] {"member"}, result.cookie);
+    assertTrue(result.entries.isEmpty());
+  }
+
+  @Test
+  public void testAdServerReadMemberChanges() throws Exception {
+    AdServer adServer = newInitializedAdServer();
+    adServer.resetDirSyncCookie();
+    assertTrue(adServer.hasDirSyncCookie());
+    server.addMember("CN=group," + BASE, "CN=user5," + BASE);
+    server.removeMember("CN=group," + BASE, "CN=user0," + BASE);
+    server.addMember("CN=group," + BASE, "CN=user6," + BASE);
+    // one change per response: three DirSync searches
+    server.dirSyncChangesPerResponse = 1;
+    int searches = server.searchesReceived.get();
+    Map<String, AdServer.MemberChanges> changes =
+        adServer.readMemberChanges();
+    assertEquals(searches + 3, server.searchesReceived.get());
+    assertEquals(Collections.singleton("CN=group," + BASE), changes.keySet());
+    AdServer.MemberChanges groupChanges = changes.get("CN=group," + BASE);
+    assertEquals(new HashSet<String>(Arrays.asList("CN=user5," + BASE,
+        "CN=user6," + BASE)), groupChanges.getAdded());
+    assertEquals(Collections.singleton("CN=user0," + BASE),
+        groupChanges.getRemoved());
+    assertTrue(adServer.readMemberChanges().isEmpty());
+    adServer.close();
+  }
+
+  /** Returns an initialized AdServer, adding the entries it reads. */
+  private AdServer newInitializedAdServer() throws Exception {
+    Attributes ntds = new BasicAttributes(true);
+    ntds.put("distinguishedName", "CN=NTDS Settings," + BASE);
+    ntds.put("invocationID;binary", new byte[16]);
+    server.addEntry("CN=NTDS Settings," + BASE, ntds);
+    Attributes domain = new BasicAttributes(true);
+    domain.put("distinguishedName", BASE);
+    domain.put("objectSid;binary", new byte[] {1, 1, 0, 0, 0, 0, 0, 5, 32, 0,
+        0, 0});
+    server.addEntry(BASE, domain);
+    server.addEntry("CN=Configuration," + BASE, new BasicAttributes(true));
+    Attributes partition = new BasicAttributes(true);
+    partition.put("ncName", BASE);
+    partition.put("nETBIOSName", "EXAMPLE");
+    partition.put("dnsRoot", "example.com");
+    server.addEntry("CN=EXAMPLE,CN=Partitions,CN=Configuration," + BASE,
+        partition);
+    for (int i = 0; i < 5; i++) {
+      Attributes user = entry("user", "user" + i);
+      user.put("primaryGroupId", "513");
+      server.addEntry("CN=user" + i + "," + BASE, user);
+    }
+    AdServer adServer = new AdServer("localhost", server.getPort(), "", "",
+        "", "", newTransport(5000));
+    adServer.initialize();
+    return adServer;
+  }
+
+  @Test
+  public void testAdServerOverNio() throws Exception {
+    AdServer adServer = newInitializedAdServer();
+    adServer.setPageSize(2);
+    adServer.setRangeRetrievalConcurrency(2);
+    assertEquals(BASE, adServer.getDn());
+    assertEquals("S-1-5-32", adServer.getSid());
+    assertEquals("EXAMPLE", adServer.getnETBIOSName());
+    Set<AdEntity> entities = adServer.search("",
+        "(|(objectClass=user)(objectClass=group))", false,
+        new String[] {"sAMAccountName", "objectGUID;binary", "primaryGroupId",
+        "member;Range=0-1"});
+    assertEquals(6, entities.size());
+    for (AdEntity e : entities) {
+      if (e.isGroup()) {
+        assertEquals(5, e.getMembers().size());
+      }
+    }
+    adServer.close();
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+
+/** Test cases for {@link PagePrefetcher}. */
+public class PagePrefetcherTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  /** Source of <code>pageCount</code> single-entry pages. */
+  private static class FakeSource implements PageSource {
+    final int pageCount;
+    final AtomicInteger pagesRead = new AtomicInteger();
+
+    FakeSource(int pageCount) {
+      this.pageCount = pageCount;
+    }
+
+    @Override
+    public List<SearchResult> nextPage()
+        throws NamingException, IOException {
+      int page = pagesRead.get();
+      if (page == pageCount) {
+        return null;
+      }
+      pagesRead.incrementAndGet();
+      return Collections.singletonList(
+          new SearchResult("page" + page, null, new BasicAttributes()));
+    }
+  }
+
+  @Test
+  public void testReturnsAllPagesInOrder() throws Exception {
+    PagePrefetcher prefetcher = new PagePrefetcher(new FakeSource(5), 2);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("page" + i, prefetcher.nextPage().get(0).getName());
+    }
+    assertNull(prefetcher.nextPage());
+    assertNull(prefetcher.nextPage());
+    assertTrue(prefetcher.close());
+  }
+
+  @Test
+  public void testReadsAheadAtMostMaxPages() throws Exception {
+    FakeSource source = new FakeSource(10);
+    PagePrefetcher prefetcher = new PagePrefetcher(source, 2);
+    try {
+      // two pages queued, and a third one waiting to be queued
+      long deadline = System.currentTimeMillis() + 5000;
+      while (source.pagesRead.get() < 3
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      Thread.sleep(50);
+      assertEquals(3, source.pagesRead.get());
+      prefetcher.nextPage();
+      deadline = System.currentTimeMillis() + 5000;
+      while (source.pagesRead.get() < 4
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      Thread.sleep(50);
+      assertEquals(4, source.pagesRead.get());
+    } finally {
+      prefetcher.close();
+    }
+  }
+
+  @Test
+  public void testExceptionIsRethrownAfterEarlierPages() throws Exception {
+    PagePrefetcher prefetcher = new PagePrefetcher(new FakeSource(1) {
+      @Override
+      public List<SearchResult> nextPage()
+          throws NamingException, IOException {
+        if (pagesRead.get() == pageCount) {
+          throw new CommunicationException("testing");
+        }
+        return super.nextPage();
+      }
+    }, 4);
+    assertEquals("page0", prefetcher.nextPage().get(0).getName());
+    try {
+      prefetcher.nextPage();
+      fail("Did not catch expected exception.");
+    } catch (CommunicationException expected) {
+    }
+    assertNull(prefetcher.nextPage());
+    assertTrue(prefetcher.close());
+  }
+
+  @Test
+  public void testCloseWhileReadingAPage() throws Exception {
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    PagePrefetcher prefetcher = new PagePrefetcher(
+        new PageSource() {
+          @Override
+          public List<SearchResult> nextPage() throws NamingException {
+            reading.countDown();
+            try {
+              Thread.sleep(10000);
+            } catch (InterruptedException ie) {
+              interrupted.countDown();
+              throw new InterruptedNamingException();
+            }
+            return null;
+          }
+        }, 1);
+    assertTrue(reading.await(5, TimeUnit.SECONDS));
+    // the source is still in use, so its connection must not be reused
+    assertFalse(prefetcher.close());
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testInterruptedSourceIsRethrown() throws Exception {
+    PagePrefetcher prefetcher = new PagePrefetcher(new PageSource() {
+      @Override
+      public List<SearchResult> nextPage() throws NamingException {
+        throw new InterruptedNamingException("testing");
+      }
+    }, 1);
+    try {
+      prefetcher.nextPage();
+      fail("Did not catch expected exception.");
+    } catch (InterruptedNamingException expected) {
+    }
+    assertNull(prefetcher.nextPage());
+    assertTrue(prefetcher.close());
+  }
+
+  @Test
+  public void testZeroMaxPages() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new PagePrefetcher(new FakeSource(1), 0);
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Test cases for {@link PageSizeTuner}. */
+public class PageSizeTunerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  /** PageSizeTuner with a heap usage set by the test. */
+  private static class FakeHeapTuner extends PageSizeTuner {
+    double heapUsage = 0.1;
+    FakeHeapTuner(int initialPageSize, int minPageSize, int maxPageSize) {
+      super(initialPageSize, minPageSize, maxPageSize);
+    }
+    @Override
+    double getHeapUsage() {
+      return heapUsage;
+    }
+  }
+
+  @Test
+  public void testInitialPageSizeIsClamped() {
+    assertEquals(500, new FakeHeapTuner(1000, 100, 500).getPageSize());
+    assertEquals(100, new FakeHeapTuner(10, 100, 500).getPageSize());
+  }
+
+  @Test
+  public void testFastPagesGrowUpToMax() {
+    FakeHeapTuner tuner = new FakeHeapTuner(1000, 100, 5000);
+    assertEquals(2000, tuner.pageCompleted(1000, 10));
+    assertEquals(4000, tuner.pageCompleted(2000, 10));
+    assertEquals(5000, tuner.pageCompleted(4000, 10));
+    assertEquals(5000, tuner.pageCompleted(5000, 10));
+  }
+
+  @Test
+  public void testSlowPagesShrinkDownToMin() {
+    FakeHeapTuner tuner = new FakeHeapTuner(400, 100, 5000);
+    long slow = PageSizeTuner.TARGET_MILLIS + 1;
+    assertEquals(200, tuner.pageCompleted(400, slow));
+    assertEquals(100, tuner.pageCompleted(200, slow));
+    assertEquals(100, tuner.pageCompleted(100, slow));
+  }
+
+  @Test
+  public void testModeratePagesKeepSize() {
+    FakeHeapTuner tuner = new FakeHeapTuner(1000, 100, 5000);
+    assertEquals(1000, tuner.pageCompleted(1000,
+        PageSizeTuner.TARGET_MILLIS / 2));
+  }
+
+  @Test
+  public void testShortPageIsIgnored() {
+    FakeHeapTuner tuner = new FakeHeapTuner(1000, 100, 5000);
+    assertEquals(1000, tuner.pageCompleted(10, 1));
+    assertEquals(1000, tuner.pageCompleted(10, 100000));
+  }
+
+  @Test
+  public void testHeapPressure() {
+    FakeHeapTuner tuner = new FakeHeapTuner(1000, 100, 5000);
+    tuner.heapUsage = (PageSizeTuner.HEAP_HIGH_WATER
+        + PageSizeTuner.HEAP_CRITICAL) / 2;
+    // no growth, even though the page was fast
+    assertEquals(1000, tuner.pageCompleted(1000, 10));
+    tuner.heapUsage = PageSizeTuner.HEAP_CRITICAL + 0.01;
+    assertEquals(500, tuner.pageCompleted(1000, 10));
+    assertEquals(250, tuner.pageCompleted(10, 10));
+  }
+
+  @Test
+  public void testInvalidBounds() {
+    thrown.expect(IllegalArgumentException.class);
+    new PageSizeTuner(1000, 500, 100);
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import java.util.Hashtable;
+
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Compares the two ways of doing member range retrieval against a real domain
+ * controller: a subtree search for <code>(sAMAccountName=...)</code> under the
+ * search base (as the adaptor used to do), and a base-scope read of the
+ * group's DN (as <code>AdServer</code> does now).
+ *
+ * <p>Not a unit test; run with <code>ant benchmark
+ * -Dbenchmark.args="ldap://host:389 user password searchBase groupDn
+ * [iterations]"</code>.  Pick a group large enough to need many range
+ * windows.
+ */
+public class RangeRetrievalBenchmark {
+  public static void main(String[] args) throws Exception {
+    if (args.length < 5) {
+      System.err.println("usage: RangeRetrievalBenchmark ldapUrl user "
+          + "password searchBase groupDn [iterations]");
+      System.exit(1);
+    }
+    String url = args[0];
+    String searchBase = args[3];
+    String groupDn = args[4];
+    int iterations = (args.length > 5) ? Integer.parseInt(args[5]) : 5;
+
+    Hashtable<String, String> env = new Hashtable<String, String>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY,
+        "com.sun.jndi.ldap.LdapCtxFactory");
+    env.put(Context.SECURITY_AUTHENTICATION, "simple");
+    env.put(Context.SECURITY_PRINCIPAL, args[1]);
+    env.put(Context.SECURITY_CREDENTIALS, args[2]);
+    env.put(Context.PROVIDER_URL, url);
+    LdapContext ctx = new InitialLdapContext(env, null);
+    try {
+      String sAMAccountName = lookupSAMAccountName(ctx, groupDn);
+      // warm up both code paths (and the DC's caches) once
+      retrieveAll(ctx, searchBase, sAMAccountName, groupDn, false);
+      retrieveAll(ctx, searchBase, sAMAccountName, groupDn, true);
+      long subtreeNanos = 0;
+      long baseNanos = 0;
+      int windows = 0;
+      for (int i = 0; i < iterations; i++) {
+        long start = System.nanoTime();
+        windows = retrieveAll(ctx, searchBase, sAMAccountName, groupDn, false);
+        subtreeNanos += System.nanoTime() - start;
+        start = System.nanoTime();
+        retrieveAll(ctx, searchBase, sAMAccountName, groupDn, true);
+        baseNanos += System.nanoTime() - start;
+      }
+      System.out.printf("%d range windows, %d iterations%n", windows,
+          iterations);
+      System.out.printf("subtree (sAMAccountName) search: %.1f ms/group, "
+          + "%.2f ms/window%n", subtreeNanos / 1e6 / iterations,
+          subtreeNanos / 1e6 / iterations / windows);
+      System.out.printf("base-scope DN read:              %.1f ms/group, "
+          + "%.2f ms/window%n", baseNanos / 1e6 / iterations,
+          baseNanos / 1e6 / iterations / windows);
+    } finally {
+      ctx.close();
+    }
+  }
+
+  private static String lookupSAMAccountName(LdapContext ctx, String groupDn)
+      throws NamingException {
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+    controls.setReturningAttributes(new String[] {"sAMAccountName"});
+    NamingEnumeration<SearchResult> results = ctx.search(
+        new CompositeName().add(groupDn), "(objectClass=*)", controls);
+    return results.next().getAttributes().get("sAMAccountName").get()
+        .toString();
+  }
+
+  /** Retrieves all members of the group; returns the number of windows. */
+  private static int retrieveAll(LdapContext ctx, String searchBase,
+      String sAMAccountName, String groupDn, boolean baseScope)
+      throws NamingException {
+    int start = 0;
+    int windows = 0;
+    while (true) {
+      SearchControls controls = new SearchControls();
+      controls.setReturningAttributes(
+          new String[] {"member;Range=" + start + "-*"});
+      NamingEnumeration<SearchResult> results;
+      if (baseScope) {
+        controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        results = ctx.search(new CompositeName().add(groupDn),
+            "(objectClass=*)", controls);
+      } else {
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        results = ctx.search(searchBase,
+            "(sAMAccountName=" + sAMAccountName + ")", controls);
+      }
+      windows++;
+      if (!results.hasMore()) {
+        return windows;
+      }
+      Attribute member = AdEntity.findMemberAttr(
+          results.next().getAttributes());
+      results.close();
+      if (member == null || AdEntity.isLastMemberRange(member)) {
+        return windows;
+      }
+      start += member.size();
+    }
+  }
+}
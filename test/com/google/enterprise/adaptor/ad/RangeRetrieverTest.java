@@ -0,0 +1,144 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+
+/** Test cases for {@link RangeRetriever}. */
+public class RangeRetrieverTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static final int GROUP_SIZE = 7;
+
+  /** Creates a group with members 0 and 1 of GROUP_SIZE retrieved. */
+  private static AdEntity newGroup(String name) throws Exception {
+    Attributes attrs = new BasicAttributes();
+    attrs.put("objectGUID;binary", new byte[] {1, 2, 3});
+    attrs.put("sAMAccountName", name);
+    attrs.put(rangeAttribute(name, 0, 2));
+    SearchResult sr = new SearchResult(name, null, attrs);
+    sr.setNameInNamespace("cn=" + name + ",dc=example,dc=com");
+    AdEntity group = new AdEntity(sr);
+    assertFalse(group.areAllMembershipsRetrieved());
+    return group;
+  }
+
+  /** Returns (up to) <code>count</code> members, from <code>start</code> on. */
+  private static Attribute rangeAttribute(String name, int start, int count) {
+    int end = Math.min(start + count, GROUP_SIZE) - 1;
+    String id = "member;range=" + start + "-"
+        + (end == GROUP_SIZE - 1 ? "*" : "" + end);
+    Attribute attr = new BasicAttribute(id);
+    for (int i = start; i <= end; i++) {
+      attr.add("cn=" + name + "_member" + i);
+    }
+    return attr;
+  }
+
+  private static Set<String> allMembers(String name) {
+    Set<String> members = new HashSet<String>();
+    for (int i = 0; i < GROUP_SIZE; i++) {
+      members.add("cn=" + name + "_member" + i);
+    }
+    return members;
+  }
+
+  /** Fetcher that tracks how many requests run at once. */
+  private static class FakeFetcher implements RangeRetriever.RangeFetcher {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    public SearchResult fetch(AdEntity group, int start, int batch)
+        throws NamingException {
+      requests.incrementAndGet();
+      int now = running.incrementAndGet();
+      while (true) {
+        int max = maxRunning.get();
+        if (now <= max || maxRunning.compareAndSet(max, now)) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException ie) {
+        throw new InterruptedNamingException();
+      } finally {
+        running.decrementAndGet();
+      }
+      Attributes attrs = new BasicAttributes();
+      attrs.put(rangeAttribute(group.getSAMAccountName(), start, batch));
+      return new SearchResult(group.getDn(), null, attrs);
+    }
+  }
+
+  @Test
+  public void testRetrievesAllMembersOfAllGroups() throws Exception {
+    List<AdEntity> groups = new ArrayList<AdEntity>();
+    for (int i = 0; i < 5; i++) {
+      groups.add(newGroup("group" + i));
+    }
+    FakeFetcher fetcher = new FakeFetcher();
+    new RangeRetriever(fetcher, 3).retrieve(groups);
+    for (AdEntity group : groups) {
+      assertTrue(group.areAllMembershipsRetrieved());
+      assertEquals(allMembers(group.getSAMAccountName()), group.getMembers());
+    }
+    // ranges 2-3, 4-5 and 6-* for each group
+    assertEquals(15, fetcher.requests.get());
+    assertTrue(fetcher.maxRunning.get() <= 3);
+  }
+
+  @Test
+  public void testSingleThread() throws Exception {
+    AdEntity group = newGroup("group");
+    FakeFetcher fetcher = new FakeFetcher();
+    new RangeRetriever(fetcher, 1).retrieve(Collections.singletonList(group));
+    assertEquals(allMembers("group"), group.getMembers());
+    assertEquals(1, fetcher.maxRunning.get());
+  }
+
+  @Test
+  public void testFetchExceptionIsRethrown() throws Exception {
+    RangeRetriever.RangeFetcher fetcher = new RangeRetriever.RangeFetcher() {
+      @Override
+      public SearchResult fetch(AdEntity group, int start, int batch)
+          throws NamingException {
+        throw new CommunicationException("testing");
+      }
+    };
+    thrown.expect(CommunicationException.class);
+    new RangeRetriever(fetcher, 2).retrieve(
+        Arrays.asList(newGroup("group1"), newGroup("group2")));
+  }
+
+  @Test
+  public void testZeroConcurrency() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new RangeRetriever(new FakeFetcher(), 0);
+  }
+}
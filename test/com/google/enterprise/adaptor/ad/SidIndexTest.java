@@ -0,0 +1,105 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.*;
+
+/** Test cases for {@link SidIndex}. */
+public class SidIndexTest {
+  private static String randomSid(Random random) {
+    switch (random.nextInt(8)) {
+      case 0:
+        return "S-1-5-32-" + (544 + random.nextInt(10));
+      case 1:
+        return "WellKnown" + random.nextInt(10);
+      default:
+        return "S-1-5-21-" + random.nextInt(5) + "-42-"
+            + (random.nextInt(20000) + 4294950000L);
+    }
+  }
+
+  @Test
+  public void testBehavesLikeHashMap() {
+    Random random = new Random(3);
+    SidIndex index = new SidIndex();
+    Map<String, AdEntity> golden = new HashMap<String, AdEntity>();
+    for (int i = 0; i < 50000; i++) {
+      String sid = randomSid(random);
+      if (random.nextInt(4) > 0) {
+        AdEntity e = new AdEntity(sid, "cn=e" + i);
+        assertSame(golden.put(sid, e), index.put(sid, e));
+      } else {
+        assertSame(golden.remove(sid), index.remove(sid));
+      }
+    }
+    assertEquals(golden.size(), index.size());
+    assertEquals(golden, index);
+    assertEquals(index, golden);
+    assertEquals(golden.hashCode(), index.hashCode());
+    for (int i = 0; i < 1000; i++) {
+      String sid = randomSid(random);
+      assertSame(golden.get(sid), index.get(sid));
+      assertSame(golden.get(sid), index.find(Sid.parse(sid)));
+    }
+    // 5 domains of S-1-5-21-x-42, and the Builtin domain
+    assertEquals(6, index.getDomainCount());
+    index.clear();
+    assertTrue(index.isEmpty());
+    assertNull(index.get("S-1-5-32-544"));
+  }
+
+  @Test
+  public void testFindPrimaryGroup() {
+    SidIndex index = new SidIndex();
+    AdEntity group = new AdEntity("S-1-5-21-7-8-9-513", "cn=Domain Users");
+    AdEntity user = new AdEntity("S-1-5-21-7-8-9-1105", "cn=user", "513",
+        "user");
+    index.add(group.getObjectSid(), group);
+    index.add(user.getObjectSid(), user);
+    assertSame(group, index.find(user.getPrimaryGroupObjectSid()));
+    assertSame(user, index.get("S-1-5-21-7-8-9-1105"));
+    assertNull(index.find(Sid.parse("S-1-5-21-7-8-10-513")));
+    assertNull(index.find(null));
+    assertEquals(1, index.getDomainCount());
+  }
+
+  @Test
+  public void testPutAllAndIteratorRemove() {
+    SidIndex index = new SidIndex();
+    for (int i = 0; i < 10; i++) {
+      String sid = "S-1-5-21-1-" + i;
+      index.put(sid, new AdEntity(sid, "cn=e" + i));
+    }
+    index.put("Test", new AdEntity("Test", "cn=test"));
+    SidIndex copy = new SidIndex();
+    copy.put("S-1-5-32-544", new AdEntity("S-1-5-32-544", "cn=admins"));
+    copy.putAll(index);
+    assertEquals(12, copy.size());
+    Iterator<Map.Entry<String, AdEntity>> it = copy.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, AdEntity> entry = it.next();
+      assertEquals(entry.getKey(), entry.getValue().getSid());
+      if (!entry.getKey().equals("S-1-5-21-1-3")) {
+        it.remove();
+      }
+    }
+    assertEquals(Collections.singleton("S-1-5-21-1-3"), copy.keySet());
+    assertEquals(11, index.size());
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.ad;
+
+import static com.google.enterprise.adaptor.ad.AdServerTest.hexStringToByteArray;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** Test cases for {@link Sid}. */
+public class SidTest {
+  // S-1-5-21-2127521184-1604012920-1887927527-513
+  private static final String DOMAIN_USERS_HEX = "010500000000000515000000"
+      + "a065cf7e" + "784b9b5f" + "e77c8770" + "01020000";
+
+  @Test
+  public void testFromBinary() {
+    assertNull(Sid.fromBinary(null));
+    assertEquals("S-1-5-32-544", Sid.fromBinary(
+        hexStringToByteArray("01020000000000052000000020020000")).toString());
+    assertEquals("S-1-0-0", Sid.fromBinary(
+        hexStringToByteArray("010100000000000000000000")).toString());
+    Sid sid = Sid.fromBinary(hexStringToByteArray(DOMAIN_USERS_HEX));
+    assertEquals("S-1-5-21-2127521184-1604012920-1887927527-513",
+        sid.toString());
+    assertEquals(sid, Sid.parse(sid.toString()));
+    assertEquals(sid.hashCode(), Sid.parse(sid.toString()).hashCode());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedBinary() {
+    Sid.fromBinary(hexStringToByteArray("0102000000000005200000002002"));
+  }
+
+  @Test
+  public void testParse() {
+    assertNull(Sid.parse(null));
+    Sid sid = Sid.parse("S-1-5-21-4294967295-7-1000");
+    assertEquals("S-1-5-21-4294967295-7-1000", sid.toString());
+    assertFalse(sid.isBuiltin());
+    assertTrue(Sid.parse("S-1-5-32-544").isBuiltin());
+    assertFalse(Sid.parse("S-1-5-32").isBuiltin());
+    // not SIDs: kept as they are
+    for (String text : new String[] {"", "foo", "S-1-5-21-", "S-1-5-21-x",
+        "S-1-05-32", "S-1-5-4294967296", "S-1"}) {
+      Sid other = Sid.parse(text);
+      assertEquals(text, other.toString());
+      assertEquals(other, Sid.parse(text));
+      assertFalse(other.equals(sid));
+    }
+    assertTrue(Sid.parse("S-1-5-32-users").isBuiltin());
+  }
+
+  @Test
+  public void testWithRid() {
+    Sid user = Sid.parse("S-1-5-21-42-1105");
+    Sid group = user.withRid("513");
+    assertEquals(Sid.parse("S-1-5-21-42-513"), group);
+    assertEquals("S-1-5-21-42-513", group.toString());
+    assertEquals("S-1-0-users", Sid.parse("S-1-0-0").withRid("users")
+        .toString());
+    assertEquals("S-1-5-32-groupA", Sid.parse("S-1-5-32-544")
+        .withRid("groupA").toString());
+  }
+
+  @Test
+  public void testCompareTo() {
+    Sid[] ordered = {Sid.parse("Test"), Sid.parse("S-1-1-0"),
+        Sid.parse("S-1-5-21-42"), Sid.parse("S-1-5-21-42-500"),
+        Sid.parse("S-1-5-21-42-4294967295"), Sid.parse("S-1-5-32-544")};
+    for (int i = 0; i < ordered.length; i++) {
+      for (int j = 0; j < ordered.length; j++) {
+        assertEquals(Integer.signum(i - j),
+            Integer.signum(ordered[i].compareTo(ordered[j])));
+      }
+    }
+  }
+
+  @Test
+  public void testTextGuid() {
+    // each byte in hex, without leading zeros
+    assertEquals("0x012a0ff", AdEntity.getTextGuid(
+        hexStringToByteArray("000102a0ff")));
+  }
+}